@@ -0,0 +1,179 @@
+/*******************************************************************************
+ * metaXplorDB - Copyright (C) 2020 <CIRAD>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.metaxplor.importing;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import fr.cirad.metaxplor.model.Accession;
+import fr.cirad.metaxplor.model.Assignment;
+import fr.cirad.metaxplor.model.DBField;
+
+/**
+ * Persists accessions obtained from NCBI through a single thread, which coalesces what concurrent producers hand over into large
+ * unordered bulk writes. Accessions are either inserted (duplicates, which may come from concurrent imports, being ignored),
+ * or used to update existing ones' taxon and hit definition.
+ *
+ * Producers get blocked when the writer lags too far behind. A write failure is reported to the next producer call, and by close().
+ *
+ * @author sempere
+ */
+public class AccessionBulkWriter implements AutoCloseable {
+
+    private static final Logger LOG = Logger.getLogger(AccessionBulkWriter.class);
+
+    /** number of accessions above which a bulk write is issued */
+    private static final int FLUSH_SIZE = 5000;
+
+    /** max time pending accessions are kept when no more are coming in, in ms */
+    private static final long MAX_IDLE_TIME = 1000;
+
+    /** marks the end of the queue */
+    private static final List<Accession> END_OF_QUEUE = new ArrayList<>(0);
+
+    private final MongoTemplate mongoTemplate;
+    private final boolean fUpdateExisting;
+    private final BlockingQueue<List<Accession>> queue = new LinkedBlockingQueue<>(64);
+    private final Thread writerThread;
+    private volatile Exception failure = null;
+    private int nWrittenCount = 0;
+
+    /**
+     * @param mongoTemplate commons template
+     * @param fUpdateExisting whether accessions already exist and shall be updated rather than inserted
+     */
+    public AccessionBulkWriter(MongoTemplate mongoTemplate, boolean fUpdateExisting) {
+    	this.mongoTemplate = mongoTemplate;
+    	this.fUpdateExisting = fUpdateExisting;
+    	writerThread = new Thread(this::drainQueue, "accessionWriter");
+    	writerThread.setDaemon(true);
+    	writerThread.start();
+    }
+
+    /**
+     * Hands over accessions to be written
+     *
+     * @param accessions
+     * @throws IOException if a previous write failed (runtime exceptions raised by the DB layer being rethrown as is)
+     * @throws InterruptedException
+     */
+    public void write(Collection<Accession> accessions) throws IOException, InterruptedException {
+    	rethrowFailure();
+    	if (!accessions.isEmpty())
+    		enqueue(new ArrayList<>(accessions));
+    }
+
+    /**
+     * Waits until all accessions are written
+     *
+     * @throws IOException if a write failed (runtime exceptions raised by the DB layer being rethrown as is), or if interrupted while waiting
+     */
+    @Override
+    public void close() throws IOException {
+    	try {
+	    	try {
+	    		enqueue(END_OF_QUEUE);
+	    	}
+	    	finally {
+	    		writerThread.join();
+	    	}
+    	}
+    	catch (InterruptedException ie) {
+    		Thread.currentThread().interrupt();
+    		throw (IOException) new InterruptedIOException("Interrupted while waiting for accessions to be written").initCause(ie);
+    	}
+    	rethrowFailure();
+    	LOG.debug(nWrittenCount + " accessions " + (fUpdateExisting ? "updated" : "inserted"));
+    }
+
+    private void enqueue(List<Accession> accessions) throws IOException, InterruptedException {
+    	while (!queue.offer(accessions, MAX_IDLE_TIME, TimeUnit.MILLISECONDS))
+    		rethrowFailure();	// the writer thread may have stopped
+    }
+
+    private void rethrowFailure() throws IOException {
+    	Exception e = failure;
+    	if (e instanceof RuntimeException)
+    		throw (RuntimeException) e;
+    	if (e != null)
+    		throw new IOException("Unable to write accessions", e);
+    }
+
+    private void drainQueue() {
+    	List<Accession> pending = new ArrayList<>();
+    	try {
+    		while (true) {
+    			List<Accession> accessions = pending.isEmpty() ? queue.take() : queue.poll(MAX_IDLE_TIME, TimeUnit.MILLISECONDS);
+    			if (accessions == END_OF_QUEUE)
+    				break;
+    			if (accessions != null)
+    				pending.addAll(accessions);
+    			if (accessions == null || pending.size() >= FLUSH_SIZE) {
+    				flush(pending);
+    				pending.clear();
+    			}
+    		}
+    		flush(pending);
+    	}
+    	catch (Exception e) {
+    		LOG.error("Error writing accessions", e);
+    		failure = e;
+    		queue.clear();
+    	}
+    }
+
+    private void flush(List<Accession> accessions) {
+    	if (accessions.isEmpty())
+    		return;
+
+    	BulkOperations bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Accession.class);
+    	if (!fUpdateExisting)
+    		bulkOperations.insert(accessions);
+    	else
+        	for (Accession acc : accessions) {
+        		Query query = new Query(new Criteria().andOperator(Criteria.where("_id." + DBField.FIELDNAME_TYPE).is(String.valueOf(acc.getId().getType())), Criteria.where("_id." + Assignment.FIELDNAME_SSEQID).is(acc.getId().getSseqid())));
+        		Update update = new Update().set(Accession.FIELDNAME_NCBI_TAXID, acc.getTx());
+        		if (acc.getHd() != null)
+        			update.set(Accession.FIELDNAME_HIT_DEFINITION, acc.getHd());
+            	bulkOperations.updateMulti(query, update);
+        	}
+
+    	try {
+    		com.mongodb.bulk.BulkWriteResult wr = bulkOperations.execute();
+    		if (wr.getInsertedCount() > 0 || wr.getModifiedCount() > 0)
+    			LOG.debug(wr.getInsertedCount() + " accessions inserted, " + wr.getModifiedCount() + " accessions updated");
+    	}
+    	catch (BulkOperationException boe) {
+    		if (!boe.getMessage().toLowerCase().contains("duplicate key"))	// this may happen when several imports are running at the same time, should not be a problem as long as BulkMode is set to UNORDERED
+    			throw boe;
+    	}
+    	nWrittenCount += accessions.size();
+    }
+}
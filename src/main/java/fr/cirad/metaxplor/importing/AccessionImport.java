@@ -16,20 +16,34 @@
 package fr.cirad.metaxplor.importing;
 
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.ZipInputStream;
@@ -37,14 +51,10 @@ import java.util.zip.ZipInputStream;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 import org.bson.Document;
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
 import org.springframework.beans.factory.BeanDefinitionStoreException;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.support.GenericXmlApplicationContext;
 import org.springframework.core.io.Resource;
-import org.springframework.dao.DuplicateKeyException;
 import org.springframework.data.mongodb.BulkOperationException;
 import org.springframework.data.mongodb.core.BulkOperations;
 import org.springframework.data.mongodb.core.MongoTemplate;
@@ -59,9 +69,6 @@ import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Component;
 
-import com.mashape.unirest.http.HttpResponse;
-import com.mashape.unirest.http.Unirest;
-import com.mashape.unirest.http.exceptions.UnirestException;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
 import com.mongodb.client.DistinctIterable;
@@ -90,23 +97,45 @@ public class AccessionImport {
     
     @Autowired private AppConfig appConfig;
     
+    /** number of accessions per esummary request when sending GET requests, since ids need to fit in the URL */
     private static final int ACCESSION_QUERY_BATCH_SIZE = 50;
+
+    /** bounds for the number of accessions per esummary request when sending POST requests (ESummary returns at most 10,000 records) */
+    private static final int MIN_POST_BATCH_SIZE = ACCESSION_QUERY_BATCH_SIZE, MAX_POST_BATCH_SIZE = 10000;
+
+    /** current number of accessions per esummary POST request, shared by all imports since it reflects the service's condition */
+    private static final AtomicInteger postBatchSize = new AtomicInteger(500);
     private static final int MAX_RETRIES = 3;
-    
-    static private long previousCallTime = 0;
+
+    /** the service is considered down when as many attempts as this number of batches may make (MAX_RETRIES each) have failed, with none having succeeded */
+    private static final int MAX_FAILED_BATCHES_BEFORE_ABORT = 5;
+
+    /** E-utilities connection and read timeouts, in ms */
+    private static final int CONNECT_TIMEOUT = 10000, READ_TIMEOUT = 60000;
+
+    /** number of upserts per bulk write when importing an accession2taxid file */
+    private static final int ACCESSION2TAXID_BULK_SIZE = 10000;
+
+    /** threads sending E-utilities requests and parsing their responses for all imports, the rate limiter being what actually paces them */
+    private static final ExecutorService requestExecutor = Executors.newFixedThreadPool(EUtilsRateLimiter.MAX_REQUESTS_PER_SECOND_WITH_API_KEY, runnable -> {
+    	Thread thread = new Thread(runnable, "eutilsRequest");
+    	thread.setDaemon(true);
+    	return thread;
+    });
     
     /**
-     * The main method is used for creating the initial bunch of cached accessions, taken from SILVA.
-     * At the time of writing, it is advised to invoke it twice with the following arguments
+     * The main method is used for creating the initial bunch of cached accessions. Each argument may be either
+     * - the URI to a SILVA taxmap file. At the time of writing, it is advised to pass the following ones
      * (i) https://www.arb-silva.de/fileadmin/silva_databases/release_132/Exports/taxonomy/taxmap_embl_ssu_ref_nr99_132.txt.gz
      * (ii) https://www.arb-silva.de/fileadmin/silva_databases/release_132/Exports/taxonomy/taxmap_embl_lsu_ref_132.txt.gz
+     * - or the local path to an NCBI accession2taxid file (see https://ftp.ncbi.nlm.nih.gov/pub/taxonomy/accession2taxid/), e.g. nucl_gb.accession2taxid.gz
+     * or prot.accession2taxid.gz. Accession type is guessed from the file name, unless the path is prefixed with n: or p:
      */
     public static void main(String[] args) throws IOException {
         if (args.length < 1)
-            throw new IOException("You must pass 1 parameter as argument: URI to SILVA taxmap gz file");	// example argument: https://www.arb-silva.de/fileadmin/silva_databases/current/Exports/taxonomy/taxmap_embl_lsu_ref_132.txt.gz
+            throw new IOException("You must pass at least 1 parameter as argument: URI to SILVA taxmap gz file, or path to NCBI accession2taxid file");	// example argument: https://www.arb-silva.de/fileadmin/silva_databases/current/Exports/taxonomy/taxmap_embl_lsu_ref_132.txt.gz
 
         GenericXmlApplicationContext ctx = null;
-        Scanner scanner = null;
         try {
             MongoTemplate mongoTemplate = MongoTemplateManager.getCommonsTemplate();
             if (mongoTemplate == null) {	// we are probably being invoked offline
@@ -124,8 +153,28 @@ public class AccessionImport {
                 }
             }
 
-            InputStream is = Helper.openStreamFromUrl(args[0]);
-            if (args[0].toLowerCase().endsWith(".gz"))
+            for (String arg : args) {
+            	boolean fTypeSpecified = arg.startsWith(Accession.ID_NUCLEOTIDE_PREFIX) || arg.startsWith(Accession.ID_PROTEIN_PREFIX);
+            	String path = fTypeSpecified ? arg.substring(Accession.ID_PROTEIN_PREFIX.length()) : arg;
+            	String fileName = new File(path).getName().toLowerCase();
+            	if (!fileName.contains("accession2taxid"))
+            		importSilvaTaxmap(path, mongoTemplate);
+            	else {
+            		boolean fProtein = fTypeSpecified ? arg.startsWith(Accession.ID_PROTEIN_PREFIX) : fileName.startsWith("prot") || fileName.startsWith("dead_prot") || fileName.startsWith("pdb");
+            		importAccession2TaxidFile(new File(path), fProtein ? AccessionId.PROTEIN_TYPE : AccessionId.NUCLEOTIDE_TYPE, mongoTemplate);
+            	}
+            }
+          } finally {
+	          if (ctx != null)
+	              ctx.close();
+	      }
+	}
+
+    private static void importSilvaTaxmap(String uri, MongoTemplate mongoTemplate) throws IOException {
+        Scanner scanner = null;
+        try {
+            InputStream is = Helper.openStreamFromUrl(uri);
+            if (uri.toLowerCase().endsWith(".gz"))
             	is = new GZIPInputStream(is);
             
             scanner = new Scanner(is);
@@ -168,167 +217,318 @@ public class AccessionImport {
             while (scanner.hasNextLine());
 
             LOG.info(addedAccessions.size() + " inserts ; " + nUpdated + " updates");
-        	
-          } finally {
-	          if (ctx != null)
-	              ctx.close();
-	          if (scanner != null)
-	        	  scanner.close();
-	      }
-	}
+        } finally {
+        	if (scanner != null)
+        		scanner.close();
+        }
+    }
 
-    private synchronized void waitUntilAllowedToSendRequest(boolean fWithApiKey) throws InterruptedException {
+    /**
+     * Streams an NCBI accession2taxid file (tab-separated columns: accession, accession.version, taxid[, gi], with a header line) into the accessions
+     * collection, by means of unordered bulk upserts. Accessions already cached with a taxid get it updated. Those cached without one (i.e. that could
+     * not be resolved at import time) are left untouched, so that retryFailedAccessionRequests still finds them and patches the projects referring to them.
+     * The file provides no hit definitions: fetchRemoteAccessionInfo obtains them when an import first refers to the accessions.
+     *
+     * @param file accession2taxid file, possibly gzipped
+     * @param accType AccessionId.NUCLEOTIDE_TYPE or AccessionId.PROTEIN_TYPE
+     * @param mongoTemplate commons template
+     * @throws IOException
+     */
+    public static void importAccession2TaxidFile(File file, char accType, MongoTemplate mongoTemplate) throws IOException {
+    	long before = System.currentTimeMillis();
+    	LOG.info("Importing " + (accType == AccessionId.PROTEIN_TYPE ? "protein" : "nucleotide") + " accessions from " + file.getAbsolutePath());
+    	InputStream is = new FileInputStream(file);
+    	if (file.getName().toLowerCase().endsWith(".gz"))
+    		is = new GZIPInputStream(is, 1 << 16);
+
+    	long nLineCount = 0, nUpserted = 0, nModified = 0, nSkipped = 0;
+    	try (BufferedReader br = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8), 1 << 16)) {
+    		BulkOperations bulkOperations = null;
+    		int nPendingCount = 0;
+    		String line;
+    		while ((line = br.readLine()) != null) {
+    			nLineCount++;
+    			int nFirstTabPos = line.indexOf('\t'), nSecondTabPos = nFirstTabPos == -1 ? -1 : line.indexOf('\t', nFirstTabPos + 1), nThirdTabPos = nSecondTabPos == -1 ? -1 : line.indexOf('\t', nSecondTabPos + 1);
+    			int taxId;
+    			try {
+    				taxId = nSecondTabPos == -1 ? 0 : Integer.parseInt(line.substring(nSecondTabPos + 1, nThirdTabPos == -1 ? line.length() : nThirdTabPos));
+    			}
+    			catch (NumberFormatException nfe) {	// header line
+    				taxId = 0;
+    			}
+    			if (taxId <= 0) {
+    				nSkipped++;
+    				continue;
+    			}
+
+    			if (bulkOperations == null)
+    				bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Accession.class);
+    			AccessionId accId = new AccessionId(accType, line.substring(0, nFirstTabPos));
+    			bulkOperations.upsert(new Query(Criteria.where("_id").is(accId).and(Accession.FIELDNAME_NCBI_TAXID).ne(null)), new Update().set(Accession.FIELDNAME_NCBI_TAXID, taxId).setOnInsert("_class", Accession.TYPE_ALIAS));
+    			if (++nPendingCount == ACCESSION2TAXID_BULK_SIZE) {
+    				long[] counts = executeAccession2TaxidBulk(bulkOperations);
+    				nUpserted += counts[0];
+    				nModified += counts[1];
+    				bulkOperations = null;
+    				nPendingCount = 0;
+    			}
+    			if (nLineCount % 1000000 == 0)
+    				LOG.info(nLineCount + " lines processed");
+    		}
+    		if (bulkOperations != null) {
+    			long[] counts = executeAccession2TaxidBulk(bulkOperations);
+    			nUpserted += counts[0];
+    			nModified += counts[1];
+    		}
+    	}
+    	LOG.info(file.getName() + ": " + nLineCount + " lines processed in " + (System.currentTimeMillis() - before) / 1000 + "s, " + nUpserted + " accessions inserted, " + nModified + " updated, " + nSkipped + " lines skipped");
+    }
 
-    	while (System.currentTimeMillis() - previousCallTime < (!fWithApiKey ? 400 : 120))	// we're not allowed to send more than 3 queries per second without an API key
-    		Thread.sleep(50);
-	
-    	previousCallTime = System.currentTimeMillis();
+    /**
+     * @return the number of inserted and modified accessions
+     */
+    private static long[] executeAccession2TaxidBulk(BulkOperations bulkOperations) {
+    	try {
+    		com.mongodb.bulk.BulkWriteResult wr = bulkOperations.execute();
+    		return new long[] {wr.getUpserts().size(), wr.getModifiedCount()};
+    	}
+    	catch (BulkOperationException boe) {	// upserts of accessions cached without a taxid fail on the _id's unique index
+    		if (boe.getErrors().stream().anyMatch(error -> error.getCode() != 11000))
+    			throw boe;
+    		return new long[] {boe.getResult().getUpserts().size(), boe.getResult().getModifiedCount()};
+    	}
     }
 
-    private HttpResponse<String> doGetRequest(String url, boolean fWithApiKey) throws InterruptedException, UnirestException {
-    	waitUntilAllowedToSendRequest(fWithApiKey);
-    	return Unirest.get(url).asString();
+    /**
+     * Sends a request once the rate limiter allows it, reporting the outcome to the latter
+     *
+     * @param url
+     * @param postData url-encoded form data, null for a GET request
+     * @param fWithApiKey
+     * @return the connection, whose response body has not been read yet
+     */
+    private static HttpURLConnection sendRequest(String url, String postData, boolean fWithApiKey) throws InterruptedException, IOException {
+    	EUtilsRateLimiter rateLimiter = EUtilsRateLimiter.getInstance(fWithApiKey);
+    	long permitGrantTime = rateLimiter.acquire();
+    	HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+    	connection.setConnectTimeout(CONNECT_TIMEOUT);
+    	connection.setReadTimeout(READ_TIMEOUT);
+    	connection.setRequestProperty("Accept-Encoding", "gzip");
+    	if (postData != null) {
+    		connection.setDoOutput(true);
+    		connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+    		try (OutputStream os = connection.getOutputStream()) {
+    			os.write(postData.getBytes(StandardCharsets.UTF_8));
+    		}
+    	}
+    	int nStatus = connection.getResponseCode();
+    	if (nStatus == 429 || nStatus >= 500)
+    		rateLimiter.onThrottled(permitGrantTime, getRetryAfterSeconds(connection));
+    	else
+    		rateLimiter.onSuccess();
+    	return connection;
     }
 
     /**
-     * fetch info from NCBI according to accession number
+     * Invokes esummary for a list of ids, via a POST request if enabled (which supports thousands of ids), via a GET request otherwise
      *
-     * @param accIdColl
-     * @param fProtein
-     * @param apiKey 
-     * @param fTryingAgain means we're not being called during a data import but in the scope of an attempt to fetch accessions that could not be obtained at import time
-     * @return successfully fetched accessions, with prefix
-     * @throws InterruptedException 
+     * @param db E-utilities database name
+     * @param ids
+     * @param apiKey
+     * @return the JSON response body, read straight from the connection (to be closed by the caller)
      */
-    private Collection<String> getSeqInfoFromNCBI(Collection<String> accIdColl, boolean fProtein, String apiKey, boolean fTryingAgain) throws Exception {
-    	BulkOperations bulkOperations = MongoTemplateManager.getCommonsTemplate().bulkOps(BulkOperations.BulkMode.UNORDERED, Accession.class);
-    	boolean fBulkOpsEmpty = true;
-    	HashMap<Integer, ArrayList<Accession>> accessionsToAddByTaxId = new HashMap<>(), accessionsWithUnknownTaxa = new HashMap<>();
-    	
-    	Collection<String> updatedAccs = new ArrayList<>();
-        String url = appConfig.getEUtilsBaseUrl();
+    private InputStream requestESummary(String db, Collection<?> ids, String apiKey) throws Exception {
+    	boolean fWithApiKey = apiKey != null && !apiKey.isEmpty();
+    	String url = appConfig.getEUtilsBaseUrl() + "esummary.fcgi", params = "db=" + db + "&retmode=json" + (fWithApiKey ? "&api_key=" + URLEncoder.encode(apiKey, "UTF-8") : "") + "&id=" + URLEncoder.encode(StringUtils.join(ids, ","), "UTF-8");
+    	HttpURLConnection connection = appConfig.isEUtilsPostEnabled() ? sendRequest(url, params, fWithApiKey) : sendRequest(url + "?" + params, null, fWithApiKey);
+    	if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+    		String statusText = connection.getResponseMessage();
+    		connection.disconnect();
+    		throw new Exception(statusText);
+    	}
+    	InputStream body = connection.getInputStream();
+    	return "gzip".equalsIgnoreCase(connection.getContentEncoding()) ? new GZIPInputStream(body, 1 << 16) : body;
+    }
 
-        HttpResponse<String> resp = doGetRequest(url + "esummary.fcgi?db=" + (fProtein ? "protein" : "nucleotide") + "&retmode=json" + (apiKey != null && !apiKey.isEmpty() ? "&api_key=" + apiKey : "") + "&id=" + StringUtils.join(accIdColl, ","), apiKey != null && !apiKey.isEmpty());
-        if (resp.getStatus() != 200)
-        	throw new Exception(resp.getStatusText());
+    /**
+     * @return number of accessions to send in each esummary request
+     */
+    private int getAccessionBatchSize() {
+    	return appConfig.isEUtilsPostEnabled() ? postBatchSize.get() : ACCESSION_QUERY_BATCH_SIZE;
+    }
 
-        BasicDBObject jsonObject = (BasicDBObject) BasicDBObject.parse(resp.getBody());	// parse using MongoDB API because it is less strict and goes around the fact that response may contain multiple "error" fields
+    /**
+     * Doubles the POST batch size after a successful full-size request, halves it after a failure (error response, timeout...)
+     *
+     * @param nRequestedSize number of accessions that were sent
+     * @param fSucceeded
+     */
+    private static void adaptPostBatchSize(int nRequestedSize, boolean fSucceeded) {
+    	int nNewSize = postBatchSize.updateAndGet(nSize -> fSucceeded ? (nRequestedSize >= nSize ? Math.min(MAX_POST_BATCH_SIZE, nSize * 2) : nSize) : Math.max(MIN_POST_BATCH_SIZE, Math.min(nSize, nRequestedSize) / 2));
+    	if (!fSucceeded)
+    		LOG.debug("esummary POST batch size reduced to " + nNewSize);
+    }
 
-        JSONObject jsonBody = new JSONObject(jsonObject.toString());
-        JSONObject results = jsonBody.getJSONObject("result");
-        JSONArray resultList = results.getJSONArray("uids");
+    /**
+     * @return the response's Retry-After header value if it is a number of seconds, null otherwise
+     */
+    private static Integer getRetryAfterSeconds(HttpURLConnection connection) {
+    	String retryAfter = connection.getHeaderField("Retry-After");
+    	if (retryAfter != null)
+    		try {
+    			return Integer.parseInt(retryAfter.trim());
+    		}
+    		catch (NumberFormatException ignored) {	// may also be an HTTP date, which we don't bother parsing
+    		}
+    	return null;
+    }
 
-        for (int i=0; i<resultList.length(); i++) {
-            JSONObject object = results.getJSONObject(resultList.getString(i));
+    /**
+     * Sends an esummary request for accessions and extracts accession info from the response as it comes in
+     *
+     * @param accIds
+     * @param fProtein
+     * @param apiKey
+     * @return found accessions, with the taxid NCBI provides (possibly null)
+     */
+    private List<Accession> requestSummaries(Collection<String> accIds, boolean fProtein, String apiKey) throws Exception {
+        List<ESummaryParser.DocumentSummary> summaries;
+        try (InputStream body = requestESummary(fProtein ? "protein" : "nucleotide", accIds, apiKey)) {
+        	summaries = ESummaryParser.parseDocumentSummaries(body);
+        }
 
-            if (!object.has("taxid")) {
-            	LOG.warn("No taxid found for accession " + object.getString("caption") + ": " + object.getString("comment"));
+        List<Accession> accessions = new ArrayList<>();
+        for (ESummaryParser.DocumentSummary summary : summaries) {
+            if (!summary.hasTaxId()) {
+            	LOG.warn("No taxid found for accession " + summary.getCaption() + ": " + summary.getComment());
             	continue;
             }
 
-            try {
-            	int taxId = -1;
-                if (!"".equals(object.get("taxid")))
-                	taxId = object.getInt("taxid");
-
-                String hitDefinition = null;
-                String accession = object.getString("caption");
-
-                if (object.getString("title") != null) {
-                    hitDefinition = object.getString("title");
-                    if (hitDefinition.length() > 1024) {
-                    	hitDefinition = hitDefinition.substring(0, 1000) + "...";
-                    	LOG.info("Truncated hit definition for accession " + accession + " because it exceeded 1024 chars");
-                    }
-                }
-
-                Accession acc = new Accession(new AccessionId(fProtein ? AccessionId.PROTEIN_TYPE : AccessionId.NUCLEOTIDE_TYPE, accession), taxId == -1 ? null : taxId, hitDefinition);
-                ArrayList<Accession> accsForTaxId = accessionsToAddByTaxId.get(taxId);
-                if (accsForTaxId == null) {
-                	accsForTaxId = new ArrayList<>();
-                	accessionsToAddByTaxId.put(taxId, accsForTaxId);
-                }
-
-                accsForTaxId.add(acc);
-                
-                if (taxId != -1) {
-	                if (!MongoTemplateManager.getCommonsTemplate().exists(new Query(Criteria.where("_id").is(taxId)), Taxon.class)) {	// keep aside accessions with an unknown taxid
-		                accsForTaxId = accessionsWithUnknownTaxa.get(taxId);
-	                    if (accsForTaxId == null) {
-	                    	accsForTaxId = new ArrayList<>();
-	                    	accessionsWithUnknownTaxa.put(taxId, accsForTaxId);
-	                    }
-
-	                    accsForTaxId.add(acc);
-	                }
-	                else {
-	                	updatedAccs.add((fProtein ? Accession.ID_PROTEIN_PREFIX : Accession.ID_NUCLEOTIDE_PREFIX) + accession);
-	                	if (!accIdColl.remove(object.getString("caption")))
-		                    LOG.debug("couldn't remove " + object.getString("caption") + " from " + accIdColl + " (database " + (fProtein ? "protein" : "nucleotide") + ")");	                	
-	                }
-                }
+            String accession = summary.getCaption(), hitDefinition = summary.getTitle();
+            if (accession == null || hitDefinition == null) {
+            	LOG.error("Incomplete summary for " + (fProtein ? "protein" : "nucleotide") + " accession " + accession);
+            	continue;
             }
-            catch (JSONException je) {
-                LOG.error(je);
+            if (hitDefinition.length() > 1024) {
+            	hitDefinition = hitDefinition.substring(0, 1000) + "...";
+            	LOG.info("Truncated hit definition for accession " + accession + " because it exceeded 1024 chars");
             }
+            accessions.add(new Accession(new AccessionId(fProtein ? AccessionId.PROTEIN_TYPE : AccessionId.NUCLEOTIDE_TYPE, accession), summary.getTaxId(), hitDefinition));
         }
+        return accessions;
+    }
 
-        if (accessionsWithUnknownTaxa.size() > 0) {
+    /**
+     * Taxids unknown to our taxonomy are looked up in NCBI's since they may have been merged into others. Accessions for which no taxon
+     * can be found are given an unidentified one
+     *
+     * @param accessions as returned by requestSummaries
+     * @param accIdColl requested accessions, from which those found in the response are removed (only once their taxa are resolved)
+     * @param fProtein
+     * @param apiKey
+     * @return the accessions
+     */
+    private List<Accession> resolveTaxa(List<Accession> accessions, Collection<String> accIdColl, boolean fProtein, String apiKey) throws Exception {
+        Map<Integer, List<Accession>> accessionsWithUnknownTaxa = new HashMap<>();
+        for (Accession acc : accessions)
+        	if (acc.getTx() != null)
+        		accessionsWithUnknownTaxa.computeIfAbsent(acc.getTx(), taxId -> new ArrayList<>()).add(acc);
+        if (!accessionsWithUnknownTaxa.isEmpty())	// keep aside accessions with an unknown taxid
+        	accessionsWithUnknownTaxa.keySet().removeAll(new HashSet<>(MongoTemplateManager.getCommonsTemplate().findDistinct(new Query(Criteria.where("_id").in(accessionsWithUnknownTaxa.keySet())), "_id", Taxon.class, Integer.class)));
+
+        if (!accessionsWithUnknownTaxa.isEmpty()) {
         	// check whether unknown taxa were merged into others
-    		HttpResponse<String> bodyAsText = doGetRequest(url + "esummary.fcgi?db=taxonomy&retmode=json" + (apiKey != null && !apiKey.isEmpty() ? "&api_key=" + apiKey : "") + "&id=" + StringUtils.join(accessionsWithUnknownTaxa.keySet().toArray(new Integer[accessionsWithUnknownTaxa.size()]), ","), apiKey != null && !apiKey.isEmpty());
-    		JSONObject taxResp = new JSONObject(((BasicDBObject) BasicDBObject.parse(bodyAsText.getBody())).toString());	// parse using MongoDB API because it is less strict and goes around the fact that response may contain multiple "error" fields
-            if (!taxResp.has("result"))
-            	throw new Exception(taxResp.has("error") ? taxResp.getString("error") : bodyAsText.getBody());
-            else {
-	            JSONObject resultObj = taxResp.getJSONObject("result");
-	            int nMergedTaxaCount = 0;
-	            for (Integer anUnknownTaxId : accessionsWithUnknownTaxa.keySet())
-		            try
-		            {
-		            	int taxId = Integer.parseInt(resultObj.getJSONObject("" + anUnknownTaxId).get("akataxid").toString());
-		            	nMergedTaxaCount++;
-		            	for (Accession acc : accessionsWithUnknownTaxa.get(anUnknownTaxId))
-		            		acc.setTx(taxId);
-		            }
-		            catch (Exception ignored)
-		            {}
-	            LOG.info(nMergedTaxaCount + " taxa with merged taxid, " + (accessionsWithUnknownTaxa.size() - nMergedTaxaCount) + " could not be merged");
+    		Map<Integer, Integer> mergedTaxa;
+    		try (InputStream body = requestESummary("taxonomy", accessionsWithUnknownTaxa.keySet(), apiKey)) {
+    			mergedTaxa = ESummaryParser.parseMergedTaxa(body);
+    		}
+            int nMergedTaxaCount = 0;
+            for (Integer anUnknownTaxId : accessionsWithUnknownTaxa.keySet()) {
+            	Integer taxId = mergedTaxa.get(anUnknownTaxId);
+            	if (taxId != null) {
+	            	nMergedTaxaCount++;
+	            	for (Accession acc : accessionsWithUnknownTaxa.get(anUnknownTaxId))
+	            		acc.setTx(taxId);
+            	}
             }
+            LOG.info(nMergedTaxaCount + " taxa with merged taxid, " + (accessionsWithUnknownTaxa.size() - nMergedTaxaCount) + " could not be merged");
         }
 
-        // persist the precious information we found
-        for (int taxId : accessionsToAddByTaxId.keySet()) {
-        	List<Accession> accsToAdd = accessionsToAddByTaxId.get(taxId);
-        	List<AccessionId> accIDs = accsToAdd.stream().map(acc -> acc.getId()).collect(Collectors.toList());
-        	if (taxId == -1) {
-        		LOG.info("No taxon id found for " + (fProtein ? "protein" : "nucleotide") + " accessions " + StringUtils.join(accIDs, ", ") + ": unclassified?");
-        		accsToAdd.stream().forEach(acc -> { acc.setTx(Taxon.UNIDENTIFIED_ORGANISM_TAXID); });	// mark as unidentified because we won't be able to grab more info than this
+        List<String> accessionsWithoutTaxon = new ArrayList<>();
+        for (Accession acc : accessions) {
+        	if (acc.getTx() == null) {
+        		acc.setTx(Taxon.UNIDENTIFIED_ORGANISM_TAXID);	// mark as unidentified because we won't be able to grab more info than this
+        		accessionsWithoutTaxon.add(acc.getId().getSseqid());
         	}
-            if (!fTryingAgain)
-            	bulkOperations.insert(accsToAdd);
-            else
-            	for (Accession acc : accsToAdd) {
-            		Query query = new Query(new Criteria().andOperator(Criteria.where("_id." + DBField.FIELDNAME_TYPE).is(String.valueOf(fProtein ? Accession.AccessionId.PROTEIN_TYPE : Accession.AccessionId.NUCLEOTIDE_TYPE)), Criteria.where("_id." + Assignment.FIELDNAME_SSEQID).is(acc.getId().getSseqid())));
-	            	bulkOperations.updateMulti(query, new Update().set(Accession.FIELDNAME_NCBI_TAXID, taxId).set(Accession.FIELDNAME_HIT_DEFINITION, acc.getHd()));
-            	}
-        	fBulkOpsEmpty = false;
+        	if (!accIdColl.remove(acc.getId().getSseqid()))
+        		LOG.debug("couldn't remove " + acc.getId().getSseqid() + " from " + accIdColl + " (database " + (fProtein ? "protein" : "nucleotide") + ")");
         }
-        if (!fBulkOpsEmpty)
-        	try {
-        		com.mongodb.bulk.BulkWriteResult wr = bulkOperations.execute();
-        		if (wr.getInsertedCount() > 0 || wr.getModifiedCount() > 0)
-        			LOG.debug(wr.getInsertedCount() + " accessions inserted, " + wr.getModifiedCount() + " accessions updated");
-        	}
-        	catch (BulkOperationException boe) {
-        		if (!boe.getMessage().toLowerCase().contains("duplicate key"))	// this may happen when several imports are running at the same time, should not be a problem as long as BulkMode is set to UNORDERED
-        			throw boe;
-        	}
-		
-        return updatedAccs;
+        if (!accessionsWithoutTaxon.isEmpty())
+        	LOG.info("No taxon id found for " + (fProtein ? "protein" : "nucleotide") + " accessions " + StringUtils.join(accessionsWithoutTaxon, ", ") + ": unclassified?");
+        return accessions;
     }
 
     /**
-     * Fetch info on accessions from "nucleotide" and "protein" databases
+     * Outcome of the E-utilities requests sent on behalf of a fetchRemoteAccessionInfo call
+     */
+    private static class FetchStatus {
+    	private final AtomicInteger nSucceededAttemptCount = new AtomicInteger(0), nFailedAttemptCount = new AtomicInteger(0);
+
+    	private boolean isServiceDown() {
+    		return nSucceededAttemptCount.get() == 0 && nFailedAttemptCount.get() >= MAX_FAILED_BATCHES_BEFORE_ABORT * MAX_RETRIES;
+    	}
+    }
+
+    /**
+     * Fetches info on a batch of accessions, retrying up to MAX_RETRIES times. The request is sent, and its response parsed as it gets received, by requestExecutor.
+     * Taxa are then resolved in a separate task on the same executor since this may involve another request
+     *
+     * @param accIds accessions to fetch, those found being removed
+     * @param fProtein
+     * @param apiKey
+     * @param nAttempt attempt number, starting from 1
+     * @param status shared by all batches of a fetchRemoteAccessionInfo call, no more retries being made once the service seems down
+     * @return future found accessions, completed exceptionally if all attempts failed
+     */
+    private CompletableFuture<List<Accession>> fetchBatch(Collection<String> accIds, boolean fProtein, String apiKey, int nAttempt, FetchStatus status) {
+    	int nRequestedSize = accIds.size();
+    	return CompletableFuture.supplyAsync(() -> {
+	    		try {
+	    			return requestSummaries(accIds, fProtein, apiKey);
+	    		}
+	    		catch (Exception e) {
+	    			throw new CompletionException(e);
+	    		}
+	    	}, requestExecutor)
+    		.thenCompose(parsedAccessions -> CompletableFuture.supplyAsync(() -> {
+	    		try {
+	    			return resolveTaxa(parsedAccessions, accIds, fProtein, apiKey);
+	    		}
+	    		catch (Exception e) {
+	    			throw new CompletionException(e);
+	    		}
+	    	}, requestExecutor))
+    		.handle((accessions, t) -> {
+    			adaptPostBatchSize(nRequestedSize, t == null);
+    			(t == null ? status.nSucceededAttemptCount : status.nFailedAttemptCount).incrementAndGet();
+    			if (t == null)
+    				return CompletableFuture.completedFuture(accessions);
+
+    			LOG.debug("NCBI service call failed: " + (t.getCause() != null ? t.getCause() : t).getMessage());
+    			if (nAttempt >= MAX_RETRIES || status.isServiceDown()) {
+    				CompletableFuture<List<Accession>> failure = new CompletableFuture<>();
+    				failure.completeExceptionally(t);
+    				return failure;
+    			}
+    			LOG.debug((fProtein ? "protein" : "nucleotide") + " retry " + accIds);
+    			return fetchBatch(accIds, fProtein, apiKey, nAttempt + 1, status);
+    		})
+    		.thenCompose(future -> future);
+    }
+
+    /**
+     * Fetch info on accessions from "nucleotide" and "protein" databases. During an import, cached accessions that have a taxon but no hit definition
+     * (e.g. those imported from an accession2taxid file or a SILVA taxmap) are fetched again so that they get one
      *
      * @param nuclAccessions
      * @param protAccessions 
@@ -337,33 +537,40 @@ public class AccessionImport {
      * @throws Exception 
      */
     public List<String> fetchRemoteAccessionInfo(List<String> nuclAccessions, List<String> protAccessions, ProgressIndicator progress) throws Exception {
-        Collection<String>[] accLists = new Collection[] {nuclAccessions, protAccessions};
+        List<Collection<String>> accLists = Arrays.asList(nuclAccessions, protAccessions);
+        int nRequestedAccCount = nuclAccessions.size() + protAccessions.size();
     	LOG.debug("fetchRemoteAccessionInfo called for " + (nuclAccessions.size() + protAccessions.size()) + " accessions"/* + " -> NUCL:" + nuclAccessions + ", PROT:" + protAccessions*/);
 
-    	List<String> result = new ArrayList<>();
+    	List<String> result = Collections.synchronizedList(new ArrayList<>());
+    	List<Collection<String>> untitledAccLists = Arrays.asList(new ArrayList<>(), new ArrayList<>());	// cached accessions only lacking a hit definition, by type
         if (progress != null)
         	 // it's an import so we won't try and get info for accessions we already know
-        	for (int j=0; j<accLists.length; j++) {
-            	final boolean fProtein = accLists[j] == protAccessions;
+        	for (int j=0; j<accLists.size(); j++) {
+            	final boolean fProtein = accLists.get(j) == protAccessions;
 		        List<String> existingAccessions = new ArrayList<>();
 		    	HashSet<String> subSet = new HashSet<>();
-		    	Iterator<String> accIt = accLists[j].iterator();
+		    	Iterator<String> accIt = accLists.get(j).iterator();
 		    	if (accIt.hasNext())
 			        do {
 			        	subSet.add(accIt.next());
 			        	if (subSet.size() % 5000 == 0 || !accIt.hasNext()) {
-			        		existingAccessions.addAll(MongoTemplateManager.getCommonsTemplate().findDistinct(new Query(new Criteria().andOperator(Criteria.where("_id." + DBField.FIELDNAME_TYPE).is(String.valueOf(fProtein ? AccessionId.PROTEIN_TYPE : AccessionId.NUCLEOTIDE_TYPE)), Criteria.where("_id." + Assignment.FIELDNAME_SSEQID).in(subSet))), "_id." + Assignment.FIELDNAME_SSEQID, MongoTemplateManager.getCommonsTemplate().getCollectionName(Accession.class), String.class));
+			        		Criteria subSetCriteria = new Criteria().andOperator(Criteria.where("_id." + DBField.FIELDNAME_TYPE).is(String.valueOf(fProtein ? AccessionId.PROTEIN_TYPE : AccessionId.NUCLEOTIDE_TYPE)), Criteria.where("_id." + Assignment.FIELDNAME_SSEQID).in(subSet));
+			        		existingAccessions.addAll(MongoTemplateManager.getCommonsTemplate().findDistinct(new Query(subSetCriteria), "_id." + Assignment.FIELDNAME_SSEQID, MongoTemplateManager.getCommonsTemplate().getCollectionName(Accession.class), String.class));
+			        		untitledAccLists.get(j).addAll(MongoTemplateManager.getCommonsTemplate().findDistinct(new Query(subSetCriteria).addCriteria(Criteria.where(Accession.FIELDNAME_HIT_DEFINITION).exists(false)).addCriteria(Criteria.where(Accession.FIELDNAME_NCBI_TAXID).nin(null, Taxon.UNIDENTIFIED_ORGANISM_TAXID)), "_id." + Assignment.FIELDNAME_SSEQID, MongoTemplateManager.getCommonsTemplate().getCollectionName(Accession.class), String.class));
 			        		subSet.clear();
 			        	}
 			        } while (accIt.hasNext());
 		    	if (!existingAccessions.isEmpty())
-		    		accLists[j].removeAll(existingAccessions);
+		    		accLists.get(j).removeAll(existingAccessions);
 	    	}
-        int nTotalAccCount = nuclAccessions.size() + protAccessions.size();
-        if (nTotalAccCount == 0)
+        int nUntitledAccCount = untitledAccLists.get(0).size() + untitledAccLists.get(1).size();
+        int nTotalAccCount = nuclAccessions.size() + protAccessions.size() + nUntitledAccCount;
+        if (nTotalAccCount == 0) {
+        	LOG.debug("All " + nRequestedAccCount + " accessions resolved from local cache");
         	return result;
+        }
 
-        LOG.info(nTotalAccCount + " new accessions actually need to be fetched (" + nuclAccessions.size() + " nucl & " + protAccessions.size() + " prot)");
+        LOG.info((nRequestedAccCount - nTotalAccCount + nUntitledAccCount) + " accessions resolved from local cache (" + nUntitledAccCount + " of which lack a hit definition), " + (nTotalAccCount - nUntitledAccCount) + " new accessions actually need to be fetched (" + nuclAccessions.size() + " nucl & " + protAccessions.size() + " prot)");
         
         if (appConfig.getEUtilsBaseUrl() == null)
         	throw new Exception("eutils_base_url not defined in config.properties!");
@@ -379,109 +586,105 @@ public class AccessionImport {
 	    	progress.setPercentageEnabled(true);
         }
         
-    	Collection<String> accIdList = new HashSet<>();
-
-        // fetch accessions by batch
-        final ArrayList<Thread> threadsToWaitFor = new ArrayList<>();
-        int nNConcurrentThreads = !fGotApiKey ? 3 : 10;
-        AtomicInteger nTotalFailureCount = new AtomicInteger(0), nOverallProcessedAccCount = new AtomicInteger(0);
-        for (int j=0; j<accLists.length; j++) {
-        	if (accLists[j].isEmpty())
-        		continue;
-
-        	final boolean fProt = accLists[j] == protAccessions;
-            int accIndex = 0, chunkIndex = -1;
-            LOG.debug("Starting to deal with " + (fProt ? "protein" : "nucleotide") + " accessions");
-	        for (String accession : accLists[j]) {
-	            accIdList.add(accession);
-	            nOverallProcessedAccCount.incrementAndGet();
-	            accIndex++;
-	            if (accIndex % ACCESSION_QUERY_BATCH_SIZE == 0 || accIndex == accLists[j].size())
-	            {
-	            	final Collection<String> finalAccList = new HashSet<>(accIdList);
-	            	++chunkIndex;
-	                Thread queryThread = new Thread() {
-	                    @Override
-	                    public void run() {
-	            			int nFailureCount = 0;
-	                    	while (nFailureCount < MAX_RETRIES)
-		                    	try {
-		                    		if (nFailureCount > 0)
-		                    			LOG.debug((fProt ? "protein" : "nucleotide") + " retry " + finalAccList);
-		                    		result.addAll(getSeqInfoFromNCBI(finalAccList /* will shrink when some are obtained */, fProt, apiKey, progress == null));
-									break;
-								}
-		                    	catch (Exception e) {
-									LOG.debug("NCBI service call failed: " + e.getMessage());
-									nFailureCount++;
-								}
-	                    	if (!finalAccList.isEmpty()) { // some accessions could not be obtained from the WS
-		                    	if (nFailureCount == MAX_RETRIES) {	// unable to call WS at all: tax id shall be set to null so we know can we retrieve it later on
-		                    		LOG.warn("After " + nFailureCount + " attempts, unable to get " + (fProt ? "protein" : "nucleotide") + " info for accessions " + finalAccList);
-		                        	if (progress != null) { // otherwise we already have those empty Accession objects
-		                        		List<Accession> accObjects = finalAccList.stream().map(unobtainedAccId -> new Accession(new AccessionId(fProt ? AccessionId.PROTEIN_TYPE : AccessionId.NUCLEOTIDE_TYPE, unobtainedAccId), null /* setting a null taxon is a way of marking the accession for retries */, null)).collect(Collectors.toList());
-		                        		try {
-		                        			MongoTemplateManager.getCommonsTemplate().insert(accObjects, Accession.class);
-		                        		}
-			                        	catch (DuplicateKeyException dke) { // may happen in the case of concurrent imports
-			                        		for (Accession accObj : accObjects)
-			                        			MongoTemplateManager.getCommonsTemplate().save(accObj);
-			                        	}
-		                        	}
-		                    		nTotalFailureCount.incrementAndGet();
-		                    	}
-		                    	else { // WS could be reached but some accessions do not seem to exist: mark their taxon as unidentified
-	                	            if (progress != null) {
-	                        			List<Accession> accObjects = finalAccList.stream().map(accId -> new Accession(new AccessionId(fProt ? AccessionId.PROTEIN_TYPE : AccessionId.NUCLEOTIDE_TYPE, accId), Taxon.UNIDENTIFIED_ORGANISM_TAXID, null)).collect(Collectors.toList());
-		                        		try {
-		                        			MongoTemplateManager.getCommonsTemplate().insert(accObjects, Accession.class);
-		                        		}
-			                        	catch (DuplicateKeyException dke) { // may happen in the case of concurrent imports
-			                        		for (Accession accObj : accObjects)
-			                        			MongoTemplateManager.getCommonsTemplate().save(accObj);
-			                        	}
-	                	            }
-	                	            else { // we're not being invoked by an import, the accessions already exist so we can't insert
-	                	            	Query query = new Query(new Criteria().andOperator(Criteria.where("_id." + DBField.FIELDNAME_TYPE).is(String.valueOf(fProt ? AccessionId.PROTEIN_TYPE : AccessionId.NUCLEOTIDE_TYPE)), Criteria.where("_id." + Assignment.FIELDNAME_SSEQID).in(finalAccList)));
-	                	            	MongoTemplateManager.getCommonsTemplate().updateMulti(query, new Update().set(Accession.FIELDNAME_NCBI_TAXID, Taxon.UNIDENTIFIED_ORGANISM_TAXID), Accession.class);
-	                	            }
-	                	            LOG.info("Unable to find valid taxid for " + finalAccList.size() + " accessions in " + (fProt ? "protein" : "nucleotide") + " database: " + StringUtils.join(finalAccList, ","));
-		                	    }
-	                    	}
-	            		}
-	                };
-
-	                if (chunkIndex % nNConcurrentThreads == (nNConcurrentThreads - 1) || accIndex == accLists[j].size()) {
-	                    threadsToWaitFor.add(queryThread); // only needed to have an accurate count
-	                    queryThread.run();	// run synchronously
-	                    
-	                    if (progress != null)
-	                    	progress.setCurrentStepProgress(accIndex * 100 / nTotalAccCount);
-	
-	                    for (Thread ttwf : threadsToWaitFor)	// wait for all threads before moving to next phase
-	            			ttwf.join();
-	                    
-	                    if ((chunkIndex + 1) >= (5 * nNConcurrentThreads) && nTotalFailureCount.get() == chunkIndex + 1)
-	                    	throw new InterruptedException("E-utilities web-service seems to be down: aborting!");	// no data could be obtained for any of the 5 first chunks
-	
-	            		threadsToWaitFor.clear();
-	                }
-	                else {
-	                    threadsToWaitFor.add(queryThread);
-	                    queryThread.start();	// run asynchronously for better speed
-	                }
-	
-	                accIdList.clear();
-	            }
+        // fetch accessions by batch: requests, response parsing and DB writes are pipelined, the number of batches in progress being bounded
+        EUtilsRateLimiter rateLimiter = EUtilsRateLimiter.getInstance(fGotApiKey);
+        int nMaxBatchesInProgress = 2 * Math.max(1, (int) Math.ceil(rateLimiter.getCurrentRequestsPerSecond()));	// each request takes about a second, so this is enough to use the whole allowed rate (fewer while the service is throttling us)
+        Semaphore batchPermits = new Semaphore(nMaxBatchesInProgress);
+        AtomicInteger nProcessedAccCount = new AtomicInteger(0);
+        FetchStatus fetchStatus = new FetchStatus();
+        AtomicReference<Throwable> writeFailure = new AtomicReference<>();
+        boolean fServiceDown = false;
+        List<Collection<String>> listsToFetch = new ArrayList<>(accLists);
+        listsToFetch.addAll(untitledAccLists);	// handled last, in update mode
+        try (AccessionBulkWriter writer = new AccessionBulkWriter(MongoTemplateManager.getCommonsTemplate(), progress == null); AccessionBulkWriter titleWriter = new AccessionBulkWriter(MongoTemplateManager.getCommonsTemplate(), true)) {
+	        for (int j=0; j<listsToFetch.size() && !fServiceDown; j++) {
+	        	final boolean fProt = j % 2 == 1, fTitlesOnly = j >= accLists.size();
+	            LOG.debug("Starting to deal with " + (fProt ? "protein" : "nucleotide") + " accessions" + (fTitlesOnly ? " lacking a hit definition" : ""));
+	            Iterator<String> accIt = listsToFetch.get(j).iterator();
+		        while (accIt.hasNext()) {
+		        	batchPermits.acquire();
+		        	if (writeFailure.get() != null) {
+		        		batchPermits.release();
+		        		break;
+		        	}
+		        	if (fetchStatus.isServiceDown()) {	// no data could be obtained for any of the first batches
+		        		batchPermits.release();
+		        		fServiceDown = !fTitlesOnly;	// missing hit definitions are no reason to abort
+		        		break;
+		        	}
+
+		        	Collection<String> batch = new HashSet<>();
+		        	for (int nBatchSize = getAccessionBatchSize(); accIt.hasNext() && batch.size() < nBatchSize; )
+		        		batch.add(accIt.next());
+		        	int nRequestedSize = batch.size();
+		        	fetchBatch(batch /* will shrink when some are obtained */, fProt, apiKey, 1, fetchStatus).whenComplete((accessions, t) -> {
+		        		try {
+		        			if (fTitlesOnly) {	// these already have a taxon, so there is nothing to do about those that could not be obtained
+		        				if (t == null)	// don't let accessions NCBI gives no taxon for lose the one they have
+		        					titleWriter.write(accessions.stream().filter(acc -> acc.getTx() != Taxon.UNIDENTIFIED_ORGANISM_TAXID).collect(Collectors.toList()));
+		        			}
+		        			else
+		        				processBatchResult(accessions, batch, fProt, t != null, progress == null, writer, result);
+		        		}
+		        		catch (Throwable e) {
+		        			writeFailure.compareAndSet(null, e);
+		        		}
+		        		finally {
+			        		if (progress != null)
+			        			progress.setCurrentStepProgress(nProcessedAccCount.addAndGet(nRequestedSize) * 100 / nTotalAccCount);
+		        			batchPermits.release();
+		        		}
+		        	});
+		        }
 	        }
+	        batchPermits.acquire(nMaxBatchesInProgress);	// wait for all batches to be processed
         }
+        if (writeFailure.get() != null)
+        	throw new Exception("Unable to persist accessions fetched from NCBI", writeFailure.get());
+        if (fServiceDown)
+        	throw new InterruptedException("E-utilities web-service seems to be down: aborting!");
+
         if (progress != null)
         	progress.setCurrentStepProgress(100);
 
-       	LOG.info("accessions fetched from NCBI: " + result.size());
+       	LOG.info("accessions fetched from NCBI: " + result.size() + " (E-utilities " + (fGotApiKey ? "with" : "without") + " API key: " + rateLimiter + ")");
        	return result;
     }
 
+    /**
+     * Hands over a batch's results to the writer
+     *
+     * @param accessions accessions found, null if the batch failed
+     * @param unobtainedAccIds accessions that could not be obtained
+     * @param fProtein
+     * @param fFailed whether the service could not be called successfully
+     * @param fTryingAgain whether accessions already exist in the DB (see fetchRemoteAccessionInfo's progress parameter)
+     * @param writer
+     * @param result list of successfully fetched accession IDs, to fill
+     */
+    private static void processBatchResult(List<Accession> accessions, Collection<String> unobtainedAccIds, boolean fProtein, boolean fFailed, boolean fTryingAgain, AccessionBulkWriter writer, List<String> result) throws Exception {
+    	char accType = fProtein ? AccessionId.PROTEIN_TYPE : AccessionId.NUCLEOTIDE_TYPE;
+    	if (!fFailed) {
+    		writer.write(accessions);
+    		for (Accession acc : accessions)
+    			if (acc.getTx() != Taxon.UNIDENTIFIED_ORGANISM_TAXID)
+    				result.add((fProtein ? Accession.ID_PROTEIN_PREFIX : Accession.ID_NUCLEOTIDE_PREFIX) + acc.getId().getSseqid());
+    	}
+
+    	if (unobtainedAccIds.isEmpty())
+    		return;
+
+    	if (fFailed) {	// unable to call WS at all: tax id shall be set to null so we know can we retrieve it later on
+    		LOG.warn("After " + MAX_RETRIES + " attempts, unable to get " + (fProtein ? "protein" : "nucleotide") + " info for accessions " + unobtainedAccIds);
+    		if (!fTryingAgain) // otherwise we already have those empty Accession objects
+    			writer.write(unobtainedAccIds.stream().map(unobtainedAccId -> new Accession(new AccessionId(accType, unobtainedAccId), null /* setting a null taxon is a way of marking the accession for retries */, null)).collect(Collectors.toList()));
+    	}
+    	else { // WS could be reached but some accessions do not seem to exist: mark their taxon as unidentified
+    		writer.write(unobtainedAccIds.stream().map(accId -> new Accession(new AccessionId(accType, accId), Taxon.UNIDENTIFIED_ORGANISM_TAXID, null)).collect(Collectors.toList()));
+    		LOG.info("Unable to find valid taxid for " + unobtainedAccIds.size() + " accessions in " + (fProtein ? "protein" : "nucleotide") + " database: " + StringUtils.join(unobtainedAccIds, ","));
+    	}
+    }
+
     public static void importAccessionsFromDump(Resource resource) throws IOException {
     	long startTime = System.currentTimeMillis();
     	ZipInputStream zis = new ZipInputStream(resource.getInputStream());
@@ -0,0 +1,149 @@
+/*******************************************************************************
+ * metaXplorDB - Copyright (C) 2020 <CIRAD>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.metaxplor.importing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.bson.Document;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import com.mongodb.client.MongoCursor;
+
+import fr.cirad.metaxplor.model.Accession;
+import fr.cirad.metaxplor.model.Accession.AccessionId;
+import fr.cirad.metaxplor.model.Assignment;
+import fr.cirad.metaxplor.model.DBField;
+
+/**
+ * Import-scoped, read-only view of the accession cache restricted to accessions referenced by the assignment file being imported,
+ * so that each assignment line can be resolved without querying the commons database. Tax ids are held as primitive ints and
+ * hit definitions are de-duplicated since many accessions share the same one.
+ *
+ * @author sempere
+ */
+class AccessionResolutionTable {
+
+    private static final Logger LOG = Logger.getLogger(AccessionResolutionTable.class);
+
+    /** number of accession IDs passed to each $in query when loading the table */
+    static final int LOAD_BATCH_SIZE = 20000;
+
+    /** stored instead of a taxid for accessions that have none (i.e. for which remote info could not be obtained) */
+    private static final int NO_TAXID = Integer.MIN_VALUE;
+
+    /** slot of each accession in taxIds / hitDefs, one map for nucleotide and one for protein accessions */
+    private final Map<String, Integer> nuclSlots = new HashMap<>(), protSlots = new HashMap<>();
+
+    private int[] taxIds;
+    private String[] hitDefs;
+    private int nSize = 0;
+
+    private AccessionResolutionTable(int nExpectedSize) {
+    	taxIds = new int[Math.max(16, nExpectedSize)];
+    	hitDefs = new String[taxIds.length];
+    }
+
+    /**
+     * Loads cached info for the given accessions (supposed to be version-less and un-prefixed, as returned by Accession.separateNuclFromProtIDs)
+     *
+     * @param commonsTemplate
+     * @param nuclAccessions
+     * @param protAccessions
+     * @return the table
+     */
+    static AccessionResolutionTable load(MongoTemplate commonsTemplate, Collection<String> nuclAccessions, Collection<String> protAccessions) {
+    	long before = System.currentTimeMillis();
+    	AccessionResolutionTable table = new AccessionResolutionTable(nuclAccessions.size() + protAccessions.size());
+    	Map<String, String> hitDefPool = new HashMap<>();
+    	String collName = commonsTemplate.getCollectionName(Accession.class);
+    	for (boolean fProt : new boolean[] {false, true}) {
+    		List<String> batch = new ArrayList<>(LOAD_BATCH_SIZE);
+    		for (String acc : fProt ? protAccessions : nuclAccessions) {
+    			batch.add(acc);
+    			if (batch.size() == LOAD_BATCH_SIZE) {
+    				table.loadBatch(commonsTemplate, collName, fProt, batch, hitDefPool);
+    				batch.clear();
+    			}
+    		}
+    		if (!batch.isEmpty())
+    			table.loadBatch(commonsTemplate, collName, fProt, batch, hitDefPool);
+    	}
+    	LOG.debug("Accession resolution table loaded in " + (System.currentTimeMillis() - before) + "ms: " + table.nSize + " accessions, " + hitDefPool.size() + " distinct hit definitions");
+    	return table;
+    }
+
+    private void loadBatch(MongoTemplate commonsTemplate, String collName, boolean fProt, List<String> batch, Map<String, String> hitDefPool) {
+    	Document query = new Document("_id." + DBField.FIELDNAME_TYPE, String.valueOf(fProt ? AccessionId.PROTEIN_TYPE : AccessionId.NUCLEOTIDE_TYPE)).append("_id." + Assignment.FIELDNAME_SSEQID, new Document("$in", batch));
+    	Document projection = new Document(Accession.FIELDNAME_NCBI_TAXID, 1).append(Accession.FIELDNAME_HIT_DEFINITION, 1);
+    	Map<String, Integer> slots = fProt ? protSlots : nuclSlots;
+    	try (MongoCursor<Document> cursor = commonsTemplate.getCollection(collName).find(query).projection(projection).batchSize(LOAD_BATCH_SIZE).iterator()) {
+    		while (cursor.hasNext()) {
+    			Document doc = cursor.next();
+    			String sseqid = ((Document) doc.get("_id")).getString(Assignment.FIELDNAME_SSEQID);
+    			if (slots.containsKey(sseqid))
+    				continue;
+
+    			if (nSize == taxIds.length) {
+    				taxIds = Arrays.copyOf(taxIds, nSize * 2);
+    				hitDefs = Arrays.copyOf(hitDefs, nSize * 2);
+    			}
+    			Number tx = (Number) doc.get(Accession.FIELDNAME_NCBI_TAXID);
+    			taxIds[nSize] = tx == null ? NO_TAXID : tx.intValue();
+    			String hd = doc.getString(Accession.FIELDNAME_HIT_DEFINITION);
+    			if (hd != null) {
+    				String pooledHd = hitDefPool.putIfAbsent(hd, hd);
+    				hitDefs[nSize] = pooledHd == null ? hd : pooledHd;
+    			}
+    			slots.put(sseqid, nSize++);
+    		}
+    	}
+    }
+
+    /**
+     * @param accId
+     * @return the accession's slot in this table, or -1 if it is not cached
+     */
+    int getSlot(AccessionId accId) {
+    	Integer slot = (accId.getType() == AccessionId.PROTEIN_TYPE ? protSlots : nuclSlots).get(accId.getSseqid());
+    	return slot == null ? -1 : slot;
+    }
+
+    /**
+     * @param nSlot
+     * @return the tax id cached for the accession at this slot, or null if there is none
+     */
+    Integer getTaxId(int nSlot) {
+    	return taxIds[nSlot] == NO_TAXID ? null : taxIds[nSlot];
+    }
+
+    /**
+     * @param nSlot
+     * @return the hit definition cached for the accession at this slot, or null if there is none
+     */
+    String getHitDefinition(int nSlot) {
+    	return hitDefs[nSlot];
+    }
+
+    int size() {
+    	return nSize;
+    }
+}
@@ -0,0 +1,263 @@
+/*******************************************************************************
+ * metaXplorDB - Copyright (C) 2020 <CIRAD>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.metaxplor.importing;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+
+import org.apache.log4j.Logger;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import fr.cirad.tools.LineTokenizer;
+import fr.cirad.tools.ProgressIndicator;
+
+/**
+ * Runs the sample, fasta, assignment and sequence composition checks of an import archive concurrently, so that validating
+ * a large archive takes about as long as its slowest check. All checks share a cancellation token (a ProgressIndicator that
+ * gets aborted as soon as one of them fails), so the first error found stops the others. Results are merged into a single Report.
+ *
+ * The only cross-entry check (every sample must have a column in the sequence composition file) is done once both the sample
+ * and the sequence composition checks have succeeded, by reading the latter's header line again.
+ *
+ * @author sempere
+ */
+public class ArchiveValidationCoordinator {
+
+    private static final Logger LOG = Logger.getLogger(ArchiveValidationCoordinator.class);
+
+    /** max number of checks running concurrently (shared by all validations) */
+    private static final int CHECK_THREAD_COUNT = 4;
+
+    private static final ExecutorService checkExecutor = Executors.newFixedThreadPool(CHECK_THREAD_COUNT, runnable -> {
+    	Thread thread = new Thread(runnable, "archiveCheck");
+    	thread.setDaemon(true);
+    	return thread;
+    });
+
+    private final MongoTemplate mongoTemplate;
+    private final ImportArchive importArchive;
+    private final Integer numberOfEntriesToCheck;
+
+    /**
+     * @param mongoTemplate
+     * @param importArchive staged archive (entries are read concurrently, each through its own stream)
+     * @param numberOfEntriesToCheck max number of entries to check in the fasta, assignment and sequence composition files (null means all)
+     */
+    public ArchiveValidationCoordinator(MongoTemplate mongoTemplate, ImportArchive importArchive, Integer numberOfEntriesToCheck) {
+    	this.mongoTemplate = mongoTemplate;
+    	this.importArchive = importArchive;
+    	this.numberOfEntriesToCheck = numberOfEntriesToCheck;
+    }
+
+    /**
+     * Merged results of an archive validation
+     */
+    public static class Report {
+    	private final Map<String, String> results = Collections.synchronizedMap(new LinkedHashMap<>());
+    	private volatile String failedEntry = null;
+    	private final Map<String, Object> sampleFields = new HashMap<>(), assignmentFields = new HashMap<>();
+    	private final Set<String> sampleCodes = new LinkedHashSet<>();
+    	private int nSequenceCount = 0;
+    	private long nDuration;
+
+    	private Report() {
+    		for (String suffix : new String[] {ImportArchive.SAMPLE_ENTRY_SUFFIX, ImportArchive.FASTA_ENTRY_SUFFIX, ImportArchive.ASSIGNMENT_ENTRY_SUFFIX, ImportArchive.SEQUENCE_ENTRY_SUFFIX})
+    			results.put(suffix, null);
+    	}
+
+    	/**
+    	 * Records an entry's check result
+    	 *
+    	 * @return true if it is the first failure
+    	 */
+    	private synchronized boolean setResult(String entrySuffix, String result) {
+    		results.put(entrySuffix, result);
+    		if ("ok".equals(result) || ImportArchiveChecker.CHECK_ABORTED.equals(result) || failedEntry != null)
+    			return false;
+    		failedEntry = entrySuffix;
+    		return true;
+    	}
+
+    	/**
+    	 * @return whether all checks succeeded
+    	 */
+    	public boolean isValid() {
+    		return failedEntry == null;
+    	}
+
+    	/**
+    	 * @return suffix of the entry whose check failed first, or null if all succeeded
+    	 */
+    	public String getFailedEntry() {
+    		return failedEntry;
+    	}
+
+    	/**
+    	 * @return the first error found, or null if all checks succeeded
+    	 */
+    	public String getError() {
+    		return failedEntry == null ? null : results.get(failedEntry);
+    	}
+
+    	/**
+    	 * @return "ok", an error message or ImportArchiveChecker.CHECK_ABORTED, by entry suffix
+    	 */
+    	public Map<String, String> getResults() {
+    		return results;
+    	}
+
+    	/**
+    	 * @return see ImportArchiveChecker.testSampleFile's sampleFieldsToFill
+    	 */
+    	public Map<String, Object> getSampleFields() {
+    		return sampleFields;
+    	}
+
+    	/**
+    	 * @return see ImportArchiveChecker.testAssignmentFile's assignmentFieldsToFill
+    	 */
+    	public Map<String, Object> getAssignmentFields() {
+    		return assignmentFields;
+    	}
+
+    	public Set<String> getSampleCodes() {
+    		return sampleCodes;
+    	}
+
+    	public int getSequenceCount() {
+    		return nSequenceCount;
+    	}
+
+    	/**
+    	 * @return validation wall-clock time in ms
+    	 */
+    	public long getDuration() {
+    		return nDuration;
+    	}
+    }
+
+    /**
+     * Runs all checks and waits for them to complete
+     *
+     * @param progress parent indicator, each check being reported as one of its parallel steps (may be null). Aborting it aborts the validation
+     * @return the merged report
+     * @throws InterruptedException
+     */
+    public Report validate(ProgressIndicator progress) throws InterruptedException {
+    	long before = System.currentTimeMillis();
+    	Report report = new Report();
+    	ProgressIndicator cancellationToken = progress != null ? progress.addParallelStep("Validating archive") : new ProgressIndicator("archiveValidation", new String[] {"Validating archive"});
+
+    	List<Future<?>> checks = new ArrayList<>();
+    	submitCheck(checks, report, cancellationToken, ImportArchive.SAMPLE_ENTRY_SUFFIX, "Checking sample file", (is, checkProgress) ->
+    		ImportArchiveChecker.testSampleFile(mongoTemplate, is, report.sampleFields, report.sampleCodes, checkProgress));
+    	submitCheck(checks, report, cancellationToken, ImportArchive.FASTA_ENTRY_SUFFIX, "Checking fasta file", (is, checkProgress) -> {
+    		ZipEntry fastaEntry = importArchive.getEntry(ImportArchive.FASTA_ENTRY_SUFFIX);
+    		report.nSequenceCount = ImportArchiveChecker.testFastaFile(is, fastaEntry.getSize(), numberOfEntriesToCheck, checkProgress);
+    		return "ok";
+    	});
+    	submitCheck(checks, report, cancellationToken, ImportArchive.ASSIGNMENT_ENTRY_SUFFIX, "Checking assignment file", (is, checkProgress) ->
+    		ImportArchiveChecker.testAssignmentFile(mongoTemplate, is, numberOfEntriesToCheck, report.assignmentFields, checkProgress));
+    	submitCheck(checks, report, cancellationToken, ImportArchive.SEQUENCE_ENTRY_SUFFIX, "Checking sequence composition file", (is, checkProgress) ->	// sample columns are checked afterwards
+    		ImportArchiveChecker.testSequenceFile(is, numberOfEntriesToCheck, Collections.emptyList(), checkProgress, 0));
+
+    	try {
+    		for (Future<?> check : checks)
+    			try {
+    				check.get();
+    			}
+    			catch (ExecutionException ee) {	// submitCheck handles all exceptions, this is not supposed to happen
+    				LOG.error("Unexpected archive check failure", ee);
+    			}
+
+    		if (report.isValid() && !cancellationToken.isAborted())
+    			try (InputStream is = importArchive.getInputStream(ImportArchive.SEQUENCE_ENTRY_SUFFIX)) {
+    				LineTokenizer fields = new LineTokenizer(new InputStreamReader(is, StandardCharsets.UTF_8), '\t', false);
+    				fields.readLine();
+    				String sampleColumnError = ImportArchiveChecker.checkSampleColumns(fields.getStrings(-1), report.sampleCodes);
+    				if (sampleColumnError != null)
+    					report.setResult(ImportArchive.SEQUENCE_ENTRY_SUFFIX, sampleColumnError);
+    			}
+    			catch (Exception e) {
+    				report.setResult(ImportArchive.SEQUENCE_ENTRY_SUFFIX, "Unable to read sequence composition file: " + e.getMessage());
+    			}
+    	}
+    	catch (InterruptedException ie) {
+    		cancellationToken.abort();
+    		throw ie;
+    	}
+    	finally {
+    		cancellationToken.markAsComplete();
+    	}
+
+    	report.nDuration = System.currentTimeMillis() - before;
+    	LOG.debug("Archive validated in " + report.nDuration + "ms: " + report.getResults());
+    	return report;
+    }
+
+    private interface EntryCheck {
+    	String check(InputStream is, ProgressIndicator checkProgress) throws Exception;
+    }
+
+    /**
+     * Submits the check of an archive entry. Any failure (error message or exception) aborts the cancellation token
+     */
+    private void submitCheck(List<Future<?>> checks, Report report, ProgressIndicator cancellationToken, String entrySuffix, String label, EntryCheck entryCheck) {
+    	Callable<Void> task = () -> {
+    		ProgressIndicator checkProgress = cancellationToken.addParallelStep(label);
+    		String result;
+    		try (InputStream is = importArchive.getInputStream(entrySuffix)) {
+    			if (cancellationToken.isAborted())
+    				result = ImportArchiveChecker.CHECK_ABORTED;
+    			else if (is == null)
+    				result = "Archive contains no entry ending with " + entrySuffix;
+    			else
+    				result = entryCheck.check(is, checkProgress);
+    		}
+    		catch (CancellationException ce) {
+    			result = ImportArchiveChecker.CHECK_ABORTED;
+    		}
+    		catch (Exception e) {
+    			LOG.debug("Error checking " + entrySuffix, e);
+    			result = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+    		}
+    		finally {
+    			checkProgress.markAsComplete();
+    		}
+
+    		if (report.setResult(entrySuffix, result))
+    			cancellationToken.abort();
+    		return null;
+    	};
+    	checks.add(checkExecutor.submit(task));
+    }
+}
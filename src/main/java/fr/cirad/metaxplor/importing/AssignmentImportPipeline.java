@@ -0,0 +1,354 @@
+/*******************************************************************************
+ * metaXplorDB - Copyright (C) 2020 <CIRAD>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.metaxplor.importing;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.log4j.Logger;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+
+import fr.cirad.metaxplor.model.AssignedSequence;
+import fr.cirad.metaxplor.model.Assignment;
+import fr.cirad.metaxplor.model.Sequence;
+
+/**
+ * Pipelined engine for importing assignment file lines. A single reader thread submits raw lines which get dispatched to
+ * a fixed number of worker shards according to their qseqid's hash, so that all assignments of a given sequence are handled
+ * by the same shard. Each shard owns the AssignedSequence objects it is building and persists them via unordered bulk writes.
+ * Queues are bounded so that the reader gets blocked whenever shards (i.e. the database) can't keep up.
+ *
+ * @author sempere
+ */
+class AssignmentImportPipeline {
+
+    private static final Logger LOG = Logger.getLogger(AssignmentImportPipeline.class);
+
+    /** number of lines handed over to a shard at once */
+    static final int LINES_PER_BATCH = 250;
+
+    /** number of batches that may be waiting in each shard's queue */
+    static final int QUEUED_BATCHES_PER_SHARD = 4;
+
+    static final int MAX_SHARD_COUNT = 16;
+
+    private static final List<String[]> END_OF_INPUT = new ArrayList<>(0);
+
+    /** asks a shard to persist everything it holds */
+    private static final List<String[]> CHECKPOINT = new ArrayList<>(0);
+
+    /**
+     * Callbacks through which shards turn lines into model objects (invoked concurrently by all shards)
+     */
+    interface AssignmentLineHandler {
+    	/**
+    	 * @param qseqid
+    	 * @return a new AssignedSequence, with no assignments yet
+    	 * @throws Exception
+    	 */
+    	AssignedSequence createSequence(String qseqid) throws Exception;
+
+    	/**
+    	 * @param line
+    	 * @return the assignment described by the given line
+    	 * @throws Exception
+    	 */
+    	Assignment parseAssignment(String line) throws Exception;
+    }
+
+    private final MongoTemplate mongoTemplate;
+    private final int projectId;
+    private final int nRowsToSaveAtOnce;
+    private final AssignmentLineHandler lineHandler;
+    private final Shard[] shards;
+
+    /** when true, the only sequences that may already exist are those persisted by this pipeline (those persisted by a previous attempt at the import being either complete or removed before resuming), so we don't need to look others up */
+    private final boolean fProjectInitiallyEmpty;
+
+    private final QseqidRegistry qseqidRegistry;
+
+    private final AtomicReference<Exception> failure = new AtomicReference<>();
+    private volatile CountDownLatch checkpointLatch;
+
+    /**
+     * @param mongoTemplate
+     * @param projectId
+     * @param qseqidRegistry the project's sequences
+     * @param fProjectInitiallyEmpty whether the project contained no assigned sequences before the import (as recorded when it was first attempted)
+     * @param nShardCount number of worker threads (capped to MAX_SHARD_COUNT)
+     * @param nRowsToSaveAtOnce number of lines a shard may accumulate before persisting the corresponding sequences
+     * @param lineHandler
+     */
+    AssignmentImportPipeline(MongoTemplate mongoTemplate, int projectId, QseqidRegistry qseqidRegistry, boolean fProjectInitiallyEmpty, int nShardCount, int nRowsToSaveAtOnce, AssignmentLineHandler lineHandler) {
+    	this.mongoTemplate = mongoTemplate;
+    	this.projectId = projectId;
+    	this.qseqidRegistry = qseqidRegistry;
+    	this.nRowsToSaveAtOnce = nRowsToSaveAtOnce;
+    	this.lineHandler = lineHandler;
+    	this.fProjectInitiallyEmpty = fProjectInitiallyEmpty;
+    	shards = new Shard[Math.max(1, Math.min(nShardCount, MAX_SHARD_COUNT))];
+    	for (int i=0; i<shards.length; i++)
+    		shards[i] = new Shard(i);
+    }
+
+    /**
+     * @return default shard count for this machine
+     */
+    static int getDefaultShardCount() {
+    	return Math.min(Runtime.getRuntime().availableProcessors(), MAX_SHARD_COUNT);
+    }
+
+    void start() {
+    	for (Shard shard : shards)
+    		shard.start();
+    }
+
+    /**
+     * Queue a line for processing (to be called by a single reader thread). Blocks when the target shard is saturated
+     *
+     * @param qseqid
+     * @param line
+     * @throws Exception the first exception raised by any shard, if any
+     */
+    void submit(String qseqid, String line) throws Exception {
+    	rethrowFailure();
+    	Shard shard = shards[(qseqid.hashCode() & Integer.MAX_VALUE) % shards.length];
+    	shard.batchBeingFilled.add(new String[] {qseqid, line});
+    	if (shard.batchBeingFilled.size() >= LINES_PER_BATCH) {
+    		enqueue(shard, shard.batchBeingFilled);
+    		shard.batchBeingFilled = new ArrayList<>(LINES_PER_BATCH);
+    	}
+    }
+
+    /**
+     * Hand over remaining lines, wait for all shards to persist their data
+     *
+     * @throws Exception the first exception raised by any shard, if any
+     */
+    void finish() throws Exception {
+    	try {
+	    	for (Shard shard : shards) {
+	    		if (!shard.batchBeingFilled.isEmpty())
+	    			enqueue(shard, shard.batchBeingFilled);
+	    		shard.batchBeingFilled = null;
+	    	}
+    	}
+    	finally {
+    		stopShards();
+    	}
+    	rethrowFailure();
+    }
+
+    /**
+     * Wait until all lines submitted so far are persisted (to be called by the reader thread)
+     *
+     * @throws Exception the first exception raised by any shard, if any
+     */
+    void checkpoint() throws Exception {
+    	checkpointLatch = new CountDownLatch(shards.length);
+    	for (Shard shard : shards) {
+    		if (!shard.batchBeingFilled.isEmpty()) {
+    			enqueue(shard, shard.batchBeingFilled);
+    			shard.batchBeingFilled = new ArrayList<>(LINES_PER_BATCH);
+    		}
+    		enqueue(shard, CHECKPOINT);
+    	}
+    	while (!checkpointLatch.await(1, TimeUnit.SECONDS))
+    		rethrowFailure();
+    	rethrowFailure();
+    }
+
+    /**
+     * Stop all shards without persisting pending data (to be called when the reader fails)
+     *
+     * @throws InterruptedException
+     */
+    void abort() throws InterruptedException {
+    	failure.compareAndSet(null, new Exception("Assignment import aborted"));
+    	stopShards();
+    }
+
+    /**
+     * @return whether the project contained no assigned sequences before the import
+     */
+    boolean wasProjectInitiallyEmpty() {
+    	return fProjectInitiallyEmpty;
+    }
+
+    /**
+     * @return qseqids of all sequences that were dealt with (to be called once finished)
+     */
+    QseqidSet getEncounteredSequences() {
+    	QseqidSet encounteredSequences = new QseqidSet(qseqidRegistry);
+    	for (Shard shard : shards)
+    		encounteredSequences.addAll(shard.encounteredSequences);
+    	return encounteredSequences;
+    }
+
+    private void stopShards() throws InterruptedException {
+    	for (Shard shard : shards)
+    		shard.queue.put(END_OF_INPUT);	// cannot block indefinitely: shards keep consuming until they get this
+    	for (Shard shard : shards)
+    		shard.join();
+    }
+
+    private void enqueue(Shard shard, List<String[]> batch) throws Exception {
+    	while (!shard.queue.offer(batch, 1, TimeUnit.SECONDS))
+    		rethrowFailure();
+    }
+
+    private void rethrowFailure() throws Exception {
+    	Exception e = failure.get();
+    	if (e != null)
+    		throw e;
+    }
+
+    private class Shard extends Thread {
+    	private final BlockingQueue<List<String[]>> queue = new ArrayBlockingQueue<>(QUEUED_BATCHES_PER_SHARD);
+
+    	/** only accessed by the reader thread */
+    	private List<String[]> batchBeingFilled = new ArrayList<>(LINES_PER_BATCH);
+
+    	private HashMap<String /*qseqid*/, AssignedSequence> seqsToUpdate = new HashMap<>(), seqsToInsert = new HashMap<>();
+
+    	/** sequences dealt with by this shard (a given qseqid is always handled by the same shard) */
+    	private final QseqidSet encounteredSequences = new QseqidSet(qseqidRegistry);
+    	private int nPendingRowCount = 0;
+
+    	/** existing sequences found when prefetching for the (rest of the) batch being processed */
+    	private Map<String, AssignedSequence> prefetchedSeqs = new HashMap<>();
+
+    	Shard(int nIndex) {
+    		super("assignmentImportShard-" + nIndex);
+    	}
+
+		@Override
+		public void run() {
+			List<String[]> batch;
+			try {
+				while ((batch = queue.take()) != END_OF_INPUT) {
+					if (failure.get() != null) {
+						if (batch == CHECKPOINT)
+							checkpointLatch.countDown();
+						continue;	// keep consuming so the reader never gets stuck
+					}
+
+					try {
+						if (batch == CHECKPOINT)
+							flush();
+						else
+							process(batch);
+					}
+					catch (Exception e) {
+						LOG.error("Error in " + getName(), e);
+						failure.compareAndSet(null, e);
+					}
+					finally {
+						if (batch == CHECKPOINT)
+							checkpointLatch.countDown();
+					}
+				}
+				if (failure.get() == null)
+					flush();
+			}
+			catch (Exception e) {
+				LOG.error("Error in " + getName(), e);
+				failure.compareAndSet(null, e);
+			}
+		}
+
+		/**
+		 * Resolve with a single query all sequences in the batch that may already exist in the DB (i.e., those that we don't have a reference to).
+		 * Also called for the rest of the batch after a flush, since sequences that were pending may then only be found in the DB
+		 *
+		 * @param batch
+		 */
+		private void prefetchExistingSequences(List<String[]> batch) {
+			prefetchedSeqs = new HashMap<>();
+			Set<String> prefetchedQseqids = new HashSet<>();
+			List<Sequence.SequenceId> idsToLookUp = new ArrayList<>();
+			for (String[] qseqidAndLine : batch) {
+				String qseqid = qseqidAndLine[0];
+				if (seqsToUpdate.containsKey(qseqid) || seqsToInsert.containsKey(qseqid) || !prefetchedQseqids.add(qseqid))
+					continue;
+				if (!fProjectInitiallyEmpty || encounteredSequences.contains(qseqid))
+					idsToLookUp.add(new Sequence.SequenceId(projectId, qseqid));
+			}
+			if (!idsToLookUp.isEmpty())
+				for (AssignedSequence seq : mongoTemplate.find(new Query(Criteria.where("_id").in(idsToLookUp)), AssignedSequence.class))
+					prefetchedSeqs.put(seq.getId().getQseqid(), seq);
+		}
+
+		private void process(List<String[]> batch) throws Exception {
+			prefetchExistingSequences(batch);
+			AssignedSequence currentSeq = null;
+			for (int i=0; i<batch.size(); i++) {
+				String[] qseqidAndLine = batch.get(i);
+				String qseqid = qseqidAndLine[0];
+	            if (currentSeq == null || !qseqid.equals(currentSeq.getId().getQseqid())) {
+	            	currentSeq = seqsToUpdate.get(qseqid);	// see whether we've got it in the current list of those to update
+	            	if (currentSeq == null)
+	            		currentSeq = seqsToInsert.get(qseqid);	// see whether we've got it in the current list of those to insert (happens when all assignments for a given sequence are not consecutive)
+	            	if (currentSeq == null) {	// we need to read or create a Sequence instance because we don't have a reference to the correct object
+	            		currentSeq = prefetchedSeqs.get(qseqid);	// the prefetch covered any qseqid not pending in this shard
+		            	if (currentSeq == null) {
+		            		currentSeq = lineHandler.createSequence(qseqid);
+		            		seqsToInsert.put(qseqid, currentSeq);
+		            	}
+		            	else
+		            		seqsToUpdate.put(qseqid, currentSeq);
+	            	}
+	            }
+
+	            currentSeq.getAssignments().add(lineHandler.parseAssignment(qseqidAndLine[1]));
+	            encounteredSequences.add(qseqid);
+
+	            if (++nPendingRowCount >= nRowsToSaveAtOnce) {
+	            	flush();
+	            	currentSeq = null;
+	            	prefetchExistingSequences(batch.subList(i + 1, batch.size()));	// sequences that were pending may now be found in the DB
+	            }
+			}
+		}
+
+		private void flush() {
+			if (!seqsToInsert.isEmpty() || !seqsToUpdate.isEmpty()) {
+				BulkOperations bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, AssignedSequence.class);
+				if (!seqsToInsert.isEmpty())
+					bulkOperations.insert(new ArrayList<>(seqsToInsert.values()));
+				for (Map.Entry<String, AssignedSequence> entry : seqsToUpdate.entrySet())
+					bulkOperations.replaceOne(new Query(Criteria.where("_id").is(entry.getValue().getId())), entry.getValue());
+				bulkOperations.execute();
+			}
+            seqsToInsert = new HashMap<>();
+            seqsToUpdate = new HashMap<>();
+            nPendingRowCount = 0;
+            prefetchedSeqs.clear();	// prefetched info is not reliable anymore since we just wrote sequences that were pending
+		}
+    }
+}
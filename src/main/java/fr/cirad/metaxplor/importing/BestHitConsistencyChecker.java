@@ -0,0 +1,169 @@
+/*******************************************************************************
+ * metaXplorDB - Copyright (C) 2020 <CIRAD>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.metaxplor.importing;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import fr.cirad.tools.LineTokenizer;
+
+/**
+ * Checks that each (qseqid, assignment method) pair of an assignment file has exactly one best hit when it has several assignments,
+ * and at most one otherwise, with memory kept low regardless of file size: instead of holding boxed counters in nested maps keyed
+ * by qseqid strings, each pair is stored as a single long in an open-addressing table (a 61-bit hash of the pair, plus a 2-bit state,
+ * counts being saturated since only 0 / 1 / several matter). Lines do not need to be grouped by qseqid.
+ *
+ * Several best hits are reported as soon as encountered. Missing best hits can only be reported at the end; qseqids are kept
+ * for a limited number of such pending pairs so that messages can name them. Hash collisions are possible in theory
+ * but very unlikely (about 1 in 10^5 for 10 million distinct pairs).
+ *
+ * @author sempere
+ */
+public class BestHitConsistencyChecker {
+
+    /** a pair is stored as OCCUPIED_BIT | hash bits | state */
+    private static final long OCCUPIED_BIT = 1L << 63, STATE_MASK = 3L, HASH_MASK = ~(OCCUPIED_BIT | STATE_MASK);
+
+    /** pair states */
+    private static final int ONE_ASSIGNMENT = 0, ONE_BEST_HIT = 1, SEVERAL_ASSIGNMENTS = 2, SEVERAL_WITH_BEST_HIT = 3;
+
+    /** max number of pairs lacking a best hit whose names are remembered */
+    private static final int MAX_NAMED_PENDING_PAIRS = 10000;
+
+    private static final float MAX_LOAD_FACTOR = .7f;
+
+    private long[] slots;
+    private int nPairCount = 0;
+
+    /** assignment methods, whose indexes are mixed into pair hashes */
+    private final List<String> methods = new ArrayList<>();
+
+    /** number of pairs currently in the SEVERAL_ASSIGNMENTS state */
+    private int nPendingPairCount = 0;
+
+    /** names of the pending pairs, by hash bits (first ones only) */
+    private final Map<Long, String> pendingPairNames = new LinkedHashMap<>();
+
+    public BestHitConsistencyChecker() {
+    	slots = new long[1 << 16];
+    }
+
+    /**
+     * Takes an assignment into account
+     *
+     * @param fields tokenizer positioned on an assignment line
+     * @param qseqidColumnIndex
+     * @param assignMethodColumnIndex -1 if there is no such column
+     * @param fBestHit whether the assignment is flagged as best hit
+     * @return an error message if the pair now has several best hits, null otherwise
+     */
+    public String addAssignment(LineTokenizer fields, int qseqidColumnIndex, int assignMethodColumnIndex, boolean fBestHit) {
+    	int nMethod = getMethodIndex(fields, assignMethodColumnIndex);
+    	long hashBits = hash(fields.getColumn(qseqidColumnIndex), nMethod) & HASH_MASK;
+
+    	int nSlot = findSlot(hashBits);
+    	if (slots[nSlot] == 0) {
+    		slots[nSlot] = OCCUPIED_BIT | hashBits | (fBestHit ? ONE_BEST_HIT : ONE_ASSIGNMENT);
+    		if (++nPairCount > slots.length * MAX_LOAD_FACTOR)
+    			grow();
+    		return null;
+    	}
+
+    	int nState = (int) (slots[nSlot] & STATE_MASK), nNewState;
+    	boolean fHadBestHit = nState == ONE_BEST_HIT || nState == SEVERAL_WITH_BEST_HIT;
+    	if (fBestHit && fHadBestHit)
+    		return "Several best hits specified for qseqid " + fields.getString(qseqidColumnIndex) + " and assignment method " + methods.get(nMethod);
+
+    	nNewState = fBestHit || fHadBestHit ? SEVERAL_WITH_BEST_HIT : SEVERAL_ASSIGNMENTS;
+    	if (nNewState == SEVERAL_ASSIGNMENTS && nState != SEVERAL_ASSIGNMENTS) {
+    		nPendingPairCount++;
+    		if (pendingPairNames.size() < MAX_NAMED_PENDING_PAIRS)
+    			pendingPairNames.put(hashBits, "qseqid " + fields.getString(qseqidColumnIndex) + " and assignment method " + methods.get(nMethod));
+    	}
+    	else if (nState == SEVERAL_ASSIGNMENTS && nNewState != SEVERAL_ASSIGNMENTS) {
+    		nPendingPairCount--;
+    		pendingPairNames.remove(hashBits);
+    	}
+    	slots[nSlot] = OCCUPIED_BIT | hashBits | nNewState;
+    	return null;
+    }
+
+    /**
+     * To be invoked once all assignments have been added
+     *
+     * @return an error message if some pairs with several assignments have no best hit, null otherwise
+     */
+    public String getMissingBestHitError() {
+    	if (nPendingPairCount == 0)
+    		return null;
+    	if (!pendingPairNames.isEmpty())
+    		return "No best hit specified for " + pendingPairNames.values().iterator().next();
+    	return "No best hit specified for " + nPendingPairCount + " qseqid / assignment method combination(s)";
+    }
+
+    /**
+     * @return number of distinct (qseqid, assignment method) pairs encountered
+     */
+    public int getPairCount() {
+    	return nPairCount;
+    }
+
+    private int getMethodIndex(LineTokenizer fields, int assignMethodColumnIndex) {
+    	boolean fGotMethod = assignMethodColumnIndex != -1 && fields.getColumnCount() > assignMethodColumnIndex;
+    	for (int i=0; i<methods.size(); i++)
+    		if (fGotMethod ? fields.columnEquals(assignMethodColumnIndex, methods.get(i)) : methods.get(i).isEmpty())
+    			return i;
+    	methods.add(fGotMethod ? fields.getString(assignMethodColumnIndex) : "");
+    	return methods.size() - 1;
+    }
+
+    /**
+     * @return the slot holding hashBits, or the empty slot where it should go
+     */
+    private int findSlot(long hashBits) {
+    	int nMask = slots.length - 1, nSlot = (int) (hashBits >>> 2) & nMask;
+    	while (slots[nSlot] != 0 && (slots[nSlot] & HASH_MASK) != hashBits)
+    		nSlot = (nSlot + 1) & nMask;
+    	return nSlot;
+    }
+
+    private void grow() {
+    	long[] oldSlots = slots;
+    	slots = new long[oldSlots.length * 2];
+    	for (long slot : oldSlots)
+    		if (slot != 0)
+    			slots[findSlot(slot & HASH_MASK)] = slot;
+    }
+
+    /**
+     * 64-bit FNV-1a hash of qseqid, mixed with the method index and finalized as in MurmurHash3
+     */
+    private static long hash(CharSequence qseqid, int nMethod) {
+    	long h = 0xcbf29ce484222325L;
+    	for (int i=0; i<qseqid.length(); i++) {
+    		h ^= qseqid.charAt(i);
+    		h *= 0x100000001b3L;
+    	}
+    	h ^= (nMethod + 1) * 0x9e3779b97f4a7c15L;
+    	h ^= h >>> 33;
+    	h *= 0xff51afd7ed558ccdL;
+    	h ^= h >>> 33;
+    	h *= 0xc4ceb9fe1a85ec53L;
+    	return h ^ (h >>> 33);
+    }
+}
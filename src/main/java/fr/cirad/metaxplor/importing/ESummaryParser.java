@@ -0,0 +1,418 @@
+/*******************************************************************************
+ * metaXplorDB - Copyright (C) 2020 <CIRAD>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.metaxplor.importing;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lenient streaming parser for E-utilities esummary JSON responses, which extracts the few fields we use straight from the response stream
+ * without building any document tree. Other values are skipped without being decoded, and member names are compared in a reused buffer,
+ * so that little more than the extracted values gets allocated. Duplicate members (esummary responses may contain several "error" fields)
+ * are tolerated, as are missing or extra commas.
+ *
+ * @author sempere
+ */
+public class ESummaryParser {
+
+    /**
+     * Fields of a nucleotide or protein document summary
+     */
+    public static class DocumentSummary {
+    	private String caption, title, comment;
+    	private boolean fHasTaxId = false;
+    	private Integer taxId = null;
+
+    	public String getCaption() {
+    		return caption;
+    	}
+
+    	public String getTitle() {
+    		return title;
+    	}
+
+    	public String getComment() {
+    		return comment;
+    	}
+
+    	/**
+    	 * @return whether the summary has a taxid field, even if empty
+    	 */
+    	public boolean hasTaxId() {
+    		return fHasTaxId;
+    	}
+
+    	/**
+    	 * @return the taxid, or null if it is empty
+    	 */
+    	public Integer getTaxId() {
+    		return taxId;
+    	}
+    }
+
+    private interface DocumentHandler {
+    	void handle(JsonScanner scanner, String uid) throws IOException;
+    }
+
+    /**
+     * @param is esummary response for the nucleotide or protein database
+     * @return summaries of the documents listed in result.uids, in that order
+     * @throws IOException if the response cannot be parsed or has no result
+     */
+    public static List<DocumentSummary> parseDocumentSummaries(InputStream is) throws IOException {
+    	List<String> uids = new ArrayList<>();
+    	Map<String, DocumentSummary> summariesByUid = new HashMap<>();
+    	readResult(is, uids, (scanner, uid) -> {
+    		DocumentSummary summary = new DocumentSummary();
+    		scanner.beginObject();
+    		while (scanner.hasNextMember()) {
+    			StringBuilder name = scanner.readName();
+    			if (equals(name, "caption"))
+    				summary.caption = scanner.readStringValue();
+    			else if (equals(name, "title"))
+    				summary.title = scanner.readStringValue();
+    			else if (equals(name, "comment"))
+    				summary.comment = scanner.readStringValue();
+    			else if (equals(name, "taxid")) {
+    				summary.fHasTaxId = true;
+    				summary.taxId = scanner.readIntegerValue();
+    			}
+    			else
+    				scanner.skipValue();
+    		}
+    		summariesByUid.put(uid, summary);
+    	});
+
+    	List<DocumentSummary> summaries = new ArrayList<>(uids.size());
+    	for (String uid : uids) {
+    		DocumentSummary summary = summariesByUid.get(uid);
+    		if (summary != null)
+    			summaries.add(summary);
+    	}
+    	return summaries;
+    }
+
+    /**
+     * @param is esummary response for the taxonomy database
+     * @return the taxid each requested one was merged into (akataxid field), for those where it is specified
+     * @throws IOException if the response cannot be parsed or has no result
+     */
+    public static Map<Integer, Integer> parseMergedTaxa(InputStream is) throws IOException {
+    	Map<Integer, Integer> mergedTaxa = new HashMap<>();
+    	readResult(is, new ArrayList<>(), (scanner, uid) -> {
+    		scanner.beginObject();
+    		while (scanner.hasNextMember())
+    			if (equals(scanner.readName(), "akataxid")) {
+    				Integer akaTaxId = scanner.readIntegerValue();
+    				try {
+    					if (akaTaxId != null)
+    						mergedTaxa.put(Integer.parseInt(uid), akaTaxId);
+    				}
+    				catch (NumberFormatException ignored)
+    				{}
+    			}
+    			else
+    				scanner.skipValue();
+    	});
+    	return mergedTaxa;
+    }
+
+    /**
+     * Reads the response's "result" object, passing each object it contains to handler
+     *
+     * @param is
+     * @param uidsToFill filled with the contents of result.uids
+     * @param handler invoked with the scanner positioned on each object found in result
+     */
+    private static void readResult(InputStream is, List<String> uidsToFill, DocumentHandler handler) throws IOException {
+    	JsonScanner scanner = new JsonScanner(new InputStreamReader(is, StandardCharsets.UTF_8));
+    	boolean fGotResult = false;
+    	String error = null;
+    	scanner.beginObject();
+    	while (scanner.hasNextMember()) {
+    		StringBuilder name = scanner.readName();
+    		if (equals(name, "result") && scanner.peek() == '{') {
+    			fGotResult = true;
+    			scanner.beginObject();
+    			while (scanner.hasNextMember()) {
+    				name = scanner.readName();
+    				if (equals(name, "uids") && scanner.peek() == '[') {
+    					scanner.beginArray();
+    					while (scanner.hasNextElement()) {
+    						String uid = scanner.readStringValue();
+    						if (uid != null)
+    							uidsToFill.add(uid);
+    					}
+    				}
+    				else if (scanner.peek() == '{')
+    					handler.handle(scanner, name.toString());
+    				else
+    					scanner.skipValue();
+    			}
+    		}
+    		else if (equals(name, "error") && error == null)
+    			error = scanner.readStringValue();
+    		else
+    			scanner.skipValue();
+    	}
+
+    	if (!fGotResult)
+    		throw new IOException(error != null ? error : "No result found in esummary response");
+    }
+
+    private static boolean equals(StringBuilder sb, String s) {
+    	if (sb.length() != s.length())
+    		return false;
+    	for (int i=0; i<s.length(); i++)
+    		if (sb.charAt(i) != s.charAt(i))
+    			return false;
+    	return true;
+    }
+
+    /**
+     * Minimal pull tokenizer over buffered chars
+     */
+    private static class JsonScanner {
+    	private final Reader reader;
+    	private final char[] buffer = new char[1 << 13];
+    	private int nPos = 0, nLimit = 0;
+    	private long nConsumedChars = 0;
+
+    	/** reused for names and values */
+    	private final StringBuilder token = new StringBuilder();
+
+    	private JsonScanner(Reader reader) {
+    		this.reader = reader;
+    	}
+
+    	/** @return the next char, or -1 at the end of the stream */
+    	private int read() throws IOException {
+    		if (nPos == nLimit) {
+    			nConsumedChars += nLimit;
+    			nLimit = reader.read(buffer, 0, buffer.length);
+    			nPos = 0;
+    			if (nLimit <= 0) {
+    				nLimit = 0;
+    				return -1;
+    			}
+    		}
+    		return buffer[nPos++];
+    	}
+
+    	/** @return the next non-whitespace char without consuming it, or -1 at the end of the stream */
+    	private int peek() throws IOException {
+    		while (true) {
+    			int c = read();
+    			if (c == -1)
+    				return -1;
+    			if (!Character.isWhitespace(c)) {
+    				nPos--;
+    				return c;
+    			}
+    		}
+    	}
+
+    	private IOException error(String message) {
+    		return new IOException("Unable to parse esummary response: " + message + " at char " + (nConsumedChars + nPos));
+    	}
+
+    	private void expect(char expected) throws IOException {
+    		int c = peek();
+    		if (c != expected)
+    			throw error("expected '" + expected + "' but found " + (c == -1 ? "end of stream" : "'" + (char) c + "'"));
+    		nPos++;
+    	}
+
+    	private void beginObject() throws IOException {
+    		expect('{');
+    	}
+
+    	private void beginArray() throws IOException {
+    		expect('[');
+    	}
+
+    	/** @return true if another object member follows, false if the object's closing brace was consumed */
+    	private boolean hasNextMember() throws IOException {
+    		return hasNext('}');
+    	}
+
+    	/** @return true if another array element follows, false if the array's closing bracket was consumed */
+    	private boolean hasNextElement() throws IOException {
+    		return hasNext(']');
+    	}
+
+    	private boolean hasNext(char closingChar) throws IOException {
+    		int c;
+    		while ((c = peek()) == ',')
+    			nPos++;
+    		if (c == -1)
+    			throw error("unexpected end of stream");
+    		if (c != closingChar)
+    			return true;
+    		nPos++;
+    		return false;
+    	}
+
+    	/** @return the member's name, in a buffer that gets reused by subsequent calls */
+    	private StringBuilder readName() throws IOException {
+    		expect('"');
+    		readStringContents(true);
+    		expect(':');
+    		return token;
+    	}
+
+    	/** @return the current value if it is a string, null otherwise (in which case it is skipped) */
+    	private String readStringValue() throws IOException {
+    		if (peek() != '"') {
+    			skipValue();
+    			return null;
+    		}
+    		nPos++;
+    		readStringContents(true);
+    		return token.toString();
+    	}
+
+    	/** @return the current value if it is a number or a string representing one, null otherwise */
+    	private Integer readIntegerValue() throws IOException {
+    		int c = peek();
+    		if (c == '"') {
+    			nPos++;
+    			readStringContents(true);
+    		}
+    		else if (c == '-' || (c >= '0' && c <= '9'))
+    			readLiteral();
+    		else {
+    			skipValue();
+    			return null;
+    		}
+
+    		int nStart = 0, nEnd = token.length();
+    		while (nStart < nEnd && Character.isWhitespace(token.charAt(nStart)))
+    			nStart++;
+    		while (nEnd > nStart && Character.isWhitespace(token.charAt(nEnd - 1)))
+    			nEnd--;
+    		boolean fNegative = nStart < nEnd && token.charAt(nStart) == '-';
+    		long value = 0, maxValue = fNegative ? -(long) Integer.MIN_VALUE : Integer.MAX_VALUE;
+    		for (int i = fNegative ? nStart + 1 : nStart; i<nEnd; i++) {
+    			char digit = token.charAt(i);
+    			if (digit < '0' || digit > '9')	// typically an empty string, or a decimal number
+    				try {
+    					return (int) Double.parseDouble(token.substring(nStart, nEnd));
+    				}
+    				catch (NumberFormatException nfe) {
+    					return null;
+    				}
+    			value = value * 10 + digit - '0';
+    			if (value > maxValue)
+    				return null;	// does not fit in an int
+    		}
+    		return nEnd == (fNegative ? nStart + 1 : nStart) ? null : (int) (fNegative ? -value : value);
+    	}
+
+    	/**
+    	 * Reads a string whose opening quote was consumed, up to and including its closing quote
+    	 *
+    	 * @param fKeep whether to decode it into token, or just skip it
+    	 */
+    	private void readStringContents(boolean fKeep) throws IOException {
+    		if (fKeep)
+    			token.setLength(0);
+    		while (true) {
+    			int c = read();
+    			if (c == -1)
+    				throw error("unterminated string");
+    			if (c == '"')
+    				return;
+    			if (c == '\\') {
+    				c = read();
+    				switch (c) {
+    					case 'b': c = '\b'; break;
+    					case 'f': c = '\f'; break;
+    					case 'n': c = '\n'; break;
+    					case 'r': c = '\r'; break;
+    					case 't': c = '\t'; break;
+    					case 'u':
+    						int nCodeUnit = 0;
+    						for (int i=0; i<4; i++) {
+    							int nDigit = Character.digit(read(), 16);
+    							if (nDigit == -1)
+    								throw error("invalid unicode escape");
+    							nCodeUnit = nCodeUnit * 16 + nDigit;
+    						}
+    						c = nCodeUnit;
+    						break;
+    					case -1:
+    						throw error("unterminated string");
+    					default:	// quote, backslash, slash, or anything else we leniently take as is
+    				}
+    			}
+    			if (fKeep)
+    				token.append((char) c);
+    		}
+    	}
+
+    	/** reads a number or a true / false / null literal into token */
+    	private void readLiteral() throws IOException {
+    		token.setLength(0);
+    		peek();
+    		while (true) {
+    			int c = read();
+    			if (c == -1)
+    				return;
+    			if (c == ',' || c == '}' || c == ']' || c == ':' || Character.isWhitespace(c)) {
+    				nPos--;
+    				return;
+    			}
+    			token.append((char) c);
+    		}
+    	}
+
+    	/** skips the current value, whatever its type, without decoding it */
+    	private void skipValue() throws IOException {
+    		int c = peek();
+    		if (c != '{' && c != '[') {
+    			if (c == '"') {
+    				nPos++;
+    				readStringContents(false);
+    			}
+    			else
+    				readLiteral();
+    			return;
+    		}
+
+    		int nDepth = 0;
+    		do {
+    			c = read();
+    			if (c == -1)
+    				throw error("unexpected end of stream");
+    			if (c == '"')
+    				readStringContents(false);
+    			else if (c == '{' || c == '[')
+    				nDepth++;
+    			else if (c == '}' || c == ']')
+    				nDepth--;
+    		}
+    		while (nDepth > 0);
+    	}
+    }
+}
@@ -0,0 +1,191 @@
+/*******************************************************************************
+ * metaXplorDB - Copyright (C) 2020 <CIRAD>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.metaxplor.importing;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Rate limiter shared by all threads sending requests to NCBI E-utilities, which accept at most 3 requests per second
+ * without an API key, and 10 with one. It works as a token bucket holding a single token (no bursts): each caller reserves
+ * the next free time slot, which is a short synchronized operation, then sleeps until that slot outside of any lock. Slots are
+ * thus granted in arrival order whatever the number of imports running concurrently, and the allowed rate is reached as soon
+ * as enough requests are pending. Since a thread may wake up late, actual grant times of the last permits are also remembered,
+ * so that the allowed number of requests is never exceeded over any one-second window.
+ *
+ * When the service replies with a 429 or 5xx status, the interval between slots is doubled (up to MAX_BACKOFF_FACTOR times its nominal value),
+ * and no request is sent before the server's Retry-After delay, if any, has elapsed. The interval is then brought back towards its nominal
+ * value by 10% on each successful response. Throttled requests that were sent before the last backoff do not cause another one, so that
+ * concurrent failures count as a single signal.
+ *
+ * @author sempere
+ */
+public class EUtilsRateLimiter {
+
+    private static final Logger LOG = Logger.getLogger(EUtilsRateLimiter.class);
+
+    /** NCBI usage policy */
+    public static final int MAX_REQUESTS_PER_SECOND_WITHOUT_API_KEY = 3, MAX_REQUESTS_PER_SECOND_WITH_API_KEY = 10;
+
+    private static final long ONE_SECOND_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /** upper bound for the interval between slots when backing off, as a multiple of its nominal value */
+    private static final int MAX_BACKOFF_FACTOR = 16;
+
+    /** upper bound for the delay requested via Retry-After headers */
+    private static final long MAX_RETRY_AFTER_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    private static final EUtilsRateLimiter withoutApiKey = new EUtilsRateLimiter(MAX_REQUESTS_PER_SECOND_WITHOUT_API_KEY), withApiKey = new EUtilsRateLimiter(MAX_REQUESTS_PER_SECOND_WITH_API_KEY);
+
+    private final int nMaxRequestsPerSecond;
+    private final long nominalIntervalNanos;
+
+    /** written under this' lock */
+    private volatile long intervalNanos;
+
+    /** guarded by this */
+    private long nextSlotNanos, lastBackoffNanos;
+
+    /** times when the last nMaxRequestsPerSecond permits were granted, as a ring buffer (guarded by this) */
+    private final long[] grantTimes;
+    private int nOldestGrantIndex = 0;
+
+    private final AtomicLong grantedPermitCount = new AtomicLong(), totalWaitNanos = new AtomicLong(), throttleCount = new AtomicLong();
+
+    EUtilsRateLimiter(int nMaxRequestsPerSecond) {
+    	this.nMaxRequestsPerSecond = nMaxRequestsPerSecond;
+    	nominalIntervalNanos = ONE_SECOND_NANOS / nMaxRequestsPerSecond;
+    	intervalNanos = nominalIntervalNanos;
+    	nextSlotNanos = System.nanoTime();
+    	lastBackoffNanos = nextSlotNanos;
+    	grantTimes = new long[nMaxRequestsPerSecond];
+    	Arrays.fill(grantTimes, nextSlotNanos - ONE_SECOND_NANOS);
+    }
+
+    /**
+     * @param fWithApiKey
+     * @return the limiter to be used by all requests sent with (or without) an API key
+     */
+    public static EUtilsRateLimiter getInstance(boolean fWithApiKey) {
+    	return fWithApiKey ? withApiKey : withoutApiKey;
+    }
+
+    /**
+     * Blocks until a request may be sent
+     *
+     * @return the time when the permit was granted, as given by System.nanoTime() (to be passed to onThrottled())
+     * @throws InterruptedException
+     */
+    public long acquire() throws InterruptedException {
+    	long now = System.nanoTime(), slot;
+    	synchronized (this) {
+    		slot = Math.max(now, nextSlotNanos);
+    		nextSlotNanos = slot + intervalNanos;
+    	}
+
+    	if (slot > now)
+    		TimeUnit.NANOSECONDS.sleep(slot - now);
+
+    	long grantTime;
+    	while (true) {
+    		long extraWaitNanos;
+    		synchronized (this) {
+    			grantTime = System.nanoTime();
+    			extraWaitNanos = grantTimes[nOldestGrantIndex] + ONE_SECOND_NANOS - grantTime;
+    			if (extraWaitNanos <= 0) {
+    				grantTimes[nOldestGrantIndex] = grantTime;
+    				nOldestGrantIndex = (nOldestGrantIndex + 1) % grantTimes.length;
+    				totalWaitNanos.addAndGet(grantTime - now);
+    				break;
+    			}
+    		}
+    		TimeUnit.NANOSECONDS.sleep(extraWaitNanos);
+    	}
+    	grantedPermitCount.incrementAndGet();
+    	return grantTime;
+    }
+
+    /**
+     * To be invoked when the service replies with a 429 or 5xx status
+     *
+     * @param permitGrantTime value returned by acquire() for the throttled request
+     * @param retryAfterSeconds delay requested by the server, or null if none
+     */
+    public void onThrottled(long permitGrantTime, Integer retryAfterSeconds) {
+    	throttleCount.incrementAndGet();
+    	long retryAfterNanos = retryAfterSeconds == null ? 0 : Math.min(MAX_RETRY_AFTER_NANOS, TimeUnit.SECONDS.toNanos(retryAfterSeconds));
+    	synchronized (this) {
+    		long now = System.nanoTime();
+    		if (permitGrantTime - lastBackoffNanos >= 0) {	// sent after the last backoff
+    			intervalNanos = Math.min(nominalIntervalNanos * MAX_BACKOFF_FACTOR, intervalNanos * 2);
+    			lastBackoffNanos = now;
+    		}
+    		nextSlotNanos = Math.max(nextSlotNanos, now + Math.max(intervalNanos, retryAfterNanos));
+    	}
+    	LOG.debug("E-utilities throttled us: now sending at most one request every " + TimeUnit.NANOSECONDS.toMillis(intervalNanos) + "ms");
+    }
+
+    /**
+     * To be invoked when the service replies normally
+     */
+    public void onSuccess() {
+    	if (intervalNanos == nominalIntervalNanos)
+    		return;
+    	synchronized (this) {
+    		intervalNanos = Math.max(nominalIntervalNanos, intervalNanos * 9 / 10);
+    	}
+    }
+
+    /**
+     * @return the number of requests allowed per second by NCBI's policy
+     */
+    public int getMaxRequestsPerSecond() {
+    	return nMaxRequestsPerSecond;
+    }
+
+    public long getGrantedPermitCount() {
+    	return grantedPermitCount.get();
+    }
+
+    /**
+     * @return cumulated time spent waiting for permits, in ms
+     */
+    public long getTotalWaitMillis() {
+    	return TimeUnit.NANOSECONDS.toMillis(totalWaitNanos.get());
+    }
+
+    /**
+     * @return number of 429 or 5xx responses reported
+     */
+    public long getThrottleCount() {
+    	return throttleCount.get();
+    }
+
+    /**
+     * @return the number of requests currently allowed per second (lower than getMaxRequestsPerSecond() while backing off)
+     */
+    public double getCurrentRequestsPerSecond() {
+    	return (double) ONE_SECOND_NANOS / intervalNanos;
+    }
+
+    @Override
+    public String toString() {
+    	return getGrantedPermitCount() + " requests sent, " + getTotalWaitMillis() + "ms spent waiting, " + getThrottleCount() + " throttled, current rate " + String.format("%.2f", getCurrentRequestsPerSecond()) + "/s";
+    }
+}
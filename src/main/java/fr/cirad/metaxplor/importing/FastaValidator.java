@@ -0,0 +1,223 @@
+/*******************************************************************************
+ * metaXplorDB - Copyright (C) 2020 <CIRAD>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.metaxplor.importing;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CancellationException;
+
+import fr.cirad.tools.ProgressIndicator;
+
+/**
+ * Validates fasta contents in a single streaming pass at the byte level: header structure, absence of blank lines, consistent line lengths
+ * within each sequence (as required for fai indexing) and nucleotide alphabet (IUPAC codes, gaps, either case). Valid contents can be copied
+ * and indexed on the fly, the produced fai being the same as the one samtools / htsjdk would build.
+ *
+ * @author sempere
+ */
+public class FastaValidator {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /** accepted sequence bytes: IUPAC nucleotide codes and gap, soft-masked (lower case) or not */
+    private static final boolean[] VALID_SEQUENCE_BYTES = new boolean[256];
+    static {
+    	for (char c : "ACGTNRYKMSWBDHV-".toCharArray()) {
+    		VALID_SEQUENCE_BYTES[c] = true;
+    		VALID_SEQUENCE_BYTES[Character.toLowerCase(c)] = true;
+    	}
+    }
+
+    private final Integer nMaxSequencesToCheck;
+    private OutputStream copyStream = null;
+    private Writer faiWriter = null;
+    private ProgressIndicator progress = null;
+    private long nExpectedByteCount = -1;
+
+    private int nSequenceCount = 0;
+    private long nLineNumber = 0;
+
+    // state of the sequence being read
+    private String sequenceName = null;
+    private long nSequenceLength, nSequenceOffset;
+    private int nBasesPerLine, nBytesPerLine;
+    private boolean fShortLineRead;
+
+    /** names of the sequences read so far, compactly stored */
+    private final QseqidRegistry sequenceNames = new QseqidRegistry(1 << 16);
+
+    /**
+     * @param nMaxSequencesToCheck number of sequences (counting from the first one) whose alphabet is to be checked (null for all of them), structure is always checked for the whole contents
+     */
+    public FastaValidator(Integer nMaxSequencesToCheck) {
+    	this.nMaxSequencesToCheck = nMaxSequencesToCheck;
+    }
+
+    /**
+     * @param copyStream stream to which contents will be written as they are validated (not closed by this class)
+     * @return this validator
+     */
+    public FastaValidator copyTo(OutputStream copyStream) {
+    	this.copyStream = copyStream;
+    	return this;
+    }
+
+    /**
+     * @param faiWriter writer to which the contents' fai index will be written as sequences are validated (not closed by this class)
+     * @return this validator
+     */
+    public FastaValidator writeIndexTo(Writer faiWriter) {
+    	this.faiWriter = faiWriter;
+    	return this;
+    }
+
+    /**
+     * @param progress also polled for abortion, in which case validation stops by throwing a CancellationException
+     * @param nExpectedByteCount contents size, used for reporting a percentage (if unknown, the number of sequences read so far is reported)
+     * @return this validator
+     */
+    public FastaValidator reportProgressTo(ProgressIndicator progress, long nExpectedByteCount) {
+    	this.progress = progress;
+    	this.nExpectedByteCount = nExpectedByteCount;
+    	return this;
+    }
+
+    /**
+     * @return number of sequences whose alphabet was checked
+     */
+    public int getCheckedSequenceCount() {
+    	return nMaxSequencesToCheck == null ? nSequenceCount : Math.min(nSequenceCount, nMaxSequencesToCheck);
+    }
+
+    /**
+     * Reads the whole contents
+     *
+     * @param is fasta contents (not closed by this method)
+     * @return number of sequences found
+     * @throws Exception describing the first problem encountered
+     */
+    public int validate(InputStream is) throws Exception {
+    	byte[] buffer = new byte[BUFFER_SIZE];
+    	ByteArrayOutputStream headerName = new ByteArrayOutputStream(256);
+    	long nOffset = 0;
+    	int nLineLength = 0;	// bytes read so far on the current line, terminator excluded
+    	boolean fInHeader = false, fInHeaderName = false, fPendingCarriageReturn = false, fCheckAlphabet = false;
+
+    	int nRead;
+    	while ((nRead = is.read(buffer)) != -1) {
+    		for (int i=0; i<nRead; i++) {
+    			int b = buffer[i] & 0xff;
+    			if (fPendingCarriageReturn && b != '\n')
+    				throw new Exception("Invalid fasta file: unexpected carriage return at line " + (nLineNumber + 1));
+
+    			if (b == '\n') {
+    				nLineNumber++;
+    				int nTerminatorLength = fPendingCarriageReturn ? 2 : 1;
+    				if (fInHeader) {
+    					startSequence(headerName, nOffset + i + 1);
+    					fInHeader = false;
+    				}
+    				else
+    					endSequenceLine(nLineLength, nTerminatorLength);
+    				nLineLength = 0;
+    				fPendingCarriageReturn = false;
+    			}
+    			else if (b == '\r')
+    				fPendingCarriageReturn = true;
+    			else if (nLineLength++ == 0 && b == '>') {
+    				endSequence();
+    				fInHeader = fInHeaderName = true;
+    				headerName.reset();
+    			}
+    			else if (fInHeader) {
+    				if (fInHeaderName && (b == ' ' || b == '\t'))
+    					fInHeaderName = headerName.size() == 0;	// leading whitespace is not part of the name
+    				else if (fInHeaderName)
+    					headerName.write(b);
+    			}
+    			else if (sequenceName == null)
+    				throw new Exception("Invalid fasta file: line " + (nLineNumber + 1) + " is not preceded by a header line starting with '>'");
+    			else {
+    				if (nLineLength == 1)
+    					fCheckAlphabet = nMaxSequencesToCheck == null || nSequenceCount <= nMaxSequencesToCheck;
+    				if (fCheckAlphabet && !VALID_SEQUENCE_BYTES[b])
+    					throw new Exception("Error parsing sequence number " + nSequenceCount + " (" + sequenceName + "): invalid character '" + (char) b + "' at line " + (nLineNumber + 1));
+    			}
+    		}
+    		nOffset += nRead;
+    		if (copyStream != null)
+    			copyStream.write(buffer, 0, nRead);
+    		if (progress != null) {
+    			if (progress.isAborted())
+    				throw new CancellationException("Fasta check aborted at line " + nLineNumber);
+    			progress.setCurrentStepProgress(nExpectedByteCount > 0 ? nOffset * 100 / nExpectedByteCount : nSequenceCount);
+    		}
+    	}
+
+    	if (fInHeader)	// a trailing carriage return without line feed is just ignored
+    		startSequence(headerName, nOffset);
+    	else if (nLineLength > 0)
+    		endSequenceLine(nLineLength, 0);
+    	endSequence();
+    	if (faiWriter != null)
+    		faiWriter.flush();
+    	return nSequenceCount;
+    }
+
+    private void startSequence(ByteArrayOutputStream headerName, long nFirstBaseOffset) throws Exception {
+    	if (headerName.size() == 0)
+    		throw new Exception("Invalid fasta file: empty sequence name at line " + nLineNumber);
+    	sequenceName = new String(headerName.toByteArray(), StandardCharsets.UTF_8);
+    	if (sequenceNames.add(sequenceName) == -1)
+    		throw new Exception("Invalid fasta file: duplicate sequence name " + sequenceName + " at line " + nLineNumber);
+    	nSequenceCount++;
+    	nSequenceLength = 0;
+    	nSequenceOffset = nFirstBaseOffset;
+    	nBasesPerLine = nBytesPerLine = 0;
+    	fShortLineRead = false;
+    }
+
+    /**
+     * @param nLineLength number of bases on the line
+     * @param nTerminatorLength 0 if the line is the last one in the file and has no terminator
+     */
+    private void endSequenceLine(int nLineLength, int nTerminatorLength) throws Exception {
+    	if (nLineLength == 0)
+    		throw new Exception("Invalid fasta file: make sure it contains no empty lines! (line " + nLineNumber + ")");
+
+    	if (nBasesPerLine == 0) {
+    		nBasesPerLine = nLineLength;
+    		nBytesPerLine = nLineLength + nTerminatorLength;
+    	}
+    	else if (fShortLineRead || nLineLength > nBasesPerLine)
+    		throw new Exception("Invalid fasta file: all lines of sequence " + sequenceName + " except the last one must have the same length (line " + nLineNumber + ")");
+    	else if (nTerminatorLength > 0 && nBytesPerLine - nBasesPerLine != nTerminatorLength)
+    		throw new Exception("Invalid fasta file: inconsistent line endings within sequence " + sequenceName + " (line " + nLineNumber + ")");
+    	if (nLineLength < nBasesPerLine)
+    		fShortLineRead = true;
+    	nSequenceLength += nLineLength;
+    }
+
+    private void endSequence() throws IOException {
+    	if (sequenceName != null && faiWriter != null)
+    		faiWriter.write(sequenceName + "\t" + nSequenceLength + "\t" + nSequenceOffset + "\t" + nBasesPerLine + "\t" + nBytesPerLine + "\n");
+    	sequenceName = null;
+    }
+}
@@ -0,0 +1,182 @@
+/*******************************************************************************
+ * metaXplorDB - Copyright (C) 2020 <CIRAD>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.metaxplor.importing;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.log4j.Logger;
+
+import fr.cirad.metaxplor.model.Sequence;
+
+/**
+ * Local copy of an import archive: remote archives are fetched only once, then each entry is served by name
+ * through the zip central directory, so that the various import / check phases do not need to re-stream it
+ *
+ * @author sempere
+ */
+public class ImportArchive implements Closeable {
+
+    private static final Logger LOG = Logger.getLogger(ImportArchive.class);
+
+    public static final String SAMPLE_ENTRY_SUFFIX = "samples.tsv";
+    public static final String ASSIGNMENT_ENTRY_SUFFIX = "assignments.tsv";
+    public static final String SEQUENCE_ENTRY_SUFFIX = "sequences.tsv";
+    public static final String FASTA_ENTRY_SUFFIX = Sequence.FULL_FASTA_EXT;
+
+    /** the local zip file (either the original one or a spooled copy of a remote one) */
+    private File archiveFile;
+
+    /** whether archiveFile is a temporary copy that we are responsible for deleting */
+    private boolean fTemporaryCopy = false;
+
+    private ZipFile zipFile;
+
+    /** entries that were extracted to temporary files, by entry name */
+    private Map<String, File> extractedEntries = new HashMap<>();
+
+    /**
+     * Stage an archive: local files are used in place, other URLs are downloaded once into a temporary file
+     *
+     * @param archiveURL
+     * @throws IOException
+     */
+    public ImportArchive(URL archiveURL) throws IOException {
+    	long before = System.currentTimeMillis();
+    	if ("file".equalsIgnoreCase(archiveURL.getProtocol()))
+			try {
+				archiveFile = new File(archiveURL.toURI());
+			}
+    		catch (URISyntaxException | IllegalArgumentException e) {
+    			archiveFile = new File(archiveURL.getPath());
+			}
+    	else {
+    		archiveFile = File.createTempFile("mtxImport_", ".zip");
+    		fTemporaryCopy = true;
+    		try (InputStream is = archiveURL.openStream()) {
+    			Files.copy(is, archiveFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    		}
+    		catch (IOException ioe) {
+    			archiveFile.delete();
+    			throw ioe;
+    		}
+    		LOG.debug("Staged " + archiveURL + " (" + archiveFile.length() + " bytes) in " + (System.currentTimeMillis() - before) + "ms");
+    	}
+    	zipFile = new ZipFile(archiveFile);
+    }
+
+    /**
+     * @param entryNameSuffix
+     * @return the first entry whose name ends with entryNameSuffix, or null if there is none
+     */
+    public ZipEntry getEntry(String entryNameSuffix) {
+    	Enumeration<? extends ZipEntry> entries = zipFile.entries();
+    	while (entries.hasMoreElements()) {
+    		ZipEntry ze = entries.nextElement();
+    		if (!ze.isDirectory() && ze.getName().endsWith(entryNameSuffix))
+    			return ze;
+    	}
+    	return null;
+    }
+
+    /**
+     * @param entryNameSuffix
+     * @return true if the archive contains an entry whose name ends with entryNameSuffix
+     */
+    public boolean hasEntry(String entryNameSuffix) {
+    	return getEntry(entryNameSuffix) != null;
+    }
+
+    /**
+     * Opens a fresh stream on an entry. Each invocation starts from the beginning of the entry without re-reading the rest of the archive
+     *
+     * @param entryNameSuffix
+     * @return the entry's contents, or null if the archive contains no such entry
+     * @throws IOException
+     */
+    public InputStream getInputStream(String entryNameSuffix) throws IOException {
+    	ZipEntry ze = getEntry(entryNameSuffix);
+    	return ze == null ? null : zipFile.getInputStream(ze);
+    }
+
+    /**
+     * Extracts an entry into a temporary file (only once), for consumers that need random access to its contents
+     *
+     * @param entryNameSuffix
+     * @return the extracted file, or null if the archive contains no such entry
+     * @throws IOException
+     */
+    public synchronized File getEntryFile(String entryNameSuffix) throws IOException {
+    	ZipEntry ze = getEntry(entryNameSuffix);
+    	if (ze == null)
+    		return null;
+
+    	File entryFile = extractedEntries.get(ze.getName());
+    	if (entryFile == null) {
+    		String entryName = new File(ze.getName()).getName();
+    		int nDotPos = entryName.lastIndexOf('.');
+    		entryFile = File.createTempFile("mtxEntry_", nDotPos == -1 ? null : entryName.substring(nDotPos));
+    		try (InputStream is = zipFile.getInputStream(ze)) {
+    			Files.copy(is, entryFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    		}
+    		extractedEntries.put(ze.getName(), entryFile);
+    	}
+    	return entryFile;
+    }
+
+    /**
+     * @return a string identifying the archive's contents (built from entry names, sizes and CRCs, so it does not require reading them)
+     */
+    public String getFingerprint() {
+    	StringBuilder fingerprint = new StringBuilder();
+    	for (String suffix : new String[] {SAMPLE_ENTRY_SUFFIX, FASTA_ENTRY_SUFFIX, ASSIGNMENT_ENTRY_SUFFIX, SEQUENCE_ENTRY_SUFFIX}) {
+    		ZipEntry ze = getEntry(suffix);
+    		if (ze != null)
+    			fingerprint.append(fingerprint.length() == 0 ? "" : ";").append(ze.getName()).append(":").append(ze.getSize()).append(":").append(Long.toHexString(ze.getCrc()));
+    	}
+    	return fingerprint.toString();
+    }
+
+    public File getArchiveFile() {
+    	return archiveFile;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+    	try {
+    		zipFile.close();
+    	}
+    	finally {
+    		for (File entryFile : extractedEntries.values())
+    			if (entryFile.exists() && !entryFile.delete())
+    				LOG.warn("Unable to delete temporary file " + entryFile);
+    		extractedEntries.clear();
+        	if (fTemporaryCopy && archiveFile.exists() && !archiveFile.delete())
+        		LOG.warn("Unable to delete temporary file " + archiveFile);
+    	}
+    }
+}
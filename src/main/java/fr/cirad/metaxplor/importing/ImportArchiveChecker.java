@@ -15,22 +15,17 @@
  *******************************************************************************/
 package fr.cirad.metaxplor.importing;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.nio.charset.Charset;
-import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -40,10 +35,6 @@ import java.util.stream.Collectors;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
-import org.biojava.bio.seq.DNATools;
-import org.biojava.bio.symbol.SoftMaskedAlphabet;
-import org.biojavax.bio.seq.RichSequence;
-import org.biojavax.bio.seq.RichSequenceIterator;
 import org.springframework.context.support.GenericXmlApplicationContext;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.query.Criteria;
@@ -55,11 +46,10 @@ import fr.cirad.metaxplor.model.Assignment;
 import fr.cirad.metaxplor.model.DBField;
 import fr.cirad.metaxplor.model.Sample;
 import fr.cirad.metaxplor.model.Sequence;
-import fr.cirad.tools.Helper;
+import fr.cirad.tools.LineTokenizer;
 import fr.cirad.tools.ProgressIndicator;
 import fr.cirad.tools.mongo.DBConstant;
 import fr.cirad.tools.mongo.MongoTemplateManager;
-import htsjdk.samtools.reference.FastaSequenceIndexCreator;
 
 /**
  * Class to test contents of .tsv files before import
@@ -79,6 +69,12 @@ public class ImportArchiveChecker {
      * Default value if a field is not specified
      */
     public final static List<String> EMPTY_FIELD_CODES = Arrays.asList("", ".");
+
+    /** returned by checks that stopped because their ProgressIndicator got aborted */
+    public final static String CHECK_ABORTED = "Check aborted";
+
+    /** number of lines between two abortion checks in large files */
+    private static final int ABORT_CHECK_INTERVAL = 1000;
     /**
      * check if a String can be cast to double
      */
@@ -122,7 +118,7 @@ public class ImportArchiveChecker {
      * @param zis
      * @param numberOfEntriesToCheck
      * @param sampleCodes
-     * @param progress
+     * @param progress also polled for abortion (see CHECK_ABORTED)
      * @param nSeqCount
      * @return "ok" if no error, the error message otherwise
      * @throws java.io.IOException
@@ -134,40 +130,36 @@ public class ImportArchiveChecker {
     		progress.setPercentageEnabled(true);
     	}
 
-        BufferedReader br = new BufferedReader(new InputStreamReader(zis, Charset.forName("UTF-8")));
+        LineTokenizer fields = new LineTokenizer(new InputStreamReader(zis, Charset.forName("UTF-8")), '\t', false);
 
-        String line = br.readLine();
-        List<String> headers = Arrays.asList(line.split("\t"));
+        fields.readLine();
+        List<String> headers = fields.getStrings(-1);
 
         int qseqidColumnIndex = -1;
 
-        List<String> missingSampleColumns = new ArrayList<>(sampleCodes);
-        for (int i=0; i<headers.size(); i++) {
-        	String header = headers.get(i);
-        	if (!missingSampleColumns.remove(header) && standardizeHeader(header).equals(Sequence.FIELDNAME_QSEQID))
+        for (int i=0; i<headers.size(); i++)
+        	if (!sampleCodes.contains(headers.get(i)) && standardizeHeader(headers.get(i)).equals(Sequence.FIELDNAME_QSEQID))
         		qseqidColumnIndex = i;
-        }
         if (qseqidColumnIndex == -1)
         	return "No column named " + Sequence.FIELDNAME_QSEQID + " in sequence composition file";
-        if (missingSampleColumns.size() > 0)
-        	return "No column found in sequence composition file for sample(s): " + StringUtils.join(missingSampleColumns, ", ");
+        String sampleColumnError = checkSampleColumns(headers, sampleCodes);
+        if (sampleColumnError != null)
+        	return sampleColumnError;
 
-        HashSet<String> encounteredSequences = new HashSet<>();
         int lineNb = 1;
-        while ((line = br.readLine()) != null) {
+        while (fields.readLine()) {
             lineNb++;
-	        List<String> fields = Helper.split(line, '\t');
-	        if (headers.size() > fields.size())
-	        	return "Invalid number of fields, got " + headers.size() + " headers but " + fields.size() + " fields at line " + lineNb;
+	        if (headers.size() > fields.getColumnCount())
+	        	return "Invalid number of fields, got " + headers.size() + " headers but " + fields.getColumnCount() + " fields at line " + lineNb;
 
 	        int nTotalCount = 0;
-	        for (int i=0; i<fields.size(); i++) {
-	            if (i != qseqidColumnIndex && !fields.get(i).isEmpty())
+	        for (int i=0; i<fields.getColumnCount(); i++) {
+	            if (i != qseqidColumnIndex && !fields.isEmpty(i))
             		try {
-            			nTotalCount += Integer.parseInt(fields.get(i));                     		
+            			nTotalCount += fields.parseInt(i);
             		}
 	            	catch (NumberFormatException nfe) {
-	            		return "Invalid sample contribution value '" + fields.get(i) + "' for column " + headers.get(i) + " at line " + lineNb + " (only integers accepted)";
+	            		return "Invalid sample contribution value '" + fields.getString(i) + "' for column " + (i < headers.size() ? headers.get(i) : i + 1) + " at line " + lineNb + " (only integers accepted)";
 	            	}
 	        }
 	        if (nTotalCount <= 0)
@@ -176,16 +168,27 @@ public class ImportArchiveChecker {
             if (numberOfEntriesToCheck != null && numberOfEntriesToCheck <= lineNb)
             	break;
 
-            if (progress != null && nSeqCount > 0) {
-	            encounteredSequences.add(fields.get(qseqidColumnIndex));
-	            if (encounteredSequences.size() % 1000 == 0)
-	            	progress.setCurrentStepProgress(encounteredSequences.size() * 100 / (numberOfEntriesToCheck != null ? numberOfEntriesToCheck  : nSeqCount));
-            }
+            if (progress != null && lineNb % ABORT_CHECK_INTERVAL == 0 && progress.isAborted())
+            	return CHECK_ABORTED;
+
+            if (progress != null && nSeqCount > 0 && lineNb % 1000 == 0)	// each line is expected to describe a distinct sequence
+            	progress.setCurrentStepProgress((lineNb - 1) * 100 / (numberOfEntriesToCheck != null ? numberOfEntriesToCheck  : nSeqCount));
         }
 
         return "ok";
 	}
 
+	/**
+	 * @param sequenceFileHeaders
+	 * @param sampleCodes
+	 * @return the error message if some samples have no column in the sequence composition file, null otherwise
+	 */
+	static String checkSampleColumns(List<String> sequenceFileHeaders, Collection<String> sampleCodes) {
+        List<String> missingSampleColumns = new ArrayList<>(sampleCodes);
+        missingSampleColumns.removeAll(sequenceFileHeaders);
+        return missingSampleColumns.isEmpty() ? null : "No column found in sequence composition file for sample(s): " + StringUtils.join(missingSampleColumns, ", ");
+	}
+
     /**
      * Check whether the Assignment file is correctly formatted, and build lists of existing / provided fields for user information
      * 
@@ -193,7 +196,7 @@ public class ImportArchiveChecker {
      * @param is
      * @param numberOfEntriesToCheck
      * @param assignmentFieldsToFill
-     * @param progress 
+     * @param progress also polled for abortion (see CHECK_ABORTED)
      * @return "ok" if no error, the error message otherwise
      * @throws java.io.IOException
      * @throws InterruptedException 
@@ -205,10 +208,10 @@ public class ImportArchiveChecker {
     		progress.setPercentageEnabled(numberOfEntriesToCheck != null);
     	}
 
-        BufferedReader br = new BufferedReader(new InputStreamReader(is, Charset.forName("UTF-8")));
+        LineTokenizer fields = new LineTokenizer(new InputStreamReader(is, Charset.forName("UTF-8")), '\t', false), sseqidTokenizer = new LineTokenizer(',', false);
 
-        String line = br.readLine();
-        List<String> headers = Arrays.asList(line.split("\t")), stdHeaders = standardizeHeaders(headers);
+        fields.readLine();
+        List<String> stdHeaders = standardizeHeaders(fields.getStrings(-1));
 
         assignmentFieldsToFill.put("provided", stdHeaders.stream().sorted(Comparator.comparing(String::toString)).collect(Collectors.toList()));
 
@@ -223,7 +226,7 @@ public class ImportArchiveChecker {
         if (sMissingHeaders.length() > 0)
         	return "Missing header column(s): " + sMissingHeaders;
         
-        HashMap<String /*qseqid*/, HashMap<String /*assign_method*/, Integer[] /*number of assignments and number of best hit assignments*/>> consistencyData = new HashMap<>(); 
+        BestHitConsistencyChecker bestHitChecker = new BestHitConsistencyChecker();
 
         int qseqidColumnIndex = stdHeaders.indexOf(Sequence.FIELDNAME_QSEQID), taxidColumnIndex = stdHeaders.indexOf(DBConstant.FIELDNAME_TAXON), sseqidColumnIndex = stdHeaders.indexOf(Assignment.FIELDNAME_SSEQID), assignMethodColumnIndex = stdHeaders.indexOf(Assignment.FIELDNAME_ASSIGN_METHOD), bestHitColumnIndex = stdHeaders.indexOf(DBField.bestHitFieldName);
         
@@ -231,53 +234,40 @@ public class ImportArchiveChecker {
         	return "Header columns must contain at least one of " + Assignment.FIELDNAME_SSEQID + ", " + DBConstant.FIELDNAME_TAXON;
         
         int lineNb = 1;
-        while ((line = br.readLine()) != null) {
+        while (fields.readLine()) {
             lineNb++;       
-            String[] fields = line.split("\t");
 
-            if (EMPTY_FIELD_CODES.contains(fields[qseqidColumnIndex])) 
+            if (fields.getColumnCount() <= qseqidColumnIndex || fields.isColumnOneOf(qseqidColumnIndex, EMPTY_FIELD_CODES)) 
             	return "Missing " + Sequence.FIELDNAME_QSEQID + " on line " + lineNb;
             
-            boolean fGotSseqId = sseqidColumnIndex != -1 && !EMPTY_FIELD_CODES.contains(fields[sseqidColumnIndex]), fGotTaxId = taxidColumnIndex != -1 && !EMPTY_FIELD_CODES.contains(fields[taxidColumnIndex]);
+            boolean fGotSseqId = sseqidColumnIndex != -1 && fields.getColumnCount() > sseqidColumnIndex && !fields.isColumnOneOf(sseqidColumnIndex, EMPTY_FIELD_CODES), fGotTaxId = taxidColumnIndex != -1 && fields.getColumnCount() > taxidColumnIndex && !fields.isColumnOneOf(taxidColumnIndex, EMPTY_FIELD_CODES);
             if (!fGotSseqId && !fGotTaxId) 
             	return "Neither " + Assignment.FIELDNAME_SSEQID + " nor " + DBConstant.FIELDNAME_TAXON + " found on line " + lineNb;
             
             if (fGotSseqId) {
-            	for (String aSseqID : fields[sseqidColumnIndex].split(","))
-            		if (!aSseqID.startsWith(Accession.ID_NUCLEOTIDE_PREFIX) && !aSseqID.startsWith(Accession.ID_PROTEIN_PREFIX))
+            	sseqidTokenizer.tokenize(fields.getColumn(sseqidColumnIndex));
+            	for (int i=0; i<sseqidTokenizer.getColumnCount(); i++)
+            		if (!sseqidTokenizer.columnStartsWith(i, Accession.ID_NUCLEOTIDE_PREFIX) && !sseqidTokenizer.columnStartsWith(i, Accession.ID_PROTEIN_PREFIX))
             			return "Missing accession prefix on line " + lineNb;
             }
             
-            HashMap<String, Integer[]> consistencyDataForSequence = consistencyData.get(fields[qseqidColumnIndex]);
-            if (consistencyDataForSequence == null) {
-            	consistencyDataForSequence = new HashMap<>();
-            	consistencyData.put(fields[qseqidColumnIndex], consistencyDataForSequence);
-            }
-            Integer[] consistencyDataForAssignmentMethod = consistencyDataForSequence.get(fields[assignMethodColumnIndex]);
-            if (consistencyDataForAssignmentMethod == null) {
-            	consistencyDataForAssignmentMethod = new Integer[2];
-            	consistencyDataForSequence.put(fields[assignMethodColumnIndex], consistencyDataForAssignmentMethod);
-            }
-            consistencyDataForAssignmentMethod[0] = consistencyDataForAssignmentMethod[0] == null ? 1 : consistencyDataForAssignmentMethod[0] + 1;
-            consistencyDataForAssignmentMethod[1] = (consistencyDataForAssignmentMethod[1] == null ? 0 : consistencyDataForAssignmentMethod[1]) + (bestHitColumnIndex == -1 || fields.length < bestHitColumnIndex + 1 || EMPTY_FIELD_CODES.contains(fields[bestHitColumnIndex]) ? 0 : 1);
+            String bestHitError = bestHitChecker.addAssignment(fields, qseqidColumnIndex, assignMethodColumnIndex, bestHitColumnIndex != -1 && fields.getColumnCount() > bestHitColumnIndex && !fields.isColumnOneOf(bestHitColumnIndex, EMPTY_FIELD_CODES));
+            if (bestHitError != null)
+            	return bestHitError;
 
             if (numberOfEntriesToCheck != null && numberOfEntriesToCheck < lineNb)
             	break;
             
-            if (progress != null)
+            if (progress != null) {
+            	if (lineNb % ABORT_CHECK_INTERVAL == 0 && progress.isAborted())
+            		return CHECK_ABORTED;
 	            progress.setCurrentStepProgress(numberOfEntriesToCheck != null ? lineNb * 100 / numberOfEntriesToCheck : lineNb);
+            }
         }
         
-        for (String qseqid : consistencyData.keySet()) {
-        	HashMap<String, Integer[]> consistencyDataForSequence = consistencyData.get(qseqid);
-        	for (String assignMethod : consistencyDataForSequence.keySet()) {
-        		Integer[] consistencyDataForAssignmentMethod = consistencyDataForSequence.get(assignMethod);
-        		if (consistencyDataForAssignmentMethod[1] > 1)
-        			return "Several best hits specified for qseqid " + qseqid + " and assignment method " + assignMethod;
-        		if (consistencyDataForAssignmentMethod[1] == 0 && consistencyDataForAssignmentMethod[0] > 1)
-        			return "No best hit specified for qseqid " + qseqid + " and assignment method " + assignMethod;
-        	}
-        }
+        String missingBestHitError = bestHitChecker.getMissingBestHitError();
+        if (missingBestHitError != null)
+        	return missingBestHitError;
 
         Set<String> existingFields = new TreeSet<>();
         for (DBField existingField : mongoTemplate.find(new Query(Criteria.where(DBField.FIELDNAME_ENTITY_TYPEALIAS).is(AssignedSequence.FIELDNAME_ASSIGNMENT)), DBField.class))
@@ -293,19 +283,34 @@ public class ImportArchiveChecker {
      * Check whether the sample file is correctly formatted
      * @param mongoTemplate 
      * @param is
-     * @param sampleFieldsToFill 
+     * @param sampleFieldsToFill will be filled with provided and existing field names, and with the inferred type of each field (by name) if the file is valid
      * @param sampleCodesToFill 
      * @return "ok" if no error, the error message otherwise
      * @throws java.io.IOException
      * @throws ClassNotFoundException 
      */
     public static String testSampleFile(MongoTemplate mongoTemplate, InputStream is, Map<String, Object> sampleFieldsToFill, Collection<String> sampleCodesToFill) throws IOException, ClassNotFoundException {
+    	return testSampleFile(mongoTemplate, is, sampleFieldsToFill, sampleCodesToFill, null);
+    }
+
+    /**
+     * Check whether the sample file is correctly formatted
+     * @param mongoTemplate 
+     * @param is
+     * @param sampleFieldsToFill will be filled with provided and existing field names, and with the inferred type of each field (by name) if the file is valid
+     * @param sampleCodesToFill 
+     * @param progress only polled for abortion (see CHECK_ABORTED), may be null
+     * @return "ok" if no error, the error message otherwise
+     * @throws java.io.IOException
+     * @throws ClassNotFoundException 
+     */
+    public static String testSampleFile(MongoTemplate mongoTemplate, InputStream is, Map<String, Object> sampleFieldsToFill, Collection<String> sampleCodesToFill, ProgressIndicator progress) throws IOException, ClassNotFoundException {
 
         String response = "ok";
-        BufferedReader br = new BufferedReader(new InputStreamReader(is, Charset.forName("UTF-8")));
+        LineTokenizer fields = new LineTokenizer(new InputStreamReader(is, Charset.forName("UTF-8")), '\t', false), gpsTokenizer = new LineTokenizer(',', false);
 
-        String line = br.readLine();
-        List<String> headers = Arrays.asList(line.split("\t")), stdHeaders = standardizeHeaders(headers);
+        fields.readLine();
+        List<String> headers = fields.getStrings(-1), stdHeaders = standardizeHeaders(headers);
         sampleFieldsToFill.put("provided", new TreeSet<>(stdHeaders));
 
         List<String> requiredHeaders = new ArrayList<>();
@@ -330,33 +335,37 @@ public class ImportArchiveChecker {
         	existingFieldNames.add(Sample.FIELDNAME_SAMPLE_CODE);
         sampleFieldsToFill.put("existing", standardizeHeaders(existingFieldNames));
         
-        mainLoop: while ((line = br.readLine()) != null) {
-            String[] fields = line.split("\t");
-            String sampleName = fields[headers.indexOf(Sample.FIELDNAME_SAMPLE_CODE)];
-            if (stdHeaders.size() != fields.length) {
-                response = "Invalid number of fields, got " + headers.size() + " headers but " + fields.length + " fields for sample " + sampleName;
+        int sampleColumnIndex = headers.indexOf(Sample.FIELDNAME_SAMPLE_CODE);
+        SampleFieldTypeInference typeInference = new SampleFieldTypeInference(stdHeaders);
+        mainLoop: while (fields.readLine()) {
+            if (progress != null && progress.isAborted())
+            	return CHECK_ABORTED;
+
+            String sampleName = fields.getColumnCount() > sampleColumnIndex ? fields.getString(sampleColumnIndex) : "";
+            if (stdHeaders.size() != fields.getColumnCount()) {
+                response = "Invalid number of fields, got " + headers.size() + " headers but " + fields.getColumnCount() + " fields for sample " + sampleName;
                 break;
             }
 
-            String dateField = fields[dateColumnIndex];
-            if (!EMPTY_FIELD_CODES.contains(dateField)) {
-                if (!DATE_PATTERN.matcher(dateField).matches()) {
+            if (!fields.isColumnOneOf(dateColumnIndex, EMPTY_FIELD_CODES)) {
+                if (!DATE_PATTERN.matcher(fields.getColumn(dateColumnIndex)).matches()) {
                     response = "Invalid date for column " + headers.get(dateColumnIndex) + " and sample " + sampleName + ".\nExpected format is YYYY-MM-dd";
                     break;
                 }
             }
 
-            String gpsField = fields[gpsColumnIndex];
-            if (!EMPTY_FIELD_CODES.contains(gpsField)) {
-                String[] pos = gpsField.split(",");
-                if (pos.length < 2 || !DOUBLE_PATTERN.matcher(pos[0]).matches() || !DOUBLE_PATTERN.matcher(pos[1]).matches()) {
+            if (!fields.isColumnOneOf(gpsColumnIndex, EMPTY_FIELD_CODES)) {
+                gpsTokenizer.tokenize(fields.getColumn(gpsColumnIndex));
+                if (gpsTokenizer.getColumnCount() < 2 || !DOUBLE_PATTERN.matcher(gpsTokenizer.getColumn(0)).matches() || !DOUBLE_PATTERN.matcher(gpsTokenizer.getColumn(1)).matches()) {
                     response = "Invalid gps position for column " + headers.get(gpsColumnIndex) + " and sample " + sampleName + ".\nExpected format is [lat, long]";
                     break;
                 }
             }
 
+            typeInference.addLine(fields);
+
             // make sure we don't have an existing field with a different type
-            for (int i=0; i<fields.length; i++) {
+            for (int i=0; i<fields.getColumnCount(); i++) {
             	String colName = headers.get(i);
             	if (colName.equals(Sample.FIELDNAME_SAMPLE_CODE)) {
             		sampleCodesToFill.add(sampleName);
@@ -366,7 +375,7 @@ public class ImportArchiveChecker {
             	DBField dbField = existingFields.get(Sample.TYPE_ALIAS + "§" + colName);
             	if (dbField != null)
             	{
-            		boolean fGotDoubleInFile = MtxImport.parseToDouble(fields[i]) != null;
+            		boolean fGotDoubleInFile = !Double.isNaN(fields.parseDecimal(i));
             		if ((dbField.getTypeClass().equals(Double.class) && !fGotDoubleInFile)/* || (dbField.getType().equals(String.class) && fGotDoubleInFile)*/)
             		{
                         response = "Invalid type for field " + colName + " and sample " + sampleName + ".\nExpected type is " + dbField.getTypeClass().getSimpleName().replaceAll("\\.class",  "");
@@ -375,6 +384,8 @@ public class ImportArchiveChecker {
             	}
             }
         }
+        if ("ok".equals(response))
+        	sampleFieldsToFill.put("inferredTypes", typeInference.getTypes());
         return response;
     }
 
@@ -387,56 +398,40 @@ public class ImportArchiveChecker {
      * @throws java.io.Exception
      */
 	public static int testFastaFile(InputStream is, Integer numberOfEntriesToCheck, ProgressIndicator progress) throws Exception {
+		return testFastaFile(is, -1, numberOfEntriesToCheck, progress);
+	}
+
+    /**
+     * tests that fasta file contents are correct (to be preferred when the file is already available locally, e.g. via ImportArchive.getEntryFile)
+     *
+     * @param fastaFile
+     * @param numberOfEntriesToCheck
+     * @return number of sequences
+     * @throws java.io.Exception
+     */
+	public static int testFastaFile(File fastaFile, Integer numberOfEntriesToCheck, ProgressIndicator progress) throws Exception {
+		try (InputStream is = new FileInputStream(fastaFile)) {
+			return testFastaFile(is, fastaFile.length(), numberOfEntriesToCheck, progress);
+		}
+	}
+
+	/**
+	 * Checks structure (as required for indexing) of the whole contents, and alphabet of the first numberOfEntriesToCheck sequences, in a single pass
+	 *
+	 * @throws java.util.concurrent.CancellationException if progress gets aborted
+	 */
+	static int testFastaFile(InputStream is, long nByteCount, Integer numberOfEntriesToCheck, ProgressIndicator progress) throws Exception {
 		if (progress != null) {
-     		progress.addStep("Checking fasta file structure");
+     		progress.addStep("Checking fasta file");
      		progress.moveToNextStep();
+			progress.setPercentageEnabled(nByteCount > 0);
 		}
 
-		File tmpFastaFile = File.createTempFile("tmp", Sequence.FULL_FASTA_EXT);
-        Files.copy(is, tmpFastaFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
-		int n = 0;
-		
-		try {
-			// build an index to be sure it will pass when we actually import it (it may reveal errors such as blank lines)
-			try {
-				try {
-					FastaSequenceIndexCreator.buildFromFasta(tmpFastaFile.toPath()).iterator();
-				}
-				catch (StringIndexOutOfBoundsException siobe) {
-	        		if ("String index out of range: 0".equals(siobe.getMessage()))
-	                	throw new Exception("Invalid fasta file: make sure it contains no empty lines!");
-	        	}
-			}
-			catch (Exception e) {
-				throw new Exception("Error parsing fasta file: " + e.getMessage());
-			}
-
-			// check that all sequences are correct
-			if (progress != null) {
-	     		progress.addStep("Checking fasta file sequences");
-	     		progress.moveToNextStep();
-				progress.setPercentageEnabled(numberOfEntriesToCheck != null);
-			}
-			try {
-				RichSequenceIterator iterator = RichSequence.IOTools.readFasta(new BufferedReader(new FileReader(tmpFastaFile)), SoftMaskedAlphabet.getInstance(DNATools.getDNA()).getTokenization("token"), null);
-				while (iterator.hasNext()) {
-					iterator.nextSequence().seqString();
-					if (progress != null && n % 1000 == 0)
-						progress.setCurrentStepProgress(numberOfEntriesToCheck != null ? n * 100 / numberOfEntriesToCheck : n);
-					
-					n++;
-		            if (numberOfEntriesToCheck != null && numberOfEntriesToCheck <= n)
-		            	break;
-				}
-			}
-			catch (Exception e) {
-				throw new Exception("Error parsing sequence number " + ++n + ": " + e.getMessage());
-			}
-		
-		} finally {
-			tmpFastaFile.delete();
-		}
-		return n;
+		FastaValidator validator = new FastaValidator(numberOfEntriesToCheck);
+		if (progress != null)
+			validator.reportProgressTo(progress, nByteCount);
+		validator.validate(is);	// reads by large chunks, no need for buffering
+		return validator.getCheckedSequenceCount();
 	}
 
     /**
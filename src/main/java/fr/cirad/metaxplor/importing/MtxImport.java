@@ -18,20 +18,25 @@ package fr.cirad.metaxplor.importing;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.net.URL;
 import java.nio.charset.Charset;
-import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
+import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -40,10 +45,17 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
+import java.util.stream.IntStream;
 
 import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.lang.StringUtils;
@@ -53,6 +65,8 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.dao.DuplicateKeyException;
 import org.springframework.data.mongodb.core.BulkOperations;
 import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.AggregationUpdate;
+import org.springframework.data.mongodb.core.aggregation.ConvertOperators;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.data.mongodb.core.query.Update;
@@ -63,6 +77,11 @@ import com.mongodb.MongoCommandException;
 import com.mongodb.bulk.BulkWriteResult;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.result.UpdateResult;
 
 import fr.cirad.metaxplor.jobs.base.IOpalServiceInvoker;
 import fr.cirad.metaxplor.model.Accession;
@@ -71,22 +90,24 @@ import fr.cirad.metaxplor.model.AssignedSequence;
 import fr.cirad.metaxplor.model.Assignment;
 import fr.cirad.metaxplor.model.AutoIncrementCounter;
 import fr.cirad.metaxplor.model.DBField;
+import fr.cirad.metaxplor.model.ImportCheckpoint;
 import fr.cirad.metaxplor.model.MetagenomicsProject;
 import fr.cirad.metaxplor.model.Sample;
 import fr.cirad.metaxplor.model.SampleReadCount;
 import fr.cirad.metaxplor.model.Sequence;
 import fr.cirad.metaxplor.model.Sequence.SequenceId;
+import fr.cirad.metaxplor.model.TaxonomyEngine;
 import fr.cirad.metaxplor.model.TaxonomyNode;
 import fr.cirad.tools.AppConfig;
 import fr.cirad.tools.Constant;
+import fr.cirad.tools.DecimalParser;
+import fr.cirad.tools.DoubleFieldMap;
 import fr.cirad.tools.Helper;
+import fr.cirad.tools.LineTokenizer;
+import fr.cirad.tools.MappedLineReader;
 import fr.cirad.tools.ProgressIndicator;
 import fr.cirad.tools.mongo.DBConstant;
 import fr.cirad.tools.mongo.MongoTemplateManager;
-import htsjdk.samtools.SAMException;
-import htsjdk.samtools.reference.FastaSequenceIndex;
-import htsjdk.samtools.reference.FastaSequenceIndexCreator;
-import htsjdk.samtools.reference.IndexedFastaSequenceFile;
 
 /**
  *
@@ -105,6 +126,21 @@ public class MtxImport {
     private static Map<String /*module*/, Map<String /*field name*/, Comparable[]>> sampleFieldsToPersist = new HashMap<>();		// static to support multiple concurrent imports
     private static Map<String /*module*/, Map<String /*field name*/, Comparable[]>> assignmentFieldsToPersist = new HashMap<>();	// static to support multiple concurrent imports
     private static Map<String /*module*/, Collection<Integer>> currentlyImportedProjects = new HashMap<>();	// static to support multiple concurrent imports
+
+    /** number of assignment lines between two import checkpoints */
+    private static final int ASSIGNMENT_CHECKPOINT_INTERVAL = 200000;
+
+    /** minimum number of bytes for each of the ranges the assignment file is split into when collecting accession IDs */
+    private static final long ACCESSION_SCAN_MIN_RANGE_SIZE = 16 << 20;
+
+    /** max number of import phases running concurrently (shared by all imports) */
+    private static final int IMPORT_PHASE_THREAD_COUNT = 6;
+
+    private static final ExecutorService importPhaseExecutor = Executors.newFixedThreadPool(IMPORT_PHASE_THREAD_COUNT, runnable -> {
+    	Thread thread = new Thread(runnable, "importPhase");
+    	thread.setDaemon(true);
+    	return thread;
+    });
     
 	private @Autowired AccessionImport accessionImport;
 
@@ -133,6 +169,37 @@ public class MtxImport {
      * @throws Exception 
      */
     public Map<String, String> doImport(IOpalServiceInvoker opalServiceInvoker, String module, int projectId, String projectCode, String projectName, String projectDescription, String authors, String adress, String seqDate, String seqTech, String assemblTech, boolean isAvail, int maxAccessionCountPerAssignment, String pub, String extraInfo, URL importZipURL, ProgressIndicator progress, boolean access) throws Exception {
+    	try (ImportArchive importArchive = new ImportArchive(importZipURL)) {
+    		return doImport(opalServiceInvoker, module, projectId, projectCode, projectName, projectDescription, authors, adress, seqDate, seqTech, assemblTech, isAvail, maxAccessionCountPerAssignment, pub, extraInfo, importArchive, progress, access);
+    	}
+    }
+
+    /**
+     * import data from an already staged archive (allows callers to share it with ImportArchiveChecker).
+     * If a previous attempt at importing the same archive into the same project failed, the import is resumed from its last checkpoint
+     *
+     * @param opalServiceInvoker
+     * @param module
+     * @param projectId
+     * @param projectCode acronym
+     * @param projectName project full name
+     * @param projectDescription
+     * @param authors
+     * @param adress
+     * @param seqDate
+     * @param seqTech
+     * @param assemblTech
+     * @param isAvail
+     * @param maxAccessionCountPerAssignment
+     * @param pub
+     * @param extraInfo
+     * @param importArchive
+     * @param progress
+     * @param access
+     * @return A map with number of sequences and samples imported
+     * @throws Exception 
+     */
+    public Map<String, String> doImport(IOpalServiceInvoker opalServiceInvoker, String module, int projectId, String projectCode, String projectName, String projectDescription, String authors, String adress, String seqDate, String seqTech, String assemblTech, boolean isAvail, int maxAccessionCountPerAssignment, String pub, String extraInfo, ImportArchive importArchive, ProgressIndicator progress, boolean access) throws Exception {
     	long before = System.currentTimeMillis();
 
     	Collection<Integer> currentlyImportedProjectsForModule = currentlyImportedProjects.get(module);
@@ -145,110 +212,150 @@ public class MtxImport {
         MongoTemplate mongoTemplate = MongoTemplateManager.get(module);
         AutoIncrementCounter.ensureCounterIsAbove(mongoTemplate, MongoTemplateManager.getMongoCollectionName(DBField.class), DBField.getFieldsWishStaticId().size());
 
-        // this map holds reference of available fields 
-        LinkedHashMap<Integer, DBField> fields = new LinkedHashMap<>();
-
-        String importedFastaFileName = null;
-        Map<String, Comparable[]> fieldNameToIdAndTypeMap;
-
-    	ZipEntry ze;
-    	ZipInputStream zis = new ZipInputStream(importZipURL.openStream());
-
-    	List<String> sampleFieldsWithStaticId = (List<String>) DBField.getFieldsWishStaticId().stream().filter(dbf -> Sample.TYPE_ALIAS.equals(dbf.getEntityTypeAlias())).map(dbf -> dbf.getFieldName()).collect(Collectors.toList());
-
-    	while ((ze = zis.getNextEntry()) != null)
-           if (ze.getName().endsWith("samples.tsv")) {
-               	progress.addStep("Importing sample file contents");
-            	progress.moveToNextStep();
-            	fieldNameToIdAndTypeMap = importSamples(module, projectId, zis);
-                for (String fieldName : fieldNameToIdAndTypeMap.keySet()) {
-                	Comparable[] idAndType = fieldNameToIdAndTypeMap.get(fieldName);
-
-                	if (idAndType[1] != null || sampleFieldsWithStaticId.contains(fieldName)) {	// otherwise there was no data in that column
-    	            	DBField dbField = mongoTemplate.findById(idAndType[0], DBField.class);
-    	            	if (dbField == null) {
-    	            		dbField = new DBField((int) idAndType[0], Sample.TYPE_ALIAS, fieldName, (String) idAndType[1]);
-       						mongoTemplate.save(dbField);
-       					}
-    	            	fields.put((int) idAndType[0], dbField);
-                	}
-                }
-                break;
-           }
-
-    	zis = new ZipInputStream(importZipURL.openStream());
-    	while ((ze = zis.getNextEntry()) != null)
-           if (ze.getName().endsWith(Sequence.FULL_FASTA_EXT)) {
-               	progress.addStep("Importing and indexing fasta file contents");
-            	progress.moveToNextStep();
-            	try {
-            		importedFastaFileName = importFasta(module, projectId, zis);
-            	}
-            	catch (StringIndexOutOfBoundsException siobe) {
-            		if ("String index out of range: 0".equals(siobe.getMessage())) {
-                    	throw new Exception("Error occured while indexing fasta file: make sure fasta contains no empty lines!");
-            		}
-            	}
-                if (importedFastaFileName == null)
-                	throw new Exception("Error occured while importing fasta file");
-                break;
-           }
-
-    	zis = new ZipInputStream(importZipURL.openStream());
-    	while ((ze = zis.getNextEntry()) != null)
-           if (ze.getName().endsWith("assignments.tsv")) {
-        	   updateAccessionCache(zis, maxAccessionCountPerAssignment, progress);
-               break;
-           }
-
-    	File importedFasta = new File(appConfig.sequenceLocation() + File.separator + module + File.separator + importedFastaFileName);
-
-    	String makeblastdbJobID;
-        try {	// we don't do this before this stage because import process gets aborted when NCBI service is not available
-        	makeblastdbJobID = opalServiceInvoker.makeBlastDb(module, projectId, importedFasta);	// job that runs asynchronously
-        } catch (Exception ex) {
-        	LOG.error("makeBlastDb failed", ex);
-        	throw new Exception("Error occured on HPC while creating blast DB: " + ex.getMessage());
-        }
+        ImportCheckpoint checkpoint = getCheckpoint(mongoTemplate, projectId, importArchive);
 
-    	progress.addStep("Loading fasta index");
+        // samples, fasta and accession info do not depend on each other: deal with them concurrently
+       	progress.addStep("Importing samples, fasta and accession information");
     	progress.moveToNextStep();
-    	IndexedFastaSequenceFile indexedFasta = new IndexedFastaSequenceFile(importedFasta);
-    	List<String> assignmentFieldsWithStaticId = (List<String>) DBField.getFieldsWishStaticId().stream().filter(dbf -> AssignedSequence.FIELDNAME_ASSIGNMENT.equals(dbf.getEntityTypeAlias())).map(dbf -> dbf.getFieldName()).collect(Collectors.toList());
+    	progress.setPercentageEnabled(false);
+    	List<Future<?>> phases = new ArrayList<>();
+    	ProgressIndicator sampleProgress = progress.addParallelStep("Importing sample file contents"), fastaProgress = progress.addParallelStep("Importing and indexing fasta file contents"), accessionProgress = progress.addParallelStep("Collecting accession IDs");
+    	Future<LinkedHashMap<Integer, DBField>> samplePhase = submitImportPhase(phases, () -> {
+    		try {
+    			return importSampleEntry(module, projectId, importArchive, checkpoint);
+    		}
+    		finally {
+    			sampleProgress.markAsComplete();
+    		}
+    	});
+    	Future<String> fastaPhase = submitImportPhase(phases, () -> {
+    		try {
+    			return importFastaEntry(module, projectId, importArchive, checkpoint);
+    		}
+    		finally {
+    			fastaProgress.markAsComplete();
+    		}
+    	});
+    	Future<AccessionResolutionTable> accessionPhase = submitImportPhase(phases, () -> {
+    		try {
+    			File assignmentFile = checkpoint.getAssignmentFieldIds() != null ? null : importArchive.getEntryFile(ImportArchive.ASSIGNMENT_ENTRY_SUFFIX);
+    			AccessionResolutionTable accessionTable = null;
+    	    	if (assignmentFile != null)
+    	    		accessionTable = updateAccessionCache(assignmentFile, maxAccessionCountPerAssignment, !checkpoint.isAccessionsFetched(), accessionProgress);
+    	    	if (!checkpoint.isAccessionsFetched()) {
+    	    		checkpoint.setAccessionsFetched(true);
+    	    		updateCheckpoint(mongoTemplate, checkpoint, new Update().set(ImportCheckpoint.FIELDNAME_ACCESSIONS_FETCHED, true));
+    	    	}
+    	    	return accessionTable;
+    		}
+    		finally {
+    			accessionProgress.markAsComplete();
+    		}
+    	});
 
-    	zis = new ZipInputStream(importZipURL.openStream());
-    	while ((ze = zis.getNextEntry()) != null)
-           if (ze.getName().endsWith("assignments.tsv")) {
-	           	progress.addStep("Processing lines in assignment file");
-	        	progress.moveToNextStep();
-	        	fieldNameToIdAndTypeMap = importAssignments(module, projectId, zis, maxAccessionCountPerAssignment, indexedFasta, progress);
-                for (String fieldName : fieldNameToIdAndTypeMap.keySet()) {
-                   	Comparable[] idAndType = fieldNameToIdAndTypeMap.get(fieldName);
+        // this map holds reference of available fields 
+        LinkedHashMap<Integer, DBField> fields;
+        File importedFasta;
+        String makeblastdbJobID;
+    	QseqidRegistry qseqidRegistry;
+    	QseqidSet assignedSeqIDs = null;
+        try {
+	    	String importedFastaFileName = getImportPhaseResult(fastaPhase, phases);
+	    	AccessionResolutionTable accessionTable = getImportPhaseResult(accessionPhase, phases);
+	
+	    	importedFasta = new File(appConfig.sequenceLocation() + File.separator + module + File.separator + importedFastaFileName);
+	        try {	// we don't do this before this stage because import process gets aborted when NCBI service is not available
+	        	makeblastdbJobID = opalServiceInvoker.makeBlastDb(module, projectId, importedFasta);	// job that runs asynchronously
+	        } catch (Exception ex) {
+	        	LOG.error("makeBlastDb failed", ex);
+	        	throw new Exception("Error occured on HPC while creating blast DB: " + ex.getMessage());
+	        }
+	
+	    	progress.addStep("Loading fasta index");
+	    	progress.moveToNextStep();
+	    	qseqidRegistry = QseqidRegistry.fromFaiFile(new File(importedFasta.getPath() + Sequence.NUCL_FAI_EXT));
+	    	List<String> assignmentFieldsWithStaticId = (List<String>) DBField.getFieldsWishStaticId().stream().filter(dbf -> AssignedSequence.FIELDNAME_ASSIGNMENT.equals(dbf.getEntityTypeAlias())).map(dbf -> dbf.getFieldName()).collect(Collectors.toList());
+	
+	    	LinkedHashMap<Integer, DBField> assignmentFields = new LinkedHashMap<>();
+	    	QseqidSet seqsToRebuild = new QseqidSet(qseqidRegistry);
+	    	InputStream entryStream = null;
+	    	if (checkpoint.getAssignmentFieldIds() != null)
+	    		restoreFields(mongoTemplate, checkpoint.getAssignmentFieldIds(), assignmentFields);
+	    	else {
+	    		if (!checkpoint.isAssignmentsStarted())
+	    			startAssignmentPhase(mongoTemplate, projectId, checkpoint);
+	    		else {	// a previous attempt may have written assigned sequences after its last committed line: restore them before replaying
+	    			entryStream = importArchive.getInputStream(ImportArchive.ASSIGNMENT_ENTRY_SUFFIX);
+	    			try {
+	    				discardUncommittedAssignments(mongoTemplate, projectId, entryStream, checkpoint, seqsToRebuild);
+	    			}
+	    			finally {
+	    				entryStream.close();
+	    			}
+	    		}
+	    		entryStream = importArchive.getInputStream(ImportArchive.ASSIGNMENT_ENTRY_SUFFIX);
+	    	}
+	    	if (entryStream != null)
+	    		try {
+		           	progress.addStep("Processing lines in assignment file");
+		        	progress.moveToNextStep();
+		        	assignedSeqIDs = new QseqidSet(qseqidRegistry);
+		        	Map<String, Comparable[]> fieldNameToIdAndTypeMap = importAssignments(module, projectId, entryStream, maxAccessionCountPerAssignment, qseqidRegistry, accessionTable, checkpoint, seqsToRebuild, progress, assignedSeqIDs);
+	                for (String fieldName : fieldNameToIdAndTypeMap.keySet()) {
+	                   	Comparable[] idAndType = fieldNameToIdAndTypeMap.get(fieldName);
+	
+	                   	if (idAndType[1] != null || assignmentFieldsWithStaticId.contains(fieldName)) {	// otherwise there was no data in that column
+	                   		DBField dbField = mongoTemplate.findById(idAndType[0], DBField.class);
+	       					if (dbField == null) {
+	       						dbField = new DBField((int) idAndType[0], AssignedSequence.FIELDNAME_ASSIGNMENT, fieldName, (String) idAndType[1]);
+	       						mongoTemplate.save(dbField);
+	       					}
+	       					assignmentFields.put((int) idAndType[0], dbField);
+	               		}
+	                }
+	    		}
+	    		finally {
+	    			entryStream.close();
+	    		}
+	    	if (checkpoint.getAssignmentFieldIds() == null) {
+	    		checkpoint.setAssignmentFieldIds(new ArrayList<>(assignmentFields.keySet()));
+	    		updateCheckpoint(mongoTemplate, checkpoint, new Update().set(ImportCheckpoint.FIELDNAME_ASSIGNMENT_FIELD_IDS, checkpoint.getAssignmentFieldIds()));
+	    		mongoTemplate.dropCollection(ImportCheckpoint.getAssignmentCountCollectionName(projectId));	// no longer needed since assignments will not be replayed
+	    	}
 
-                   	if (idAndType[1] != null || assignmentFieldsWithStaticId.contains(fieldName)) {	// otherwise there was no data in that column
-                   		DBField dbField = mongoTemplate.findById(idAndType[0], DBField.class);
-       					if (dbField == null) {
-       						dbField = new DBField((int) idAndType[0], AssignedSequence.FIELDNAME_ASSIGNMENT, fieldName, (String) idAndType[1]);
-       						mongoTemplate.save(dbField);
-       					}
-       					fields.put((int) idAndType[0], dbField);
-               		}
-               }
-               break;
-           }
+	    	fields = getImportPhaseResult(samplePhase, phases);
+	    	fields.putAll(assignmentFields);
+        }
+        catch (Exception e) {
+        	for (Future<?> phase : phases)
+        		phase.cancel(true);
+        	throw e;
+        }
 
-    	HashSet<String> assignedSeqIDs = new HashSet<>((Collection<String>) mongoTemplate.findDistinct(new Query(Criteria.where("_id." + DBConstant.FIELDNAME_PROJECT).is(projectId)), "_id." + Sequence.FIELDNAME_QSEQID, AssignedSequence.class, String.class));
+    	if (assignedSeqIDs == null) {
+    		assignedSeqIDs = new QseqidSet(qseqidRegistry);
+    		addAssignedSeqIDs(mongoTemplate, projectId, assignedSeqIDs);
+    	}
     	createPartialFai(new File(importedFasta.getParent() + "/" + importedFasta.getName() + Sequence.NUCL_FAI_EXT), new File(importedFasta.getParent() + "/_" + importedFasta.getName() + Sequence.NUCL_FAI_EXT), assignedSeqIDs);
 
-    	zis = new ZipInputStream(importZipURL.openStream());
-    	while ((ze = zis.getNextEntry()) != null)
-           if (ze.getName().endsWith("sequences.tsv")) {
-               importSequences(module, projectId, zis, maxAccessionCountPerAssignment, indexedFasta, progress);
-               break;
-           }
+    	List<String> sampleDictionary = null;	// when dictionary encoding is enabled, sequences refer to samples by their index in this project-level list, instead of repeating sample codes
+    	if (appConfig.isSampleCompositionDictionaryEncoded())
+    		try (InputStream headerStream = importArchive.getInputStream(ImportArchive.SEQUENCE_ENTRY_SUFFIX)) {
+    			sampleDictionary = readSampleDictionary(headerStream);
+    		}
 
-    	indexedFasta.close();
-    	zis.close();
+    	InputStream entryStream = checkpoint.isSequencesDone() ? null : importArchive.getInputStream(ImportArchive.SEQUENCE_ENTRY_SUFFIX);
+    	if (entryStream != null)
+    		try {
+    			importSequences(module, projectId, entryStream, maxAccessionCountPerAssignment, qseqidRegistry, checkpoint, progress, assignedSeqIDs, sampleDictionary);
+    		}
+    		finally {
+    			entryStream.close();
+    		}
+    	if (!checkpoint.isSequencesDone()) {
+    		checkpoint.setSequencesDone(true);
+    		updateCheckpoint(mongoTemplate, checkpoint, new Update().set(ImportCheckpoint.FIELDNAME_SEQUENCES_DONE, true));
+    	}
 
     	progress.addStep("Updating database indexes");
     	progress.moveToNextStep();
@@ -269,7 +376,8 @@ public class MtxImport {
                 isAvail,
                 pub,
                 extraInfo,
-                access
+                access,
+                sampleDictionary
         );
         
         try {
@@ -282,6 +390,8 @@ public class MtxImport {
     	progress.addStep("Generating cache for search widgets");
     	progress.moveToNextStep();
         updateDBFieldsAndComputeCache(module, fields.values(), projectId, progress);
+        mongoTemplate.remove(checkpoint);
+        mongoTemplate.dropCollection(ImportCheckpoint.getAssignmentCountCollectionName(projectId));
         currentlyImportedProjectsForModule.remove(projectId);
 
         progress.markAsComplete();
@@ -290,6 +400,267 @@ public class MtxImport {
         return result;
     }
 
+    /**
+     * @param mongoTemplate
+     * @param projectId
+     * @param importArchive
+     * @return the checkpoint left by a previous attempt at importing the same archive into the same project, or a new one
+     */
+    private static ImportCheckpoint getCheckpoint(MongoTemplate mongoTemplate, int projectId, ImportArchive importArchive) {
+        String archiveFingerprint = importArchive.getFingerprint();
+        ImportCheckpoint checkpoint = mongoTemplate.findById(projectId, ImportCheckpoint.class);
+        if (checkpoint != null && !archiveFingerprint.equals(checkpoint.getArchiveFingerprint())) {
+        	LOG.warn("Ignoring import checkpoint found for project " + projectId + " because it refers to a different archive");
+        	checkpoint = null;
+        }
+        if (checkpoint == null) {
+        	checkpoint = new ImportCheckpoint(projectId);
+        	checkpoint.setArchiveFingerprint(archiveFingerprint);
+        	mongoTemplate.save(checkpoint);
+        	mongoTemplate.dropCollection(ImportCheckpoint.getAssignmentCountCollectionName(projectId));
+        }
+        else
+        	LOG.info("Resuming import of project " + projectId + " from last checkpoint");
+        return checkpoint;
+    }
+
+    /**
+     * Persists checkpoint modifications. Import phases running concurrently each update their own fields, so we never save the whole document
+     *
+     * @param mongoTemplate
+     * @param checkpoint
+     * @param update the modified fields
+     */
+    private static void updateCheckpoint(MongoTemplate mongoTemplate, ImportCheckpoint checkpoint, Update update) {
+    	mongoTemplate.updateFirst(new Query(Criteria.where("_id").is(checkpoint.getProjectId())), update, ImportCheckpoint.class);
+    }
+
+    /**
+     * Records on the checkpoint that the assignment phase is starting, along with whether the project already contains assigned sequences.
+     * If it does, the number of assignments of each of them is saved so that they may be restored if the import needs to be resumed.
+     *
+     * @param mongoTemplate
+     * @param projectId
+     * @param checkpoint
+     */
+    private static void startAssignmentPhase(MongoTemplate mongoTemplate, int projectId, ImportCheckpoint checkpoint) {
+    	boolean fProjectWithoutAssignments = !mongoTemplate.exists(new Query(Criteria.where("_id." + DBConstant.FIELDNAME_PROJECT).is(projectId)), AssignedSequence.class);
+    	if (!fProjectWithoutAssignments) {
+    		List<Document> pipeline = Arrays.asList(
+    				new Document("$match", new Document("_id." + DBConstant.FIELDNAME_PROJECT, projectId)),
+    				new Document("$project", new Document("_id", "$_id." + Sequence.FIELDNAME_QSEQID).append("n", new Document("$size", new Document("$ifNull", Arrays.asList("$" + AssignedSequence.FIELDNAME_ASSIGNMENT, Collections.emptyList()))))),
+    				new Document("$out", ImportCheckpoint.getAssignmentCountCollectionName(projectId)));
+    		mongoTemplate.getCollection(mongoTemplate.getCollectionName(AssignedSequence.class)).aggregate(pipeline).allowDiskUse(true).toCollection();
+    	}
+    	checkpoint.setProjectInitiallyWithoutAssignments(fProjectWithoutAssignments);
+    	checkpoint.setAssignmentsStarted(true);
+    	updateCheckpoint(mongoTemplate, checkpoint, new Update().set(ImportCheckpoint.FIELDNAME_PROJECT_INITIALLY_WITHOUT_ASSIGNMENTS, fProjectWithoutAssignments).set(ImportCheckpoint.FIELDNAME_ASSIGNMENTS_STARTED, true));
+    }
+
+    /**
+     * Imports sample file contents (unless the checkpoint says it was already done)
+     *
+     * @param module
+     * @param projectId
+     * @param importArchive
+     * @param checkpoint
+     * @return the sample fields involved in the import
+     * @throws Exception
+     */
+    private static LinkedHashMap<Integer, DBField> importSampleEntry(String module, int projectId, ImportArchive importArchive, ImportCheckpoint checkpoint) throws Exception {
+    	MongoTemplate mongoTemplate = MongoTemplateManager.get(module);
+    	LinkedHashMap<Integer, DBField> sampleFields = new LinkedHashMap<>();
+    	List<String> sampleFieldsWithStaticId = (List<String>) DBField.getFieldsWishStaticId().stream().filter(dbf -> Sample.TYPE_ALIAS.equals(dbf.getEntityTypeAlias())).map(dbf -> dbf.getFieldName()).collect(Collectors.toList());
+
+    	InputStream entryStream = null;
+    	if (checkpoint.getSampleFieldIds() != null)
+    		restoreFields(mongoTemplate, checkpoint.getSampleFieldIds(), sampleFields);
+    	else
+    		entryStream = importArchive.getInputStream(ImportArchive.SAMPLE_ENTRY_SUFFIX);
+    	if (entryStream != null)
+    		try {
+    			Map<String, String> inferredTypes;
+    			try (InputStream inferenceStream = importArchive.getInputStream(ImportArchive.SAMPLE_ENTRY_SUFFIX)) {
+    				inferredTypes = SampleFieldTypeInference.inferTypes(inferenceStream);
+    			}
+    			Map<String, Comparable[]> fieldNameToIdAndTypeMap = importSamples(module, projectId, entryStream, inferredTypes);
+                for (String fieldName : fieldNameToIdAndTypeMap.keySet()) {
+                	Comparable[] idAndType = fieldNameToIdAndTypeMap.get(fieldName);
+
+                	if (idAndType[1] != null || sampleFieldsWithStaticId.contains(fieldName)) {	// otherwise there was no data in that column
+    	            	DBField dbField = mongoTemplate.findById(idAndType[0], DBField.class);
+    	            	if (dbField == null) {
+    	            		dbField = new DBField((int) idAndType[0], Sample.TYPE_ALIAS, fieldName, (String) idAndType[1]);
+       						mongoTemplate.save(dbField);
+       					}
+    	            	else if (DBConstant.DOUBLE_TYPE.equals(dbField.getType()) && DBConstant.STRING_TYPE.equals(idAndType[1])) {	// its values were converted by importSamples
+    	            		mongoTemplate.updateFirst(new Query(Criteria.where("_id").is(dbField.getId())), new Update().set(DBField.FIELDNAME_TYPE, DBConstant.STRING_TYPE), DBField.class);
+    	            		dbField.getType(DBConstant.STRING_TYPE);
+    	            	}
+    	            	sampleFields.put((int) idAndType[0], dbField);
+                	}
+                }
+    		}
+    		finally {
+    			entryStream.close();
+    		}
+
+    	if (checkpoint.getSampleFieldIds() == null) {
+    		checkpoint.setSampleFieldIds(new ArrayList<>(sampleFields.keySet()));
+    		updateCheckpoint(mongoTemplate, checkpoint, new Update().set(ImportCheckpoint.FIELDNAME_SAMPLE_FIELD_IDS, checkpoint.getSampleFieldIds()));
+    	}
+    	return sampleFields;
+    }
+
+    /**
+     * Copies and indexes fasta file contents (unless the checkpoint says it was already done)
+     *
+     * @param module
+     * @param projectId
+     * @param importArchive
+     * @param checkpoint
+     * @return the imported fasta file's name
+     * @throws Exception
+     */
+    private String importFastaEntry(String module, int projectId, ImportArchive importArchive, ImportCheckpoint checkpoint) throws Exception {
+    	String importedFastaFileName = checkpoint.getFastaFileName();
+    	if (importedFastaFileName != null && !new File(appConfig.sequenceLocation() + File.separator + module + File.separator + importedFastaFileName + Sequence.NUCL_FAI_EXT).exists())
+    		importedFastaFileName = null;	// files are gone, we need to import them again
+    	InputStream entryStream = importedFastaFileName != null ? null : importArchive.getInputStream(ImportArchive.FASTA_ENTRY_SUFFIX);
+    	if (entryStream != null)
+    		try {
+            	try {
+            		importedFastaFileName = importFasta(module, projectId, entryStream);
+            	}
+            	catch (Exception e) {
+                   	throw new Exception("Error occured while indexing fasta file: " + e.getMessage(), e);
+            	}
+                if (importedFastaFileName == null)
+                	throw new Exception("Error occured while importing fasta file");
+    		}
+    		finally {
+    			entryStream.close();
+    		}
+
+    	if (importedFastaFileName != null && !importedFastaFileName.equals(checkpoint.getFastaFileName())) {
+    		checkpoint.setFastaFileName(importedFastaFileName);
+    		updateCheckpoint(MongoTemplateManager.get(module), checkpoint, new Update().set(ImportCheckpoint.FIELDNAME_FASTA_FILE_NAME, importedFastaFileName));
+    	}
+    	return importedFastaFileName;
+    }
+
+    /**
+     * Runs an import phase on the shared executor
+     *
+     * @param phases list to add the phase to
+     * @param phase
+     * @return the phase's future
+     */
+    private static <T> Future<T> submitImportPhase(Collection<Future<?>> phases, Callable<T> phase) {
+    	Future<T> future = importPhaseExecutor.submit(phase);
+    	phases.add(future);
+    	return future;
+    }
+
+    /**
+     * Waits for an import phase to complete. If it failed, all other phases get cancelled and its exception is rethrown
+     *
+     * @param phase
+     * @param phases all phases of the import
+     * @return the phase's result
+     * @throws Exception
+     */
+    private static <T> T getImportPhaseResult(Future<T> phase, Collection<Future<?>> phases) throws Exception {
+    	try {
+    		return phase.get();
+    	}
+    	catch (ExecutionException ee) {
+    		for (Future<?> otherPhase : phases)
+    			otherPhase.cancel(true);
+    		throw ee.getCause() instanceof Exception ? (Exception) ee.getCause() : ee;
+    	}
+    }
+
+    /**
+     * Puts into 'fields' the DBFields with given ids (used when resuming an import)
+     *
+     * @param mongoTemplate
+     * @param fieldIds
+     * @param fields
+     */
+    private static void restoreFields(MongoTemplate mongoTemplate, Collection<Integer> fieldIds, Map<Integer, DBField> fields) {
+    	for (DBField dbField : mongoTemplate.find(new Query(Criteria.where("_id").in(fieldIds)), DBField.class))
+    		fields.put(dbField.getId(), dbField);
+    }
+
+    /**
+     * Restores assigned sequences that may have been written after the last assignment checkpoint to their state prior to the import, so that they
+     * get rebuilt from all their lines when resuming: those created by the import are removed, those that existed before get their extra assignments removed
+     *
+     * @param mongoTemplate
+     * @param projectId
+     * @param is assignment file contents
+     * @param checkpoint
+     * @param seqsToRebuild will be filled with the qseqids of the restored sequences, i.e. those referenced after the committed lines
+     * @throws IOException
+     */
+    private static void discardUncommittedAssignments(MongoTemplate mongoTemplate, int projectId, InputStream is, ImportCheckpoint checkpoint, QseqidSet seqsToRebuild) throws IOException {
+    	long nCommittedLineCount = checkpoint.getCommittedAssignmentLines();
+        LineTokenizer tokenizer = new LineTokenizer(new InputStreamReader(is, Charset.forName("UTF-8")), '\t', false);
+        tokenizer.readLine();
+        int qseqidColumn = ImportArchiveChecker.standardizeHeaders(tokenizer.getStrings(-1)).indexOf(Sequence.FIELDNAME_QSEQID);
+
+        long nLineCount = 0;
+        while (tokenizer.readLine())
+        	if (++nLineCount > nCommittedLineCount)
+        		seqsToRebuild.add(tokenizer.getColumn(qseqidColumn));
+
+        MongoCollection<Document> assignmentCountColl = checkpoint.isProjectInitiallyWithoutAssignments() ? null : mongoTemplate.getCollection(ImportCheckpoint.getAssignmentCountCollectionName(projectId));
+        List<String> qseqidBatch = new ArrayList<>();
+        long nRemovedSeqCount = 0, nTruncatedSeqCount = 0;
+        Iterator<String> it = seqsToRebuild.iterator();
+        while (it.hasNext()) {
+        	qseqidBatch.add(it.next());
+        	if (qseqidBatch.size() < 1000 && it.hasNext())
+        		continue;
+
+        	Map<String, Integer> initialAssignmentCounts = new HashMap<>();
+        	if (assignmentCountColl != null)
+        		for (Document assignmentCount : assignmentCountColl.find(new Document("_id", new Document("$in", qseqidBatch))))
+        			initialAssignmentCounts.put(assignmentCount.getString("_id"), assignmentCount.getInteger("n"));
+
+        	List<SequenceId> idsToRemove = new ArrayList<>();
+        	BulkOperations bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, AssignedSequence.class);
+        	for (String qseqid : qseqidBatch) {
+        		Integer nInitialAssignmentCount = initialAssignmentCounts.get(qseqid);
+        		if (nInitialAssignmentCount == null)	// created by this import
+        			idsToRemove.add(new SequenceId(projectId, qseqid));
+        		else
+        			bulkOperations.updateOne(new Query(Criteria.where("_id").is(new SequenceId(projectId, qseqid))), new Update().push(AssignedSequence.FIELDNAME_ASSIGNMENT).slice(nInitialAssignmentCount).each());
+        	}
+        	if (!idsToRemove.isEmpty())
+        		nRemovedSeqCount += mongoTemplate.remove(new Query(Criteria.where("_id").in(idsToRemove)), AssignedSequence.class).getDeletedCount();
+        	if (!initialAssignmentCounts.isEmpty())
+        		nTruncatedSeqCount += bulkOperations.execute().getModifiedCount();
+        	qseqidBatch.clear();
+        }
+        LOG.info("Resuming assignment import after line " + nCommittedLineCount + ": " + nRemovedSeqCount + " possibly incomplete sequences removed, " + nTruncatedSeqCount + " pre-existing ones restored, " + seqsToRebuild.size() + " to be rebuilt");
+    }
+
+    /**
+     * Streams the qseqids of a project's assigned sequences into a set (avoids materializing them all as a list of Strings)
+     *
+     * @param mongoTemplate
+     * @param projectId
+     * @param assignedSeqIDsToFill
+     */
+    private static void addAssignedSeqIDs(MongoTemplate mongoTemplate, int projectId, QseqidSet assignedSeqIDsToFill) {
+    	try (MongoCursor<Document> cursor = mongoTemplate.getCollection(mongoTemplate.getCollectionName(AssignedSequence.class)).find(new Document("_id." + DBConstant.FIELDNAME_PROJECT, projectId)).projection(new Document("_id." + Sequence.FIELDNAME_QSEQID, 1)).batchSize(10000).iterator()) {
+    		while (cursor.hasNext())
+    			assignedSeqIDsToFill.add(((Document) cursor.next().get("_id")).getString(Sequence.FIELDNAME_QSEQID));
+    	}
+    }
+
 	/**
      * For each field in 'fields' set project id AND generate the corresponding cache collection.
      * Cache collection can store two type of values, String or double. They are shared by all projects within the module
@@ -385,6 +756,8 @@ public class MtxImport {
     	if (String.class.equals(type) || String[].class.equals(type)) {
             // store docs as { "_id": "value", "pj": [ 1, 3, 4]} where "pj" is the id of project containing this value
         	List<BasicDBObject> pipeline = new ArrayList<>();
+            if (dbField.getId() == DBField.sampleFieldId)	// dictionary-encoded projects are dealt with below
+            	pipeline.add(new BasicDBObject("$match", new BasicDBObject(Sequence.FIELDNAME_SAMPLE_COMPOSITION, new BasicDBObject("$exists", true))));
             if (dbField.getId() == DBField.sampleFieldId || !pathPrefix.isEmpty()) {
             	pipeline.add(new BasicDBObject("$unwind", "$" + (dbField.getId() == DBField.sampleFieldId ? Sequence.FIELDNAME_SAMPLE_COMPOSITION : AssignedSequence.FIELDNAME_ASSIGNMENT)));
             	
@@ -406,6 +779,8 @@ public class MtxImport {
 
             try {
             	baseCollection.aggregate(pipeline).allowDiskUse(true).toCollection();	/* invoking toCollection() is necessary for $out to take effect */
+            	if (dbField.getId() == DBField.sampleFieldId)
+            		addDictionaryEncodedSamplesToCache(mongoTemplate, baseCollection, cacheCollectionName);
                	mongoTemplate.getCollection(cacheCollectionName).createIndex(new BasicDBObject(projectFieldPath, 1));	// create an index on 'pj' field, as it's the one that will be used for creating filters
             }
             catch (MongoCommandException mce) {
@@ -425,6 +800,25 @@ public class MtxImport {
     	throw new UnsupportedOperationException("Unsupported field type: " + type);
     }
 
+    /**
+     * Adds to the sample field's cache the samples referenced by sequences of dictionary-encoded projects: only distinct dictionary indexes
+     * need to be fetched from the sequences, codes are then resolved from each project's dictionary
+     *
+     * @param mongoTemplate
+     * @param sequenceCollection
+     * @param cacheCollectionName
+     */
+    private static void addDictionaryEncodedSamplesToCache(MongoTemplate mongoTemplate, MongoCollection<Document> sequenceCollection, String cacheCollectionName) {
+    	MongoCollection<Document> cacheCollection = mongoTemplate.getCollection(cacheCollectionName);
+    	for (MetagenomicsProject project : mongoTemplate.find(new Query(Criteria.where(MetagenomicsProject.FIELDNAME_SAMPLE_DICTIONARY).exists(true)), MetagenomicsProject.class)) {
+    		List<WriteModel<Document>> cacheUpdates = new ArrayList<>();
+    		for (Integer sampleIndex : sequenceCollection.distinct(Sequence.FIELDNAME_SAMPLE_INDEXES, new BasicDBObject("_id." + DBConstant.FIELDNAME_PROJECT, project.getId()), Integer.class))
+    			cacheUpdates.add(new UpdateOneModel<>(new Document("_id", project.getSampleDictionary().get(sampleIndex)), new Document("$addToSet", new Document(DBConstant.FIELDNAME_PROJECT, project.getId())), new UpdateOptions().upsert(true)));
+    		if (!cacheUpdates.isEmpty())
+    			cacheCollection.bulkWrite(cacheUpdates, new BulkWriteOptions().ordered(false));
+    	}
+    }
+
     /**
      * ensure index on all fields
      *
@@ -469,10 +863,11 @@ public class MtxImport {
      * @param pub
      * @param extraInfo
      * @param access
+     * @param sampleDictionary sample codes referred to by dictionary-encoded sequences, null if compositions are not dictionary-encoded
      * @return
      * @throws Exception
      */
-    private static Map<String, String> saveProject(MongoTemplate mongoTemplate, int projectId, String project, String projectName, String projectDescription, String authors, String adress, String seqDate, String seqTech, String assemblTech, boolean isAvail, String pub, String extraInfo, boolean access) throws Exception {
+    static Map<String, String> saveProject(MongoTemplate mongoTemplate, int projectId, String project, String projectName, String projectDescription, String authors, String adress, String seqDate, String seqTech, String assemblTech, boolean isAvail, String pub, String extraInfo, boolean access, List<String> sampleDictionary) throws Exception {
         MetagenomicsProject p = new MetagenomicsProject(projectId);
         p.setAcronym(project);
         p.setName(projectName);
@@ -492,6 +887,7 @@ public class MtxImport {
         p.setPublication(pub);
         p.setMetaInfo(extraInfo);
         p.setPublicProject(access);
+        p.setSampleDictionary(sampleDictionary);
 
         Map<String, String> result = new LinkedHashMap<>();
 
@@ -526,15 +922,19 @@ public class MtxImport {
      * @return 
      * @throws IOException
      */
-    private String importFasta(String module, int projectId, InputStream fis) throws IOException {
+    private String importFasta(String module, int projectId, InputStream fis) throws Exception {
         File importLocation = new File(appConfig.sequenceLocation() + File.separator + module);
         File outputFastaFile = importLocation.exists() || importLocation.mkdirs() ? new File(importLocation.getAbsolutePath() + File.separator + projectId + Sequence.NUCL_FASTA_EXT) : null;
         if (outputFastaFile != null) {
-            Files.copy(fis, outputFastaFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
-
-            FastaSequenceIndex index = FastaSequenceIndexCreator.buildFromFasta(outputFastaFile.toPath());
-            index.write(new File(importLocation + "/" + outputFastaFile.getName() + Sequence.NUCL_FAI_EXT).toPath());
-
+        	File faiFile = new File(importLocation + "/" + outputFastaFile.getName() + Sequence.NUCL_FAI_EXT);
+        	try (OutputStream fastaOS = new FileOutputStream(outputFastaFile); Writer faiWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(faiFile), StandardCharsets.UTF_8))) {
+        		new FastaValidator(0).copyTo(fastaOS).writeIndexTo(faiWriter).validate(fis);	// copies and indexes in a single pass (alphabet is checked by ImportArchiveChecker)
+        	}
+        	catch (Exception e) {
+        		faiFile.delete();	// its presence means the fasta was successfully imported
+        		outputFastaFile.delete();
+        		throw e;
+        	}
             return outputFastaFile.getName();
         } else {
             LOG.error("Could not find nor create folder '" + importLocation.getAbsolutePath() + "'");
@@ -542,15 +942,14 @@ public class MtxImport {
         }
     }
 
+    /**
+     * @param field
+     * @return field's value if it holds a decimal number ('.' or ',' being accepted as separator), null otherwise
+     * @see DecimalParser
+     */
     public static Double parseToDouble(String field) {
-        try 
-        {
-        	return Double.valueOf(field.replaceAll(",", "."));
-        }
-        catch (NumberFormatException e)
-        {
-            return null;
-        }
+    	double d = DecimalParser.parse(field);
+    	return Double.isNaN(d) ? null : d;
     }
 
     /**
@@ -562,19 +961,20 @@ public class MtxImport {
 	 * @param mongoTemplate
 	 * @param projectId
 	 * @param fis
+	 * @param inferredTypes type of each field according to the whole file's contents (see SampleFieldTypeInference)
 	 * @return headers of the file
 	 * @throws Exception
 	 */
-	private static Map<String /* field name */, Comparable[] /* field id + type */> importSamples(String module, int projectId, InputStream fis) throws Exception {
+	private static Map<String /* field name */, Comparable[] /* field id + type */> importSamples(String module, int projectId, InputStream fis, Map<String, String> inferredTypes) throws Exception {
 		long before = System.currentTimeMillis();
 	    Map<String, Comparable[]> fieldNameToIdAndTypeMap = new LinkedHashMap<>(); 
 	    
-	    int nImportedSampleCount = 0;
+	    int nImportedSampleCount = 0, nNumberOfSamplesToSaveAtOnce = 5000;
 
-        BufferedReader br = new BufferedReader(new InputStreamReader(fis, Charset.forName("UTF-8")));
+        LineTokenizer tokenizer = new LineTokenizer(new InputStreamReader(fis, Charset.forName("UTF-8")), '\t', false), gpsTokenizer = new LineTokenizer(',', false);
         // get the headers 
-        String line = br.readLine();
-        List<String> headerFields = ImportArchiveChecker.standardizeHeaders(Arrays.asList(line.split("\t")));
+        tokenizer.readLine();
+        List<String> headerFields = ImportArchiveChecker.standardizeHeaders(tokenizer.getStrings(-1));
         
         // get the position of fields with a special type
         int idColumn = headerFields.indexOf(Sample.FIELDNAME_SAMPLE_CODE);
@@ -610,32 +1010,50 @@ public class MtxImport {
             	}
         	}
 
-        while ((line = br.readLine()) != null) {
-            List<String> fields = Helper.split(line, '\t');
-            
-            String sampleId = fields.get(idColumn);
-            Sample sample = mongoTemplate.findById(sampleId, Sample.class);
-            if (sample == null)
-            	sample = new Sample(sampleId); // it's a new one
-            sample.getProjects().add(projectId);
-
-            String positionField = fields.get(posColumn);
-            if (!ImportArchiveChecker.EMPTY_FIELD_CODES.contains(positionField)) {
-                sample.getGpsFields().put(DBField.gpsPosFieldId, new Double[]{
-                    Double.parseDouble(positionField.split(",")[0]),
-                    Double.parseDouble(positionField.split(",")[1])
+        // settle field types before writing anything so that no sample needs to be rewritten afterwards
+        for (Map.Entry<String, String> inferredType : inferredTypes.entrySet()) {
+        	Comparable[] idAndType = staticIdFieldNameToIdAndTypeMap.get(inferredType.getKey());
+        	if (idAndType == null)
+        		idAndType = fieldNameToIdAndTypeMap.get(inferredType.getKey());
+        	if (idAndType == null)
+        		continue;
+
+        	synchronized (idAndType) {
+        		if (idAndType[1] == null)
+        			idAndType[1] = inferredType.getValue();
+        		else if (DBConstant.DOUBLE_TYPE.equals(idAndType[1]) && DBConstant.STRING_TYPE.equals(inferredType.getValue())) {
+        			convertDoubleFieldToString(mongoTemplate, (int) idAndType[0], inferredType.getKey());
+        			idAndType[1] = DBConstant.STRING_TYPE;
+        		}
+        	}
+        }
+
+        // samples are upserted in bulk: shared samples only get the project id added and the provided fields set, instead of being rewritten whole
+        LinkedHashMap<String /* sample id */, Update> pendingSampleUpdates = new LinkedHashMap<>();
+        while (tokenizer.readLine()) {
+            String sampleId = tokenizer.getString(idColumn);
+            Update update = pendingSampleUpdates.get(sampleId);
+            if (update == null) {
+            	update = new Update().addToSet(DBConstant.FIELDNAME_PROJECT, projectId);
+            	pendingSampleUpdates.put(sampleId, update);
+            }
+
+            if (!tokenizer.isColumnOneOf(posColumn, ImportArchiveChecker.EMPTY_FIELD_CODES)) {
+            	gpsTokenizer.tokenize(tokenizer.getColumn(posColumn));
+                update.set(DBConstant.GPS_TYPE + "." + DBField.gpsPosFieldId, new Double[]{
+                    gpsTokenizer.parseDouble(0),
+                    gpsTokenizer.parseDouble(1)
                 });
             }
 
-            String dateField = fields.get(dateColumn);
-            if (!ImportArchiveChecker.EMPTY_FIELD_CODES.contains(dateField))
-            	sample.getDateFields().put(DBField.collDateFieldId, dateField);
+            if (!tokenizer.isColumnOneOf(dateColumn, ImportArchiveChecker.EMPTY_FIELD_CODES))
+            	update.set(DBConstant.DATE_TYPE + "." + DBField.collDateFieldId, tokenizer.getString(dateColumn));
 
             // Parse all other fields and dispatch them according to their types
             Map<Integer, String> stringFields = new HashMap<>();
             Map<Integer, Double> numberFields = new HashMap<>();
 
-            for (int i=0; i<fields.size(); i++) {
+            for (int i=0; i<tokenizer.getColumnCount(); i++) {
                 if (i == idColumn)
                     continue;
 
@@ -651,56 +1069,79 @@ public class MtxImport {
             	else {
                     if (i == posColumn || i == dateColumn)
                         continue;
-            		String field = fields.get(i).trim();
+            		String field = tokenizer.getString(i).trim();
 	                if (".".equals(field) || field.isEmpty())
 	                    continue;
             	
-	                // either parse as double or store as string
-	                Double d;
-	                if (!DBConstant.STRING_TYPE.equals(idAndType[1]) && (d = parseToDouble(field)) != null) {
+	                // either parse as double or store as string (types were settled beforehand, so all values of a double field parse as such)
+	                double d;
+	                if (!DBConstant.STRING_TYPE.equals(idAndType[1]) && !Double.isNaN(d = DecimalParser.parse(field)))
 	                	numberFields.put((int) idAndType[0], d);
-	
-	                    if (idAndType[1] == null)
-	                    	idAndType[1] = DBConstant.DOUBLE_TYPE;
-	                } else {
+	                else
 	                	stringFields.put((int) idAndType[0], field);
-	
-	                    if (idAndType[1] == null || idAndType[1] == DBConstant.DOUBLE_TYPE) {
-	                    	if (idAndType[1] != null) {
-	                    		List<Sample> samplesWithWrongFieldType = mongoTemplate.find(new Query(Criteria.where(DBConstant.DOUBLE_TYPE + "." + idAndType[0]).exists(true)), Sample.class);
-		                    	LOG.info("Changing " + fieldName + " field type from double to string for " + samplesWithWrongFieldType.size() + " samples");
-		                    	for (Sample s : samplesWithWrongFieldType) {
-		                    		s.getStringFields().put((int) idAndType[0], Helper.formatDouble(s.getNumberFields().get(idAndType[0])));
-		                    		s.getNumberFields().remove(idAndType[0]);
-		                    		mongoTemplate.save(s);
-		                    	}
-	                    	}
-	                    	idAndType[1] = DBConstant.STRING_TYPE;
-	                    }
-	                }
             	}
             }
 
-            if (sample.getStringFields() == null)
-            	sample.setStringFields(stringFields);
-            else
-            	sample.getStringFields().putAll(stringFields);
-            if (sample.getNumberFields() == null)
-            	sample.setNumberFields(numberFields);
-            else
-            	sample.getNumberFields().putAll(numberFields);
-            
+            for (Map.Entry<Integer, String> stringField : stringFields.entrySet())
+            	update.set(DBConstant.STRING_TYPE + "." + stringField.getKey(), stringField.getValue());
+            for (Map.Entry<Integer, Double> numberField : numberFields.entrySet())
+            	update.set(DBConstant.DOUBLE_TYPE + "." + numberField.getKey(), numberField.getValue());
 
-            // possible optimization: batch sample saving
-            mongoTemplate.save(sample);
+            if (pendingSampleUpdates.size() >= nNumberOfSamplesToSaveAtOnce)
+            	saveSamples(mongoTemplate, pendingSampleUpdates);
             nImportedSampleCount++;
         }
+        saveSamples(mongoTemplate, pendingSampleUpdates);
 
 	    LOG.debug("importSamples took " + (System.currentTimeMillis() - before) + "ms for " + nImportedSampleCount + " samples");
 
 	    return fieldNameToIdAndTypeMap;
 	}
 
+	/**
+	 * Moves a sample field's existing values from double to string type with a single server-side update
+	 *
+	 * @param mongoTemplate
+	 * @param fieldId
+	 * @param fieldName
+	 */
+	private static void convertDoubleFieldToString(MongoTemplate mongoTemplate, int fieldId, String fieldName) {
+		String doubleFieldPath = DBConstant.DOUBLE_TYPE + "." + fieldId;
+		AggregationUpdate update = AggregationUpdate.update().set(DBConstant.STRING_TYPE + "." + fieldId).toValue(ConvertOperators.valueOf(doubleFieldPath).convertToString()).unset(doubleFieldPath);
+		UpdateResult result = mongoTemplate.updateMulti(new Query(Criteria.where(doubleFieldPath).exists(true)), update, Sample.class);
+		LOG.info("Changed " + fieldName + " field type from double to string for " + result.getModifiedCount() + " samples");
+	}
+
+	/**
+	 * Upserts pending samples in a single unordered bulk operation, then clears the map
+	 *
+	 * @param mongoTemplate
+	 * @param pendingSampleUpdates updates to apply, by sample id
+	 */
+	private static void saveSamples(MongoTemplate mongoTemplate, Map<String, Update> pendingSampleUpdates) {
+		if (pendingSampleUpdates.isEmpty())
+			return;
+
+		BulkOperations bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Sample.class);
+		for (Map.Entry<String, Update> entry : pendingSampleUpdates.entrySet())
+			bulkOperations.upsert(new Query(Criteria.where("_id").is(entry.getKey())), entry.getValue());
+		bulkOperations.execute();
+		pendingSampleUpdates.clear();
+	}
+
+    /**
+     * Sets a field's type unless another thread already did so
+     *
+     * @param idAndType
+     * @param type
+     */
+    private static void setFieldTypeIfUnknown(Comparable[] idAndType, String type) {
+    	synchronized (idAndType) {
+    		if (idAndType[1] == null)
+    			idAndType[1] = type;
+    	}
+    }
+
 	/**
      * save assignments from assignment file.
      *
@@ -711,11 +1152,15 @@ public class MtxImport {
      * @param projectId
      * @param is
      * @param maxAccessionCountPerAssignment
-     * @param indexedFasta
+     * @param qseqidRegistry the project's sequences, as listed in the fasta index
+     * @param accessionTable cached info for the accessions referenced in the file (if null, each accession will be looked up in the DB)
+     * @param checkpoint import checkpoint, updated whenever all lines read so far are persisted
+     * @param seqsToRebuild qseqids for which lines prior to the checkpoint's committed lines must be processed anyway
      * @param ProgressIndicator 
+     * @param assignedSeqIDsToFill will be filled with the qseqids of all the project's assigned sequences
      * @throws Exception
      */
-    private Map<String, Comparable[]> importAssignments(String module, int projectId, ZipInputStream is, int maxAccessionCountPerAssignment, IndexedFastaSequenceFile indexedFasta, ProgressIndicator progress) throws Exception {
+    private Map<String, Comparable[]> importAssignments(String module, int projectId, InputStream is, int maxAccessionCountPerAssignment, QseqidRegistry qseqidRegistry, AccessionResolutionTable accessionTable, ImportCheckpoint checkpoint, QseqidSet seqsToRebuild, ProgressIndicator progress, QseqidSet assignedSeqIDsToFill) throws Exception {
     	long before = System.currentTimeMillis();
     	Map<String, Comparable[]> fieldNameToIdAndTypeMap = new LinkedHashMap<>();
     
@@ -723,10 +1168,10 @@ public class MtxImport {
     	
     	int nProcessedRowCount = 0, nNumberOfRowsToSaveAtOnce = 1000;
     	
-        BufferedReader br = new BufferedReader(new InputStreamReader(is, Charset.forName("UTF-8")), 65536);
+        LineTokenizer tokenizer = new LineTokenizer(new InputStreamReader(is, Charset.forName("UTF-8")), '\t', false);
         // get the headers 
-        String line = br.readLine();
-        List<String> headerFields = ImportArchiveChecker.standardizeHeaders(Arrays.asList(line.split("\t")));
+        tokenizer.readLine();
+        List<String> headerFields = ImportArchiveChecker.standardizeHeaders(tokenizer.getStrings(-1));
 
         int qseqidColumn = headerFields.indexOf(Sequence.FIELDNAME_QSEQID);
         int sseqidColumn = headerFields.indexOf(Assignment.FIELDNAME_SSEQID);
@@ -745,6 +1190,10 @@ public class MtxImport {
         for (Object aStaticIdRequiredField : CollectionUtils.intersection(fieldNameToIdAndTypeMap.keySet(), DBField.getRequiredFields().get(AssignedSequence.FIELDNAME_ASSIGNMENT)))
         	staticIdFieldNameToIdAndTypeMap.remove(aStaticIdRequiredField);	// don't add it manually because it's a required field so we will find it in the data anyway
 
+        Map<String, Comparable[]> checkpointFieldNameToIdAndTypeMap = new HashMap<>();	// fields created by an interrupted attempt at this import, that are already referenced by persisted assignments
+        for (ImportCheckpoint.FieldInfo fieldInfo : checkpoint.getAssignmentFields())
+        	checkpointFieldNameToIdAndTypeMap.put(fieldInfo.getName(), new Comparable[] {fieldInfo.getId(), fieldInfo.getType()});
+
         for (String fieldName : headerFields) {
         	DBField dbField = mongoTemplate.findOne(new Query(new Criteria().andOperator(Criteria.where(DBField.FIELDNAME_ENTITY_TYPEALIAS).is(AssignedSequence.FIELDNAME_ASSIGNMENT), Criteria.where(DBField.FIELDNAME_NAME).is(fieldName))), DBField.class);
         	if (dbField != null) {
@@ -754,6 +1203,10 @@ public class MtxImport {
         		fieldNameToIdAndTypeMap.put(fieldName, assignmentFieldsToPersist.get(module).get(fieldName));
         		LOG.info(fieldName + " had been registered for creation");
         	}
+        	else if (checkpointFieldNameToIdAndTypeMap.containsKey(fieldName) && !staticIdFieldNameToIdAndTypeMap.containsKey(fieldName)) {
+        		fieldNameToIdAndTypeMap.put(fieldName, checkpointFieldNameToIdAndTypeMap.get(fieldName));
+        		moduleAssignmentFieldsToPersist.put(fieldName, checkpointFieldNameToIdAndTypeMap.get(fieldName));
+        	}
         	else {
         		Comparable[] fieldInfo = staticIdFieldNameToIdAndTypeMap.get(fieldName);
         		if (fieldInfo == null) { // it's a free field: let's create an ID for it
@@ -772,132 +1225,107 @@ public class MtxImport {
         		}
     	}
 
-        HashMap<String /*qseqid*/, AssignedSequence> seqsToUpdate = new HashMap<>(), seqsToInsert = new HashMap<>();
-
-        AssignedSequence currentSeq = null;
-        HashSet<String> encounteredSequences = new HashSet<>();
-        Collection<String> accsMissingFromCache = new TreeSet<String>();
-        while ((line = br.readLine()) != null) {
-            nProcessedRowCount++;
-
-            List<String> fields = Helper.split(line, '\t');
-        	
-            String qseqid = fields.get(qseqidColumn);
-
-            if (currentSeq == null || !qseqid.equals(currentSeq.getId().getQseqid())) {
-            	currentSeq = seqsToUpdate.get(qseqid);	// see whether we've got it in the current list of those to update
-            	if (currentSeq == null)
-            		currentSeq = seqsToInsert.get(qseqid);	// see whether we've got it in the current list of those to insert (happens when all assignments for a given sequence are not consecutive)
-            	if (currentSeq == null)
-            	{	// we need to read or create a Sequence instance because we don't have a reference to the correct object
-	            	Sequence.SequenceId seqId = new Sequence.SequenceId(projectId, qseqid);
-            		currentSeq = mongoTemplate.findById(seqId, AssignedSequence.class);
-	
-	            	if (currentSeq == null) {	// create it	
-	                    currentSeq = new AssignedSequence(seqId);
-
-	                    Map<Integer, Double> doubleFields = currentSeq.getDoubleFields();
-	                    if (doubleFields == null) {
-	                    	doubleFields = new HashMap<>();
-	                    	currentSeq.setDoubleFields(doubleFields);
-	                    }
-	                    
-	                    try {
-	                    	doubleFields.put(DBField.seqLengthFieldId, (double) indexedFasta.getSequence(qseqid).length());
-	                    }
-	                    catch (SAMException se) {
-	                    	throw new Exception("Error reading sequence length from fasta index: " + se.getMessage());
-	                    }
-	
-	                    if (!seqsToInsert.containsKey(currentSeq))
-	                    	seqsToInsert.put(qseqid, currentSeq);
-	            	}
-	            	else
-	            		seqsToUpdate.put(qseqid, currentSeq);
-            	}
-            }
-
-            Assignment assignment = new Assignment();
-            for (int i=0; i<fields.size(); i++) {
-                if (i == qseqidColumn)
-                    continue;
+        Collection<String> accsMissingFromCache = ConcurrentHashMap.newKeySet();
+        ThreadLocal<LineTokenizer> lineTokenizers = ThreadLocal.withInitial(() -> new LineTokenizer('\t', true)), accessionTokenizers = ThreadLocal.withInitial(() -> new LineTokenizer(',', false));	// lines are parsed by the pipeline's worker threads
+        AssignmentImportPipeline pipeline = new AssignmentImportPipeline(mongoTemplate, projectId, qseqidRegistry, checkpoint.isProjectInitiallyWithoutAssignments(), AssignmentImportPipeline.getDefaultShardCount(), nNumberOfRowsToSaveAtOnce, new AssignmentImportPipeline.AssignmentLineHandler() {
+        	@Override
+        	public AssignedSequence createSequence(String qseqid) throws Exception {
+        		AssignedSequence seq = new AssignedSequence(new Sequence.SequenceId(projectId, qseqid));
+        		DoubleFieldMap doubleFields = new DoubleFieldMap(1);
+        		seq.setDoubleFields(doubleFields);
+                int nOrdinal = qseqidRegistry.indexOf(qseqid);	// the registry is safe for concurrent reads
+                if (nOrdinal == -1)
+                	throw new Exception("Error reading sequence length from fasta index: unable to find entry for sequence " + qseqid);
+                doubleFields.put(DBField.seqLengthFieldId, (double) qseqidRegistry.getSequenceLength(nOrdinal));
+                return seq;
+        	}
 
-                String fieldName = headerFields.get(i);
-            	Comparable[] idAndType = staticIdFieldNameToIdAndTypeMap.get(fieldName);	// assignments contain field that are not provided but created at import time (taxon, hit_def)
-            	if (idAndType == null)
-            		idAndType = fieldNameToIdAndTypeMap.get(fieldName);
+        	@Override
+        	public Assignment parseAssignment(String line) throws Exception {
+                LineTokenizer fields = lineTokenizers.get().tokenize(line);
 
-            	if (i == sseqidColumn && idAndType[1] == null)
-            		idAndType[1] = DBConstant.STRING_ARRAY_TYPE;
-            	else {
-                    if (i == sseqidColumn)
+                Assignment assignment = new Assignment();
+                for (int i=0; i<fields.getColumnCount(); i++) {
+                    if (i == qseqidColumn)
                         continue;
-            		String field = fields.get(i).trim();
-	                if (".".equals(field) || field.isEmpty())
-	                    continue;
-	
-                    // either parse as double or store as string
-	                Double d;
-	                if (!DBField.bestHitFieldName.equals(fieldName) /* force best-hit to be a String because we expect it as such */ && !DBConstant.STRING_TYPE.equals(idAndType[1]) && (d = parseToDouble(field)) != null) {
-	                	assignment.putDoubleField((int) idAndType[0], d);
-	                    if (idAndType[1] == null)
-	                    	idAndType[1] = DBConstant.DOUBLE_TYPE;
-	                } else {
-	                	assignment.addStringField((int) idAndType[0], field);
-	                    if (idAndType[1] == null)
-	                    	idAndType[1] = DBConstant.STRING_TYPE;
-	                }
-            	}
-            }
-
-            if (sseqidColumn != -1)
-	            accsMissingFromCache.addAll(addAccessionInfoToAssignment(Helper.split(fields.get(sseqidColumn), ',', maxAccessionCountPerAssignment), assignment)); // accessions should be found csv formatted
-            else
-            	assignment.putDoubleField(DBField.taxonFieldId, Double.parseDouble(fields.get(taxidColumn)));	// we should have a taxid if no sseqids were provided
 
-            ((AssignedSequence) currentSeq).getAssignments().add(assignment);
+                    String fieldName = headerFields.get(i);
+                	Comparable[] idAndType = staticIdFieldNameToIdAndTypeMap.get(fieldName);	// assignments contain field that are not provided but created at import time (taxon, hit_def)
+                	if (idAndType == null)
+                		idAndType = fieldNameToIdAndTypeMap.get(fieldName);
 
-            if (nProcessedRowCount % nNumberOfRowsToSaveAtOnce == 0) {
-                if (!accsMissingFromCache.isEmpty()) {
-                	LOG.warn("No accession cache found for " + StringUtils.join(accsMissingFromCache, ", "));
-                	accsMissingFromCache.clear();
+                	if (i == sseqidColumn) {
+                		if (idAndType[1] == null)
+                			setFieldTypeIfUnknown(idAndType, DBConstant.STRING_ARRAY_TYPE);
+                	}
+                	else {
+    	                if (fields.isColumnOneOf(i, ImportArchiveChecker.EMPTY_FIELD_CODES))
+    	                    continue;
+
+                        // either parse as double or store as string (only numeric cells are parsed in place, without creating a String)
+    	                double d;
+    	                if (!DBField.bestHitFieldName.equals(fieldName) /* force best-hit to be a String because we expect it as such */ && !DBConstant.STRING_TYPE.equals(idAndType[1]) && !Double.isNaN(d = fields.parseDecimal(i))) {
+    	                	assignment.putDoubleField((int) idAndType[0], d);
+    	                    if (idAndType[1] == null)
+    	                    	setFieldTypeIfUnknown(idAndType, DBConstant.DOUBLE_TYPE);
+    	                } else {
+    	                	assignment.addStringField((int) idAndType[0], fields.getString(i));
+    	                    if (idAndType[1] == null)
+    	                    	setFieldTypeIfUnknown(idAndType, DBConstant.STRING_TYPE);
+    	                }
+                	}
                 }
-                
-            	final Collection<AssignedSequence> sequencesToUpdate = seqsToUpdate.values();
-                Thread updateThread = sequencesToUpdate.size() == 0 ? null : new Thread() {
-                    @Override
-                    public void run() {
-//                    	LOG.debug("updating " + sequencesToUpdate.stream().map(seq -> seq.getId().getQseqid()).collect(Collectors.toList()));
-                    	for (Sequence seq : sequencesToUpdate)
-                    		mongoTemplate.save(seq);
-                    }
-                };
-                if (updateThread != null)
-                	updateThread.start();
-                
-            	if (seqsToInsert.size() > 0) {
-//                	LOG.debug("inserting " + seqsToInsert.values().stream().map(seq -> seq.getId().getQseqid()).collect(Collectors.toList()));
-	            	mongoTemplate.insertAll(seqsToInsert.values());
-	        	}
-            	
-                if (updateThread != null)
-                	updateThread.join();
 
-                seqsToInsert = new HashMap<>();
-                seqsToUpdate = new HashMap<>();
-                currentSeq = null;
-            }
-            encounteredSequences.add(qseqid);
-            if (encounteredSequences.size() % 1000 == 0)
-            	progress.setCurrentStepProgress(nProcessedRowCount);
-        }
-        
-    	if (seqsToInsert.size() > 0)
-        	mongoTemplate.insertAll(seqsToInsert.values());
+                if (sseqidColumn != -1)
+    	            accsMissingFromCache.addAll(addAccessionInfoToAssignment(accessionTokenizers.get().tokenize(fields.getColumn(sseqidColumn)).getStrings(maxAccessionCountPerAssignment), assignment, accessionTable)); // accessions should be found csv formatted
+                else
+                	assignment.putDoubleField(DBField.taxonFieldId, fields.parseDouble(taxidColumn));	// we should have a taxid if no sseqids were provided
+                return assignment;
+        	}
+        });
+
+        long nCommittedLineCount = checkpoint.getCommittedAssignmentLines();
 
-    	if (seqsToUpdate.size() > 0)
-        	for (Sequence seq : seqsToUpdate.values())
-	        	mongoTemplate.save(seq);
+        pipeline.start();
+        try {
+	        while (tokenizer.readLine()) {
+	            nProcessedRowCount++;
+	            if (nProcessedRowCount > nCommittedLineCount || seqsToRebuild.contains(tokenizer.getColumn(qseqidColumn)))	// otherwise it was persisted by a previous attempt
+	            	pipeline.submit(tokenizer.getString(qseqidColumn), tokenizer.getLine());
+
+	            if (nProcessedRowCount > nCommittedLineCount && nProcessedRowCount % ASSIGNMENT_CHECKPOINT_INTERVAL == 0) {
+	            	pipeline.checkpoint();
+	            	List<ImportCheckpoint.FieldInfo> fieldInfoList = new ArrayList<>();
+	            	for (Map.Entry<String, Comparable[]> entry : fieldNameToIdAndTypeMap.entrySet())
+	            		synchronized (entry.getValue()) {
+	            			fieldInfoList.add(new ImportCheckpoint.FieldInfo(entry.getKey(), (int) entry.getValue()[0], (String) entry.getValue()[1]));
+	            		}
+	            	checkpoint.setAssignmentFields(fieldInfoList);
+	            	checkpoint.setCommittedAssignmentLines(nProcessedRowCount);
+	            	updateCheckpoint(mongoTemplate, checkpoint, new Update().set(ImportCheckpoint.FIELDNAME_ASSIGNMENT_FIELDS, fieldInfoList).set(ImportCheckpoint.FIELDNAME_COMMITTED_ASSIGNMENT_LINES, nProcessedRowCount));
+	            }
+
+	            if (nProcessedRowCount % nNumberOfRowsToSaveAtOnce == 0) {
+	                if (!accsMissingFromCache.isEmpty()) {
+	                	LOG.warn("No accession cache found for " + StringUtils.join(accsMissingFromCache, ", "));
+	                	accsMissingFromCache.clear();
+	                }
+	            	progress.setCurrentStepProgress(nProcessedRowCount);
+	            }
+	        }
+	        pipeline.finish();
+        }
+        catch (Exception e) {
+        	pipeline.abort();
+        	throw e;
+        }
+        if (!accsMissingFromCache.isEmpty())
+        	LOG.warn("No accession cache found for " + StringUtils.join(accsMissingFromCache, ", "));
+        QseqidSet encounteredSequences = pipeline.getEncounteredSequences();
+        if (pipeline.wasProjectInitiallyEmpty() && nCommittedLineCount == 0)
+        	assignedSeqIDsToFill.addAll(encounteredSequences);
+        else	// some assigned sequences were there before this import, or were persisted by a previous attempt at it
+        	addAssignedSeqIDs(mongoTemplate, projectId, assignedSeqIDsToFill);
 
         // cleanup sequences that may have been provided as both assigned and unassigned
         HashSet<String> subSet = new HashSet<>();
@@ -918,55 +1346,101 @@ public class MtxImport {
         return fieldNameToIdAndTypeMap;
     }
 
-    private void importSequences(String module, int projectId, ZipInputStream is, int maxAccessionCountPerAssignment, IndexedFastaSequenceFile indexedFasta, ProgressIndicator progress) throws IOException, InterruptedException {
+    /**
+     * @param is sequence composition file contents
+     * @return the sample dictionary to use for dictionary-encoding sequences listed in the given file, i.e. its headers except the qseqid one
+     * @throws IOException
+     */
+    static List<String> readSampleDictionary(InputStream is) throws IOException {
+    	LineTokenizer fields = new LineTokenizer(new InputStreamReader(is, Charset.forName("UTF-8")), '\t', false);
+    	if (!fields.readLine())
+    		return new ArrayList<>();
+    	List<String> sampleDictionary = new ArrayList<>(fields.getStrings(-1));
+    	sampleDictionary.remove(Sequence.FIELDNAME_QSEQID);
+    	return sampleDictionary;
+    }
+
+    /**
+     * save sample composition from sequence composition file, either into existing assigned sequences or into new unassigned ones
+     *
+     * @param module
+     * @param projectId
+     * @param is
+     * @param maxAccessionCountPerAssignment
+     * @param qseqidRegistry the project's sequences, as listed in the fasta index
+     * @param checkpoint import checkpoint, updated whenever all lines read so far are persisted
+     * @param progress
+     * @param assignedSeqIDs qseqids of the project's assigned sequences
+     * @param sampleDictionary the project's sample dictionary if compositions are to be dictionary-encoded, null otherwise
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void importSequences(String module, int projectId, InputStream is, int maxAccessionCountPerAssignment, QseqidRegistry qseqidRegistry, ImportCheckpoint checkpoint, ProgressIndicator progress, QseqidSet assignedSeqIDs, List<String> sampleDictionary) throws IOException, InterruptedException {
         progress.setPercentageEnabled(true);
     	progress.addStep("Processing lines in sequence composition file");
     	progress.moveToNextStep();
 
     	MongoTemplate mongoTemplate = MongoTemplateManager.get(module);
     	int nNumberOfRowsToSaveAtOnce = 1000;
-    	BufferedReader br = new BufferedReader(new InputStreamReader(is, Charset.forName("UTF-8")), 65536);
+    	LineTokenizer fields = new LineTokenizer(new InputStreamReader(is, Charset.forName("UTF-8")), '\t', false);
     	
         // get the headers 
-        String line = br.readLine();
-        List<String> headerFields = Arrays.asList(line.split("\t"));
+        fields.readLine();
+        List<String> headerFields = fields.getStrings(-1);
         int qseqidColumn = headerFields.indexOf(Sequence.FIELDNAME_QSEQID);
 
-        int nSeqCount = 0;
-    	while ((indexedFasta.nextSequence()) != null)
-    		nSeqCount++;
+        boolean fDictionaryEncoding = sampleDictionary != null;	// it gets persisted along with the project, by saveProject
+        int[] packedIndexes = null, packedCounts = null;
+        if (fDictionaryEncoding) {
+        	packedIndexes = new int[sampleDictionary.size()];
+        	packedCounts = new int[sampleDictionary.size()];
+        }
+
+        int nSeqCount = Math.max(1, qseqidRegistry.size());
 
     	AtomicInteger nEncounteredSeqCount = new AtomicInteger(0);
         Collection<Sequence> seqsToInsert = new HashSet<>();
     	BulkOperations bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, AssignedSequence.class);
     	int nBulkOpCount = 0;
-    	long nUnassignedCount = 0;
+    	long nCommittedLineCount = checkpoint.getCommittedSequenceLines(), nLineCount = 0;
+    	long nUnassignedCount = nCommittedLineCount == 0 ? 0 : mongoTemplate.count(new Query(Criteria.where("_id." + DBConstant.FIELDNAME_PROJECT).is(projectId)), Sequence.class);
         
-        while ((line = br.readLine()) != null) {
-            List<String> fields = Helper.split(line, '\t');
+        while (fields.readLine()) {
+        	if (++nLineCount <= nCommittedLineCount)
+        		continue;	// was persisted by a previous attempt
 	
             // generate sample composition object
-            List<SampleReadCount> sampleComposition = new ArrayList<>();
+            List<SampleReadCount> sampleComposition = fDictionaryEncoding ? null : new ArrayList<>();
+            int nPackedCount = 0;
 
 	        for (int index=0; index<headerFields.size(); index++)
 	        	if (index != qseqidColumn) {
-		            String field = fields.get(index);
 		            // only store sample code contributing to the sequence, i.e. where field value > 0
-		            if (!field.isEmpty() && !"0".equals(field)) {
-		                int count = Integer.parseInt(field);
-		                String sampleCode = headerFields.get(index);
-		                sampleComposition.add(new SampleReadCount(sampleCode, count));
+		            int count;
+		            if (!fields.isEmpty(index) && (count = fields.parseInt(index)) != 0) {
+		            	if (fDictionaryEncoding) {
+		            		packedIndexes[nPackedCount] = index < qseqidColumn ? index : index - 1;
+		            		packedCounts[nPackedCount++] = count;
+		            	}
+		            	else {
+			                String sampleCode = headerFields.get(index);
+			                sampleComposition.add(new SampleReadCount(sampleCode, count));
+		            	}
 		            }
 	        	}
 
-	        SequenceId seqId = new Sequence.SequenceId(projectId, fields.get(qseqidColumn));
-	        if (mongoTemplate.exists(new Query(Criteria.where("_id").is(seqId)), AssignedSequence.class)) {	// it's an assigned sequence
-	        	bulkOperations.updateOne(new Query(Criteria.where("_id").is(seqId)), new Update().set(Sequence.FIELDNAME_SAMPLE_COMPOSITION, sampleComposition));
+	        SequenceId seqId = new Sequence.SequenceId(projectId, fields.getString(qseqidColumn));
+	        if (assignedSeqIDs.contains(seqId.getQseqid())) {	// it's an assigned sequence
+	        	Update update = fDictionaryEncoding ? new Update().set(Sequence.FIELDNAME_SAMPLE_INDEXES, Arrays.copyOf(packedIndexes, nPackedCount)).set(Sequence.FIELDNAME_SAMPLE_COUNTS, Arrays.copyOf(packedCounts, nPackedCount)) : new Update().set(Sequence.FIELDNAME_SAMPLE_COMPOSITION, sampleComposition);
+	        	bulkOperations.updateOne(new Query(Criteria.where("_id").is(seqId)), update);
 	        	nBulkOpCount++;
 	        }
 	        else {	// it's an unassigned sequence
 	        	Sequence currentSeq = new Sequence(seqId);
-	        	currentSeq.setSampleComposition(sampleComposition);
+	        	if (fDictionaryEncoding)
+	        		currentSeq.setPackedSampleComposition(Arrays.copyOf(packedIndexes, nPackedCount), Arrays.copyOf(packedCounts, nPackedCount));
+	        	else
+	        		currentSeq.setSampleComposition(sampleComposition);
 	        	seqsToInsert.add(currentSeq);
 	        }
 
@@ -1010,6 +1484,9 @@ public class MtxImport {
                 seqsToInsert.clear();
                 bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, AssignedSequence.class);
                 nBulkOpCount = 0;
+
+                checkpoint.setCommittedSequenceLines(nLineCount);	// all lines read so far are persisted
+                updateCheckpoint(mongoTemplate, checkpoint, new Update().set(ImportCheckpoint.FIELDNAME_COMMITTED_SEQUENCE_LINES, nLineCount));
                 
             	progress.setCurrentStepProgress(nEncounteredSeqCount.get() * 100 / nSeqCount);
             }
@@ -1044,36 +1521,74 @@ public class MtxImport {
     	progress.setCurrentStepProgress(nEncounteredSeqCount.get() * 100 / nSeqCount);
 	}
 
-    private void updateAccessionCache(InputStream fis, int nMaxAccessionsPerAssignment, ProgressIndicator progress) throws Exception {
+    /**
+     * Makes sure the accession cache contains info for all accessions referenced in an assignment file
+     *
+     * @param assignmentFile local copy of the assignment file, scanned in parallel byte ranges
+     * @param nMaxAccessionsPerAssignment
+     * @param fFetchRemoteInfo whether to fetch info for accessions missing from the cache (may be false when resuming an import)
+     * @param progress
+     * @return a table resolving these accessions in memory, or null if the file contains no accession information
+     * @throws Exception
+     */
+    private AccessionResolutionTable updateAccessionCache(File assignmentFile, int nMaxAccessionsPerAssignment, boolean fFetchRemoteInfo, ProgressIndicator progress) throws Exception {
     	progress.addStep("Collecting accession IDs for each line in assignment file");
     	progress.moveToNextStep();
     	progress.setPercentageEnabled(false);
 
-        Collection<String> accColl = new HashSet<>();
-
-        BufferedReader br = new BufferedReader(new InputStreamReader(fis, Charset.forName("UTF-8")), 16384);
-
-        String line = br.readLine();
-        int nLineCount = 0;
-        List<String> headers = Helper.split(line, '\t', -1), stdHeaders = ImportArchiveChecker.standardizeHeaders(headers);
-
-        int sseqidColumnIndex = stdHeaders.indexOf(Assignment.FIELDNAME_SSEQID);
+        int sseqidColumnIndex;
+        long nDataStart;
+        try (MappedLineReader headerReader = new MappedLineReader(assignmentFile, '\t')) {
+        	if (!headerReader.readLine())
+        		return null;
+        	List<String> headers = new ArrayList<>();
+        	for (int i=0; i<headerReader.getColumnCount(); i++)
+        		headers.add(headerReader.getString(i));
+        	sseqidColumnIndex = ImportArchiveChecker.standardizeHeaders(headers).indexOf(Assignment.FIELDNAME_SSEQID);
+        	nDataStart = headerReader.getPosition();
+        }
         if (sseqidColumnIndex == -1) {
         	LOG.info("Currently imported project contains no accession information");
-        	return;
+        	return null;
         }
 
-        while ((line = br.readLine()) != null) {
-        	String sseqid = Helper.getNthColumn(line, '\t', sseqidColumnIndex);
-            if (!ImportArchiveChecker.EMPTY_FIELD_CODES.contains(sseqid)) // an assignment can have several comma separated accessions
-            	accColl.addAll(Helper.split(sseqid, ',', nMaxAccessionsPerAssignment));
-            progress.setCurrentStepProgress(++nLineCount);
+        // only the sseqid column gets decoded, each worker dealing with its own range of lines
+        int nRangeCount = (int) Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), (assignmentFile.length() - nDataStart) / ACCESSION_SCAN_MIN_RANGE_SIZE));
+        long[] rangeBounds = MappedLineReader.getRangeBounds(nDataStart, assignmentFile.length(), nRangeCount);
+        AtomicLong nLineCount = new AtomicLong(0);
+        Collection<String> accColl;
+        try {
+        	accColl = IntStream.range(0, nRangeCount).parallel().mapToObj(i -> {
+	        	Collection<String> rangeAccessions = new HashSet<>();
+	        	try (MappedLineReader reader = new MappedLineReader(assignmentFile, '\t', rangeBounds[i], rangeBounds[i + 1])) {
+	        		while (reader.readLine()) {
+	        			if (reader.getColumnCount() > sseqidColumnIndex && !reader.isColumnOneOf(sseqidColumnIndex, ImportArchiveChecker.EMPTY_FIELD_CODES)) // an assignment can have several comma separated accessions
+	        				reader.collectSubValues(sseqidColumnIndex, ',', '.' /* version number is removed */, nMaxAccessionsPerAssignment, rangeAccessions);
+	        			long nCount = nLineCount.incrementAndGet();
+	        			if (nCount % 10000 == 0)
+	        				progress.setCurrentStepProgress(nCount);
+	        		}
+	        	}
+	        	catch (IOException ioe) {
+	        		throw new UncheckedIOException(ioe);
+	        	}
+	        	return rangeAccessions;
+	        }).collect(HashSet::new, HashSet::addAll, HashSet::addAll);
         }
+        catch (UncheckedIOException uioe) {
+        	throw uioe.getCause();
+        }
+        progress.setCurrentStepProgress(nLineCount.get());
         
-        List<String>[] accsByType = Accession.separateNuclFromProtIDs(accColl.stream().map(accId -> -1 != accId.indexOf(".") ? accId.substring(0, accId.indexOf(".")) : accId).collect(Collectors.toCollection(TreeSet::new /*removes duplicates that may appear when removing the version number*/)), false);
+        List<String>[] accsByType = Accession.separateNuclFromProtIDs(new TreeSet<>(accColl), false);
 
-        if (!accsByType[0].isEmpty() || !accsByType[1].isEmpty())
+        List<String> nuclAccessions = new ArrayList<>(accsByType[0]), protAccessions = new ArrayList<>(accsByType[1]);	// fetchRemoteAccessionInfo removes already cached accessions from the lists it is passed
+        if (fFetchRemoteInfo && (!accsByType[0].isEmpty() || !accsByType[1].isEmpty()))
             accessionImport.fetchRemoteAccessionInfo(accsByType[0], accsByType[1], progress);
+
+    	progress.addStep("Loading accession info");
+    	progress.moveToNextStep();
+        return AccessionResolutionTable.load(MongoTemplateManager.getCommonsTemplate(), nuclAccessions, protAccessions);
 	}
 
     /**
@@ -1084,15 +1599,32 @@ public class MtxImport {
      * @param sequencesToKeep (HashSet preferred for best performance)
      */
     public static void createPartialFai(File inputFaiFile, File outputFaiFile, Collection<String> sequencesToKeep) throws Exception 
+    { 
+    	createPartialFai(inputFaiFile, outputFaiFile, id -> sequencesToKeep.remove(id));
+    }
+
+    /**
+     * Create a partial fai index from an exhaustive one
+     * 
+     * @param inputFile
+     * @param outputFile
+     * @param sequencesToKeep
+     */
+    public static void createPartialFai(File inputFaiFile, File outputFaiFile, QseqidSet sequencesToKeep) throws Exception 
+    { 
+    	createPartialFai(inputFaiFile, outputFaiFile, id -> sequencesToKeep.contains(id));
+    }
+
+    private static void createPartialFai(File inputFaiFile, File outputFaiFile, Predicate<String> sequenceFilter) throws Exception 
     { 
       BufferedReader in = new BufferedReader(new FileReader(inputFaiFile));
       BufferedWriter out = new BufferedWriter(new FileWriter(outputFaiFile));
       String line, id;
       while ((line = in.readLine()) != null){
-    	  id = line.split("\\t")[0];
-    	  if (sequencesToKeep.contains(id)) {
-    		  sequencesToKeep.remove(id);
-    		  out.write(line+"\n");}
+    	  int nTabPos = line.indexOf('\t');
+    	  id = nTabPos == -1 ? line : line.substring(0, nTabPos);
+    	  if (sequenceFilter.test(id))
+    		  out.write(line+"\n");
     	  }
       in.close();
       out.close();
@@ -1103,6 +1635,14 @@ public class MtxImport {
      * @return list of accession IDs that were not found in the cache
      */
     public List<String> addAccessionInfoToAssignment(List<String> accessions, Assignment assignment) {
+    	return addAccessionInfoToAssignment(accessions, assignment, null);
+    }
+
+	/**
+     * Fetch info from accessions in the provided table (or in the database if it's null). If several accessions, assign taxonomy to last common ancestor
+     * @return list of accession IDs that were not found in the cache
+     */
+    public List<String> addAccessionInfoToAssignment(List<String> accessions, Assignment assignment, AccessionResolutionTable accessionTable) {
         List<String> notInCache = new ArrayList<>();
     	List<String> nonEmptyAccessions = accessions.stream().filter(acc -> !acc.isEmpty()).collect(Collectors.toList());
     	if (!nonEmptyAccessions.isEmpty()) {
@@ -1112,15 +1652,29 @@ public class MtxImport {
 	        boolean fHitDefArrayEmpty = true;
 	        for (int i=0; i<accIdList.size(); i++) {
 		        AccessionId accID = accIdList.get(i);
-		        Accession accCache = MongoTemplateManager.getCommonsTemplate().findById(accID, Accession.class);
-		        if (accCache != null) {
-		        	if (accCache.getHd() != null) {
+		        boolean fCached;
+		        String hd;
+		        Integer tx;
+		        if (accessionTable != null) {
+		        	int nSlot = accessionTable.getSlot(accID);
+		        	fCached = nSlot != -1;
+		        	hd = fCached ? accessionTable.getHitDefinition(nSlot) : null;
+		        	tx = fCached ? accessionTable.getTaxId(nSlot) : null;
+		        }
+		        else {
+			        Accession accCache = MongoTemplateManager.getCommonsTemplate().findById(accID, Accession.class);
+			        fCached = accCache != null;
+		        	hd = fCached ? accCache.getHd() : null;
+		        	tx = fCached ? accCache.getTx() : null;
+		        }
+		        if (fCached) {
+		        	if (hd != null) {
 		        		fHitDefArrayEmpty = false;
-		        		hitDefs[i] = accCache.getHd();
+		        		hitDefs[i] = hd;
 		        	}
-		        	if (accCache.getTx() != null) {
-			        	Integer count = taxIdCounts.get(accCache.getTx());
-			        	taxIdCounts.put(accCache.getTx(), count == null ? 1 : ++count);
+		        	if (tx != null) {
+			        	Integer count = taxIdCounts.get(tx);
+			        	taxIdCounts.put(tx, count == null ? 1 : ++count);
 		        	}
 		        }
 		        else
@@ -1136,11 +1690,16 @@ public class MtxImport {
 	        }
 	
 	        // we have several accessions so we need to find their FCA
-	    	String[] csvTaxaAncestry = TaxonomyNode.getTaxaAncestry(taxIdCounts.keySet(), false, false, ",").values().toArray(new String[0]);
+	    	TaxonomyEngine taxonomyEngine = TaxonomyEngine.getInstance();
 	    	List<Integer[]> taxaAncestry = new ArrayList<>();	// we use a list rather than an int[][] because some accessions have no related tax id so sizes may differ
-	    	for (String csvTaxonomy : csvTaxaAncestry) {
-	    		Integer[] taxoAsIntArray = Helper.csvToIntegerArray(csvTaxonomy);
-	    		for (int j=0; j<taxIdCounts.get(taxoAsIntArray[taxoAsIntArray.length - 1]); j++)
+	    	for (Map.Entry<Integer, Integer> taxIdCount : taxIdCounts.entrySet()) {
+	    		int[] ancestry = taxonomyEngine.getAncestry(taxIdCount.getKey());
+	    		if (ancestry.length == 0)
+	    			continue;	// unknown taxon (or root)
+	    		Integer[] taxoAsIntArray = new Integer[ancestry.length];
+	    		for (int j=0; j<ancestry.length; j++)
+	    			taxoAsIntArray[j] = ancestry[j];
+	    		for (int j=0; j<taxIdCount.getValue(); j++)
 	    			taxaAncestry.add(taxoAsIntArray);	// repeat as many times as it's present in the original list
 	    	}
 	
@@ -16,13 +16,16 @@
 package fr.cirad.metaxplor.importing;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Scanner;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -35,7 +38,9 @@ import org.springframework.data.mongodb.core.MongoTemplate;
 import com.mongodb.BasicDBObject;
 
 import fr.cirad.metaxplor.model.Taxon;
+import fr.cirad.metaxplor.model.TaxonomyEngine;
 import fr.cirad.tools.Helper;
+import fr.cirad.tools.LineTokenizer;
 import fr.cirad.tools.mongo.MongoTemplateManager;
 
 public class NCBITaxonomyImport {
@@ -126,36 +131,33 @@ public class NCBITaxonomyImport {
 
             LOG.info("Loading NCBI taxonomy nodes");
             
-            try (Scanner sc = new Scanner(nodeFile);){
-            	String line,pti;
-            	while (sc.hasNextLine()) {
-            		line=sc.nextLine();
-            		String[] parts = line.split("\\|");
-                    pti = parts[1].trim();
-                	Comparable[] taxon = new Comparable[] {pti.length()>0?new Integer(pti):null, parts[2].trim()};
-                	taxonMap.put(Integer.valueOf(parts[0].trim()), taxon);
+            try (Reader reader = new InputStreamReader(new FileInputStream(nodeFile), StandardCharsets.UTF_8)) {
+            	LineTokenizer parts = new LineTokenizer(reader, '|', true);
+            	HashMap<String, String> rankPool = new HashMap<>();	// there are only a few dozen distinct ranks
+            	while (parts.readLine()) {
+            		String rank = parts.getString(2), pooledRank = rankPool.putIfAbsent(rank, rank);
+                	Comparable[] taxon = new Comparable[] {parts.isEmpty(1) ? null : parts.parseInt(1), pooledRank == null ? rank : pooledRank};
+                	taxonMap.put(parts.parseInt(0), taxon);
                     RichObjectFactory.clearLRUCache(/*SimpleNCBITaxon.class*/);
                 }}
                 LOG.info("Finished loading NCBI taxonomy nodes");
             LOG.info("Adding taxonomy names");
-            try (Scanner sc = new Scanner(nameFile)) {
+            try (Reader reader = new InputStreamReader(new FileInputStream(nameFile), StandardCharsets.UTF_8)) {
+            	LineTokenizer parts = new LineTokenizer(reader, '|', true);
             	List<Taxon> taxonTmplist = new ArrayList<>(5000);
             	List<String> taxonNames = new ArrayList<>();
             	long startTime = System.nanoTime();
             	
-            	String line=sc.nextLine();
-            	String[] parts = line.split("\\|");
-            	int currentTaxonId=Integer.valueOf(parts[0].trim());
+            	parts.readLine();
+            	int currentTaxonId=parts.parseInt(0);
             	Taxon taxon = new Taxon(currentTaxonId);
             	Comparable[] taxonInfo = taxonMap.get(currentTaxonId);
     			taxon.setParentId((Integer) taxonInfo[0]);
                 taxon.setRank((String) taxonInfo[1]);
-                taxonNames.add(parts[1].trim());
+                taxonNames.add(parts.getString(1));
                 
-            	while(sc.hasNextLine()) {
-            		line=sc.nextLine();
-            		parts = line.split("\\|");
-            		if(currentTaxonId!=Integer.valueOf(parts[0].trim())){
+            	while(parts.readLine()) {
+            		if(currentTaxonId!=parts.parseInt(0)){
             			taxon.setNames(taxonNames);
             			taxonNames = new ArrayList<>();
             			taxonTmplist.add(taxon);
@@ -164,30 +166,29 @@ public class NCBITaxonomyImport {
                         	mongoTemplate.insert(taxonTmplist, Taxon.class);
                         	taxonTmplist.clear();
                         }
-            			currentTaxonId=Integer.valueOf(parts[0].trim());
+            			currentTaxonId=parts.parseInt(0);
             			taxon = new Taxon(currentTaxonId);
             			taxonInfo = taxonMap.get(currentTaxonId);
             			taxon.setParentId((Integer) taxonInfo[0]);
                         taxon.setRank((String) taxonInfo[1]);
-                        if(parts[3].trim().equals("scientific name")) {
-                    		taxonNames.add(0, parts[1].trim());}else {taxonNames.add(parts[1].trim());}
+                        if(parts.columnEquals(3, "scientific name")) {
+                    		taxonNames.add(0, parts.getString(1));}else {taxonNames.add(parts.getString(1));}
             		}else {
-            			if(parts[3].trim().equals("scientific name")) {
-                        	taxonNames.add(0, parts[1].trim());}else {taxonNames.add(parts[1].trim());}}}
+            			if(parts.columnEquals(3, "scientific name")) {
+                        	taxonNames.add(0, parts.getString(1));}else {taxonNames.add(parts.getString(1));}}}
             	taxon.setNames(taxonNames);
     			taxonTmplist.add(taxon);
     			if (taxonTmplist.size() > 0) {
     				mongoTemplate.insert(taxonTmplist, Taxon.class);
                     taxonTmplist.clear();
     			}
-                
-            	sc.close();
             	
                 LOG.info("Completed saving NCBI taxonomy into database in "+((System.nanoTime() - startTime)/1000000)+"ms");
 
                 // create indexes on collection 
                 mongoTemplate.getCollection(mongoTemplate.getCollectionName(Taxon.class)).createIndex(new BasicDBObject(Taxon.FIELDNAME_NAMES, 1));
                 mongoTemplate.getCollection(mongoTemplate.getCollectionName(Taxon.class)).createIndex(new BasicDBObject(Taxon.FIELDNAME_PARENT_ID, 1));
+                TaxonomyEngine.invalidate();	// make sure the in-memory taxonomy gets reloaded with new contents if held by this process (other ones detect the modification via TaxonomyEngine.getInstance())
             }
         } finally {
             if (ctx != null) {
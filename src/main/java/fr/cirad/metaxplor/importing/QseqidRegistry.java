@@ -0,0 +1,223 @@
+/*******************************************************************************
+ * metaXplorDB - Copyright (C) 2020 <CIRAD>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.metaxplor.importing;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Assigns dense int ordinals (in order of addition) to the qseqids of a project, so that import-time bookkeeping may rely on
+ * bitsets (see QseqidSet) and arrays rather than on large collections of Strings. Qseqids are stored as UTF-8 bytes laid
+ * end to end in a single arena, and looked up through an open-addressing table of ordinals: no object is kept per qseqid.
+ * Sequence lengths may also be stored when the registry is loaded from a fasta index.
+ *
+ * Additions are not thread-safe. Once fully built, a registry may be queried concurrently.
+ *
+ * @author sempere
+ */
+public class QseqidRegistry {
+
+    private byte[] arena;
+    private int nArenaSize = 0;
+
+    /** qseqid i is stored in arena between offsets[i] (inclusive) and offsets[i + 1] (exclusive) */
+    private int[] offsets;
+    private int nSize = 0;
+
+    /** sequence length by ordinal, null if unknown */
+    private int[] sequenceLengths = null;
+
+    /** ordinal + 1 by slot, 0 for empty slots */
+    private int[] table;
+
+    public QseqidRegistry(int nExpectedSize) {
+    	nExpectedSize = Math.max(16, nExpectedSize);
+    	arena = new byte[nExpectedSize * 16];
+    	offsets = new int[nExpectedSize + 1];
+    	table = new int[Integer.highestOneBit(nExpectedSize * 2 - 1) << 1];
+    }
+
+    /**
+     * Loads the sequence names and lengths listed in a fasta index
+     *
+     * @param faiFile
+     * @return the registry, where each sequence's ordinal is its rank in the index
+     * @throws IOException if the index is malformed or lists a sequence twice
+     */
+    public static QseqidRegistry fromFaiFile(File faiFile) throws IOException {
+    	QseqidRegistry registry = new QseqidRegistry((int) Math.min(Integer.MAX_VALUE / 32, faiFile.length() / 32));
+    	registry.sequenceLengths = new int[registry.offsets.length - 1];
+    	try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(faiFile), StandardCharsets.UTF_8), 1 << 16)) {
+    		String line;
+    		int nLineNumber = 0;
+    		while ((line = reader.readLine()) != null) {
+    			nLineNumber++;
+    			int nFirstTabPos = line.indexOf('\t'), nSecondTabPos = nFirstTabPos == -1 ? -1 : line.indexOf('\t', nFirstTabPos + 1);
+    			if (nSecondTabPos == -1)
+    				throw new IOException("Invalid fasta index " + faiFile.getName() + " at line " + nLineNumber);
+    			String qseqid = line.substring(0, nFirstTabPos);
+    			int nOrdinal = registry.add(qseqid);
+    			if (nOrdinal == -1)
+    				throw new IOException("Sequence " + qseqid + " is listed twice in fasta index " + faiFile.getName());
+    			registry.sequenceLengths[nOrdinal] = Integer.parseInt(line.substring(nFirstTabPos + 1, nSecondTabPos));
+    		}
+    	}
+    	registry.trimToSize();
+    	return registry;
+    }
+
+    /**
+     * Releases the unused capacity of the arena, ordinal-indexed arrays and lookup table (to be called once no more additions are expected)
+     */
+    public void trimToSize() {
+    	arena = Arrays.copyOf(arena, nArenaSize);
+    	offsets = Arrays.copyOf(offsets, nSize + 1);
+    	if (sequenceLengths != null)
+    		sequenceLengths = Arrays.copyOf(sequenceLengths, nSize);
+    	int nCapacity = Integer.highestOneBit(Math.max(1, nSize * 2 - 1)) << 1;
+    	if (nCapacity < table.length)
+    		rehash(nCapacity);
+    }
+
+    /**
+     * @param qseqid
+     * @return the new qseqid's ordinal, or -1 if it was already registered
+     */
+    public int add(CharSequence qseqid) {
+    	byte[] utf8 = encodeIfNotAscii(qseqid);
+    	int nLength = utf8 == null ? qseqid.length() : utf8.length, nHash = hash(qseqid, utf8);
+    	int nMask = table.length - 1, nSlot = nHash & nMask;
+    	for (; table[nSlot] != 0; nSlot = (nSlot + 1) & nMask)
+    		if (matches(table[nSlot] - 1, qseqid, utf8, nLength))
+    			return -1;
+
+    	if (nSize + 1 == offsets.length) {
+    		offsets = Arrays.copyOf(offsets, offsets.length * 2);
+    		if (sequenceLengths != null)
+    			sequenceLengths = Arrays.copyOf(sequenceLengths, offsets.length - 1);
+    	}
+    	if (nArenaSize + nLength > arena.length)
+    		arena = Arrays.copyOf(arena, Math.max(nArenaSize + nLength, arena.length * 2));
+    	for (int i=0; i<nLength; i++)
+    		arena[nArenaSize + i] = utf8 == null ? (byte) qseqid.charAt(i) : utf8[i];
+    	offsets[nSize] = nArenaSize;
+    	nArenaSize += nLength;
+    	offsets[nSize + 1] = nArenaSize;
+
+    	table[nSlot] = ++nSize;
+    	if (nSize * 2 > table.length)
+    		rehash(table.length * 2);
+    	return nSize - 1;
+    }
+
+    /**
+     * @param qseqid
+     * @return the qseqid's ordinal, or -1 if it is not registered
+     */
+    public int indexOf(CharSequence qseqid) {
+    	byte[] utf8 = encodeIfNotAscii(qseqid);
+    	int nLength = utf8 == null ? qseqid.length() : utf8.length, nMask = table.length - 1;
+    	for (int nSlot = hash(qseqid, utf8) & nMask; table[nSlot] != 0; nSlot = (nSlot + 1) & nMask)
+    		if (matches(table[nSlot] - 1, qseqid, utf8, nLength))
+    			return table[nSlot] - 1;
+    	return -1;
+    }
+
+    /**
+     * @param nOrdinal
+     * @return the qseqid registered with that ordinal
+     */
+    public String getQseqid(int nOrdinal) {
+    	checkOrdinal(nOrdinal);
+    	return new String(arena, offsets[nOrdinal], offsets[nOrdinal + 1] - offsets[nOrdinal], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param nOrdinal
+     * @return the sequence's length, or -1 if this registry was not loaded from a fasta index
+     */
+    public int getSequenceLength(int nOrdinal) {
+    	checkOrdinal(nOrdinal);
+    	return sequenceLengths == null ? -1 : sequenceLengths[nOrdinal];
+    }
+
+    /**
+     * @return number of registered qseqids (ordinals range from 0 to size() - 1)
+     */
+    public int size() {
+    	return nSize;
+    }
+
+    private void checkOrdinal(int nOrdinal) {
+    	if (nOrdinal < 0 || nOrdinal >= nSize)
+    		throw new IndexOutOfBoundsException("Ordinal " + nOrdinal + " out of size " + nSize);
+    }
+
+    private void rehash(int nCapacity) {
+    	table = new int[nCapacity];
+    	int nMask = nCapacity - 1;
+    	for (int i=0; i<nSize; i++) {
+    		int nHash = 0x811c9dc5;
+    		for (int j=offsets[i]; j<offsets[i + 1]; j++)
+    			nHash = (nHash ^ (arena[j] & 0xff)) * 0x01000193;
+    		int nSlot = mix(nHash) & nMask;
+    		while (table[nSlot] != 0)
+    			nSlot = (nSlot + 1) & nMask;
+    		table[nSlot] = i + 1;
+    	}
+    }
+
+    private boolean matches(int nOrdinal, CharSequence qseqid, byte[] utf8, int nLength) {
+    	int nOffset = offsets[nOrdinal];
+    	if (offsets[nOrdinal + 1] - nOffset != nLength)
+    		return false;
+    	for (int i=0; i<nLength; i++)
+    		if (arena[nOffset + i] != (utf8 == null ? (byte) qseqid.charAt(i) : utf8[i]))
+    			return false;
+    	return true;
+    }
+
+    /**
+     * @return the qseqid's UTF-8 encoding, or null if it only contains ASCII characters (in which case chars and bytes are the same)
+     */
+    private static byte[] encodeIfNotAscii(CharSequence qseqid) {
+    	for (int i=0; i<qseqid.length(); i++)
+    		if (qseqid.charAt(i) > 127)
+    			return qseqid.toString().getBytes(StandardCharsets.UTF_8);
+    	return null;
+    }
+
+    /**
+     * FNV-1a hash of the qseqid's UTF-8 bytes (consistent with the one computed from the arena in rehash())
+     */
+    private static int hash(CharSequence qseqid, byte[] utf8) {
+    	int nHash = 0x811c9dc5, nLength = utf8 == null ? qseqid.length() : utf8.length;
+    	for (int i=0; i<nLength; i++)
+    		nHash = (nHash ^ (utf8 == null ? qseqid.charAt(i) : utf8[i] & 0xff)) * 0x01000193;
+    	return mix(nHash);
+    }
+
+    private static int mix(int nHash) {
+    	nHash ^= nHash >>> 16;
+    	nHash *= 0x85ebca6b;
+    	return nHash ^ (nHash >>> 13);
+    }
+}
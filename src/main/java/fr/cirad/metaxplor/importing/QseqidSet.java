@@ -0,0 +1,117 @@
+/*******************************************************************************
+ * metaXplorDB - Copyright (C) 2020 <CIRAD>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.metaxplor.importing;
+
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Set of qseqids stored as a bitset over the ordinals of a QseqidRegistry, i.e. one bit per sequence of the project.
+ * Qseqids unknown to the registry (not expected in practice) are supported via a regular set.
+ *
+ * Instances are not thread-safe.
+ *
+ * @author sempere
+ */
+public class QseqidSet implements Iterable<String> {
+
+    private final QseqidRegistry registry;
+    private final BitSet ordinals;
+    private Set<String> unregisteredQseqids = null;
+
+    public QseqidSet(QseqidRegistry registry) {
+    	this.registry = registry;
+    	ordinals = new BitSet(registry.size());
+    }
+
+    /**
+     * @param qseqid
+     * @return true if the qseqid was not already in this set
+     */
+    public boolean add(CharSequence qseqid) {
+    	int nOrdinal = registry.indexOf(qseqid);
+    	if (nOrdinal != -1) {
+    		if (ordinals.get(nOrdinal))
+    			return false;
+    		ordinals.set(nOrdinal);
+    		return true;
+    	}
+
+    	if (unregisteredQseqids == null)
+    		unregisteredQseqids = new HashSet<>();
+    	return unregisteredQseqids.add(qseqid.toString());
+    }
+
+    public boolean contains(CharSequence qseqid) {
+    	int nOrdinal = registry.indexOf(qseqid);
+    	if (nOrdinal != -1)
+    		return ordinals.get(nOrdinal);
+    	return unregisteredQseqids != null && unregisteredQseqids.contains(qseqid.toString());
+    }
+
+    /**
+     * @param other a set built on the same registry
+     */
+    public void addAll(QseqidSet other) {
+    	if (other.registry != registry)
+    		throw new IllegalArgumentException("Sets must share the same registry");
+    	ordinals.or(other.ordinals);
+    	if (other.unregisteredQseqids != null) {
+        	if (unregisteredQseqids == null)
+        		unregisteredQseqids = new HashSet<>();
+    		unregisteredQseqids.addAll(other.unregisteredQseqids);
+    	}
+    }
+
+    public int size() {
+    	return ordinals.cardinality() + (unregisteredQseqids == null ? 0 : unregisteredQseqids.size());
+    }
+
+    public boolean isEmpty() {
+    	return ordinals.isEmpty() && (unregisteredQseqids == null || unregisteredQseqids.isEmpty());
+    }
+
+    /**
+     * Iterates over qseqids in ordinal order (then over unregistered ones), decoding them on the fly
+     */
+    @Override
+    public Iterator<String> iterator() {
+    	Iterator<String> unregisteredIterator = unregisteredQseqids == null ? null : unregisteredQseqids.iterator();
+    	return new Iterator<String>() {
+    		private int nNextOrdinal = ordinals.nextSetBit(0);
+
+			@Override
+			public boolean hasNext() {
+				return nNextOrdinal != -1 || (unregisteredIterator != null && unregisteredIterator.hasNext());
+			}
+
+			@Override
+			public String next() {
+				if (nNextOrdinal != -1) {
+					String qseqid = registry.getQseqid(nNextOrdinal);
+					nNextOrdinal = ordinals.nextSetBit(nNextOrdinal + 1);
+					return qseqid;
+				}
+				if (unregisteredIterator == null)
+					throw new NoSuchElementException();
+				return unregisteredIterator.next();
+			}
+    	};
+    }
+}
@@ -0,0 +1,108 @@
+/*******************************************************************************
+ * metaXplorDB - Copyright (C) 2020 <CIRAD>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.metaxplor.importing;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import fr.cirad.metaxplor.model.Sample;
+import fr.cirad.tools.LineTokenizer;
+import fr.cirad.tools.mongo.DBConstant;
+
+/**
+ * Infers the type of each free column of a sample file from all of its values: a column is of double type if every non-empty value
+ * it holds is a decimal number, of string type otherwise. Knowing final types before writing anything avoids having to convert
+ * samples that were already saved when a column that looked numeric turns out to also hold text.
+ *
+ * @author sempere
+ */
+public class SampleFieldTypeInference {
+
+    private final List<String> headers;
+    private final String[] types;
+    private final int idColumn, posColumn, dateColumn;
+
+    /**
+     * @param stdHeaders standardized sample file headers
+     */
+    public SampleFieldTypeInference(List<String> stdHeaders) {
+    	headers = stdHeaders;
+    	types = new String[stdHeaders.size()];
+    	idColumn = stdHeaders.indexOf(Sample.FIELDNAME_SAMPLE_CODE);
+    	posColumn = stdHeaders.indexOf(Sample.FIELDNAME_COLLECT_GPS);
+    	dateColumn = stdHeaders.indexOf(Sample.FIELDNAME_COLLECT_DATE);
+    }
+
+    /**
+     * Reads a whole sample file to infer its column types
+     *
+     * @param is sample file contents (not closed by this method)
+     * @return see getTypes()
+     * @throws IOException
+     */
+    public static Map<String, String> inferTypes(InputStream is) throws IOException {
+        LineTokenizer fields = new LineTokenizer(new InputStreamReader(is, StandardCharsets.UTF_8), '\t', false);
+        if (!fields.readLine())
+        	return new LinkedHashMap<>();
+
+        SampleFieldTypeInference inference = new SampleFieldTypeInference(ImportArchiveChecker.standardizeHeaders(fields.getStrings(-1)));
+        while (fields.readLine())
+        	inference.addLine(fields);
+        return inference.getTypes();
+    }
+
+    /**
+     * Takes into account the values of a sample line
+     *
+     * @param fields tokenizer positioned on the line
+     */
+    public void addLine(LineTokenizer fields) {
+    	for (int i=0; i<Math.min(fields.getColumnCount(), types.length); i++) {
+    		if (i == idColumn || i == posColumn || i == dateColumn || DBConstant.STRING_TYPE.equals(types[i]) || isEmptyValue(fields.getColumn(i)))
+    			continue;
+    		types[i] = Double.isNaN(fields.parseDecimal(i)) ? DBConstant.STRING_TYPE : DBConstant.DOUBLE_TYPE;
+    	}
+    }
+
+    /**
+     * @return inferred type (DBConstant.DOUBLE_TYPE or DBConstant.STRING_TYPE) by field name, for free columns that hold at least one value
+     */
+    public Map<String, String> getTypes() {
+    	Map<String, String> result = new LinkedHashMap<>();
+    	for (int i=0; i<types.length; i++)
+    		if (types[i] != null)
+    			result.put(headers.get(i), types[i]);
+    	return result;
+    }
+
+    /**
+     * @param value
+     * @return whether value is considered as missing once trimmed (see ImportArchiveChecker.EMPTY_FIELD_CODES)
+     */
+    private static boolean isEmptyValue(CharSequence value) {
+    	int nStart = 0, nEnd = value.length();
+    	while (nStart < nEnd && value.charAt(nStart) <= ' ')
+    		nStart++;
+    	while (nEnd > nStart && value.charAt(nEnd - 1) <= ' ')
+    		nEnd--;
+    	return nStart == nEnd || (nEnd - nStart == 1 && value.charAt(nStart) == '.');
+    }
+}
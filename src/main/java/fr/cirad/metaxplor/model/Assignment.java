@@ -15,15 +15,17 @@
  *******************************************************************************/
 package fr.cirad.metaxplor.model;
 
-import java.util.HashMap;
 import java.util.Map;
 
 import org.springframework.data.annotation.TypeAlias;
 import org.springframework.data.mongodb.core.mapping.Field;
 
+import fr.cirad.tools.DoubleFieldMap;
+import fr.cirad.tools.ObjectFieldMap;
 import fr.cirad.tools.mongo.DBConstant;
 
 /**
+ * Fields are held in compact maps keyed by field id, and (de)serialized by FieldMapConversions
  *
  * @author petel, sempere
  */
@@ -45,13 +47,13 @@ public class Assignment {
     public static final String FIELDNAME_LIKELIHOOD = "likelihood";
     
     @Field(DBConstant.STRING_TYPE)
-    private Map<Integer, String> stringFields;
+    private ObjectFieldMap<String> stringFields;
 
     @Field(DBConstant.DOUBLE_TYPE)
-    private Map<Integer, Double> doubleFields;
+    private DoubleFieldMap doubleFields;
     
     @Field(DBConstant.STRING_ARRAY_TYPE)
-    private Map<Integer, String[]> stringArrayFields;
+    private ObjectFieldMap<String[]> stringArrayFields;
 
     public Map<Integer, String> getStringFields() {
         return stringFields;
@@ -59,19 +61,19 @@ public class Assignment {
     
     public void addStringField(int key, String value) {
     	if (stringFields == null)
-    		stringFields = new HashMap<>();
+    		stringFields = new ObjectFieldMap<>();
     	stringFields.put(key,  value);	
     }
     
-    public void putDoubleField(int key, Double value) {
+    public void putDoubleField(int key, double value) {
     	if (doubleFields == null)
-    		doubleFields = new HashMap<>();
+    		doubleFields = new DoubleFieldMap();
     	doubleFields.put(key,  value);	
     }
     
     public void addStringArrayField(int key, String[] value) {
     	if (stringArrayFields == null)
-    		stringArrayFields = new HashMap<>();
+    		stringArrayFields = new ObjectFieldMap<>(2);
     	stringArrayFields.put(key,  value);	
     }
 
@@ -82,4 +84,28 @@ public class Assignment {
 	public Map<Integer, String[]> getStringArrayFields() {
 		return stringArrayFields;
 	}
+
+	public ObjectFieldMap<String> getStringFieldMap() {
+		return stringFields;
+	}
+
+	public void setStringFieldMap(ObjectFieldMap<String> stringFields) {
+		this.stringFields = stringFields;
+	}
+
+	public DoubleFieldMap getDoubleFieldMap() {
+		return doubleFields;
+	}
+
+	public void setDoubleFieldMap(DoubleFieldMap doubleFields) {
+		this.doubleFields = doubleFields;
+	}
+
+	public ObjectFieldMap<String[]> getStringArrayFieldMap() {
+		return stringArrayFields;
+	}
+
+	public void setStringArrayFieldMap(ObjectFieldMap<String[]> stringArrayFields) {
+		this.stringArrayFields = stringArrayFields;
+	}
 }
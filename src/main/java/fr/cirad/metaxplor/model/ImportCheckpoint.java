@@ -0,0 +1,231 @@
+/*******************************************************************************
+ * metaXplorDB - Copyright (C) 2020 <CIRAD>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.metaxplor.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.TypeAlias;
+import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.core.mapping.Field;
+
+/**
+ * Progress of a project import, persisted after each durable step so that a failed import may be resumed
+ * (stored in the module's database, thus identified by project id). Removed once the import completes.
+ *
+ * @author sempere
+ */
+@Document(collection = "importCheckpoints")
+@TypeAlias(ImportCheckpoint.TYPE_ALIAS)
+public class ImportCheckpoint {
+
+    public static final String TYPE_ALIAS = "IC";
+
+    public static final String FIELDNAME_SAMPLE_FIELD_IDS = "sf";
+    public static final String FIELDNAME_FASTA_FILE_NAME = "ff";
+    public static final String FIELDNAME_ACCESSIONS_FETCHED = "ac";
+    public static final String FIELDNAME_ASSIGNMENTS_STARTED = "as";
+    public static final String FIELDNAME_PROJECT_INITIALLY_WITHOUT_ASSIGNMENTS = "pe";
+    public static final String FIELDNAME_COMMITTED_ASSIGNMENT_LINES = "al";
+    public static final String FIELDNAME_ASSIGNMENT_FIELDS = "af";
+    public static final String FIELDNAME_ASSIGNMENT_FIELD_IDS = "ai";
+    public static final String FIELDNAME_COMMITTED_SEQUENCE_LINES = "sl";
+    public static final String FIELDNAME_SEQUENCES_DONE = "sd";
+
+    /**
+     * Id, name and type of a field that was in use when the checkpoint was saved
+     */
+    static public class FieldInfo {
+    	@Field(DBField.FIELDNAME_NAME)
+    	private String name;
+
+    	private int id;
+
+    	@Field(DBField.FIELDNAME_TYPE)
+    	private String type;
+
+    	public FieldInfo(String name, int id, String type) {
+    		this.name = name;
+    		this.id = id;
+    		this.type = type;
+    	}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getId() {
+			return id;
+		}
+
+		public String getType() {
+			return type;
+		}
+    }
+
+    @Id
+    private final int projectId;
+
+    /** identifies the archive being imported: a checkpoint is only valid for the archive it was created with */
+    @Field("fp")
+    private String archiveFingerprint;
+
+    /** ids of the sample fields involved in the import, null until samples were imported */
+    @Field(FIELDNAME_SAMPLE_FIELD_IDS)
+    private List<Integer> sampleFieldIds;
+
+    /** null until fasta was copied and indexed */
+    @Field(FIELDNAME_FASTA_FILE_NAME)
+    private String fastaFileName;
+
+    @Field(FIELDNAME_ACCESSIONS_FETCHED)
+    private boolean accessionsFetched = false;
+
+    /** whether the assignment phase was started, in which case the project may contain partially imported assigned sequences */
+    @Field(FIELDNAME_ASSIGNMENTS_STARTED)
+    private boolean assignmentsStarted = false;
+
+    /**
+     * whether the project contained no assigned sequences when the assignment phase was first started. If it did, the number of assignments
+     * each one had at that time is kept in the collection named by getAssignmentCountCollectionName(), so that they may be restored when resuming
+     */
+    @Field(FIELDNAME_PROJECT_INITIALLY_WITHOUT_ASSIGNMENTS)
+    private boolean projectInitiallyWithoutAssignments = true;
+
+    /** number of assignment lines (header excluded) whose contents are durably persisted */
+    @Field(FIELDNAME_COMMITTED_ASSIGNMENT_LINES)
+    private long committedAssignmentLines = 0;
+
+    /** ids and types that were used for assignment fields when committedAssignmentLines was last updated */
+    @Field(FIELDNAME_ASSIGNMENT_FIELDS)
+    private List<FieldInfo> assignmentFields = new ArrayList<>();
+
+    /** ids of the assignment fields involved in the import, null until assignments were all imported */
+    @Field(FIELDNAME_ASSIGNMENT_FIELD_IDS)
+    private List<Integer> assignmentFieldIds;
+
+    /** number of sequence composition lines (header excluded) whose contents are durably persisted */
+    @Field(FIELDNAME_COMMITTED_SEQUENCE_LINES)
+    private long committedSequenceLines = 0;
+
+    @Field(FIELDNAME_SEQUENCES_DONE)
+    private boolean sequencesDone = false;
+
+    public ImportCheckpoint(int projectId) {
+    	this.projectId = projectId;
+    }
+
+    /**
+     * @param projectId
+     * @return name of the collection holding, by qseqid, the number of assignments of the sequences the project contained when the assignment phase was first started
+     */
+    public static String getAssignmentCountCollectionName(int projectId) {
+    	return "importCheckpointAssignmentCounts_" + projectId;
+    }
+
+	public int getProjectId() {
+		return projectId;
+	}
+
+	public String getArchiveFingerprint() {
+		return archiveFingerprint;
+	}
+
+	public void setArchiveFingerprint(String archiveFingerprint) {
+		this.archiveFingerprint = archiveFingerprint;
+	}
+
+	public List<Integer> getSampleFieldIds() {
+		return sampleFieldIds;
+	}
+
+	public void setSampleFieldIds(List<Integer> sampleFieldIds) {
+		this.sampleFieldIds = sampleFieldIds;
+	}
+
+	public String getFastaFileName() {
+		return fastaFileName;
+	}
+
+	public void setFastaFileName(String fastaFileName) {
+		this.fastaFileName = fastaFileName;
+	}
+
+	public boolean isAccessionsFetched() {
+		return accessionsFetched;
+	}
+
+	public void setAccessionsFetched(boolean accessionsFetched) {
+		this.accessionsFetched = accessionsFetched;
+	}
+
+	public boolean isAssignmentsStarted() {
+		return assignmentsStarted;
+	}
+
+	public void setAssignmentsStarted(boolean assignmentsStarted) {
+		this.assignmentsStarted = assignmentsStarted;
+	}
+
+	public boolean isProjectInitiallyWithoutAssignments() {
+		return projectInitiallyWithoutAssignments;
+	}
+
+	public void setProjectInitiallyWithoutAssignments(boolean projectInitiallyWithoutAssignments) {
+		this.projectInitiallyWithoutAssignments = projectInitiallyWithoutAssignments;
+	}
+
+	public long getCommittedAssignmentLines() {
+		return committedAssignmentLines;
+	}
+
+	public void setCommittedAssignmentLines(long committedAssignmentLines) {
+		this.committedAssignmentLines = committedAssignmentLines;
+	}
+
+	public List<FieldInfo> getAssignmentFields() {
+		return assignmentFields;
+	}
+
+	public void setAssignmentFields(List<FieldInfo> assignmentFields) {
+		this.assignmentFields = assignmentFields;
+	}
+
+	public List<Integer> getAssignmentFieldIds() {
+		return assignmentFieldIds;
+	}
+
+	public void setAssignmentFieldIds(List<Integer> assignmentFieldIds) {
+		this.assignmentFieldIds = assignmentFieldIds;
+	}
+
+	public long getCommittedSequenceLines() {
+		return committedSequenceLines;
+	}
+
+	public void setCommittedSequenceLines(long committedSequenceLines) {
+		this.committedSequenceLines = committedSequenceLines;
+	}
+
+	public boolean isSequencesDone() {
+		return sequencesDone;
+	}
+
+	public void setSequencesDone(boolean sequencesDone) {
+		this.sequencesDone = sequencesDone;
+	}
+}
@@ -21,6 +21,7 @@ import org.springframework.data.mongodb.core.mapping.Document;
 import org.springframework.data.mongodb.core.mapping.Field;
 
 import java.util.Date;
+import java.util.List;
 import org.springframework.format.annotation.DateTimeFormat;
 import org.springframework.format.annotation.DateTimeFormat.ISO;
 
@@ -93,6 +94,11 @@ public class MetagenomicsProject {
 
     public static final String FIELDNAME_META_INFO = "mi";
 
+    /**
+     * sample codes referred to by index in the packed sample composition of the project's sequences (absent if compositions are stored as sub-documents)
+     */
+    public static final String FIELDNAME_SAMPLE_DICTIONARY = "sd";
+
     @Id
     private int id;
 
@@ -133,6 +139,9 @@ public class MetagenomicsProject {
     @Field(FIELDNAME_PUBLIC)
     private boolean publicProject;
 
+    @Field(FIELDNAME_SAMPLE_DICTIONARY)
+    private List<String> sampleDictionary;
+
 
     public MetagenomicsProject(int id) {
         super();
@@ -238,4 +247,12 @@ public class MetagenomicsProject {
     public void setPublicProject(boolean publicProject) {
         this.publicProject = publicProject;
     }
+
+    public List<String> getSampleDictionary() {
+        return sampleDictionary;
+    }
+
+    public void setSampleDictionary(List<String> sampleDictionary) {
+        this.sampleDictionary = sampleDictionary;
+    }
 }
@@ -15,12 +15,15 @@
  *******************************************************************************/
 package fr.cirad.metaxplor.model;
 
+import fr.cirad.tools.DoubleFieldMap;
 import fr.cirad.tools.mongo.DBConstant;
 import htsjdk.samtools.reference.ReferenceSequenceFileFactory;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.Transient;
 import org.springframework.data.annotation.TypeAlias;
 import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
@@ -55,6 +58,16 @@ public class Sequence {
      * contribution of each samples of the project to this sequence.
      */
     public static final String FIELDNAME_SAMPLE_COMPOSITION = "sc";
+
+    /**
+     * indexes, in the project's sample dictionary, of the samples contributing to this sequence (alternative to FIELDNAME_SAMPLE_COMPOSITION for dictionary-encoded projects)
+     */
+    public static final String FIELDNAME_SAMPLE_INDEXES = "si";
+
+    /**
+     * read counts matching FIELDNAME_SAMPLE_INDEXES
+     */
+    public static final String FIELDNAME_SAMPLE_COUNTS = "sn";
     
     /**
      * length of the nucleotidic sequence
@@ -97,8 +110,8 @@ public class Sequence {
 			return projectId + "§" + qseqid;
 		}
 		
-		public int hashCode() {
-			return toString().hashCode();
+		public int hashCode() {	// String caches its hash, so unlike hashing toString() this allocates nothing
+			return 31 * projectId + qseqid.hashCode();
 		}
 	}
 
@@ -106,10 +119,20 @@ public class Sequence {
     private SequenceId id;
 
     @Field(DBConstant.DOUBLE_TYPE)
-    private Map<Integer, Double> doubleFields;
+    private DoubleFieldMap doubleFields;
 
     @Field(FIELDNAME_SAMPLE_COMPOSITION)
     private List<SampleReadCount> sampleComposition;
+
+    @Field(FIELDNAME_SAMPLE_INDEXES)
+    private int[] sampleIndexes;
+
+    @Field(FIELDNAME_SAMPLE_COUNTS)
+    private int[] sampleCounts;
+
+    /** the project's sample dictionary, attached when reading a dictionary-encoded sequence (see SampleDictionaryResolver) */
+    @Transient
+    private List<String> sampleDictionary;
     
     public Sequence() {
     }
@@ -131,17 +154,74 @@ public class Sequence {
     }
 
     public void setDoubleFields(Map<Integer, Double> doubleFields) {
-        this.doubleFields = doubleFields;
+    	if (doubleFields == null || doubleFields instanceof DoubleFieldMap)
+    		this.doubleFields = (DoubleFieldMap) doubleFields;
+    	else {
+    		this.doubleFields = new DoubleFieldMap(doubleFields.size());
+    		this.doubleFields.putAll(doubleFields);
+    	}
+    }
+
+    public DoubleFieldMap getDoubleFieldMap() {
+        return doubleFields;
     }
 
+    /**
+     * @return the sample composition, whichever way it is stored
+     * @throws IllegalStateException if it is dictionary-encoded and this sequence was not read through a module's template (in which case getSampleComposition(List<String>) must be used)
+     */
 	public List<SampleReadCount> getSampleComposition() {
-        return sampleComposition;
+		if (sampleIndexes != null && sampleDictionary == null)
+			throw new IllegalStateException("Sample composition of sequence " + id + " is dictionary-encoded and no sample dictionary is attached to it");
+        return getSampleComposition(sampleDictionary);
     }
 
     public void setSampleComposition(List<SampleReadCount> sampleComposition) {
         this.sampleComposition = sampleComposition;
     }
 
+    /**
+     * @param sampleDictionary the project's sample dictionary (see MetagenomicsProject.getSampleDictionary()), only used if this sequence's composition is dictionary-encoded
+     * @return the sample composition, whichever way it is stored
+     */
+    public List<SampleReadCount> getSampleComposition(List<String> sampleDictionary) {
+    	if (sampleIndexes == null)
+    		return sampleComposition;
+
+    	List<SampleReadCount> result = new ArrayList<>(sampleIndexes.length);
+    	for (int i=0; i<sampleIndexes.length; i++)
+    		result.add(new SampleReadCount(sampleDictionary.get(sampleIndexes[i]), sampleCounts[i]));
+    	return result;
+    }
+
+    /**
+     * Sets a dictionary-encoded sample composition
+     *
+     * @param sampleIndexes indexes in the project's sample dictionary
+     * @param sampleCounts read counts matching sampleIndexes
+     */
+    public void setPackedSampleComposition(int[] sampleIndexes, int[] sampleCounts) {
+    	if (sampleIndexes.length != sampleCounts.length)
+    		throw new IllegalArgumentException("Sample index and count arrays must have the same length");
+    	this.sampleIndexes = sampleIndexes;
+    	this.sampleCounts = sampleCounts;
+    }
+
+    /**
+     * @param sampleDictionary the project's sample dictionary, to be used by getSampleComposition() when this sequence's composition is dictionary-encoded
+     */
+    public void setSampleDictionary(List<String> sampleDictionary) {
+    	this.sampleDictionary = sampleDictionary;
+    }
+
+    public int[] getSampleIndexes() {
+    	return sampleIndexes;
+    }
+
+    public int[] getSampleCounts() {
+    	return sampleCounts;
+    }
+
 	public boolean equals(Object o) {
 		if (o == null || !(o instanceof Sequence))
 			return false;
@@ -0,0 +1,295 @@
+/*******************************************************************************
+ * metaXplorDB - Copyright (C) 2020 <CIRAD>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.metaxplor.model;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.bson.Document;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import com.mongodb.client.MongoCursor;
+
+import fr.cirad.tools.mongo.MongoTemplateManager;
+
+/**
+ * In-memory copy of the taxonomy tree held in the commons database, answering ancestry questions without any DB round-trip.
+ * Nodes are indexed by taxid into primitive arrays (parent id, rank code, offset of the scientific name in a UTF-8 arena)
+ * so that the whole NCBI taxonomy only takes a few tens of MB.
+ *
+ * @author sempere
+ */
+public class TaxonomyEngine {
+
+	private static final Logger LOG = Logger.getLogger(TaxonomyEngine.class);
+
+	public static final int ROOT_TAXID = 1;
+
+	/** guards against cycles in corrupted data (the NCBI tree is far less deep than this) */
+	private static final int MAX_DEPTH = 256;
+
+	/** min interval between two checks for taxonomy data modifications, in ms */
+	private static final long MODIFICATION_CHECK_INTERVAL = 60000;
+
+	private static volatile TaxonomyEngine instance;
+
+	/** time before which getInstance() does not check whether taxonomy data was modified */
+	private static volatile long nextModificationCheckTime = 0;
+
+	/** identifies the contents of the taxon collection this engine was loaded from */
+	private List<Object> dataSignature;
+
+	/** parent taxid for each taxid (0 means the taxid does not exist) */
+	private int[] parents;
+
+	/** index of each taxid's rank in rankNames (which contains null for taxa with no rank field) */
+	private byte[] rankCodes;
+
+	/** nameOffsets[taxid] and nameOffsets[taxid + 1] delimit the taxon's scientific name in nameArena */
+	private int[] nameOffsets;
+	private byte[] nameArena;
+
+	private final List<String> rankNames = new ArrayList<>();
+
+	private int nNodeCount = 0;
+
+	private TaxonomyEngine() {
+	}
+
+	/**
+	 * @return the shared engine, loaded from the commons database on first call. Since the taxonomy may be re-imported by another process
+	 * (see NCBITaxonomyImport.main), the engine is reloaded when the taxon collection is found to have been modified, which is checked
+	 * at most once every MODIFICATION_CHECK_INTERVAL
+	 */
+	public static TaxonomyEngine getInstance() {
+		TaxonomyEngine engine = instance;
+		if (engine != null && System.currentTimeMillis() < nextModificationCheckTime)
+			return engine;
+
+		synchronized (TaxonomyEngine.class) {
+			engine = instance;
+			if (engine != null && System.currentTimeMillis() < nextModificationCheckTime)
+				return engine;
+
+			MongoTemplate commonsTemplate = MongoTemplateManager.getCommonsTemplate();
+			List<Object> dataSignature = getDataSignature(commonsTemplate);
+			if (engine == null || !dataSignature.equals(engine.dataSignature)) {
+				if (engine != null)
+					LOG.info("Taxonomy data was modified: reloading it");
+				engine = load(commonsTemplate);
+				engine.dataSignature = dataSignature;
+				instance = engine;
+			}
+			nextModificationCheckTime = System.currentTimeMillis() + MODIFICATION_CHECK_INTERVAL;
+		}
+		return engine;
+	}
+
+	/**
+	 * @return the taxon collection's UUID (which changes when the collection is dropped and re-created, as done when importing the taxonomy) and document count
+	 */
+	private static List<Object> getDataSignature(MongoTemplate commonsTemplate) {
+		String collName = commonsTemplate.getCollectionName(Taxon.class);
+		Document collInfo = commonsTemplate.getDb().listCollections().filter(new Document("name", collName)).first();
+		Object uuid = collInfo == null || collInfo.get("info") == null ? null : ((Document) collInfo.get("info")).get("uuid");
+		return Arrays.asList(uuid, collInfo == null ? 0 : commonsTemplate.getCollection(collName).estimatedDocumentCount());
+	}
+
+	/**
+	 * Discards the shared engine so that the next call to getInstance() reloads it (to be invoked when taxonomy data gets modified within this process)
+	 */
+	public static void invalidate() {
+		synchronized (TaxonomyEngine.class) {
+			instance = null;
+		}
+	}
+
+	private static TaxonomyEngine load(MongoTemplate commonsTemplate) {
+		long before = System.currentTimeMillis();
+		TaxonomyEngine engine = new TaxonomyEngine();
+		int nCapacity = 1 << 16;
+		engine.parents = new int[nCapacity];
+		engine.rankCodes = new byte[nCapacity];
+		engine.nameOffsets = new int[nCapacity + 1];
+		ByteArrayOutputStream arena = new ByteArrayOutputStream(1 << 20);
+
+		Document projection = new Document(Taxon.FIELDNAME_PARENT_ID, 1).append(Taxon.FIELDNAME_RANK, 1).append(Taxon.FIELDNAME_NAMES, new Document("$slice", 1));
+		int nPreviousId = -1;
+		try (MongoCursor<Document> cursor = commonsTemplate.getCollection(commonsTemplate.getCollectionName(Taxon.class)).find().projection(projection).sort(new Document("_id", 1)).batchSize(10000).iterator()) {
+			while (cursor.hasNext()) {
+				Document taxon = cursor.next();
+				int id = ((Number) taxon.get("_id")).intValue();
+				if (id <= nPreviousId)
+					continue;
+				if (id + 1 >= nCapacity) {
+					while (id + 1 >= nCapacity)
+						nCapacity *= 2;
+					engine.parents = Arrays.copyOf(engine.parents, nCapacity);
+					engine.rankCodes = Arrays.copyOf(engine.rankCodes, nCapacity);
+					engine.nameOffsets = Arrays.copyOf(engine.nameOffsets, nCapacity + 1);
+				}
+				for (int i=nPreviousId + 1; i<=id; i++)
+					engine.nameOffsets[i] = arena.size();	// ids with no taxon get an empty name
+
+				Number parent = (Number) taxon.get(Taxon.FIELDNAME_PARENT_ID);
+				engine.parents[id] = parent == null ? id : parent.intValue();	// a node with no parent is considered as a root
+				engine.rankCodes[id] = engine.getRankCode(taxon.getString(Taxon.FIELDNAME_RANK));
+				List<?> names = (List<?>) taxon.get(Taxon.FIELDNAME_NAMES);
+				if (names != null && !names.isEmpty() && names.get(0) != null) {
+					byte[] nameBytes = names.get(0).toString().getBytes(StandardCharsets.UTF_8);
+					arena.write(nameBytes, 0, nameBytes.length);
+				}
+				nPreviousId = id;
+				engine.nNodeCount++;
+			}
+		}
+		engine.parents = Arrays.copyOf(engine.parents, nPreviousId + 1);
+		engine.rankCodes = Arrays.copyOf(engine.rankCodes, nPreviousId + 1);
+		engine.nameOffsets = Arrays.copyOf(engine.nameOffsets, nPreviousId + 2);
+		engine.nameOffsets[nPreviousId + 1] = arena.size();
+		engine.nameArena = arena.toByteArray();
+		LOG.info("Loaded " + engine.nNodeCount + " taxa into memory in " + (System.currentTimeMillis() - before) + "ms (" + engine.nameArena.length / 1024 + "KB of names)");
+		return engine;
+	}
+
+	private byte getRankCode(String rank) {
+		int nCode = rankNames.indexOf(rank);
+		if (nCode == -1) {
+			if (rankNames.size() == Byte.MAX_VALUE)
+				throw new IllegalStateException("Too many distinct taxonomic ranks");
+			rankNames.add(rank);
+			nCode = rankNames.size() - 1;
+		}
+		return (byte) nCode;
+	}
+
+	/**
+	 * @param taxid
+	 * @return whether the taxonomy contains this taxid
+	 */
+	public boolean contains(int taxid) {
+		return taxid > 0 && taxid < parents.length && parents[taxid] != 0;
+	}
+
+	/**
+	 * @param taxid
+	 * @return the parent's taxid, or -1 if taxid is unknown
+	 */
+	public int getParent(int taxid) {
+		return contains(taxid) ? parents[taxid] : -1;
+	}
+
+	/**
+	 * @param taxid
+	 * @return the taxon's rank, or null if taxid is unknown or the taxon has no rank field
+	 */
+	public String getRank(int taxid) {
+		return contains(taxid) ? rankNames.get(rankCodes[taxid]) : null;
+	}
+
+	/**
+	 * @param taxid
+	 * @return the taxon's scientific name, or null if taxid is unknown
+	 */
+	public String getName(int taxid) {
+		return contains(taxid) ? new String(nameArena, nameOffsets[taxid], nameOffsets[taxid + 1] - nameOffsets[taxid], StandardCharsets.UTF_8) : null;
+	}
+
+	/**
+	 * @param taxid
+	 * @return the taxon's ancestors ordered from the top of the tree (root excluded), followed by the taxon itself. Empty if taxid is unknown
+	 */
+	public int[] getAncestry(int taxid) {
+		if (!contains(taxid))
+			return new int[0];
+
+		int[] path = new int[32];
+		int nLength = 0;
+		for (int current = taxid; current != ROOT_TAXID && contains(current) && nLength < MAX_DEPTH; current = parents[current]) {
+			if (nLength == path.length)
+				path = Arrays.copyOf(path, nLength * 2);
+			path[nLength++] = current;
+			if (parents[current] == current)
+				break;
+		}
+		int[] result = new int[nLength];
+		for (int i=0; i<nLength; i++)
+			result[i] = path[nLength - 1 - i];
+		return result;
+	}
+
+	/**
+	 * @param taxid
+	 * @param rank
+	 * @return the taxid of the taxon's ancestor (or of the taxon itself) with the given rank, or -1 if there is none
+	 */
+	public int getAncestorAtRank(int taxid, String rank) {
+		int nRankCode = rank == null ? -1 : rankNames.indexOf(rank);
+		if (nRankCode == -1)
+			return -1;
+
+		int nDepth = 0;
+		for (int current = taxid; contains(current) && nDepth++ < MAX_DEPTH; current = parents[current]) {
+			if (rankCodes[current] == nRankCode)
+				return current;
+			if (parents[current] == current)
+				break;
+		}
+		return -1;
+	}
+
+	/**
+	 * Builds a lineage string in the same format as the one historically produced by TaxonomyNode.getTaxaAncestry
+	 *
+	 * @param taxid
+	 * @param fUseNamesRatherThanIDs if true, taxa with no rank are skipped
+	 * @param fIncludeRankPrefix whether to prepend names / ids with TaxonomyNode.rankPrefixes
+	 * @param delimiter
+	 * @return the lineage, or null if taxid is unknown
+	 */
+	public String getLineage(int taxid, boolean fUseNamesRatherThanIDs, boolean fIncludeRankPrefix, String delimiter) {
+		if (!contains(taxid))
+			return null;
+
+		StringBuilder lineage = new StringBuilder();
+		for (int ancestor : getAncestry(taxid)) {
+			String rank = rankNames.get(rankCodes[ancestor]);
+			if (fUseNamesRatherThanIDs && "no rank".equals(rank))
+				continue;
+			if (lineage.length() > 0)
+				lineage.append(delimiter);
+			String prefix = fIncludeRankPrefix ? TaxonomyNode.rankPrefixes.get(rank) : null;
+			if (prefix != null)
+				lineage.append(prefix);
+			if (fUseNamesRatherThanIDs)
+				lineage.append(getName(ancestor));
+			else
+				lineage.append(ancestor);
+		}
+		return lineage.toString();
+	}
+
+	/**
+	 * @return number of taxa held by this engine
+	 */
+	public int size() {
+		return nNodeCount;
+	}
+}
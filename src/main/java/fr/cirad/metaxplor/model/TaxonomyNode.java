@@ -27,12 +27,6 @@ import java.util.TreeMap;
 import java.util.TreeSet;
 
 import org.apache.log4j.Logger;
-import org.bson.Document;
-
-import com.mongodb.BasicDBObject;
-import com.mongodb.client.MongoCursor;
-
-import fr.cirad.tools.mongo.MongoTemplateManager;
 
 public class TaxonomyNode implements Comparable {
 
@@ -95,31 +89,19 @@ public class TaxonomyNode implements Comparable {
         return children;
     }
 
+    /**
+     * @param taxa
+     * @param fUseNamesRatherThanIDs
+     * @param fIncludeRankPrefix
+     * @param delimiter
+     * @return the lineage of each taxon found in the taxonomy (resolved in memory by TaxonomyEngine)
+     */
     static public HashMap<Integer, String> getTaxaAncestry(Collection<Integer> taxa, boolean fUseNamesRatherThanIDs, boolean fIncludeRankPrefix, String delimiter) {
-//    	long before = System.currentTimeMillis();
-    	String taxCollName = MongoTemplateManager.getCommonsTemplate().getCollectionName(Taxon.class);
-    	List<BasicDBObject> pipeline = new ArrayList<>();
-    	pipeline.add(new BasicDBObject("$match", new BasicDBObject("_id", new BasicDBObject("$in", taxa))));
-    	pipeline.add(new BasicDBObject("$graphLookup", new BasicDBObject("from", taxCollName).append("startWith", "$_id").append("connectFromField", "pa").append("connectToField", "_id").append("as", "tx").append("depthField", "dp")));
-    	pipeline.add(new BasicDBObject("$unwind", "$tx"));
-    	pipeline.add(new BasicDBObject("$sort", new BasicDBObject("tx.dp", -1)));
-    	pipeline.add(new BasicDBObject("$group", new BasicDBObject("_id", "$_id").append("tx", new BasicDBObject("$push", "$tx"))));
-    	MongoCursor<Document> cursor = MongoTemplateManager.getCommonsTemplate().getCollection(taxCollName).aggregate(pipeline).iterator();
-
+    	TaxonomyEngine taxonomyEngine = TaxonomyEngine.getInstance();
     	HashMap<Integer, String> result = new HashMap<>();
-    	while (cursor.hasNext()) {
-    		Document taxonWithAncestry = cursor.next();
-    		StringBuffer taxonomy = new StringBuffer();
-    		for (Object tx : (List) taxonWithAncestry.get("tx")) {
-    			Document taxon = (Document) tx;
-    			if ((int) taxon.get("_id") != 1 && (!fUseNamesRatherThanIDs || !"no rank".equals(taxon.get(Taxon.FIELDNAME_RANK)))) {
-    				String prefix = fIncludeRankPrefix ? rankPrefixes.get(taxon.get(Taxon.FIELDNAME_RANK)) : null;
-    				taxonomy.append((taxonomy.length() == 0 ? "" : delimiter) + (prefix != null ? prefix : "") + (fUseNamesRatherThanIDs ? ((List) taxon.get(Taxon.FIELDNAME_NAMES)).get(0) : taxon.get("_id")));
-    			}
-    		}
-    		result.put((int) taxonWithAncestry.get("_id"), taxonomy.toString()); 
-    	}
-//    	LOG.debug("getTaxaAncestry took " + (System.currentTimeMillis() - before) + "ms for " + taxa.size() + " taxa");
+    	for (Integer taxon : taxa)
+    		if (taxon != null && taxonomyEngine.contains(taxon))
+    			result.put(taxon, taxonomyEngine.getLineage(taxon, fUseNamesRatherThanIDs, fIncludeRankPrefix, delimiter));
     	return result;
     }
 
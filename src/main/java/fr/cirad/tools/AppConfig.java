@@ -110,7 +110,21 @@ public class AppConfig {
         return url + (url.endsWith("/") ? "" : "/");
     }
     
+    /**
+     * @return whether esummary requests shall be sent via POST, with large adaptive batches of ids (default), rather than via GET with 50 ids each
+     */
+    public boolean isEUtilsPostEnabled() {
+    	return !"false".equalsIgnoreCase(environment.getProperty("eutils_post_requests"));
+    }
+
+    /**
+     * @return whether sample compositions of newly imported projects shall be stored as indexes into a per-project sample dictionary (see MetagenomicsProject.FIELDNAME_SAMPLE_DICTIONARY)
+     */
+    public boolean isSampleCompositionDictionaryEncoded() {
+    	return Boolean.parseBoolean(environment.getProperty("dictionaryEncodedSampleComposition"));
+    }
+
     public String get(String sPropertyName) {
         return environment.getProperty(sPropertyName);
     }
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -0,0 +1,171 @@
+/*******************************************************************************
+ * metaXplorDB - Copyright (C) 2020 <CIRAD>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.tools;
+
+/**
+ * Lenient decimal number parser for user-provided cells: accepts either '.' or ',' as decimal separator, an optional sign and exponent,
+ * and surrounding whitespace. It works on char ranges, never throws, and returns NOT_A_NUMBER for anything else (including "NaN" or "Infinity").
+ * Values that can be converted exactly (up to 15 significant digits and a small enough exponent, which covers BLAST-like columns) are computed
+ * in place without allocating, others are delegated to Double.parseDouble, so results are always identical to those of Double.parseDouble.
+ * A strict mode (parseDouble) shares the same fast path but otherwise behaves exactly like Double.parseDouble.
+ *
+ * @author sempere
+ */
+public class DecimalParser {
+
+	/** value returned for input that does not hold a decimal number (test it with Double.isNaN) */
+	public static final double NOT_A_NUMBER = Double.NaN;
+
+    /** powers of ten that are exactly representable as doubles */
+    private static final double[] EXACT_POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    /** largest mantissa that can be converted to a double without rounding */
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    /** exponents beyond this (in absolute value) make any significant mantissa overflow or underflow anyway */
+    private static final int MAX_EXPONENT_DIGITS_VALUE = 100000;
+
+    private DecimalParser() {
+    }
+
+    /**
+     * @param cs
+     * @return the decimal value held by cs, or NOT_A_NUMBER
+     */
+    public static double parse(CharSequence cs) {
+    	return parse(cs, 0, cs.length());
+    }
+
+    /**
+     * @param cs
+     * @param nStart index of the first char to parse (inclusive)
+     * @param nEnd index of the last char to parse (exclusive)
+     * @return the decimal value held by cs between nStart and nEnd, or NOT_A_NUMBER
+     */
+    public static double parse(CharSequence cs, int nStart, int nEnd) {
+    	return parse(cs, nStart, nEnd, false);
+    }
+
+    /**
+     * @param cs
+     * @return the value Double.parseDouble would return for cs
+     * @throws NumberFormatException if cs does not hold a valid double
+     */
+    public static double parseDouble(CharSequence cs) {
+    	return parseDouble(cs, 0, cs.length());
+    }
+
+    /**
+     * @param cs
+     * @param nStart index of the first char to parse (inclusive)
+     * @param nEnd index of the last char to parse (exclusive)
+     * @return the value Double.parseDouble would return for cs between nStart and nEnd
+     * @throws NumberFormatException if cs does not hold a valid double between nStart and nEnd
+     */
+    public static double parseDouble(CharSequence cs, int nStart, int nEnd) {
+    	return parse(cs, nStart, nEnd, true);
+    }
+
+    /**
+     * @param fStrict whether to only accept '.' as decimal separator, and let Double.parseDouble handle (or reject) any input the fast path does not support
+     */
+    private static double parse(CharSequence cs, int nStart, int nEnd, boolean fStrict) {
+    	int nInputStart = nStart, nInputEnd = nEnd;
+    	while (nStart < nEnd && cs.charAt(nStart) <= ' ')
+    		nStart++;
+    	while (nEnd > nStart && cs.charAt(nEnd - 1) <= ' ')
+    		nEnd--;
+
+    	int nPos = nStart;
+    	boolean fNegative = nPos < nEnd && cs.charAt(nPos) == '-';
+    	if (nPos < nEnd && (fNegative || cs.charAt(nPos) == '+'))
+    		nPos++;
+
+    	long nMantissa = 0;
+    	int nDigitCount = 0, nDecimalExponent = 0, nSeparatorPos = -1;
+    	boolean fExact = true;
+    	for (; nPos < nEnd; nPos++) {
+    		char c = cs.charAt(nPos);
+    		if (c >= '0' && c <= '9') {
+    			nDigitCount++;
+    			if (nMantissa >= MAX_EXACT_MANTISSA / 10)
+    				fExact = false;	// too many significant digits for the fast path: keep validating, conversion is delegated below
+    			else {
+	    			nMantissa = nMantissa * 10 + (c - '0');
+	    			if (nSeparatorPos != -1)
+	    				nDecimalExponent--;
+    			}
+    		}
+    		else if ((c == '.' || (c == ',' && !fStrict)) && nSeparatorPos == -1)
+    			nSeparatorPos = nPos;
+    		else
+    			break;
+    	}
+    	if (nDigitCount == 0)
+    		return unsupported(cs, nInputStart, nInputEnd, fStrict);	// NaN, Infinity, hexadecimal notation or invalid input
+
+    	if (nPos < nEnd) {
+    		char c = cs.charAt(nPos);
+    		if (c != 'e' && c != 'E')
+    			return unsupported(cs, nInputStart, nInputEnd, fStrict);	// type suffix or invalid input
+    		nPos++;
+    		boolean fNegativeExponent = nPos < nEnd && cs.charAt(nPos) == '-';
+    		if (nPos < nEnd && (fNegativeExponent || cs.charAt(nPos) == '+'))
+    			nPos++;
+    		if (nPos == nEnd)
+    			return unsupported(cs, nInputStart, nInputEnd, fStrict);
+    		int nExponent = 0;
+    		for (; nPos < nEnd; nPos++) {
+    			c = cs.charAt(nPos);
+    			if (c < '0' || c > '9')
+    				return unsupported(cs, nInputStart, nInputEnd, fStrict);
+    			if (nExponent < MAX_EXPONENT_DIGITS_VALUE)
+    				nExponent = nExponent * 10 + (c - '0');
+    		}
+    		nDecimalExponent += fNegativeExponent ? -nExponent : nExponent;
+    	}
+
+    	double value;
+    	if (!fExact)
+    		return slowParse(cs, nStart, nEnd, nSeparatorPos);
+    	else if (nMantissa == 0)
+    		value = 0;
+    	else if (nDecimalExponent >= 0 && nDecimalExponent < EXACT_POWERS_OF_TEN.length)
+    		value = nMantissa * EXACT_POWERS_OF_TEN[nDecimalExponent];
+    	else if (nDecimalExponent < 0 && -nDecimalExponent < EXACT_POWERS_OF_TEN.length)
+    		value = nMantissa / EXACT_POWERS_OF_TEN[-nDecimalExponent];
+    	else
+    		return slowParse(cs, nStart, nEnd, nSeparatorPos);
+    	return fNegative ? -value : value;
+    }
+
+    /**
+     * Handles input that is not plain decimal notation
+     */
+    private static double unsupported(CharSequence cs, int nStart, int nEnd, boolean fStrict) {
+    	return fStrict ? Double.parseDouble(cs.subSequence(nStart, nEnd).toString()) : NOT_A_NUMBER;
+    }
+
+    /**
+     * Converts an already validated number that cannot be handled exactly by the fast path
+     */
+    private static double slowParse(CharSequence cs, int nStart, int nEnd, int nSeparatorPos) {
+    	StringBuilder sb = new StringBuilder(nEnd - nStart).append(cs, nStart, nEnd);
+    	if (nSeparatorPos != -1)
+    		sb.setCharAt(nSeparatorPos - nStart, '.');
+    	return Double.parseDouble(sb.toString());
+    }
+}
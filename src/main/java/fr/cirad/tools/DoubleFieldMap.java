@@ -0,0 +1,89 @@
+/*******************************************************************************
+ * metaXplorDB - Copyright (C) 2020 <CIRAD>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.tools;
+
+import java.util.Arrays;
+
+/**
+ * Compact map of double values keyed by DBField ids (see IntKeyFieldMap)
+ *
+ * @author sempere
+ */
+public class DoubleFieldMap extends IntKeyFieldMap<Double> {
+
+    private double[] values;
+
+    public DoubleFieldMap() {
+    	this(4);
+    }
+
+    public DoubleFieldMap(int nInitialCapacity) {
+    	super(nInitialCapacity);
+    	values = new double[keys.length];
+    }
+
+    /**
+     * @param key
+     * @param value
+     */
+    public void put(int key, double value) {
+    	int i = insertKey(key);	// may reallocate values
+    	values[i] = value;
+    }
+
+    /**
+     * @param key
+     * @return the key's value, or NaN if absent
+     */
+    public double getDouble(int key) {
+    	int i = indexOf(key);
+    	return i < 0 ? Double.NaN : values[i];
+    }
+
+    /**
+     * @param i
+     * @return the value at index i (see keyAt)
+     */
+    public double valueAt(int i) {
+    	if (i < 0 || i >= nSize)
+    		throw new IndexOutOfBoundsException("Index " + i + " out of size " + nSize);
+    	return values[i];
+    }
+
+	@Override
+	protected void growValues(int nCapacity) {
+		values = Arrays.copyOf(values, nCapacity);
+	}
+
+	@Override
+	protected void moveValues(int nFrom, int nTo, int nLength) {
+		System.arraycopy(values, nFrom, values, nTo, nLength);
+	}
+
+	@Override
+	protected void clearValue(int i) {
+	}
+
+	@Override
+	protected Double boxedValueAt(int i) {
+		return values[i];
+	}
+
+	@Override
+	protected void setBoxedValue(int i, Double value) {
+		values[i] = value;
+	}
+}
@@ -125,6 +125,8 @@ public class Helper {
             	nColCount++;
                 pos = end + 1;
             }
+            if (nColCount == n)
+            	return csvString.substring(pos);	// last column
         }
         throw new IndexOutOfBoundsException("CSV string contains " + ++nColCount +  " columns, index " + n + " doesn't exist");
     }
@@ -0,0 +1,217 @@
+/*******************************************************************************
+ * metaXplorDB - Copyright (C) 2020 <CIRAD>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.tools;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Base class for compact maps keyed by DBField ids: keys are kept sorted in an int array, and subclasses store values in a parallel array.
+ * Entities typically hold a handful of fields, so binary searches are cheap, and nothing gets allocated per entry (no boxed keys, no map nodes).
+ * The java.util.Map interface is supported for compatibility, primitive accessors should be preferred.
+ *
+ * Null values are not supported: putting null removes the key. Instances are not thread-safe.
+ *
+ * @author sempere
+ */
+public abstract class IntKeyFieldMap<V> extends AbstractMap<Integer, V> {
+
+    protected int[] keys;
+    protected int nSize = 0;
+
+    protected IntKeyFieldMap(int nInitialCapacity) {
+    	keys = new int[Math.max(1, nInitialCapacity)];
+    }
+
+    /** grows the value array to at least nCapacity */
+    protected abstract void growValues(int nCapacity);
+
+    /** moves nLength values from index nFrom to index nTo */
+    protected abstract void moveValues(int nFrom, int nTo, int nLength);
+
+    /** releases any reference held at index i */
+    protected abstract void clearValue(int i);
+
+    /** @return value at index i, boxed if needed */
+    protected abstract V boxedValueAt(int i);
+
+    /** sets value at index i */
+    protected abstract void setBoxedValue(int i, V value);
+
+    /**
+     * @param key
+     * @return the key's index if present, (-(insertion point) - 1) otherwise
+     */
+    public int indexOf(int key) {
+    	return Arrays.binarySearch(keys, 0, nSize, key);
+    }
+
+    /**
+     * Makes room for a key if it is not present yet
+     *
+     * @param key
+     * @return the key's index
+     */
+    protected int insertKey(int key) {
+    	int i = indexOf(key);
+    	if (i >= 0)
+    		return i;
+
+    	i = -i - 1;
+    	if (nSize == keys.length) {
+    		keys = Arrays.copyOf(keys, nSize * 2);
+    		growValues(nSize * 2);
+    	}
+    	System.arraycopy(keys, i, keys, i + 1, nSize - i);
+    	moveValues(i, i + 1, nSize - i);
+    	keys[i] = key;
+    	nSize++;
+    	return i;
+    }
+
+    /**
+     * @param i
+     * @return the key at index i (keys are sorted)
+     */
+    public int keyAt(int i) {
+    	if (i < 0 || i >= nSize)
+    		throw new IndexOutOfBoundsException("Index " + i + " out of size " + nSize);
+    	return keys[i];
+    }
+
+    public boolean containsKey(int key) {
+    	return indexOf(key) >= 0;
+    }
+
+    /**
+     * @param key
+     * @return whether the key was present
+     */
+    public boolean removeKey(int key) {
+    	int i = indexOf(key);
+    	if (i < 0)
+    		return false;
+    	removeAt(i);
+    	return true;
+    }
+
+    private void removeAt(int i) {
+    	System.arraycopy(keys, i + 1, keys, i, nSize - i - 1);
+    	moveValues(i + 1, i, nSize - i - 1);
+    	clearValue(--nSize);
+    }
+
+    @Override
+    public int size() {
+    	return nSize;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+    	return key instanceof Integer && containsKey((int) (Integer) key);
+    }
+
+    @Override
+    public V get(Object key) {
+    	if (!(key instanceof Integer))
+    		return null;
+    	int i = indexOf((Integer) key);
+    	return i < 0 ? null : boxedValueAt(i);
+    }
+
+    @Override
+    public V put(Integer key, V value) {
+    	int i = indexOf(key);
+    	V previousValue = i < 0 ? null : boxedValueAt(i);
+    	if (value == null) {
+    		if (i >= 0)
+    			removeAt(i);
+    	}
+    	else
+    		setBoxedValue(insertKey(key), value);
+    	return previousValue;
+    }
+
+    @Override
+    public V remove(Object key) {
+    	if (!(key instanceof Integer))
+    		return null;
+    	int i = indexOf((Integer) key);
+    	if (i < 0)
+    		return null;
+    	V previousValue = boxedValueAt(i);
+    	removeAt(i);
+    	return previousValue;
+    }
+
+    @Override
+    public void clear() {
+    	for (int i=0; i<nSize; i++)
+    		clearValue(i);
+    	nSize = 0;
+    }
+
+    @Override
+    public Set<Map.Entry<Integer, V>> entrySet() {
+    	return new AbstractSet<Map.Entry<Integer, V>>() {
+			@Override
+			public Iterator<Map.Entry<Integer, V>> iterator() {
+				return new Iterator<Map.Entry<Integer, V>>() {
+					private int i = 0;
+					private boolean fRemovable = false;
+
+					@Override
+					public boolean hasNext() {
+						return i < nSize;
+					}
+
+					@Override
+					public Map.Entry<Integer, V> next() {
+						if (i >= nSize)
+							throw new NoSuchElementException();
+						fRemovable = true;
+						int nIndex = i++;
+						return new SimpleEntry<Integer, V>(keys[nIndex], boxedValueAt(nIndex)) {
+							@Override
+							public V setValue(V value) {
+								setBoxedValue(nIndex, value);
+								return super.setValue(value);
+							}
+						};
+					}
+
+					@Override
+					public void remove() {
+						if (!fRemovable)
+							throw new IllegalStateException();
+						removeAt(--i);
+						fRemovable = false;
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return nSize;
+			}
+    	};
+    }
+}
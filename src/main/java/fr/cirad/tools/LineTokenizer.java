@@ -0,0 +1,397 @@
+/*******************************************************************************
+ * metaXplorDB - Copyright (C) 2020 <CIRAD>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.tools;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Splits delimited lines into columns without allocating anything once warmed up: lines are copied into a recycled char buffer,
+ * columns are only recorded as offsets into it, and exposed as CharSequence views or parsed as numbers in place.
+ * Strings only get created when explicitly requested. Unlike String.split, trailing empty columns are kept.
+ *
+ * Views and offsets are only valid until the next line is read or tokenized, and instances are not thread-safe.
+ *
+ * @author sempere
+ */
+public class LineTokenizer {
+
+    private static final int READ_BUFFER_SIZE = 65536;
+
+    private final char delimiter;
+    private final boolean fTrimColumns;
+
+    private final Reader reader;
+    private char[] readBuffer;
+    private int nReadPos = 0, nReadLimit = 0;
+    private boolean fEndOfInput = false;
+    private long nLineNumber = 0;
+
+    private char[] line = new char[1024];
+    private int nLineLength = 0;
+
+    /** start (inclusive) and end (exclusive) offset of each column in line */
+    private int[] columnStarts = new int[64], columnEnds = new int[64];
+    private int nColumnCount = 0;
+
+    private ColumnView[] views = new ColumnView[0];
+
+    /**
+     * Reusable view on one of the columns of the current line
+     */
+    private class ColumnView implements CharSequence {
+    	private final int nColumn;
+
+    	private ColumnView(int nColumn) {
+    		this.nColumn = nColumn;
+    	}
+
+		@Override
+		public int length() {
+			return columnEnds[nColumn] - columnStarts[nColumn];
+		}
+
+		@Override
+		public char charAt(int index) {
+			if (index < 0 || index >= length())
+				throw new IndexOutOfBoundsException("Index " + index + " out of column length " + length());
+			return line[columnStarts[nColumn] + index];
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return new String(line, columnStarts[nColumn] + start, end - start);
+		}
+
+		@Override
+		public String toString() {
+			return getString(nColumn);
+		}
+    }
+
+    /**
+     * Tokenizer to be fed via tokenize()
+     *
+     * @param delimiter
+     * @param fTrimColumns whether leading and trailing whitespace should be excluded from columns
+     */
+    public LineTokenizer(char delimiter, boolean fTrimColumns) {
+    	this(null, delimiter, fTrimColumns);
+    }
+
+    /**
+     * Tokenizer reading lines from a Reader (which needs not be buffered since the tokenizer does its own buffering)
+     *
+     * @param reader
+     * @param delimiter
+     * @param fTrimColumns whether leading and trailing whitespace should be excluded from columns
+     */
+    public LineTokenizer(Reader reader, char delimiter, boolean fTrimColumns) {
+    	this.reader = reader;
+    	this.delimiter = delimiter;
+    	this.fTrimColumns = fTrimColumns;
+    	if (reader != null)
+    		readBuffer = new char[READ_BUFFER_SIZE];
+    }
+
+    /**
+     * Reads and tokenizes the next line (\n and \r\n line endings are supported)
+     *
+     * @return false if the end of input was reached
+     * @throws IOException
+     */
+    public boolean readLine() throws IOException {
+    	if (reader == null)
+    		throw new IllegalStateException("This tokenizer was not created with a Reader");
+
+    	nLineLength = 0;
+    	boolean fGotData = false;
+    	while (true) {
+    		if (nReadPos == nReadLimit) {
+    			if (fEndOfInput || (nReadLimit = reader.read(readBuffer, 0, readBuffer.length)) <= 0) {
+    				fEndOfInput = true;
+    				nReadPos = nReadLimit = 0;
+    				if (!fGotData)
+    					return false;
+    				break;
+    			}
+    			nReadPos = 0;
+    		}
+    		fGotData = true;
+
+    		int nStart = nReadPos;
+    		while (nReadPos < nReadLimit && readBuffer[nReadPos] != '\n')
+    			nReadPos++;
+    		appendToLine(readBuffer, nStart, nReadPos - nStart);
+    		if (nReadPos < nReadLimit) {
+    			nReadPos++;	// skip \n
+    			break;
+    		}
+    	}
+    	if (nLineLength > 0 && line[nLineLength - 1] == '\r')
+    		nLineLength--;
+    	nLineNumber++;
+    	tokenizeLine();
+    	return true;
+    }
+
+    /**
+     * Tokenizes a line that was obtained elsewhere (e.g. a column of another tokenizer)
+     *
+     * @param s
+     * @return this tokenizer
+     */
+    public LineTokenizer tokenize(CharSequence s) {
+    	nLineLength = 0;
+    	int nLength = s.length();
+    	if (nLength > line.length)
+    		line = new char[Math.max(nLength, line.length * 2)];
+    	if (s instanceof String)
+    		((String) s).getChars(0, nLength, line, 0);
+    	else
+    		for (int i=0; i<nLength; i++)
+    			line[i] = s.charAt(i);
+    	nLineLength = nLength;
+    	tokenizeLine();
+    	return this;
+    }
+
+    private void appendToLine(char[] chars, int nOffset, int nLength) {
+    	if (nLineLength + nLength > line.length)
+    		line = Arrays.copyOf(line, Math.max(nLineLength + nLength, line.length * 2));
+    	System.arraycopy(chars, nOffset, line, nLineLength, nLength);
+    	nLineLength += nLength;
+    }
+
+    private void tokenizeLine() {
+    	nColumnCount = 0;
+    	int nStart = 0;
+    	for (int i=0; i<=nLineLength; i++)
+    		if (i == nLineLength || line[i] == delimiter) {
+    			if (nColumnCount == columnStarts.length) {
+    				columnStarts = Arrays.copyOf(columnStarts, nColumnCount * 2);
+    				columnEnds = Arrays.copyOf(columnEnds, nColumnCount * 2);
+    			}
+    			int nEnd = i;
+    			if (fTrimColumns) {
+    				while (nStart < nEnd && line[nStart] <= ' ')
+    					nStart++;
+    				while (nEnd > nStart && line[nEnd - 1] <= ' ')
+    					nEnd--;
+    			}
+    			columnStarts[nColumnCount] = nStart;
+    			columnEnds[nColumnCount++] = nEnd;
+    			nStart = i + 1;
+    		}
+    }
+
+    /**
+     * @return number of lines read so far via readLine()
+     */
+    public long getLineNumber() {
+    	return nLineNumber;
+    }
+
+    /**
+     * @return number of columns in the current line (an empty line has one empty column)
+     */
+    public int getColumnCount() {
+    	return nColumnCount;
+    }
+
+    private void checkColumn(int n) {
+    	if (n < 0 || n >= nColumnCount)
+    		throw new IndexOutOfBoundsException("Line contains " + nColumnCount + " columns, index " + n + " doesn't exist");
+    }
+
+    /**
+     * @param n
+     * @return a view on column n, only valid until the next line is read or tokenized
+     */
+    public CharSequence getColumn(int n) {
+    	checkColumn(n);
+    	if (n >= views.length) {
+    		int nPreviousLength = views.length;
+    		views = Arrays.copyOf(views, Math.max(n + 1, nPreviousLength * 2));
+    		for (int i=nPreviousLength; i<views.length; i++)
+    			views[i] = new ColumnView(i);
+    	}
+    	return views[n];
+    }
+
+    /**
+     * @param n
+     * @return column n's length
+     */
+    public int getLength(int n) {
+    	checkColumn(n);
+    	return columnEnds[n] - columnStarts[n];
+    }
+
+    /**
+     * @param n
+     * @return whether column n is empty
+     */
+    public boolean isEmpty(int n) {
+    	return getLength(n) == 0;
+    }
+
+    /**
+     * @param n
+     * @return a new String holding column n's contents
+     */
+    public String getString(int n) {
+    	checkColumn(n);
+    	return new String(line, columnStarts[n], columnEnds[n] - columnStarts[n]);
+    }
+
+    /**
+     * @param n
+     * @param stopChar
+     * @return a new String holding column n's contents up to the first occurrence of stopChar (excluded), or whole contents if there is none
+     */
+    public String getStringUntil(int n, char stopChar) {
+    	checkColumn(n);
+    	int nEnd = columnStarts[n];
+    	while (nEnd < columnEnds[n] && line[nEnd] != stopChar)
+    		nEnd++;
+    	return new String(line, columnStarts[n], nEnd - columnStarts[n]);
+    }
+
+    /**
+     * @param nMaxColumnCount maximum number of columns to return (ignored if <= 0)
+     * @return a new list holding the contents of the first columns (equivalent to Helper.split)
+     */
+    public List<String> getStrings(int nMaxColumnCount) {
+    	int nCount = nMaxColumnCount > 0 ? Math.min(nMaxColumnCount, nColumnCount) : nColumnCount;
+    	List<String> result = new ArrayList<>(nCount);
+    	for (int i=0; i<nCount; i++)
+    		result.add(getString(i));
+    	return result;
+    }
+
+    /**
+     * @return a new String holding the whole current line
+     */
+    public String getLine() {
+    	return new String(line, 0, nLineLength);
+    }
+
+    /**
+     * @param n
+     * @param s
+     * @return whether column n's contents are equal to s
+     */
+    public boolean columnEquals(int n, CharSequence s) {
+    	checkColumn(n);
+    	int nLength = columnEnds[n] - columnStarts[n];
+    	if (nLength != s.length())
+    		return false;
+    	for (int i=0; i<nLength; i++)
+    		if (line[columnStarts[n] + i] != s.charAt(i))
+    			return false;
+    	return true;
+    }
+
+    /**
+     * @param n
+     * @param prefix
+     * @return whether column n starts with prefix
+     */
+    public boolean columnStartsWith(int n, CharSequence prefix) {
+    	checkColumn(n);
+    	int nLength = prefix.length();
+    	if (columnEnds[n] - columnStarts[n] < nLength)
+    		return false;
+    	for (int i=0; i<nLength; i++)
+    		if (line[columnStarts[n] + i] != prefix.charAt(i))
+    			return false;
+    	return true;
+    }
+
+    /**
+     * @param n
+     * @param values
+     * @return whether column n's contents are equal to one of values
+     */
+    public boolean isColumnOneOf(int n, Collection<String> values) {
+    	for (String value : values)
+    		if (columnEquals(n, value))
+    			return true;
+    	return false;
+    }
+
+    /**
+     * Parses column n as a decimal integer without creating any String
+     *
+     * @param n
+     * @return the column's value
+     * @throws NumberFormatException if the column does not hold a valid int
+     */
+    public int parseInt(int n) {
+    	checkColumn(n);
+    	int nPos = columnStarts[n], nEnd = columnEnds[n];
+    	if (nPos == nEnd)
+    		throw new NumberFormatException("Empty column " + n);
+
+    	boolean fNegative = line[nPos] == '-';
+    	if (fNegative || line[nPos] == '+')
+    		nPos++;
+    	if (nPos == nEnd)
+    		throw new NumberFormatException("For input string: \"" + getString(n) + "\"");
+
+    	long nValue = 0;
+    	for (; nPos < nEnd; nPos++) {
+    		char c = line[nPos];
+    		if (c < '0' || c > '9')
+    			throw new NumberFormatException("For input string: \"" + getString(n) + "\"");
+    		nValue = nValue * 10 + (c - '0');
+    		if (nValue > (long) Integer.MAX_VALUE + 1)
+    			throw new NumberFormatException("For input string: \"" + getString(n) + "\"");
+    	}
+    	if (fNegative)
+    		nValue = -nValue;
+    	if (nValue > Integer.MAX_VALUE)
+    		throw new NumberFormatException("For input string: \"" + getString(n) + "\"");
+    	return (int) nValue;
+    }
+
+    /**
+     * Leniently parses column n as a decimal number (see DecimalParser) without creating any String
+     *
+     * @param n
+     * @return the column's value, or DecimalParser.NOT_A_NUMBER if it does not hold a decimal number
+     */
+    public double parseDecimal(int n) {
+    	return DecimalParser.parse(getColumn(n));
+    }
+
+    /**
+     * Parses column n as a double without creating any String when it holds plain decimal notation (see DecimalParser.parseDouble),
+     * so results are always identical to those of Double.parseDouble
+     *
+     * @param n
+     * @return the column's value
+     * @throws NumberFormatException if the column does not hold a valid double
+     */
+    public double parseDouble(int n) {
+    	return DecimalParser.parseDouble(getColumn(n));
+    }
+}
@@ -0,0 +1,300 @@
+/*******************************************************************************
+ * metaXplorDB - Copyright (C) 2020 <CIRAD>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.tools;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Reads delimited lines from a local file by scanning the bytes of a memory-mapped view of it: no charset decoding happens
+ * while looking for delimiters and line ends, columns are only decoded (as UTF-8) when explicitly requested.
+ * A reader may be restricted to a byte range of the file so that several of them can process a large file in parallel.
+ *
+ * Column accessors only apply to the current line, and instances are not thread-safe.
+ *
+ * @author sempere
+ */
+public class MappedLineReader implements Closeable {
+
+    /** size of the file regions mapped at once (files larger than that are mapped region by region) */
+    private static final int REGION_SIZE = 1 << 28;
+
+    private final FileChannel channel;
+    private final byte delimiter;
+
+    /** lines starting at or after this offset are not returned */
+    private final long rangeEnd;
+
+    private MappedByteBuffer region;
+    private long regionStart;
+    private int nRegionLength;
+
+    /** position in region of the next line to read */
+    private int nPos = 0;
+    private long nLineStartOffset = -1;
+
+    /** start (inclusive) and end (exclusive) position in region of each column of the current line */
+    private int[] columnStarts = new int[64], columnEnds = new int[64];
+    private int nColumnCount = 0;
+
+    private byte[] decodeBuffer = new byte[256];
+
+    /**
+     * Reader for the whole file
+     *
+     * @param file
+     * @param delimiter column delimiter (must be an ASCII character)
+     * @throws IOException
+     */
+    public MappedLineReader(File file, char delimiter) throws IOException {
+    	this(file, delimiter, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Reader for the lines that start within [rangeStart, rangeEnd[. Adjacent ranges thus yield each line exactly once, whether or not their bounds fall on line starts
+     *
+     * @param file
+     * @param delimiter column delimiter (must be an ASCII character)
+     * @param rangeStart
+     * @param rangeEnd
+     * @throws IOException
+     */
+    public MappedLineReader(File file, char delimiter, long rangeStart, long rangeEnd) throws IOException {
+    	if (delimiter > 127)
+    		throw new IllegalArgumentException("Delimiter must be an ASCII character");
+    	this.delimiter = (byte) delimiter;
+    	channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    	this.rangeEnd = Math.min(rangeEnd, channel.size());
+
+    	long nStart = Math.min(rangeStart, channel.size());
+    	if (nStart > 0) {	// the line that contains rangeStart - 1 belongs to the previous range
+    		mapRegion(nStart - 1);
+    		while (nPos < nRegionLength && region.get(nPos) != '\n') {
+    			nPos++;
+    			if (nPos == nRegionLength && regionStart + nRegionLength < channel.size())
+    				mapRegion(regionStart + nRegionLength);
+    		}
+    		mapRegion(regionStart + Math.min(nPos + 1, nRegionLength));
+    	}
+    	else
+    		mapRegion(0);
+    }
+
+    private void mapRegion(long nStart) throws IOException {
+    	regionStart = nStart;
+    	nRegionLength = (int) Math.min(REGION_SIZE, channel.size() - nStart);
+    	region = channel.map(FileChannel.MapMode.READ_ONLY, nStart, nRegionLength);
+    	nPos = 0;
+    }
+
+    /**
+     * Splits [from, to[ into contiguous ranges of similar sizes, to be passed to MappedLineReader(file, delimiter, rangeStart, rangeEnd)
+     *
+     * @param from
+     * @param to
+     * @param nRangeCount
+     * @return nRangeCount + 1 bounds
+     */
+    public static long[] getRangeBounds(long from, long to, int nRangeCount) {
+    	long[] bounds = new long[nRangeCount + 1];
+    	for (int i=0; i<=nRangeCount; i++)
+    		bounds[i] = from + (to - from) * i / nRangeCount;
+    	return bounds;
+    }
+
+    /**
+     * Reads and tokenizes the next line (\n and \r\n line endings are supported)
+     *
+     * @return false if there is no more line in this reader's range
+     * @throws IOException if a line is longer than the mapped region size
+     */
+    public boolean readLine() throws IOException {
+    	if (nPos == nRegionLength) {
+    		if (regionStart + nRegionLength >= channel.size())
+    			return false;
+    		mapRegion(regionStart + nRegionLength);
+    	}
+    	if (regionStart + nPos >= rangeEnd)
+    		return false;
+
+    	int nLineEnd = nPos;
+    	while (true) {
+    		while (nLineEnd < nRegionLength && region.get(nLineEnd) != '\n')
+    			nLineEnd++;
+    		if (nLineEnd < nRegionLength || regionStart + nRegionLength >= channel.size())
+    			break;
+    		if (nPos == 0)
+    			throw new IOException("Line starting at offset " + regionStart + " is longer than " + REGION_SIZE + " bytes");
+    		int nAlreadyScanned = nLineEnd - nPos;	// the line crosses the region's end: remap from its start
+    		mapRegion(regionStart + nPos);
+    		nLineEnd = nAlreadyScanned;
+    	}
+
+    	nLineStartOffset = regionStart + nPos;
+    	int nContentEnd = nLineEnd > nPos && region.get(nLineEnd - 1) == '\r' ? nLineEnd - 1 : nLineEnd;
+    	nColumnCount = 0;
+    	int nColumnStart = nPos;
+    	for (int i=nPos; i<=nContentEnd; i++)
+    		if (i == nContentEnd || region.get(i) == delimiter) {
+    			if (nColumnCount == columnStarts.length) {
+    				columnStarts = Arrays.copyOf(columnStarts, nColumnCount * 2);
+    				columnEnds = Arrays.copyOf(columnEnds, nColumnCount * 2);
+    			}
+    			columnStarts[nColumnCount] = nColumnStart;
+    			columnEnds[nColumnCount++] = i;
+    			nColumnStart = i + 1;
+    		}
+    	nPos = Math.min(nLineEnd + 1, nRegionLength);
+    	return true;
+    }
+
+    /**
+     * @return offset in the file of the current line's first byte
+     */
+    public long getLineStartOffset() {
+    	return nLineStartOffset;
+    }
+
+    /**
+     * @return offset in the file of the byte following the current line
+     */
+    public long getPosition() {
+    	return regionStart + nPos;
+    }
+
+    /**
+     * @return number of columns in the current line (an empty line has one empty column)
+     */
+    public int getColumnCount() {
+    	return nColumnCount;
+    }
+
+    private void checkColumn(int n) {
+    	if (n < 0 || n >= nColumnCount)
+    		throw new IndexOutOfBoundsException("Line contains " + nColumnCount + " columns, index " + n + " doesn't exist");
+    }
+
+    /**
+     * @param n
+     * @return column n's length in bytes
+     */
+    public int getByteLength(int n) {
+    	checkColumn(n);
+    	return columnEnds[n] - columnStarts[n];
+    }
+
+    /**
+     * @param n
+     * @return column n's contents, decoded as UTF-8
+     */
+    public String getString(int n) {
+    	checkColumn(n);
+    	return decode(columnStarts[n], columnEnds[n]);
+    }
+
+    /**
+     * @param n
+     * @param stopChar an ASCII character
+     * @return column n's contents up to the first occurrence of stopChar (excluded), or whole contents if there is none
+     */
+    public String getStringUntil(int n, char stopChar) {
+    	checkColumn(n);
+    	int nEnd = columnStarts[n];
+    	while (nEnd < columnEnds[n] && region.get(nEnd) != stopChar)
+    		nEnd++;
+    	return decode(columnStarts[n], nEnd);
+    }
+
+    private String decode(int nStart, int nEnd) {
+    	int nLength = nEnd - nStart;
+    	if (nLength > decodeBuffer.length)
+    		decodeBuffer = new byte[Math.max(nLength, decodeBuffer.length * 2)];
+    	for (int i=0; i<nLength; i++)
+    		decodeBuffer[i] = region.get(nStart + i);
+    	return new String(decodeBuffer, 0, nLength, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param n
+     * @param s
+     * @return whether column n's contents are equal to s
+     */
+    public boolean columnEquals(int n, String s) {
+    	checkColumn(n);
+    	int nLength = columnEnds[n] - columnStarts[n];
+    	if (nLength != s.length())
+    		return nLength > s.length() && s.chars().anyMatch(c -> c > 127) && s.equals(getString(n));	// non-ASCII strings may be shorter than their encoding
+    	for (int i=0; i<nLength; i++) {
+    		char c = s.charAt(i);
+    		if (c > 127)
+    			return s.equals(getString(n));
+    		if (region.get(columnStarts[n] + i) != c)
+    			return false;
+    	}
+    	return true;
+    }
+
+    /**
+     * @param n
+     * @param values
+     * @return whether column n's contents are equal to one of values
+     */
+    public boolean isColumnOneOf(int n, Collection<String> values) {
+    	for (String value : values)
+    		if (columnEquals(n, value))
+    			return true;
+    	return false;
+    }
+
+    /**
+     * Splits column n on a sub-delimiter and decodes each of the resulting values
+     *
+     * @param n
+     * @param subDelimiter an ASCII character
+     * @param stopChar an ASCII character after which each value gets truncated (e.g. to remove a version number), or 0 to keep values whole
+     * @param nMaxValueCount maximum number of values to collect (ignored if <= 0)
+     * @param valuesToFill
+     */
+    public void collectSubValues(int n, char subDelimiter, char stopChar, int nMaxValueCount, Collection<String> valuesToFill) {
+    	checkColumn(n);
+    	int nValueCount = 0, nValueStart = columnStarts[n], nValueEnd = -1;
+    	for (int i=columnStarts[n]; i<=columnEnds[n]; i++) {
+    		byte b = i == columnEnds[n] ? (byte) subDelimiter : region.get(i);
+    		if (b == subDelimiter) {
+    			valuesToFill.add(decode(nValueStart, nValueEnd == -1 ? i : nValueEnd));
+    			if (++nValueCount == nMaxValueCount)
+    				return;
+    			nValueStart = i + 1;
+    			nValueEnd = -1;
+    		}
+    		else if (stopChar != 0 && b == stopChar && nValueEnd == -1)
+    			nValueEnd = i;
+    	}
+    }
+
+    @Override
+    public void close() throws IOException {
+    	region = null;
+    	channel.close();
+    }
+}
@@ -0,0 +1,74 @@
+/*******************************************************************************
+ * metaXplorDB - Copyright (C) 2020 <CIRAD>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.tools;
+
+import java.util.Arrays;
+
+/**
+ * Compact map of object values (typically String or String[]) keyed by DBField ids (see IntKeyFieldMap)
+ *
+ * @author sempere
+ */
+public class ObjectFieldMap<V> extends IntKeyFieldMap<V> {
+
+    private Object[] values;
+
+    public ObjectFieldMap() {
+    	this(4);
+    }
+
+    public ObjectFieldMap(int nInitialCapacity) {
+    	super(nInitialCapacity);
+    	values = new Object[keys.length];
+    }
+
+    /**
+     * @param i
+     * @return the value at index i (see keyAt)
+     */
+    @SuppressWarnings("unchecked")
+    public V valueAt(int i) {
+    	if (i < 0 || i >= nSize)
+    		throw new IndexOutOfBoundsException("Index " + i + " out of size " + nSize);
+    	return (V) values[i];
+    }
+
+	@Override
+	protected void growValues(int nCapacity) {
+		values = Arrays.copyOf(values, nCapacity);
+	}
+
+	@Override
+	protected void moveValues(int nFrom, int nTo, int nLength) {
+		System.arraycopy(values, nFrom, values, nTo, nLength);
+	}
+
+	@Override
+	protected void clearValue(int i) {
+		values[i] = null;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	protected V boxedValueAt(int i) {
+		return (V) values[i];
+	}
+
+	@Override
+	protected void setBoxedValue(int i, V value) {
+		values[i] = value;
+	}
+}
@@ -24,6 +24,7 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.apache.log4j.Logger;
 
@@ -59,7 +60,7 @@ public class ProgressIndicator
 	private String m_description = null;
 	
 	/** whether it was aborted. */
-	private boolean m_fAborted = false;
+	private volatile boolean m_fAborted = false;
 	
 	/** whether it is complete. */
 	private boolean m_fComplete = false;
@@ -75,6 +76,12 @@ public class ProgressIndicator
 
 	static private HashSet<String> cancelledRemovals = new HashSet<>();
 
+	/** Indicators for steps currently running in parallel with this one's current step. */
+	private List<ProgressIndicator> m_parallelSteps = new CopyOnWriteArrayList<>();
+
+	/** The indicator this one was created by as a parallel step, if any. */
+	private ProgressIndicator m_parent = null;
+
 	/**
 	 * Instantiates a new progress indicator.
 	 *
@@ -108,6 +115,31 @@ public class ProgressIndicator
 		m_stepLabels.add(sStepLabel);
 	}
 		
+	/**
+	 * Adds a step that runs concurrently with the current one. Its progress is reported along with this indicator's until it gets marked as complete.
+	 *
+	 * @param sStepLabel the parallel step's initial label
+	 * @return the indicator to use for tracking the parallel step
+	 */
+	public ProgressIndicator addParallelStep(String sStepLabel)
+	{
+		ProgressIndicator parallelStep = createParallelStep(sStepLabel);
+		parallelStep.m_parent = this;
+		m_parallelSteps.add(parallelStep);
+		return parallelStep;
+	}
+
+	/**
+	 * Instantiates the indicator returned by addParallelStep (may be overridden by subclasses that need their parallel steps to be of the same type)
+	 *
+	 * @param sStepLabel the parallel step's initial label
+	 * @return a new indicator for the same process
+	 */
+	protected ProgressIndicator createParallelStep(String sStepLabel)
+	{
+		return new ProgressIndicator(m_processId, new String[] {sStepLabel});
+	}
+
 	/**
 	 * Gets the step label.
 	 *
@@ -228,13 +260,17 @@ public class ProgressIndicator
 	 * @return the progress description
 	 */
 	public String getProgressDescription() {
+		String description;
 		if (m_stepLabels.size() <= m_currentStepNumber)
-			return "Please wait...";
-		
-		if (m_description != null)
-			return m_description;
+			description = "Please wait...";
+		else if (m_description != null)
+			description = m_description;
+		else
+			description = m_stepLabels.get(m_currentStepNumber) + "... " + (m_currentStepProgress == 0 ? "" : ((m_fSupportsPercentage ? m_currentStepProgress : usNumberFormat.format(m_currentStepProgress)) + (m_fSupportsPercentage ? "%" : "")));
 
-		return m_stepLabels.get(m_currentStepNumber) + "... " + (m_currentStepProgress == 0 ? "" : ((m_fSupportsPercentage ? m_currentStepProgress : usNumberFormat.format(m_currentStepProgress)) + (m_fSupportsPercentage ? "%" : "")));
+		for (ProgressIndicator parallelStep : m_parallelSteps)
+			description += " | " + parallelStep.getProgressDescription();
+		return description;
 	}
 	
 	/**
@@ -272,7 +308,7 @@ public class ProgressIndicator
 	 * @return true, if successful
 	 */
 	public boolean isAborted() {
-		return m_fAborted;
+		return m_fAborted || (m_parent != null && m_parent.isAborted());
 	}
 	
 	/**
@@ -305,6 +341,8 @@ public class ProgressIndicator
 	
 	protected void setComplete(boolean fComplete) {
 		m_fComplete = fComplete;
+		if (fComplete && m_parent != null)
+			m_parent.m_parallelSteps.remove(this);
 	}
 
 	protected void setFinalMessage(String finalMessage) {
@@ -0,0 +1,156 @@
+/*******************************************************************************
+ * metaXplorDB - Copyright (C) 2020 <CIRAD>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.tools.mongo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.Document;
+import org.springframework.core.convert.converter.Converter;
+import org.springframework.data.convert.ReadingConverter;
+import org.springframework.data.convert.WritingConverter;
+import org.springframework.data.mongodb.core.convert.MongoCustomConversions;
+
+import fr.cirad.metaxplor.model.Assignment;
+import fr.cirad.tools.DoubleFieldMap;
+import fr.cirad.tools.ObjectFieldMap;
+
+/**
+ * Converters that write compact field maps (and the assignments holding them) straight to BSON documents, without going through
+ * reflection-based mapping nor boxing keys and values. The produced layout is the one Spring used to produce for Map<Integer, ...>
+ * properties, i.e. sub-documents keyed by field id, so existing data and queries are not affected.
+ *
+ * @author sempere
+ */
+public class FieldMapConversions {
+
+    /** string representations of the most common field ids, to avoid creating them for each document key */
+    private static final String[] KEY_STRINGS = new String[1024];
+    static {
+    	for (int i=0; i<KEY_STRINGS.length; i++)
+    		KEY_STRINGS[i] = String.valueOf(i).intern();
+    }
+
+    private FieldMapConversions() {
+    }
+
+    /**
+     * @return custom conversions to be registered on the MappingMongoConverter of each MongoTemplate
+     */
+    public static MongoCustomConversions getCustomConversions() {
+    	return new MongoCustomConversions(Arrays.asList(new DoubleFieldMapWriter(), new DoubleFieldMapReader(), new AssignmentWriter(), new AssignmentReader()));
+    }
+
+    private static String keyToString(int key) {
+    	return key >= 0 && key < KEY_STRINGS.length ? KEY_STRINGS[key] : String.valueOf(key);
+    }
+
+    static Document toDocument(DoubleFieldMap fieldMap) {
+    	Document doc = new Document();
+    	for (int i=0; i<fieldMap.size(); i++)
+    		doc.put(keyToString(fieldMap.keyAt(i)), fieldMap.valueAt(i));
+    	return doc;
+    }
+
+    static DoubleFieldMap toDoubleFieldMap(Document doc) {
+    	DoubleFieldMap fieldMap = new DoubleFieldMap(doc.size());
+    	for (Map.Entry<String, Object> entry : doc.entrySet())
+    		if (entry.getValue() != null)
+    			fieldMap.put(Integer.parseInt(entry.getKey()), ((Number) entry.getValue()).doubleValue());
+    	return fieldMap;
+    }
+
+    static Document toDocument(ObjectFieldMap<?> fieldMap) {
+    	Document doc = new Document();
+    	for (int i=0; i<fieldMap.size(); i++) {
+    		Object value = fieldMap.valueAt(i);
+    		doc.put(keyToString(fieldMap.keyAt(i)), value instanceof Object[] ? Arrays.asList((Object[]) value) : value);
+    	}
+    	return doc;
+    }
+
+    static ObjectFieldMap<String> toStringFieldMap(Document doc) {
+    	ObjectFieldMap<String> fieldMap = new ObjectFieldMap<>(doc.size());
+    	for (Map.Entry<String, Object> entry : doc.entrySet())
+    		if (entry.getValue() != null)
+    			fieldMap.put(Integer.parseInt(entry.getKey()), entry.getValue().toString());
+    	return fieldMap;
+    }
+
+    static ObjectFieldMap<String[]> toStringArrayFieldMap(Document doc) {
+    	ObjectFieldMap<String[]> fieldMap = new ObjectFieldMap<>(doc.size());
+    	for (Map.Entry<String, Object> entry : doc.entrySet())
+    		if (entry.getValue() instanceof List) {
+    			List<?> values = (List<?>) entry.getValue();
+    			String[] array = new String[values.size()];
+    			for (int i=0; i<array.length; i++)
+    				array[i] = values.get(i) == null ? null : values.get(i).toString();
+    			fieldMap.put(Integer.parseInt(entry.getKey()), array);
+    		}
+    	return fieldMap;
+    }
+
+    @WritingConverter
+    static class DoubleFieldMapWriter implements Converter<DoubleFieldMap, Document> {
+    	@Override
+    	public Document convert(DoubleFieldMap source) {
+    		return toDocument(source);
+    	}
+    }
+
+    @ReadingConverter
+    static class DoubleFieldMapReader implements Converter<Document, DoubleFieldMap> {
+    	@Override
+    	public DoubleFieldMap convert(Document source) {
+    		return toDoubleFieldMap(source);
+    	}
+    }
+
+    @WritingConverter
+    static class AssignmentWriter implements Converter<Assignment, Document> {
+    	@Override
+    	public Document convert(Assignment source) {
+    		Document doc = new Document();
+    		if (source.getStringFieldMap() != null)
+    			doc.put(DBConstant.STRING_TYPE, toDocument(source.getStringFieldMap()));
+    		if (source.getDoubleFieldMap() != null)
+    			doc.put(DBConstant.DOUBLE_TYPE, toDocument(source.getDoubleFieldMap()));
+    		if (source.getStringArrayFieldMap() != null)
+    			doc.put(DBConstant.STRING_ARRAY_TYPE, toDocument(source.getStringArrayFieldMap()));
+    		return doc;
+    	}
+    }
+
+    @ReadingConverter
+    static class AssignmentReader implements Converter<Document, Assignment> {
+    	@Override
+    	public Assignment convert(Document source) {
+    		Assignment assignment = new Assignment();
+    		Object subDoc = source.get(DBConstant.STRING_TYPE);
+    		if (subDoc instanceof Document)
+    			assignment.setStringFieldMap(toStringFieldMap((Document) subDoc));
+    		subDoc = source.get(DBConstant.DOUBLE_TYPE);
+    		if (subDoc instanceof Document)
+    			assignment.setDoubleFieldMap(toDoubleFieldMap((Document) subDoc));
+    		subDoc = source.get(DBConstant.STRING_ARRAY_TYPE);
+    		if (subDoc instanceof Document)
+    			assignment.setStringArrayFieldMap(toStringArrayFieldMap((Document) subDoc));
+    		return assignment;
+    	}
+    }
+}
@@ -44,8 +44,13 @@ import org.springframework.context.ApplicationContext;
 import org.springframework.context.ApplicationContextAware;
 import org.springframework.core.io.ClassPathResource;
 import org.springframework.core.io.Resource;
+import org.springframework.data.mapping.callback.EntityCallbacks;
 import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.SimpleMongoClientDatabaseFactory;
+import org.springframework.data.mongodb.core.convert.DefaultDbRefResolver;
 import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.convert.MongoCustomConversions;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
 import org.springframework.data.mongodb.core.mapping.Document;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
@@ -278,13 +283,36 @@ public class MongoTemplateManager implements ApplicationContextAware {
             throw new IOException("Unknown host: " + sHost);
         }
 
-        MongoTemplate mongoTemplate = new MongoTemplate(client, sDbName);
-        ((MappingMongoConverter) mongoTemplate.getConverter()).setMapKeyDotReplacement(DOT_REPLACEMENT_STRING);
+        MongoTemplate mongoTemplate = createMongoTemplate(client, sDbName);
 		mongoTemplate.getDb().runCommand(new BasicDBObject("profile", 0));
 
         return mongoTemplate;
     }
 
+    /**
+     * Sets up a template with the converters and callbacks required by metaXplor entities
+     *
+     * @param client
+     * @param sDbName
+     * @return
+     */
+    public static MongoTemplate createMongoTemplate(MongoClient client, String sDbName) {
+        SimpleMongoClientDatabaseFactory dbFactory = new SimpleMongoClientDatabaseFactory(client, sDbName);
+        MongoCustomConversions conversions = FieldMapConversions.getCustomConversions();	// compact field maps get (de)serialized without reflection
+        MongoMappingContext mappingContext = new MongoMappingContext();
+        mappingContext.setSimpleTypeHolder(conversions.getSimpleTypeHolder());
+        mappingContext.afterPropertiesSet();
+        MappingMongoConverter converter = new MappingMongoConverter(new DefaultDbRefResolver(dbFactory), mappingContext);
+        converter.setCustomConversions(conversions);
+        converter.setCodecRegistryProvider(dbFactory);
+        converter.setMapKeyDotReplacement(DOT_REPLACEMENT_STRING);
+        converter.afterPropertiesSet();
+
+        MongoTemplate mongoTemplate = new MongoTemplate(dbFactory, converter);
+        mongoTemplate.setEntityCallbacks(EntityCallbacks.create(new SampleDictionaryResolver(mongoTemplate)));	// dictionary-encoded sample compositions get resolved transparently
+        return mongoTemplate;
+    }
+
     /**
      * Saves or updates a data source.
      *
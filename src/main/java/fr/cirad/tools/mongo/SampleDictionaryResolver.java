@@ -0,0 +1,80 @@
+/*******************************************************************************
+ * metaXplorDB - Copyright (C) 2020 <CIRAD>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.tools.mongo;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bson.Document;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.mapping.event.AfterConvertCallback;
+
+import fr.cirad.metaxplor.model.MetagenomicsProject;
+import fr.cirad.metaxplor.model.Sequence;
+
+/**
+ * Attaches its project's sample dictionary to each dictionary-encoded sequence read through a module's template, so that
+ * Sequence.getSampleComposition() works the same whichever way compositions are stored. Dictionaries are cached for a short while,
+ * which is enough since a project's dictionary is never modified once written. It is only written when the import saves the project
+ * though, so a missing dictionary does not get cached.
+ *
+ * @author sempere
+ */
+public class SampleDictionaryResolver implements AfterConvertCallback<Sequence> {
+
+    /** how long a dictionary is kept in cache, in ms */
+    private static final long CACHE_DURATION = 60000;
+
+    private final MongoTemplate mongoTemplate;
+
+    /** cached dictionaries by project id, along with their expiry time */
+    private final Map<Integer, Object[]> cachedDictionaries = new ConcurrentHashMap<>();
+
+    /**
+     * @param mongoTemplate the module's template, from which project dictionaries are read
+     */
+    public SampleDictionaryResolver(MongoTemplate mongoTemplate) {
+    	this.mongoTemplate = mongoTemplate;
+    }
+
+    @Override
+    public Sequence onAfterConvert(Sequence sequence, Document document, String collection) {
+    	if (sequence.getSampleIndexes() != null && sequence.getId() != null)
+    		sequence.setSampleDictionary(getSampleDictionary(sequence.getId().getProjectId()));
+    	return sequence;
+    }
+
+    /**
+     * @param projectId
+     * @return the project's sample dictionary, empty if it has none
+     */
+    @SuppressWarnings("unchecked")
+    private List<String> getSampleDictionary(int projectId) {
+    	long now = System.currentTimeMillis();
+    	Object[] dictionaryAndExpiry = cachedDictionaries.get(projectId);
+    	if (dictionaryAndExpiry == null || (long) dictionaryAndExpiry[1] < now) {
+    		Document project = mongoTemplate.getCollection(mongoTemplate.getCollectionName(MetagenomicsProject.class)).find(new Document("_id", projectId)).projection(new Document(MetagenomicsProject.FIELDNAME_SAMPLE_DICTIONARY, 1)).first();
+    		List<String> dictionary = project == null ? null : project.getList(MetagenomicsProject.FIELDNAME_SAMPLE_DICTIONARY, String.class);
+    		if (dictionary == null)
+    			return Collections.emptyList();	// project still being imported
+    		dictionaryAndExpiry = new Object[] {Collections.unmodifiableList(dictionary), now + CACHE_DURATION};
+    		cachedDictionaries.put(projectId, dictionaryAndExpiry);
+    	}
+    	return (List<String>) dictionaryAndExpiry[0];
+    }
+}
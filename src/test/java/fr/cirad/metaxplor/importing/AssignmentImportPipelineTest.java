@@ -0,0 +1,129 @@
+/*******************************************************************************
+ * metaXplorDB - Copyright (C) 2020 <CIRAD>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.metaxplor.importing;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+
+import de.bwaldvogel.mongo.MongoServer;
+import de.bwaldvogel.mongo.backend.memory.MemoryBackend;
+import fr.cirad.metaxplor.model.AssignedSequence;
+import fr.cirad.metaxplor.model.Assignment;
+import fr.cirad.tools.mongo.MongoTemplateManager;
+
+/**
+ * @author sempere
+ */
+public class AssignmentImportPipelineTest {
+
+    private static final int PROJECT_ID = 3, LABEL_FIELD_ID = 1;
+
+    private MongoServer server;
+    private MongoClient client;
+    private MongoTemplate mongoTemplate;
+
+    @Before
+    public void setUp() {
+    	server = new MongoServer(new MemoryBackend());
+    	client = MongoClients.create(server.bindAndGetConnectionString());
+    	mongoTemplate = MongoTemplateManager.createMongoTemplate(client, "assignmentImportPipelineTest");
+    }
+
+    @After
+    public void tearDown() {
+    	client.close();
+    	server.shutdownNow();
+    }
+
+    private static Assignment createAssignment(String label) {
+    	Assignment assignment = new Assignment();
+    	assignment.addStringField(LABEL_FIELD_ID, label);
+    	return assignment;
+    }
+
+    /**
+     * Imports non-consecutive assignments of a few sequences, with flushes occurring in the middle of each batch
+     *
+     * @param fProjectInitiallyEmpty
+     * @return labels of the assignments submitted for each qseqid
+     */
+    private Map<String, List<String>> runPipeline(boolean fProjectInitiallyEmpty) throws Exception {
+    	QseqidRegistry registry = new QseqidRegistry(0);
+    	AssignmentImportPipeline pipeline = new AssignmentImportPipeline(mongoTemplate, PROJECT_ID, registry, fProjectInitiallyEmpty, 2, 7, new AssignmentImportPipeline.AssignmentLineHandler() {
+    		@Override
+    		public AssignedSequence createSequence(String qseqid) {
+    			return new AssignedSequence(PROJECT_ID, qseqid);
+    		}
+
+    		@Override
+    		public Assignment parseAssignment(String line) {
+    			return createAssignment(line);
+    		}
+    	});
+
+    	Map<String, List<String>> submittedLabels = new HashMap<>();
+    	pipeline.start();
+    	for (int i=0; i<3 * AssignmentImportPipeline.LINES_PER_BATCH; i++) {
+    		String qseqid = "q" + (i % 37), label = "a" + i;
+    		pipeline.submit(qseqid, label);
+    		submittedLabels.computeIfAbsent(qseqid, k -> new ArrayList<>()).add(label);
+    		if (i == AssignmentImportPipeline.LINES_PER_BATCH)
+    			pipeline.checkpoint();
+    	}
+    	pipeline.finish();
+    	assertEquals(submittedLabels.size(), pipeline.getEncounteredSequences().size());
+    	return submittedLabels;
+    }
+
+    private void assertPersisted(Map<String, List<String>> expectedLabels) {
+    	List<AssignedSequence> sequences = mongoTemplate.findAll(AssignedSequence.class);
+    	assertEquals(expectedLabels.size(), sequences.size());
+    	for (AssignedSequence sequence : sequences) {
+    		List<String> labels = new ArrayList<>();
+    		for (Assignment assignment : sequence.getAssignments())
+    			labels.add(assignment.getStringFields().get(LABEL_FIELD_ID));
+    		assertEquals(sequence.getId().getQseqid(), expectedLabels.get(sequence.getId().getQseqid()), labels);
+    	}
+    }
+
+    @Test
+    public void mergesAssignmentsAcrossFlushesInEmptyProject() throws Exception {
+    	assertPersisted(runPipeline(true));
+    }
+
+    @Test
+    public void completesExistingSequences() throws Exception {
+    	AssignedSequence existingSeq = new AssignedSequence(PROJECT_ID, "q5");
+    	existingSeq.getAssignments().add(createAssignment("existing"));
+    	mongoTemplate.insert(existingSeq);
+
+    	Map<String, List<String>> expectedLabels = runPipeline(false);
+    	expectedLabels.get("q5").add(0, "existing");
+    	assertPersisted(expectedLabels);
+    }
+}
@@ -0,0 +1,125 @@
+/*******************************************************************************
+ * metaXplorDB - Copyright (C) 2020 <CIRAD>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.metaxplor.importing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import fr.cirad.tools.LineTokenizer;
+
+/**
+ * @author sempere
+ */
+public class BestHitConsistencyCheckerTest {
+
+    private static final int QSEQID_COLUMN = 0, METHOD_COLUMN = 1;
+
+    private final LineTokenizer fields = new LineTokenizer('\t', false);
+
+    private String add(BestHitConsistencyChecker checker, String line, boolean fBestHit) {
+    	return checker.addAssignment(fields.tokenize(line), QSEQID_COLUMN, METHOD_COLUMN, fBestHit);
+    }
+
+    @Test
+    public void acceptsConsistentAssignments() {
+    	BestHitConsistencyChecker checker = new BestHitConsistencyChecker();
+    	assertNull(add(checker, "q1\tblastn", false));	// a single assignment needs no best hit
+    	assertNull(add(checker, "q2\tblastn", true));
+    	assertNull(add(checker, "q2\tblastn", false));
+    	assertNull(add(checker, "q3\tblastn", false));
+    	assertNull(add(checker, "q2\tdiamond", false));
+    	assertNull(add(checker, "q3\tblastn", false));
+    	assertNull(add(checker, "q3\tblastn", true));	// best hit may come last
+    	assertNull(checker.getMissingBestHitError());
+    	assertEquals(4, checker.getPairCount());
+    }
+
+    @Test
+    public void reportsSeveralBestHitsImmediately() {
+    	BestHitConsistencyChecker checker = new BestHitConsistencyChecker();
+    	assertNull(add(checker, "q1\tblastn", true));
+    	assertNull(add(checker, "q1\tdiamond", true));
+    	assertEquals("Several best hits specified for qseqid q1 and assignment method blastn", add(checker, "q1\tblastn", true));
+    }
+
+    @Test
+    public void reportsMissingBestHitAtTheEnd() {
+    	BestHitConsistencyChecker checker = new BestHitConsistencyChecker();
+    	assertNull(add(checker, "q1\tblastn", false));
+    	assertNull(add(checker, "q2\tblastn", false));
+    	assertNull(add(checker, "q1\tblastn", false));
+    	assertEquals("No best hit specified for qseqid q1 and assignment method blastn", checker.getMissingBestHitError());
+    	assertNull(add(checker, "q1\tblastn", true));
+    	assertNull(checker.getMissingBestHitError());
+    }
+
+    @Test
+    public void supportsMissingMethodColumn() {
+    	BestHitConsistencyChecker checker = new BestHitConsistencyChecker();
+    	assertNull(checker.addAssignment(fields.tokenize("q1"), QSEQID_COLUMN, METHOD_COLUMN, false));
+    	assertNull(checker.addAssignment(fields.tokenize("q1\tx"), QSEQID_COLUMN, -1, false));
+    	assertEquals("No best hit specified for qseqid q1 and assignment method ", checker.getMissingBestHitError());
+    	assertEquals(1, checker.getPairCount());
+    }
+
+    @Test
+    public void agreesWithMapBasedCheckOnLargeInput() {
+    	Random random = new Random(1);
+    	BestHitConsistencyChecker checker = new BestHitConsistencyChecker();
+    	Map<String, int[]> countsByPair = new HashMap<>();	// assignment count, best hit count
+    	String[] methods = {"blastn", "diamond", "kraken"};
+    	for (int i=0; i<300000; i++) {
+    		String qseqid = "read_" + random.nextInt(100000), method = methods[random.nextInt(methods.length)];
+    		int[] counts = countsByPair.computeIfAbsent(qseqid + "\t" + method, k -> new int[2]);
+    		boolean fBestHit = counts[1] == 0 && random.nextInt(3) == 0;	// never more than one best hit, which is tested separately
+    		counts[0]++;
+    		if (fBestHit)
+    			counts[1]++;
+    		assertNull(add(checker, qseqid + "\t" + method, fBestHit));
+    	}
+    	assertEquals(countsByPair.size(), checker.getPairCount());
+
+    	int nMissingBestHitCount = 0;
+    	for (int[] counts : countsByPair.values())
+    		if (counts[0] > 1 && counts[1] == 0)
+    			nMissingBestHitCount++;
+    	String error = checker.getMissingBestHitError();
+    	assertEquals(nMissingBestHitCount == 0, error == null);
+
+    	for (Map.Entry<String, int[]> pair : countsByPair.entrySet())	// complete every pair with a best hit
+    		if (pair.getValue()[1] == 0 && pair.getValue()[0] > 1)
+    			assertNull(add(checker, pair.getKey(), true));
+    	assertNull(checker.getMissingBestHitError());
+    	assertEquals(countsByPair.size(), checker.getPairCount());
+    }
+
+    @Test
+    public void countsPendingPairsBeyondNamedOnes() {
+    	BestHitConsistencyChecker checker = new BestHitConsistencyChecker();
+    	for (int i=0; i<20000; i++)
+    		for (int j=0; j<2; j++)
+    			add(checker, "q" + i + "\tblastn", false);
+    	for (int i=0; i<10000; i++)	// resolve all pairs whose names were remembered
+    		add(checker, "q" + i + "\tblastn", true);
+    	assertEquals("No best hit specified for 10000 qseqid / assignment method combination(s)", checker.getMissingBestHitError());
+    }
+}
@@ -0,0 +1,159 @@
+/*******************************************************************************
+ * metaXplorDB - Copyright (C) 2020 <CIRAD>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.metaxplor.importing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import fr.cirad.metaxplor.importing.ESummaryParser.DocumentSummary;
+
+/**
+ * @author sempere
+ */
+public class ESummaryParserTest {
+
+    private static InputStream stream(String json) {
+    	return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void assertUnparseable(String json, String expectedMessagePart) {
+    	try {
+    		ESummaryParser.parseDocumentSummaries(stream(json));
+    		fail("Response should have been rejected: " + json);
+    	}
+    	catch (IOException e) {
+    		assertTrue(e.getMessage(), e.getMessage().contains(expectedMessagePart));
+    	}
+    }
+
+    @Test
+    public void parsesDocumentSummariesInUidOrder() throws IOException {
+    	String json = "{\"header\":{\"type\":\"esummary\",\"version\":\"0.3\"},\n"
+    			+ " \"result\": {\"uids\": [\"2\", \"1\", \"3\"],\n"
+    			+ "  \"1\": {\"uid\": \"1\", \"caption\": \"NC_001\", \"title\": \"Caf\\u00e9 \\\"virus\\\" \\\\ segment\\n\", \"extra\": {\"a\": [1, {\"b\": \"}]\"}], \"c\": null}, \"taxid\": 12345, \"comment\": \"  \"},\n"
+    			+ "  \"2\": {\"caption\": \"XP_2\", \"taxid\": \"678\", \"statistics\": [{\"count\": 3}], \"subtype\": true},\n"
+    			+ "  \"3\": {\"caption\": \"AB_3\", \"taxid\": \"\"}\n"
+    			+ " }}";
+    	List<DocumentSummary> summaries = ESummaryParser.parseDocumentSummaries(stream(json));
+    	assertEquals(3, summaries.size());
+
+    	assertEquals("XP_2", summaries.get(0).getCaption());
+    	assertEquals(Integer.valueOf(678), summaries.get(0).getTaxId());
+    	assertNull(summaries.get(0).getTitle());
+
+    	assertEquals("NC_001", summaries.get(1).getCaption());
+    	assertEquals("Caf\u00e9 \"virus\" \\ segment\n", summaries.get(1).getTitle());
+    	assertEquals("  ", summaries.get(1).getComment());
+    	assertEquals(Integer.valueOf(12345), summaries.get(1).getTaxId());
+
+    	assertTrue(summaries.get(2).hasTaxId());
+    	assertNull(summaries.get(2).getTaxId());
+    }
+
+    @Test
+    public void skipsUidsWithoutSummary() throws IOException {
+    	List<DocumentSummary> summaries = ESummaryParser.parseDocumentSummaries(stream("{\"result\":{\"uids\":[\"1\",\"2\"],\"2\":{\"caption\":\"x\"}}}"));
+    	assertEquals(1, summaries.size());
+    	assertEquals("x", summaries.get(0).getCaption());
+    	assertFalse(summaries.get(0).hasTaxId());
+    }
+
+    @Test
+    public void parsesIntegersLeniently() throws IOException {
+    	Map<String, Integer> expectedByValue = new HashMap<>();
+    	expectedByValue.put("2147483647", Integer.MAX_VALUE);
+    	expectedByValue.put("-2147483648", Integer.MIN_VALUE);
+    	expectedByValue.put("\"-2147483648\"", Integer.MIN_VALUE);
+    	expectedByValue.put("\" 42 \"", 42);
+    	expectedByValue.put("12.7", 12);
+    	expectedByValue.put("1e3", 1000);
+    	expectedByValue.put("0", 0);
+    	expectedByValue.put("2147483648", null);
+    	expectedByValue.put("-2147483649", null);
+    	expectedByValue.put("9999999999", null);
+    	expectedByValue.put("\"99999999999999999999999\"", null);
+    	expectedByValue.put("\"\"", null);
+    	expectedByValue.put("\"-\"", null);
+    	expectedByValue.put("\"n/a\"", null);
+    	expectedByValue.put("null", null);
+    	expectedByValue.put("[1]", null);
+    	expectedByValue.put("{\"v\":1}", null);
+
+    	for (Map.Entry<String, Integer> entry : expectedByValue.entrySet()) {
+    		String json = "{\"result\":{\"uids\":[\"5\"],\"5\":{\"taxid\":" + entry.getKey() + "}}}";
+    		assertEquals(entry.getKey(), entry.getValue(), ESummaryParser.parseDocumentSummaries(stream(json)).get(0).getTaxId());
+    	}
+    }
+
+    @Test
+    public void parsesMergedTaxa() throws IOException {
+    	String json = "{\"result\":{\"uids\":[\"10\",\"11\",\"12\"],\"10\":{\"taxid\":10,\"akataxid\":\"20\"},\"11\":{\"akataxid\":\"\"},\"12\":{\"status\":\"active\"},\"x\":{\"akataxid\":5}}}";
+    	Map<Integer, Integer> mergedTaxa = ESummaryParser.parseMergedTaxa(stream(json));
+    	assertEquals(1, mergedTaxa.size());
+    	assertEquals(Integer.valueOf(20), mergedTaxa.get(10));
+    }
+
+    @Test
+    public void toleratesDuplicateMembersAndLooseCommas() throws IOException {
+    	String json = "{\"error\":\"a\",\"error\":\"b\",,\"result\":{\"uids\":[\"1\",,\"2\",],\"1\":{\"caption\":\"c1\",}\"2\":{\"caption\":\"c2\"},}}";
+    	List<DocumentSummary> summaries = ESummaryParser.parseDocumentSummaries(stream(json));
+    	assertEquals(2, summaries.size());
+    	assertEquals("c2", summaries.get(1).getCaption());
+    }
+
+    @Test
+    public void parsesResponsesLargerThanBuffer() throws IOException {
+    	StringBuilder json = new StringBuilder("{\"result\":{\"uids\":[");
+    	int nCount = 2000;
+    	for (int i=0; i<nCount; i++)
+    		json.append(i == 0 ? "" : ",").append('"').append(i).append('"');
+    	json.append(']');
+    	for (int i=0; i<nCount; i++)
+    		json.append(",\"").append(i).append("\":{\"caption\":\"ACC").append(i).append("\",\"title\":\"title \\u00e9 ").append(i).append("\",\"taxid\":").append(i * 7).append('}');
+    	json.append("}}");
+
+    	List<DocumentSummary> summaries = ESummaryParser.parseDocumentSummaries(stream(json.toString()));
+    	assertEquals(nCount, summaries.size());
+    	for (int i=0; i<nCount; i++) {
+    		assertEquals("ACC" + i, summaries.get(i).getCaption());
+    		assertEquals("title \u00e9 " + i, summaries.get(i).getTitle());
+    		assertEquals(Integer.valueOf(i * 7), summaries.get(i).getTaxId());
+    	}
+    }
+
+    @Test
+    public void reportsErrors() {
+    	assertUnparseable("{\"error\":\"API rate limit exceeded\"}", "API rate limit exceeded");
+    	assertUnparseable("{\"header\":{}}", "No result found");
+    	assertUnparseable("{\"result\":{\"uids\":[\"1\"],\"1\":{\"caption\":\"abc", "unterminated string");
+    	assertUnparseable("{\"result\":{\"uids\":[\"1\"]", "unexpected end of stream");
+    	assertUnparseable("[]", "expected '{'");
+    	assertUnparseable("{\"result\":{\"uids\":[],\"1\":{\"title\":\"\\u00zz\"}}}", "invalid unicode escape");
+    }
+}
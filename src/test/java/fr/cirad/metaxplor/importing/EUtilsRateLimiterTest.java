@@ -0,0 +1,104 @@
+/*******************************************************************************
+ * metaXplorDB - Copyright (C) 2020 <CIRAD>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.metaxplor.importing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * @author sempere
+ */
+public class EUtilsRateLimiterTest {
+
+    private static final long ONE_SECOND_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void providesOneLimiterPerPolicy() {
+    	assertSame(EUtilsRateLimiter.getInstance(true), EUtilsRateLimiter.getInstance(true));
+    	assertEquals(EUtilsRateLimiter.MAX_REQUESTS_PER_SECOND_WITH_API_KEY, EUtilsRateLimiter.getInstance(true).getMaxRequestsPerSecond());
+    	assertEquals(EUtilsRateLimiter.MAX_REQUESTS_PER_SECOND_WITHOUT_API_KEY, EUtilsRateLimiter.getInstance(false).getMaxRequestsPerSecond());
+    }
+
+    @Test
+    public void neverExceedsRateOverAnyOneSecondWindow() throws Exception {
+    	int nMaxRequestsPerSecond = 20, nThreadCount = 4, nPermitsPerThread = 12;
+    	EUtilsRateLimiter limiter = new EUtilsRateLimiter(nMaxRequestsPerSecond);
+    	ExecutorService executor = Executors.newFixedThreadPool(nThreadCount);
+    	try {
+    		List<Future<List<Long>>> futures = new ArrayList<>();
+    		for (int i=0; i<nThreadCount; i++)
+    			futures.add(executor.submit(() -> {
+    				List<Long> grantTimes = new ArrayList<>();
+    				for (int j=0; j<nPermitsPerThread; j++)
+    					grantTimes.add(limiter.acquire());
+    				return grantTimes;
+    			}));
+
+    		List<Long> grantTimes = new ArrayList<>();
+    		for (Future<List<Long>> future : futures)
+    			grantTimes.addAll(future.get(30, TimeUnit.SECONDS));
+    		Collections.sort(grantTimes);
+    		for (int i=nMaxRequestsPerSecond; i<grantTimes.size(); i++)
+    			assertTrue("Permit " + i + " granted less than one second after permit " + (i - nMaxRequestsPerSecond), grantTimes.get(i) - grantTimes.get(i - nMaxRequestsPerSecond) >= ONE_SECOND_NANOS);
+    		assertEquals(nThreadCount * nPermitsPerThread, limiter.getGrantedPermitCount());
+    	}
+    	finally {
+    		executor.shutdownNow();
+    	}
+    }
+
+    @Test
+    public void backsOffOncePerSignalAndRecovers() throws InterruptedException {
+    	EUtilsRateLimiter limiter = new EUtilsRateLimiter(10);
+    	long permitGrantTime = limiter.acquire(), otherPermitGrantTime = limiter.acquire();
+    	assertEquals(10, limiter.getCurrentRequestsPerSecond(), 1e-9);
+
+    	limiter.onThrottled(permitGrantTime, null);
+    	assertEquals(5, limiter.getCurrentRequestsPerSecond(), 1e-9);
+    	limiter.onThrottled(otherPermitGrantTime, null);	// sent before the backoff: same signal
+    	assertEquals(5, limiter.getCurrentRequestsPerSecond(), 1e-9);
+    	assertEquals(2, limiter.getThrottleCount());
+
+    	for (int i=0; i<10; i++)
+    		limiter.onThrottled(System.nanoTime(), null);
+    	assertEquals(10. / 16, limiter.getCurrentRequestsPerSecond(), 1e-9);	// interval is capped
+
+    	for (int i=0; i<100; i++)
+    		limiter.onSuccess();
+    	assertEquals(10, limiter.getCurrentRequestsPerSecond(), 1e-9);
+    }
+
+    @Test
+    public void honoursRetryAfter() throws InterruptedException {
+    	EUtilsRateLimiter limiter = new EUtilsRateLimiter(10);
+    	long permitGrantTime = limiter.acquire();
+    	limiter.onThrottled(permitGrantTime, 1);
+    	long nextGrantTime = limiter.acquire();
+    	assertTrue(nextGrantTime - permitGrantTime >= ONE_SECOND_NANOS);
+    	assertTrue(limiter.getTotalWaitMillis() >= 900);
+    }
+}
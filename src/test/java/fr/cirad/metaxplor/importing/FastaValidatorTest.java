@@ -0,0 +1,113 @@
+/*******************************************************************************
+ * metaXplorDB - Copyright (C) 2020 <CIRAD>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.metaxplor.importing;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * @author sempere
+ */
+public class FastaValidatorTest {
+
+    private static byte[] bytes(String s) {
+    	return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the fai index built while validating contents
+     */
+    private static String index(String contents) throws Exception {
+    	StringWriter fai = new StringWriter();
+    	new FastaValidator(null).writeIndexTo(fai).validate(new ByteArrayInputStream(bytes(contents)));
+    	return fai.toString();
+    }
+
+    private static void assertInvalid(String contents, String expectedMessagePart) {
+    	try {
+    		new FastaValidator(null).validate(new ByteArrayInputStream(bytes(contents)));
+    		fail("Contents should have been rejected: " + contents);
+    	}
+    	catch (Exception e) {
+    		assertTrue(e.getMessage(), e.getMessage().contains(expectedMessagePart));
+    	}
+    }
+
+    @Test
+    public void indexesLikeSamtools() throws Exception {
+    	assertEquals("s1\t6\t9\t4\t5\ns2\t8\t21\t5\t7\n", index(">s1 desc\nACGT\nAC\n>s2\nacgtn\r\nAC-\r\n"));
+    	assertEquals("s1\t6\t4\t3\t4\n", index(">s1\nACG\nTAC"));	// no final newline
+    	assertEquals("s1\t0\t4\t0\t0\ns2\t3\t8\t3\t4\n", index(">s1\n>s2\nNNN\n"));	// sequence without bases
+    	assertEquals("s1\t2\t8\t2\t3\n", index(">  s1 x\nAC\n"));	// leading whitespace is not part of the name
+    }
+
+    @Test
+    public void indexesAcrossBufferBoundaries() throws Exception {
+    	Random random = new Random(1);
+    	StringBuilder contents = new StringBuilder(), expectedFai = new StringBuilder();
+    	for (int i=0; i<500; i++) {
+    		int nLength = 1 + random.nextInt(2000), nLineLength = 10 + random.nextInt(100);
+    		String terminator = random.nextBoolean() ? "\n" : "\r\n";
+    		contents.append(">seq").append(i).append(" some description").append(terminator);
+    		expectedFai.append("seq" + i + "\t" + nLength + "\t" + contents.length() + "\t" + Math.min(nLength, nLineLength) + "\t" + (Math.min(nLength, nLineLength) + terminator.length()) + "\n");
+    		for (int j=0; j<nLength; j++) {
+    			contents.append("ACGTacgtN-".charAt(random.nextInt(10)));
+    			if ((j + 1) % nLineLength == 0 || j == nLength - 1)
+    				contents.append(terminator);
+    		}
+    	}
+
+    	StringWriter fai = new StringWriter();
+    	ByteArrayOutputStream copy = new ByteArrayOutputStream();
+    	FastaValidator validator = new FastaValidator(null).copyTo(copy).writeIndexTo(fai);
+    	assertEquals(500, validator.validate(new ByteArrayInputStream(bytes(contents.toString()))));
+    	assertEquals(500, validator.getCheckedSequenceCount());
+    	assertEquals(expectedFai.toString(), fai.toString());
+    	assertArrayEquals(bytes(contents.toString()), copy.toByteArray());
+    }
+
+    @Test
+    public void rejectsInvalidStructure() {
+    	assertInvalid("ACGT\n>s1\nACGT\n", "not preceded by a header");
+    	assertInvalid(">s1\nACGT\n\nACGT\n", "no empty lines");
+    	assertInvalid(">s1\nACGT\nAC\nACGT\n", "must have the same length");
+    	assertInvalid(">s1\nACGT\nACGTA\n", "must have the same length");
+    	assertInvalid(">s1\nACGT\r\nACGT\nAC\n", "inconsistent line endings");
+    	assertInvalid(">s1\nAC\rGT\n", "unexpected carriage return");
+    	assertInvalid(">s1\nACGT\n>s1\nACGT\n", "duplicate sequence name s1");
+    	assertInvalid("> \nACGT\n", "empty sequence name");
+    }
+
+    @Test
+    public void checksAlphabetOfRequestedSequencesOnly() throws Exception {
+    	String contents = ">s1\nACGT\n>s2\nACXT\n";
+    	assertInvalid(contents, "invalid character 'X'");
+
+    	FastaValidator validator = new FastaValidator(1);
+    	assertEquals(2, validator.validate(new ByteArrayInputStream(bytes(contents))));
+    	assertEquals(1, validator.getCheckedSequenceCount());
+    }
+}
@@ -0,0 +1,213 @@
+/*******************************************************************************
+ * metaXplorDB - Copyright (C) 2020 <CIRAD>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.metaxplor.importing;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.log4j.Logger;
+
+import fr.cirad.metaxplor.model.Accession;
+import fr.cirad.metaxplor.model.Assignment;
+import fr.cirad.metaxplor.model.DBField;
+import fr.cirad.metaxplor.model.Sample;
+import fr.cirad.metaxplor.model.Sequence;
+
+/**
+ * Writes synthetic import archives (samples, fasta, assignments and sequence composition files) of configurable size,
+ * in order to measure import performance on realistic volumes without depending on actual project data.
+ * Output is deterministic for a given set of options.
+ *
+ * @author sempere
+ */
+public class ImportArchiveGenerator {
+
+    private static final Logger LOG = Logger.getLogger(ImportArchiveGenerator.class);
+
+    /** prefix of all generated accession IDs, so that cached info about them can be told apart from real data */
+    public static final String ACCESSION_PREFIX = "BMK";
+
+    public static final String OPTION_SEQUENCES = "sequences", OPTION_SAMPLES = "samples", OPTION_ASSIGNMENTS_PER_SEQUENCE = "assignmentsPerSequence", OPTION_ACCESSIONS_PER_ASSIGNMENT = "accessionsPerAssignment", OPTION_ASSIGNED_RATIO = "assignedRatio", OPTION_SEED = "seed";
+
+    private static final String[] ASSIGNMENT_METHODS = {"blastn", "diamond"};
+    private static final char[] NUCLEOTIDES = {'A', 'C', 'G', 'T'};
+    private static final int FASTA_LINE_LENGTH = 60, MIN_SEQ_LENGTH = 200, MAX_SEQ_LENGTH = 1500, MAX_SAMPLES_PER_SEQUENCE = 5;
+
+    private int nSequenceCount = 100000, nSampleCount = 50, nAssignmentsPerSequence = 2, nAccessionsPerAssignment = 3;
+    private double assignedRatio = .8;
+    private long seed = 1;
+
+    /**
+     * @param options generation options (see OPTION_* constants), missing ones keep their default value
+     */
+    public ImportArchiveGenerator(Map<String, String> options) {
+    	for (Map.Entry<String, String> option : options.entrySet())
+    		switch (option.getKey()) {
+	    		case OPTION_SEQUENCES: nSequenceCount = Integer.parseInt(option.getValue()); break;
+	    		case OPTION_SAMPLES: nSampleCount = Integer.parseInt(option.getValue()); break;
+	    		case OPTION_ASSIGNMENTS_PER_SEQUENCE: nAssignmentsPerSequence = Integer.parseInt(option.getValue()); break;
+	    		case OPTION_ACCESSIONS_PER_ASSIGNMENT: nAccessionsPerAssignment = Integer.parseInt(option.getValue()); break;
+	    		case OPTION_ASSIGNED_RATIO: assignedRatio = Double.parseDouble(option.getValue()); break;
+	    		case OPTION_SEED: seed = Long.parseLong(option.getValue()); break;
+	    		default: throw new IllegalArgumentException("Unknown option: " + option.getKey());
+    		}
+    	if (nSequenceCount < 1 || nSampleCount < 1 || nAssignmentsPerSequence < 1 || nAccessionsPerAssignment < 1 || assignedRatio < 0 || assignedRatio > 1)
+    		throw new IllegalArgumentException("Invalid generation options: " + options);
+    }
+
+    /**
+     * @param args
+     * @param nFirstOptionIndex
+     * @return key=value arguments found from nFirstOptionIndex on
+     */
+    public static Map<String, String> parseOptions(String[] args, int nFirstOptionIndex) {
+    	Map<String, String> options = new HashMap<>();
+    	for (int i=nFirstOptionIndex; i<args.length; i++) {
+    		int nEqualPos = args[i].indexOf('=');
+    		if (nEqualPos < 1)
+    			throw new IllegalArgumentException("Options must be formatted as key=value: " + args[i]);
+    		options.put(args[i].substring(0, nEqualPos), args[i].substring(nEqualPos + 1));
+    	}
+    	return options;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1)
+            throw new IOException("You must pass at least 1 parameter as argument: path to the zip file to create, optionally followed by any of the following key=value options: " + OPTION_SEQUENCES + ", " + OPTION_SAMPLES + ", " + OPTION_ASSIGNMENTS_PER_SEQUENCE + ", " + OPTION_ACCESSIONS_PER_ASSIGNMENT + ", " + OPTION_ASSIGNED_RATIO + ", " + OPTION_SEED);
+
+        new ImportArchiveGenerator(parseOptions(args, 1)).generate(new File(args[0]));
+    }
+
+    /**
+     * @param zipFile the archive to create (overwritten if it exists)
+     * @throws IOException
+     */
+    public void generate(File zipFile) throws IOException {
+    	long before = System.currentTimeMillis();
+    	int nAccessionPoolSize = Math.max(1000, nSequenceCount * nAssignmentsPerSequence * nAccessionsPerAssignment / 10);	// accessions are typically shared by many assignments
+    	Random random = new Random(seed);
+
+    	try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(zipFile))) {
+    		Writer writer = new BufferedWriter(new OutputStreamWriter(zos, StandardCharsets.UTF_8), 65536);
+
+    		zos.putNextEntry(new ZipEntry("benchmark_" + ImportArchive.SAMPLE_ENTRY_SUFFIX));
+    		writeSamples(writer, random);
+    		writer.flush();
+    		zos.closeEntry();
+
+    		zos.putNextEntry(new ZipEntry("benchmark" + ImportArchive.FASTA_ENTRY_SUFFIX));
+    		writeFasta(writer, random);
+    		writer.flush();
+    		zos.closeEntry();
+
+    		zos.putNextEntry(new ZipEntry("benchmark_" + ImportArchive.ASSIGNMENT_ENTRY_SUFFIX));
+    		writeAssignments(writer, random, nAccessionPoolSize);
+    		writer.flush();
+    		zos.closeEntry();
+
+    		zos.putNextEntry(new ZipEntry("benchmark_" + ImportArchive.SEQUENCE_ENTRY_SUFFIX));
+    		writeSequenceComposition(writer, random);
+    		writer.flush();
+    		zos.closeEntry();
+    	}
+    	LOG.info("Generated " + zipFile + " (" + zipFile.length() / 1024 + "KB) in " + (System.currentTimeMillis() - before) + "ms: " + nSampleCount + " samples, " + nSequenceCount + " sequences, " + nAssignmentsPerSequence + " assignments per assigned sequence, " + nAccessionsPerAssignment + " accessions per assignment among " + nAccessionPoolSize);
+    }
+
+    private static String getSampleName(int nSampleIndex) {
+    	return String.format("sample_%05d", nSampleIndex);
+    }
+
+    private static String getQseqid(int nSeqIndex) {
+    	return String.format("seq_%09d", nSeqIndex);
+    }
+
+    private void writeSamples(Writer writer, Random random) throws IOException {
+    	writer.write(Sample.FIELDNAME_SAMPLE_CODE + "\t" + Sample.FIELDNAME_COLLECT_GPS + "\t" + Sample.FIELDNAME_COLLECT_DATE + "\thost\tdepth\n");
+    	for (int i=0; i<nSampleCount; i++)
+    		writer.write(getSampleName(i) + "\t" + String.format(Locale.US, "%.4f,%.4f", random.nextDouble() * 180 - 90, random.nextDouble() * 360 - 180)
+    				+ "\t" + String.format("%04d-%02d-%02d", 2000 + random.nextInt(20), 1 + random.nextInt(12), 1 + random.nextInt(28))
+    				+ "\thost_" + random.nextInt(10) + "\t" + String.format(Locale.US, "%.1f", random.nextDouble() * 100) + "\n");
+    }
+
+    private void writeFasta(Writer writer, Random random) throws IOException {
+    	for (int i=0; i<nSequenceCount; i++) {
+    		writer.write(">" + getQseqid(i) + "\n");
+    		int nLength = MIN_SEQ_LENGTH + random.nextInt(MAX_SEQ_LENGTH - MIN_SEQ_LENGTH);
+    		for (int j=0; j<nLength; j++) {
+    			writer.write(NUCLEOTIDES[random.nextInt(NUCLEOTIDES.length)]);
+    			if ((j + 1) % FASTA_LINE_LENGTH == 0 || j == nLength - 1)
+    				writer.write('\n');
+    		}
+    	}
+    }
+
+    private void writeAssignments(Writer writer, Random random, int nAccessionPoolSize) throws IOException {
+    	writer.write(Sequence.FIELDNAME_QSEQID + "\t" + Assignment.FIELDNAME_ASSIGN_METHOD + "\t" + Assignment.FIELDNAME_SSEQID + "\t" + DBField.bestHitFieldName + "\tpercent_identity\te-value\n");
+    	for (int i=0; i<nSequenceCount; i++) {
+    		if (!isAssigned(i))
+    			continue;
+
+    		for (int j=0; j<nAssignmentsPerSequence; j++) {
+    			String method = ASSIGNMENT_METHODS[j % ASSIGNMENT_METHODS.length];
+    			boolean fProtein = "diamond".equals(method);
+    			StringBuilder sseqids = new StringBuilder();
+    			for (int k=0; k<nAccessionsPerAssignment; k++)
+    				sseqids.append(k == 0 ? "" : ",").append(fProtein ? Accession.ID_PROTEIN_PREFIX : "").append(ACCESSION_PREFIX).append(String.format("%08d", random.nextInt(nAccessionPoolSize))).append(".1");
+    			writer.write(getQseqid(i) + "\t" + method + "\t" + sseqids + "\t" + (j < ASSIGNMENT_METHODS.length ? "Y" : "") + "\t" + String.format(Locale.US, "%.2f", 70 + random.nextDouble() * 30) + "\t" + String.format(Locale.US, "%.2e", Math.pow(10, -random.nextInt(50))) + "\n");
+    		}
+    	}
+    }
+
+    private void writeSequenceComposition(Writer writer, Random random) throws IOException {
+    	StringBuilder header = new StringBuilder(Sequence.FIELDNAME_QSEQID);
+    	for (int i=0; i<nSampleCount; i++)
+    		header.append("\t").append(getSampleName(i));
+    	writer.write(header.append("\n").toString());
+
+    	int[] counts = new int[nSampleCount];
+    	for (int i=0; i<nSequenceCount; i++) {
+    		int nSamplesForSeq = 1 + random.nextInt(Math.min(MAX_SAMPLES_PER_SEQUENCE, nSampleCount));
+    		for (int j=0; j<nSamplesForSeq; j++)
+    			counts[random.nextInt(nSampleCount)] += 1 + random.nextInt(1000);
+
+    		StringBuilder line = new StringBuilder(getQseqid(i));
+    		for (int j=0; j<nSampleCount; j++) {
+    			line.append("\t").append(counts[j]);
+    			counts[j] = 0;
+    		}
+    		writer.write(line.append("\n").toString());
+    	}
+    }
+
+    /**
+     * @param nSeqIndex
+     * @return whether the sequence gets assignments (spreads assigned sequences evenly so that assignedRatio is respected whatever the sequence count)
+     */
+    private boolean isAssigned(int nSeqIndex) {
+    	return (int) ((nSeqIndex + 1) * assignedRatio) > (int) (nSeqIndex * assignedRatio);
+    }
+}
@@ -0,0 +1,492 @@
+/*******************************************************************************
+ * metaXplorDB - Copyright (C) 2020 <CIRAD>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.metaxplor.importing;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+import org.bson.Document;
+import org.springframework.beans.factory.BeanDefinitionStoreException;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.support.GenericXmlApplicationContext;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import com.mongodb.client.MongoCursor;
+
+import fr.cirad.metaxplor.jobs.base.IOpalServiceInvoker;
+import fr.cirad.metaxplor.model.Accession;
+import fr.cirad.metaxplor.model.Accession.AccessionId;
+import fr.cirad.metaxplor.model.Assignment;
+import fr.cirad.metaxplor.model.MetagenomicsProject;
+import fr.cirad.metaxplor.model.Taxon;
+import fr.cirad.metaxplor.model.TaxonomyEngine;
+import fr.cirad.tools.AppConfig;
+import fr.cirad.tools.ProgressIndicator;
+import fr.cirad.tools.mongo.MongoTemplateManager;
+
+/**
+ * Runs MtxImport.doImport end-to-end against the databases configured in datasources.properties (meant to be a local
+ * scratch mongod), with stubs replacing the BLAST bank creation service and NCBI, and reports wall time, throughput,
+ * allocated bytes and peak heap for each import phase. The archive may either be provided or generated on the fly
+ * by ImportArchiveGenerator.
+ *
+ * Synthetic taxonomy and accession data created for the run are removed afterwards, the imported project is kept.
+ * It lives with tests so that it does not get packaged, e.g. mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=fr.cirad.metaxplor.importing.ImportBenchmark -Dexec.args="scratchModule generate sequences=500000"
+ *
+ * @author sempere
+ */
+public class ImportBenchmark {
+
+    private static final Logger LOG = Logger.getLogger(ImportBenchmark.class);
+
+    private static final String GENERATE_ARG = "generate";
+
+    /** how often the sampler thread polls allocation counters and heap usage */
+    private static final long SAMPLING_INTERVAL_MS = 10;
+
+    private static final int MAX_ACCESSIONS_PER_ASSIGNMENT = 5;
+
+    /**
+     * Keeps track of allocated bytes for every thread that ran since the benchmark started (including those that already died,
+     * with the value they had last time they were sampled) and of the highest heap usage observed
+     */
+    static private class ResourceSampler extends Thread {
+    	private final com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    	private final Map<Long, Long> allocatedBytesByThread = new HashMap<>();
+    	private long nBaseline, nPeakHeapUsed = 0;
+    	private volatile boolean fStopped = false;
+
+    	ResourceSampler() {
+    		super("benchmarkSampler");
+    		setDaemon(true);
+    		threadBean.setThreadAllocatedMemoryEnabled(true);
+    		nBaseline = getAllocatedBytes();
+    	}
+
+    	synchronized long getAllocatedBytes() {
+    		long[] threadIds = threadBean.getAllThreadIds();
+    		long[] allocatedBytes = threadBean.getThreadAllocatedBytes(threadIds);
+    		for (int i=0; i<threadIds.length; i++)
+    			if (allocatedBytes[i] > 0)
+    				allocatedBytesByThread.put(threadIds[i], allocatedBytes[i]);
+    		long nTotal = 0;
+    		for (long nThreadBytes : allocatedBytesByThread.values())
+    			nTotal += nThreadBytes;
+
+    		nPeakHeapUsed = Math.max(nPeakHeapUsed, ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+    		return nTotal - nBaseline;
+    	}
+
+    	synchronized long getPeakHeapUsed() {
+    		return nPeakHeapUsed;
+    	}
+
+    	@Override
+    	public void run() {
+    		while (!fStopped)
+    			try {
+    				getAllocatedBytes();
+    				Thread.sleep(SAMPLING_INTERVAL_MS);
+    			}
+    			catch (InterruptedException ignored) {
+    				break;
+    			}
+    	}
+
+    	void shutdown() {
+    		fStopped = true;
+    		interrupt();
+    	}
+    }
+
+    /**
+     * Resources consumed by one step of the import
+     */
+    static private class StepMeasure {
+    	final String label;
+    	final long startTime, startAllocatedBytes;
+    	long duration = -1, allocatedBytes;
+
+    	StepMeasure(String label, long startAllocatedBytes) {
+    		this.label = label;
+    		this.startTime = System.currentTimeMillis();
+    		this.startAllocatedBytes = startAllocatedBytes;
+    	}
+    }
+
+    /**
+     * Progress indicator that records when each of its steps (and of its parallel steps) starts and ends
+     */
+    static private class MeasuringProgressIndicator extends ProgressIndicator {
+    	private final ResourceSampler sampler;
+    	private final List<StepMeasure> measures;
+    	private final String labelPrefix;
+    	private StepMeasure currentStep = null;
+
+    	MeasuringProgressIndicator(String sProcessId, String[] stepLabels, ResourceSampler sampler, List<StepMeasure> measures, String labelPrefix) {
+    		super(sProcessId, stepLabels);
+    		this.sampler = sampler;
+    		this.measures = measures;
+    		this.labelPrefix = labelPrefix;
+    		if (stepLabels.length > 0)
+    			startStep(stepLabels[0]);
+    	}
+
+    	private synchronized void startStep(String label) {
+    		endStep();
+    		currentStep = new StepMeasure(labelPrefix + label, sampler.getAllocatedBytes());
+    		synchronized (measures) {
+    			measures.add(currentStep);
+    		}
+    	}
+
+    	synchronized void endStep() {
+    		if (currentStep != null && currentStep.duration == -1) {
+    			currentStep.duration = System.currentTimeMillis() - currentStep.startTime;
+    			currentStep.allocatedBytes = sampler.getAllocatedBytes() - currentStep.startAllocatedBytes;
+    		}
+    	}
+
+    	@Override
+    	public void moveToNextStep() {
+    		super.moveToNextStep();
+    		if (getCurrentStepNumber() < getStepCount())
+    			startStep(getStepLabel(getCurrentStepNumber()));
+    	}
+
+    	@Override
+    	protected void setComplete(boolean fComplete) {
+    		if (fComplete)
+    			endStep();
+    		super.setComplete(fComplete);
+    	}
+
+    	@Override
+    	protected ProgressIndicator createParallelStep(String sStepLabel) {
+    		return new MeasuringProgressIndicator(getProcessId(), new String[] {sStepLabel}, sampler, measures, labelPrefix + "  | ");
+    	}
+    }
+
+    /**
+     * Does not create any BLAST / DIAMOND bank, thus isolating import costs from those of the HPC service
+     */
+    static private class StubOpalServiceInvoker implements IOpalServiceInvoker {
+    	@Override
+    	public String makeBlastDb(String module, int projId, File fastaFile) {
+    		return "benchmark_" + module + "_" + projId;
+    	}
+
+    	@Override
+    	public String getMakeBlastDbStatus(String jobId) {
+    		return "success";
+    	}
+
+    	@Override
+    	public void cleanupProjectFiles(String module, int projId) {
+    	}
+
+    	@Override
+    	public void cleanupDbFiles(String module) {
+    	}
+
+    	@Override
+    	public Collection<String> blast(String sModule, String banks, String program, String sequence, String expect, String align, ProgressIndicator progress) {
+    		throw new UnsupportedOperationException();
+    	}
+
+    	@Override
+    	public Collection<String> diamond(String sModule, String banks, String program, String sequence, String expect, String align, ProgressIndicator progress) {
+    		throw new UnsupportedOperationException();
+    	}
+
+    	@Override
+    	public String phyloAssign(String module, String pplacerQueryHash, String mafftOption, ProgressIndicator progress) {
+    		throw new UnsupportedOperationException();
+    	}
+
+    	@Override
+    	public String inspectRefPackage(String refPkgName) {
+    		throw new UnsupportedOperationException();
+    	}
+    }
+
+    /**
+     * Serves accession info from a random pick among known taxa instead of querying NCBI, so that the accession cache gets
+     * filled with the same volume of data without network dependency. Accessions that are already cached are left untouched.
+     */
+    static public class SyntheticAccessionSource extends AccessionImport {
+    	private static final int HIT_DEFINITION_COUNT = 500;
+
+    	static int[] taxIds;
+
+    	@Override
+    	public List<String> fetchRemoteAccessionInfo(List<String> nuclAccessions, List<String> protAccessions, ProgressIndicator progress) throws Exception {
+    		if (progress != null) {
+    	    	progress.addStep("Generating synthetic info for " + (nuclAccessions.size() + protAccessions.size()) + " accessions");
+    	    	progress.moveToNextStep();
+    		}
+    		MongoTemplate commonsTemplate = MongoTemplateManager.getCommonsTemplate();
+    		List<String> result = new ArrayList<>();
+    		for (boolean fProt : new boolean[] {false, true}) {
+    			char type = fProt ? AccessionId.PROTEIN_TYPE : AccessionId.NUCLEOTIDE_TYPE;
+    			BulkOperations bulkOperations = commonsTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Accession.class);
+    			int nBulkOpCount = 0;
+    			for (String acc : fProt ? protAccessions : nuclAccessions) {
+    				Random random = new Random(acc.hashCode());
+    				AccessionId accId = new AccessionId(type, acc);
+    				bulkOperations.upsert(new Query(Criteria.where("_id").is(accId)), new Update().setOnInsert(Accession.FIELDNAME_NCBI_TAXID, taxIds[random.nextInt(taxIds.length)]).setOnInsert(Accession.FIELDNAME_HIT_DEFINITION, "Synthetic hit definition #" + random.nextInt(HIT_DEFINITION_COUNT)));
+    				result.add((fProt ? Accession.ID_PROTEIN_PREFIX : "") + acc);
+    				if (++nBulkOpCount % 10000 == 0) {
+    					bulkOperations.execute();
+    					bulkOperations = commonsTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Accession.class);
+    				}
+    			}
+    			if (nBulkOpCount % 10000 != 0)
+    				bulkOperations.execute();
+    		}
+    		return result;
+    	}
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2)
+            throw new IOException("You must pass at least 2 parameters as arguments: database module to import into (preferably a scratch one), path to zip file to import or '" + GENERATE_ARG + "' followed by any options supported by ImportArchiveGenerator (key=value)");
+
+        GenericXmlApplicationContext ctx = null;
+        AnnotationConfigApplicationContext importCtx = null;
+        File archiveFile = null;
+        List<Integer> seededTaxIds = null;
+        try {
+            if (MongoTemplateManager.getCommonsTemplate() == null) {	// we are probably being invoked offline
+                try {
+                    ctx = new GenericXmlApplicationContext("applicationContext-data.xml");
+                } catch (BeanDefinitionStoreException fnfe) {
+                    LOG.warn("Unable to find applicationContext-data.xml. Now looking for applicationContext.xml", fnfe);
+                    ctx = new GenericXmlApplicationContext("applicationContext.xml");
+                }
+                MongoTemplateManager.initialize(ctx);
+                if (MongoTemplateManager.getCommonsTemplate() == null)
+                    throw new IOException("DATASOURCE 'metaxplor_commons' is not supported!");
+            }
+            String module = args[0];
+            MongoTemplate mongoTemplate = MongoTemplateManager.get(module);
+            if (mongoTemplate == null)
+                throw new IOException("DATASOURCE '" + module + "' is not supported!");
+
+            if (GENERATE_ARG.equals(args[1])) {
+            	archiveFile = File.createTempFile("mtxBenchmark_", ".zip");
+            	new ImportArchiveGenerator(ImportArchiveGenerator.parseOptions(args, 2)).generate(archiveFile);
+            }
+            else
+            	archiveFile = new File(args[1]);
+
+            seededTaxIds = prepareTaxonomy();
+
+            // MtxImport needs its dependencies injected: wire it with the stub accession source instead of the actual AccessionImport
+            importCtx = new AnnotationConfigApplicationContext();
+            if (ctx != null)
+            	importCtx.setParent(ctx);
+            importCtx.register(AppConfig.class, MtxImport.class, SyntheticAccessionSource.class);
+            importCtx.refresh();
+
+            run(importCtx.getBean(MtxImport.class), module, archiveFile);
+        }
+        finally {
+        	try {
+        		cleanup(seededTaxIds);
+        	}
+        	finally {
+	        	if (archiveFile != null && GENERATE_ARG.equals(args[1]))
+	        		archiveFile.delete();
+	        	if (importCtx != null)
+	        		importCtx.close();
+	            if (ctx != null)
+	                ctx.close();
+        	}
+        }
+    }
+
+    /**
+     * Picks the taxa synthetic accessions will point to. If the commons database holds no taxonomy, a synthetic one is seeded
+     *
+     * @return ids of the seeded taxa, or null if an existing taxonomy was used
+     */
+    private static List<Integer> prepareTaxonomy() {
+    	MongoTemplate commonsTemplate = MongoTemplateManager.getCommonsTemplate();
+    	String collName = commonsTemplate.getCollectionName(Taxon.class);
+    	List<Integer> speciesIds = new ArrayList<>();
+    	try (MongoCursor<Document> cursor = commonsTemplate.getCollection(collName).find(new Document(Taxon.FIELDNAME_RANK, "species")).projection(new Document("_id", 1)).limit(10000).iterator()) {
+    		while (cursor.hasNext())
+    			speciesIds.add(((Number) cursor.next().get("_id")).intValue());
+    	}
+
+    	List<Integer> seededTaxIds = null;
+    	if (speciesIds.isEmpty()) {
+    		String[] ranks = {"superkingdom", "phylum", "class", "order", "family", "genus", "species"};
+    		int[] childCounts = {3, 4, 3, 3, 3, 3, 4};
+    		List<Document> taxa = new ArrayList<>();
+    		taxa.add(new Document("_id", TaxonomyEngine.ROOT_TAXID).append(Taxon.FIELDNAME_RANK, "no rank").append(Taxon.FIELDNAME_NAMES, Arrays.asList("root")));
+    		List<Integer> currentLevel = new ArrayList<>();
+    		currentLevel.add(TaxonomyEngine.ROOT_TAXID);
+    		int nNextId = TaxonomyEngine.ROOT_TAXID + 1;
+    		for (int i=0; i<ranks.length; i++) {
+    			List<Integer> nextLevel = new ArrayList<>();
+    			for (int parentId : currentLevel)
+    				for (int j=0; j<childCounts[i]; j++) {
+    					taxa.add(new Document("_id", nNextId).append(Taxon.FIELDNAME_PARENT_ID, parentId).append(Taxon.FIELDNAME_RANK, ranks[i]).append(Taxon.FIELDNAME_NAMES, Arrays.asList("Synthetic " + ranks[i] + " " + nNextId)));
+    					nextLevel.add(nNextId++);
+    				}
+    			currentLevel = nextLevel;
+    		}
+    		commonsTemplate.getCollection(collName).insertMany(taxa);
+    		speciesIds = currentLevel;
+    		seededTaxIds = new ArrayList<>();
+    		for (Document taxon : taxa)
+    			seededTaxIds.add((Integer) taxon.get("_id"));
+    		LOG.info("No taxonomy found in commons database: seeded a synthetic one with " + taxa.size() + " taxa");
+    	}
+    	TaxonomyEngine.invalidate();
+
+    	SyntheticAccessionSource.taxIds = new int[speciesIds.size()];
+    	for (int i=0; i<speciesIds.size(); i++)
+    		SyntheticAccessionSource.taxIds[i] = speciesIds.get(i);
+    	return seededTaxIds;
+    }
+
+    private static void cleanup(List<Integer> seededTaxIds) {
+    	MongoTemplate commonsTemplate = MongoTemplateManager.getCommonsTemplate();
+    	if (commonsTemplate == null)
+    		return;
+
+    	long nRemovedAccessions = commonsTemplate.remove(new Query(Criteria.where("_id." + Assignment.FIELDNAME_SSEQID).regex("^" + Pattern.quote(ImportArchiveGenerator.ACCESSION_PREFIX))), Accession.class).getDeletedCount();
+    	LOG.info("Removed " + nRemovedAccessions + " synthetic accessions from cache");
+    	if (seededTaxIds != null) {
+    		commonsTemplate.remove(new Query(Criteria.where("_id").in(seededTaxIds)), Taxon.class);
+    		TaxonomyEngine.invalidate();
+    		LOG.info("Removed synthetic taxonomy");
+    	}
+    }
+
+    private static void run(MtxImport mtxImport, String module, File archiveFile) throws Exception {
+    	MongoTemplate mongoTemplate = MongoTemplateManager.get(module);
+    	MetagenomicsProject lastProject = mongoTemplate.findOne(new Query().with(Sort.by(Sort.Direction.DESC, "_id")), MetagenomicsProject.class);
+    	int nProjectId = lastProject == null ? 1 : lastProject.getId() + 1;
+    	String projectCode = "BMK_" + System.currentTimeMillis();
+
+    	try (ImportArchive importArchive = new ImportArchive(archiveFile.toURI().toURL())) {
+    		Map<String, Long> rowCounts = countRows(importArchive);
+    		LOG.info("Benchmarking import of " + archiveFile + " into project " + nProjectId + " of module " + module + ": " + rowCounts);
+
+    		List<GarbageCollectorMXBean> gcBeans = ManagementFactory.getGarbageCollectorMXBeans();
+    		long nGcCountBefore = 0, nGcTimeBefore = 0;
+    		for (GarbageCollectorMXBean gcBean : gcBeans) {
+    			nGcCountBefore += gcBean.getCollectionCount();
+    			nGcTimeBefore += gcBean.getCollectionTime();
+    		}
+
+    		List<StepMeasure> measures = new ArrayList<>();
+    		ResourceSampler sampler = new ResourceSampler();
+    		sampler.start();
+    		MeasuringProgressIndicator progress = new MeasuringProgressIndicator(projectCode, new String[] {"Starting import"}, sampler, measures, "");
+    		long before = System.currentTimeMillis();
+    		try {
+    			mtxImport.doImport(new StubOpalServiceInvoker(), module, nProjectId, projectCode, "Import benchmark", "Synthetic data", "benchmark", "", "2020-01-01", "", "", false, MAX_ACCESSIONS_PER_ASSIGNMENT, "", "", importArchive, progress, false);
+    		}
+    		finally {
+    			progress.endStep();
+	    		long nTotalDuration = System.currentTimeMillis() - before, nTotalAllocatedBytes = sampler.getAllocatedBytes();
+	    		sampler.shutdown();
+	    		long nGcCount = -nGcCountBefore, nGcTime = -nGcTimeBefore;
+	    		for (GarbageCollectorMXBean gcBean : gcBeans) {
+	    			nGcCount += gcBean.getCollectionCount();
+	    			nGcTime += gcBean.getCollectionTime();
+	    		}
+	    		report(measures, rowCounts, nTotalDuration, nTotalAllocatedBytes, sampler.getPeakHeapUsed(), nGcCount, nGcTime);
+    		}
+    	}
+    }
+
+    /**
+     * @param importArchive
+     * @return number of data rows in each entry, keyed by step label prefix (so that throughput can be computed for the steps processing them)
+     */
+    private static Map<String, Long> countRows(ImportArchive importArchive) throws IOException {
+    	Map<String, Long> rowCounts = new LinkedHashMap<>();
+    	long nSampleCount = countLines(importArchive, ImportArchive.SAMPLE_ENTRY_SUFFIX, null) - 1, nAssignmentCount = countLines(importArchive, ImportArchive.ASSIGNMENT_ENTRY_SUFFIX, null) - 1;
+    	long nSequenceCount = countLines(importArchive, ImportArchive.FASTA_ENTRY_SUFFIX, ">"), nCompositionCount = countLines(importArchive, ImportArchive.SEQUENCE_ENTRY_SUFFIX, null) - 1;
+    	rowCounts.put("Importing sample file contents", nSampleCount);
+    	rowCounts.put("Importing and indexing fasta file contents", nSequenceCount);
+    	rowCounts.put("Collecting accession IDs for each line in assignment file", nAssignmentCount);
+    	rowCounts.put("Processing lines in assignment file", nAssignmentCount);
+    	rowCounts.put("Processing lines in sequence composition file", nCompositionCount);
+    	return rowCounts;
+    }
+
+    private static long countLines(ImportArchive importArchive, String entrySuffix, String linePrefix) throws IOException {
+    	try (InputStream is = importArchive.getInputStream(entrySuffix)) {
+    		if (is == null)
+    			return 0;
+    		BufferedReader br = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8), 65536);
+    		long nCount = 0;
+    		String line;
+    		while ((line = br.readLine()) != null)
+    			if (linePrefix == null || line.startsWith(linePrefix))
+    				nCount++;
+    		return nCount;
+    	}
+    }
+
+    private static void report(List<StepMeasure> measures, Map<String, Long> rowCounts, long nTotalDuration, long nTotalAllocatedBytes, long nPeakHeapUsed, long nGcCount, long nGcTime) {
+    	StringBuilder sb = new StringBuilder("\nImport benchmark results\n");
+    	sb.append(String.format(Locale.US, "%-75s %10s %12s %12s%n", "Step", "Time (ms)", "Rows/s", "Alloc (MB)"));
+    	synchronized (measures) {
+	    	for (StepMeasure measure : measures) {
+	    		Long nRowCount = null;
+	    		for (Map.Entry<String, Long> rowCount : rowCounts.entrySet())
+	    			if (measure.label.endsWith(rowCount.getKey()))
+	    				nRowCount = rowCount.getValue();
+	    		String throughput = nRowCount == null || measure.duration <= 0 ? "" : String.format(Locale.US, "%.0f", nRowCount * 1000d / measure.duration);
+	    		sb.append(String.format(Locale.US, "%-75s %10s %12s %12.1f%n", measure.label.length() > 75 ? measure.label.substring(0, 72) + "..." : measure.label, measure.duration == -1 ? "n/a" : String.valueOf(measure.duration), throughput, measure.allocatedBytes / 1048576d));
+	    	}
+    	}
+    	sb.append(String.format(Locale.US, "%-75s %10d %12s %12.1f%n", "Total", nTotalDuration, "", nTotalAllocatedBytes / 1048576d));
+    	sb.append(String.format(Locale.US, "Peak heap used: %.1f MB, GC: %d collections, %d ms%n", nPeakHeapUsed / 1048576d, nGcCount, nGcTime));
+    	LOG.info(sb);
+    }
+}
@@ -0,0 +1,108 @@
+/*******************************************************************************
+ * metaXplorDB - Copyright (C) 2020 <CIRAD>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.metaxplor.importing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.Document;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+
+import de.bwaldvogel.mongo.MongoServer;
+import de.bwaldvogel.mongo.backend.memory.MemoryBackend;
+import fr.cirad.metaxplor.model.MetagenomicsProject;
+import fr.cirad.metaxplor.model.SampleReadCount;
+import fr.cirad.metaxplor.model.Sequence;
+import fr.cirad.tools.mongo.MongoTemplateManager;
+
+/**
+ * @author sempere
+ */
+public class MtxImportTest {
+
+    private static final int PROJECT_ID = 7;
+
+    private MongoServer server;
+    private MongoClient client;
+    private MongoTemplate mongoTemplate;
+
+    @Before
+    public void setUp() {
+    	server = new MongoServer(new MemoryBackend());
+    	client = MongoClients.create(server.bindAndGetConnectionString());
+    	mongoTemplate = MongoTemplateManager.createMongoTemplate(client, "mtxImportTest");
+    }
+
+    @After
+    public void tearDown() {
+    	client.close();
+    	server.shutdownNow();
+    }
+
+    private Map<String, String> saveProject(List<String> sampleDictionary) throws Exception {
+    	return MtxImport.saveProject(mongoTemplate, PROJECT_ID, "PRJ", "Project", "description", "authors", "contact", "", "Illumina", "SPAdes", true, "", "", true, sampleDictionary);
+    }
+
+    @Test
+    public void readsSampleDictionaryFromHeaders() throws Exception {
+    	String composition = "s1\t" + Sequence.FIELDNAME_QSEQID + "\ts2\ts3\n5\tq1\t0\t3\n";
+    	assertEquals(Arrays.asList("s1", "s2", "s3"), MtxImport.readSampleDictionary(new ByteArrayInputStream(composition.getBytes(StandardCharsets.UTF_8))));
+    }
+
+    @Test
+    public void persistsSampleDictionaryWithProject() throws Exception {
+    	List<String> sampleDictionary = MtxImport.readSampleDictionary(new ByteArrayInputStream(("s1\t" + Sequence.FIELDNAME_QSEQID + "\ts2\ts3\n").getBytes(StandardCharsets.UTF_8)));
+    	Sequence sequence = new Sequence(PROJECT_ID, "q1");
+    	sequence.setPackedSampleComposition(new int[] {0, 2}, new int[] {5, 3});
+    	mongoTemplate.insert(sequence);
+
+    	Sequence readSequence = mongoTemplate.findById(sequence.getId(), Sequence.class);	// sequences get written before the project: this must not prevent decoding them afterwards
+    	assertEquals(0, readSequence.getSampleIndexes()[0]);
+
+    	Map<String, String> result = saveProject(sampleDictionary);
+    	assertEquals("1", result.get("unassigned sequences"));
+
+    	Document project = mongoTemplate.getCollection(mongoTemplate.getCollectionName(MetagenomicsProject.class)).find(new Document("_id", PROJECT_ID)).first();
+    	assertEquals(sampleDictionary, project.getList(MetagenomicsProject.FIELDNAME_SAMPLE_DICTIONARY, String.class));
+    	assertEquals(sampleDictionary, mongoTemplate.findById(PROJECT_ID, MetagenomicsProject.class).getSampleDictionary());
+
+    	List<SampleReadCount> sampleComposition = mongoTemplate.findById(sequence.getId(), Sequence.class).getSampleComposition();
+    	assertEquals(2, sampleComposition.size());
+    	assertEquals("s1", sampleComposition.get(0).getSp());
+    	assertEquals(5, sampleComposition.get(0).getCount());
+    	assertEquals("s3", sampleComposition.get(1).getSp());
+    	assertEquals(3, sampleComposition.get(1).getCount());
+    }
+
+    @Test
+    public void savesProjectWithoutSampleDictionary() throws Exception {
+    	saveProject(null);
+    	Document project = mongoTemplate.getCollection(mongoTemplate.getCollectionName(MetagenomicsProject.class)).find(new Document("_id", PROJECT_ID)).first();
+    	assertNull(project.get(MetagenomicsProject.FIELDNAME_SAMPLE_DICTIONARY));
+    }
+}
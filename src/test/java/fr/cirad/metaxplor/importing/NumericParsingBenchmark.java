@@ -0,0 +1,133 @@
+/*******************************************************************************
+ * metaXplorDB - Copyright (C) 2020 <CIRAD>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.metaxplor.importing;
+
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import fr.cirad.tools.DecimalParser;
+import fr.cirad.tools.LineTokenizer;
+
+/**
+ * JMH benchmark comparing the former regex-and-exception based cell parsing with DecimalParser, on synthetic assignment lines
+ * holding realistic BLAST columns (pident, length, evalue, bitscore, comma-separated decimals and non-numeric cells).
+ * Scores are per line (6 cells). Run main() from the test classpath, e.g.
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=fr.cirad.metaxplor.importing.NumericParsingBenchmark
+ *
+ * @author sempere
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class NumericParsingBenchmark {
+
+    private static final String[] NON_NUMERIC_CELLS = {"Y", "NA", "n/a", "diamond", "-"};
+
+    @Param("10000")
+    int nLineCount;
+
+    private String[] lines;
+    private int nNextLine = 0;
+
+    private final LineTokenizer tokenizer = new LineTokenizer('\t', false);
+
+    @Setup
+    public void setup() {
+    	lines = generateLines(nLineCount, 1);
+    }
+
+    /**
+     * @param nLineCount
+     * @param seed
+     * @return tab-separated lines holding typical BLAST output columns, a comma-separated decimal and a non-numeric cell
+     */
+    private static String[] generateLines(int nLineCount, long seed) {
+    	Random random = new Random(seed);
+    	String[] lines = new String[nLineCount];
+    	for (int i=0; i<nLineCount; i++)
+    		lines[i] = String.format(Locale.US, "%.3f\t%d\t%s\t%.1f\t%s\t%s",
+    				70 + random.nextDouble() * 30,	// pident
+    				50 + random.nextInt(1500),	// length
+    				random.nextInt(20) == 0 ? "0.0" : String.format(Locale.US, "%.2e", random.nextDouble() * Math.pow(10, -random.nextInt(180))),	// evalue
+    				20 + random.nextDouble() * 2000,	// bitscore
+    				String.format(Locale.FRANCE, "%.2f", random.nextDouble() * 100),	// comma-separated decimal
+    				NON_NUMERIC_CELLS[random.nextInt(NON_NUMERIC_CELLS.length)]);
+    	return lines;
+    }
+
+    /**
+     * Former MtxImport.parseToDouble implementation, kept here as the baseline
+     */
+    private static Double legacyParseToDouble(String field) {
+        try
+        {
+        	return Double.valueOf(field.replaceAll(",", "."));
+        }
+        catch (NumberFormatException e)
+        {
+            return null;
+        }
+    }
+
+    private String nextLine() {
+    	if (nNextLine == lines.length)
+    		nNextLine = 0;
+    	return lines[nNextLine++];
+    }
+
+    @Benchmark
+    public void legacyParseToDoubleOnSplitStrings(Blackhole blackhole) {
+    	for (String field : nextLine().split("\t"))
+    		blackhole.consume(legacyParseToDouble(field));
+    }
+
+    @Benchmark
+    public void decimalParserOnSplitStrings(Blackhole blackhole) {
+    	for (String field : nextLine().split("\t"))
+    		blackhole.consume(DecimalParser.parse(field));
+    }
+
+    @Benchmark
+    public void lineTokenizerParseDecimalInPlace(Blackhole blackhole) {
+    	tokenizer.tokenize(nextLine());
+    	for (int i=0; i<tokenizer.getColumnCount(); i++)
+    		blackhole.consume(tokenizer.parseDecimal(i));
+    }
+
+    public static void main(String[] args) throws Exception {
+    	new Runner(new OptionsBuilder().include(NumericParsingBenchmark.class.getName()).addProfiler(GCProfiler.class).build()).run();
+    }
+}
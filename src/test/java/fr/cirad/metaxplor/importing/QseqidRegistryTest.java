@@ -0,0 +1,102 @@
+/*******************************************************************************
+ * metaXplorDB - Copyright (C) 2020 <CIRAD>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.metaxplor.importing;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author sempere
+ */
+public class QseqidRegistryTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void assignsOrdinalsInOrderOfAddition() {
+    	QseqidRegistry registry = new QseqidRegistry(1);
+    	List<String> qseqids = new ArrayList<>();
+    	for (int i=0; i<50000; i++)
+    		qseqids.add("contig_" + i + (i % 7 == 0 ? "_\u00e9\u00e8" : "") + (i % 1000 == 0 ? "_\u4e2d" : ""));
+    	for (int i=0; i<qseqids.size(); i++)
+    		assertEquals(i, registry.add(qseqids.get(i)));
+    	assertEquals(qseqids.size(), registry.size());
+
+    	for (int i=0; i<qseqids.size(); i+=3)
+    		assertEquals(-1, registry.add(new StringBuilder(qseqids.get(i))));	// already registered, whatever the CharSequence type
+    	registry.trimToSize();
+    	for (int i=0; i<qseqids.size(); i++) {
+    		assertEquals(i, registry.indexOf(qseqids.get(i)));
+    		assertEquals(qseqids.get(i), registry.getQseqid(i));
+    		assertEquals(-1, registry.getSequenceLength(i));
+    	}
+    	assertEquals(-1, registry.indexOf("contig_50000"));
+    	assertEquals(-1, registry.indexOf("contig_7"));	// registered with a suffix
+    	assertEquals(50000, registry.add("contig_50000"));	// additions are still possible after trimming
+    }
+
+    @Test
+    public void supportsEmptyQseqid() {
+    	QseqidRegistry registry = new QseqidRegistry(0);
+    	assertEquals(-1, registry.indexOf(""));
+    	assertEquals(0, registry.add(""));
+    	assertEquals(0, registry.indexOf(""));
+    	assertEquals("", registry.getQseqid(0));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void rejectsUnknownOrdinal() {
+    	QseqidRegistry registry = new QseqidRegistry(16);
+    	registry.add("q1");
+    	registry.getQseqid(1);
+    }
+
+    @Test
+    public void loadsFaiFile() throws IOException {
+    	File fai = tempFolder.newFile("seqs.fasta.fai");
+    	Files.write(fai.toPath(), "q1\t120\t4\t60\t61\nq\u00e92\t7\t130\t7\t8\n".getBytes(StandardCharsets.UTF_8));
+    	QseqidRegistry registry = QseqidRegistry.fromFaiFile(fai);
+    	assertEquals(2, registry.size());
+    	assertEquals(1, registry.indexOf("q\u00e92"));
+    	assertEquals(120, registry.getSequenceLength(0));
+    	assertEquals(7, registry.getSequenceLength(1));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsFaiFileListingSequenceTwice() throws IOException {
+    	File fai = tempFolder.newFile("dup.fasta.fai");
+    	Files.write(fai.toPath(), "q1\t120\t4\t60\t61\nq1\t7\t130\t7\t8\n".getBytes(StandardCharsets.UTF_8));
+    	QseqidRegistry.fromFaiFile(fai);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsMalformedFaiFile() throws IOException {
+    	File fai = tempFolder.newFile("bad.fasta.fai");
+    	Files.write(fai.toPath(), "q1 120\n".getBytes(StandardCharsets.UTF_8));
+    	QseqidRegistry.fromFaiFile(fai);
+    }
+}
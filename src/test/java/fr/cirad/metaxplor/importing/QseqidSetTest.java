@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * metaXplorDB - Copyright (C) 2020 <CIRAD>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.metaxplor.importing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.junit.Test;
+
+/**
+ * @author sempere
+ */
+public class QseqidSetTest {
+
+    private static QseqidRegistry createRegistry(String... qseqids) {
+    	QseqidRegistry registry = new QseqidRegistry(qseqids.length);
+    	for (String qseqid : qseqids)
+    		registry.add(qseqid);
+    	return registry;
+    }
+
+    private static List<String> toList(QseqidSet set) {
+    	List<String> list = new ArrayList<>();
+    	for (String qseqid : set)
+    		list.add(qseqid);
+    	return list;
+    }
+
+    @Test
+    public void storesRegisteredAndUnregisteredQseqids() {
+    	QseqidSet set = new QseqidSet(createRegistry("q0", "q1", "q2", "q3"));
+    	assertTrue(set.isEmpty());
+    	assertTrue(set.add("q2"));
+    	assertTrue(set.add(new StringBuilder("q0")));
+    	assertFalse(set.add("q2"));
+    	assertTrue(set.add("unknown"));
+    	assertFalse(set.add("unknown"));
+
+    	assertEquals(3, set.size());
+    	assertFalse(set.isEmpty());
+    	assertTrue(set.contains("q0"));
+    	assertFalse(set.contains("q1"));
+    	assertTrue(set.contains(new StringBuilder("unknown")));
+    	assertFalse(set.contains("other"));
+    	assertEquals(Arrays.asList("q0", "q2", "unknown"), toList(set));	// ordinal order, then unregistered qseqids
+    }
+
+    @Test
+    public void mergesSetsSharingRegistry() {
+    	QseqidRegistry registry = createRegistry("q0", "q1", "q2");
+    	QseqidSet set = new QseqidSet(registry), other = new QseqidSet(registry);
+    	set.add("q0");
+    	other.add("q2");
+    	other.add("q0");
+    	other.add("x");
+    	set.addAll(other);
+    	assertEquals(new HashSet<>(Arrays.asList("q0", "q2", "x")), new HashSet<>(toList(set)));
+    	assertEquals(3, set.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSetFromOtherRegistry() {
+    	new QseqidSet(createRegistry("q0")).addAll(new QseqidSet(createRegistry("q0")));
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void iteratorThrowsWhenExhausted() {
+    	QseqidSet set = new QseqidSet(createRegistry("q0"));
+    	set.add("q0");
+    	Iterator<String> it = set.iterator();
+    	it.next();
+    	assertFalse(it.hasNext());
+    	it.next();
+    }
+}
@@ -0,0 +1,110 @@
+/*******************************************************************************
+ * metaXplorDB - Copyright (C) 2020 <CIRAD>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Locale;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * @author sempere
+ */
+public class DecimalParserTest {
+
+    private static final String[] VALID_NUMBERS = {"0", "-0", "+0", "0.0", "-0.0", "1", "-1", "+1", "1.5", "-1.5", ".5", "5.", "007.25", "0.1", "0.3",
+    		"3.14159", "1e0", "1e22", "1e23", "9e22", "1E-22", "1e-23", "2.5e-7", "1.5E+10", "-4.2e-3", "1e308", "1.7976931348623157e308", "1e309",
+    		"4.9e-324", "2.4e-324", "1e-400", "123456789012345", "1234567890123456", "12345678901234567890", "9007199254740992", "9007199254740993",
+    		"0.1234567890123456789", "3.0000000000000000001", "00000000000000000000000001.5", "1.00000000000000000000000000", "1e000000000000000005",
+    		"1e99999999999", "1e-99999999999", " 12.5", "12.5 ", "\t-3\t"};
+
+    private static final String[] INVALID_NUMBERS = {"", " ", "-", "+", ".", "-.", "e5", "1e", "1e+", "1e-", "1.2.3", "1..2", "12a", "1 2", "--1",
+    		"NaN", "Infinity", "-Infinity", "1f", "2d", "0x1p3", "1_000"};
+
+    private static void assertSameBits(String message, double expected, double value) {
+    	assertEquals(message + " (expected " + expected + ", got " + value + ")", Double.doubleToRawLongBits(expected), Double.doubleToRawLongBits(value));
+    }
+
+    @Test
+    public void parsesLikeDoubleParseDouble() {
+    	for (String number : VALID_NUMBERS) {
+    		double expected = Double.parseDouble(number);
+    		assertSameBits("parse(\"" + number + "\")", expected, DecimalParser.parse(number));
+    		assertSameBits("parse(\"" + number.replace('.', ',') + "\")", expected, DecimalParser.parse(number.replace('.', ',')));
+    		assertSameBits("parseDouble(\"" + number + "\")", expected, DecimalParser.parseDouble(number));
+    	}
+    }
+
+    @Test
+    public void parsesRandomNumbersLikeDoubleParseDouble() {
+    	Random random = new Random(1);
+    	for (int i=0; i<200000; i++) {
+    		String number;
+    		switch (i % 4) {
+	    		case 0: number = Double.toString(Double.longBitsToDouble(random.nextLong())); break;	// any double, including NaN and Infinity
+	    		case 1: number = String.format(Locale.US, "%." + random.nextInt(20) + "f", random.nextDouble() * Math.pow(10, random.nextInt(20))); break;
+	    		case 2: number = String.format(Locale.US, "%." + random.nextInt(20) + "e", random.nextDouble() * Math.pow(10, random.nextInt(600) - 300)); break;
+	    		default: number = Long.toString(random.nextLong() >> random.nextInt(64)); break;
+    		}
+    		double expected = Double.parseDouble(number);
+    		assertSameBits("parseDouble(\"" + number + "\")", expected, DecimalParser.parseDouble(number));
+    		if (!Double.isNaN(expected) && !Double.isInfinite(expected))
+    			assertSameBits("parse(\"" + number + "\")", expected, DecimalParser.parse(number.replace('.', ',')));
+    	}
+    }
+
+    @Test
+    public void rejectsInvalidInputLikeDoubleParseDouble() {
+    	for (String number : INVALID_NUMBERS) {
+    		assertTrue("parse(\"" + number + "\")", Double.isNaN(DecimalParser.parse(number)));
+
+    		Double expected;
+    		try {
+    			expected = Double.parseDouble(number);
+    		}
+    		catch (NumberFormatException nfe) {
+    			expected = null;
+    		}
+    		try {
+    			double value = DecimalParser.parseDouble(number);
+    			if (expected == null)
+    				fail("parseDouble(\"" + number + "\") returned " + value + " instead of throwing");
+    			assertSameBits("parseDouble(\"" + number + "\")", expected, value);	// e.g. "NaN" or "1f"
+    		}
+    		catch (NumberFormatException nfe) {
+    			if (expected != null)
+    				fail("parseDouble(\"" + number + "\") threw " + nfe + " instead of returning " + expected);
+    		}
+    	}
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void parseDoubleRejectsCommaSeparator() {
+    	DecimalParser.parseDouble("1,5");
+    }
+
+    @Test
+    public void parsesCharRanges() {
+    	String line = "x\t-12,75e1\ty";
+    	assertSameBits("range", -127.5, DecimalParser.parse(line, 2, 10));
+    	assertTrue(Double.isNaN(DecimalParser.parse(line, 0, 4)));
+    	assertSameBits("range", 2.5, DecimalParser.parseDouble("[2.5]", 1, 4));
+    }
+}
@@ -0,0 +1,157 @@
+/*******************************************************************************
+ * metaXplorDB - Copyright (C) 2020 <CIRAD>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+/**
+ * @author sempere
+ */
+public class IntKeyFieldMapTest {
+
+    private static <V> void assertSameContents(TreeMap<Integer, V> expected, IntKeyFieldMap<V> map) {
+    	assertEquals(expected.size(), map.size());
+    	assertEquals(expected, map);
+    	assertEquals(map, expected);
+    	assertEquals(expected.hashCode(), map.hashCode());
+    	assertEquals(new ArrayList<>(expected.keySet()), new ArrayList<>(map.keySet()));	// keys are iterated in ascending order
+    	int i = 0;
+    	for (Integer key : expected.keySet())
+    		assertEquals(key.intValue(), map.keyAt(i++));
+    }
+
+    @Test
+    public void behavesLikeSortedMapForDoubles() {
+    	Random random = new Random(1);
+    	DoubleFieldMap map = new DoubleFieldMap(1);
+    	TreeMap<Integer, Double> expected = new TreeMap<>();
+    	for (int i=0; i<20000; i++) {
+    		int key = random.nextInt(40) - 10;
+    		switch (random.nextInt(5)) {
+	    		case 0:
+	    			double value = random.nextDouble();
+	    			map.put(key, value);
+	    			expected.put(key, value);
+	    			break;
+	    		case 1:
+	    			assertEquals(expected.put(key, (double) i), map.put(Integer.valueOf(key), Double.valueOf(i)));	// boxed Map.put
+	    			break;
+	    		case 2:
+	    			assertEquals(expected.remove(key) != null, map.removeKey(key));
+	    			break;
+	    		case 3:
+	    			assertEquals(expected.remove(key), map.remove(key));
+	    			break;
+	    		default:
+	    			assertEquals(expected.containsKey(key), map.containsKey(key));
+	    			assertEquals(expected.get(key), map.get(key));
+	    			assertEquals(expected.containsKey(key) ? expected.get(key) : Double.NaN, map.getDouble(key), 0);
+    		}
+    		if (i % 100 == 0)
+    			assertSameContents(expected, map);
+    	}
+    	assertSameContents(expected, map);
+    	map.clear();
+    	assertTrue(map.isEmpty());
+    	assertTrue(Double.isNaN(map.getDouble(0)));
+    }
+
+    @Test
+    public void behavesLikeSortedMapForObjects() {
+    	Random random = new Random(2);
+    	ObjectFieldMap<String> map = new ObjectFieldMap<>();
+    	TreeMap<Integer, String> expected = new TreeMap<>();
+    	for (int i=0; i<20000; i++) {
+    		int key = random.nextInt(30);
+    		if (random.nextInt(3) == 0)
+    			assertEquals(expected.remove(key), map.remove(key));
+    		else
+    			assertEquals(expected.put(key, "v" + i), map.put(key, "v" + i));
+    		if (i % 100 == 0)
+    			assertSameContents(expected, map);
+    	}
+    	assertSameContents(expected, map);
+    }
+
+    @Test
+    public void putsNullAsRemoval() {
+    	ObjectFieldMap<String> map = new ObjectFieldMap<>();
+    	map.put(3, "a");
+    	assertEquals("a", map.put(3, null));
+    	assertFalse(map.containsKey(3));
+    	assertNull(map.put(4, null));
+    	assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void ignoresNonIntegerKeys() {
+    	DoubleFieldMap map = new DoubleFieldMap();
+    	map.put(1, 1.5);
+    	assertFalse(map.containsKey("1"));
+    	assertNull(map.get(1L));
+    	assertNull(map.remove("1"));
+    	assertEquals(1, map.size());
+    }
+
+    @Test
+    public void supportsEntryUpdatesAndRemovalWhileIterating() {
+    	DoubleFieldMap map = new DoubleFieldMap();
+    	Map<Integer, Double> expected = new HashMap<>();
+    	for (int i=0; i<10; i++) {
+    		map.put(i * 3, i);
+    		if (i % 2 == 1)
+    			expected.put(i * 3, i * 10d);
+    	}
+
+    	Iterator<Map.Entry<Integer, Double>> it = map.entrySet().iterator();
+    	while (it.hasNext()) {
+    		Map.Entry<Integer, Double> entry = it.next();
+    		if (entry.getValue() % 2 == 0)
+    			it.remove();
+    		else
+    			entry.setValue(entry.getValue() * 10);
+    	}
+    	assertEquals(expected, map);
+    	for (int i=0; i<map.size(); i++)
+    		assertEquals(expected.get(map.keyAt(i)), map.valueAt(i), 0);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsIteratorRemovalBeforeNext() {
+    	DoubleFieldMap map = new DoubleFieldMap();
+    	map.put(1, 1);
+    	map.entrySet().iterator().remove();
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void rejectsOutOfRangeIndex() {
+    	DoubleFieldMap map = new DoubleFieldMap();
+    	map.put(1, 1);
+    	map.valueAt(1);
+    }
+}
@@ -0,0 +1,188 @@
+/*******************************************************************************
+ * metaXplorDB - Copyright (C) 2020 <CIRAD>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * @author sempere
+ */
+public class LineTokenizerTest {
+
+    /** numbers on which parseInt and parseDouble must behave like Integer.parseInt and Double.parseDouble */
+    private static final String[] NUMBERS = {"0", "-0", "+0", "7", "-7", "+7", "00012", "2147483647", "-2147483648", "2147483648", "-2147483649",
+    		"99999999999", "1.5", "-1.5", ".5", "5.", "1e3", "1E-3", "1e+3", "-2.5e-7", "1.5e308", "1e309", "4.9e-324", "1e-400", "123456789012345678",
+    		"0.1234567890123456789", "9007199254740993", "", "-", "+", ".", "1e", "1e+", "e5", "1.2.3", "1,5", "12a", "NaN", "-Infinity", "1f", "2d", "0x1p3", "--1"};
+
+    /**
+     * Reader returning at most one char per read() call, to exercise buffer boundaries
+     */
+    private static class TricklingReader extends FilterReader {
+    	TricklingReader(Reader in) {
+    		super(in);
+    	}
+
+		@Override
+		public int read(char[] cbuf, int off, int len) throws IOException {
+			return super.read(cbuf, off, Math.min(1, len));
+		}
+    }
+
+    private static List<List<String>> readAll(LineTokenizer tokenizer) throws IOException {
+    	List<List<String>> lines = new ArrayList<>();
+    	while (tokenizer.readLine())
+    		lines.add(tokenizer.getStrings(0));
+    	return lines;
+    }
+
+    @Test
+    public void keepsTrailingEmptyColumns() {
+    	LineTokenizer tokenizer = new LineTokenizer('\t', false).tokenize("a\t\tb\t\t");
+    	assertEquals(Arrays.asList("a", "", "b", "", ""), tokenizer.getStrings(0));
+    	assertTrue(tokenizer.isEmpty(4));
+
+    	tokenizer.tokenize("");
+    	assertEquals(1, tokenizer.getColumnCount());
+    	assertTrue(tokenizer.isEmpty(0));
+
+    	assertEquals(Arrays.asList("a", ""), tokenizer.tokenize("a\t\tb").getStrings(2));
+    }
+
+    @Test
+    public void supportsCrLfAndMissingFinalNewline() throws IOException {
+    	String contents = "a\tb\r\n\r\nc\t\r\nd\te";
+    	List<List<String>> expected = Arrays.asList(Arrays.asList("a", "b"), Arrays.asList(""), Arrays.asList("c", ""), Arrays.asList("d", "e"));
+    	assertEquals(expected, readAll(new LineTokenizer(new StringReader(contents), '\t', false)));
+    	assertEquals(expected, readAll(new LineTokenizer(new TricklingReader(new StringReader(contents)), '\t', false)));
+
+    	LineTokenizer tokenizer = new LineTokenizer(new StringReader("x\n"), '\t', false);
+    	assertTrue(tokenizer.readLine());
+    	assertFalse(tokenizer.readLine());
+    	assertFalse(tokenizer.readLine());
+    	assertEquals(1, tokenizer.getLineNumber());
+    }
+
+    @Test
+    public void readsLinesLongerThanReadBuffer() throws IOException {
+    	char[] longColumn = new char[150000];
+    	Arrays.fill(longColumn, 'x');
+    	String contents = new String(longColumn) + "\t1\r\nshort\t2\r\n";
+    	LineTokenizer tokenizer = new LineTokenizer(new StringReader(contents), '\t', false);
+    	assertTrue(tokenizer.readLine());
+    	assertEquals(longColumn.length, tokenizer.getLength(0));
+    	assertEquals(1, tokenizer.parseInt(1));
+    	assertTrue(tokenizer.readLine());
+    	assertEquals("short", tokenizer.getString(0));
+    	assertEquals(2, tokenizer.parseInt(1));
+    	assertFalse(tokenizer.readLine());
+    }
+
+    @Test
+    public void trimsColumnsOnlyWhenAsked() {
+    	assertEquals(Arrays.asList(" a ", "b "), new LineTokenizer(',', false).tokenize(" a ,b ").getStrings(0));
+    	assertEquals(Arrays.asList("a", "b", ""), new LineTokenizer(',', true).tokenize(" a ,b , ").getStrings(0));
+    }
+
+    @Test
+    public void comparesColumnsWithoutCreatingStrings() {
+    	LineTokenizer tokenizer = new LineTokenizer('\t', false).tokenize("NC_001.1\tblastn\t");
+    	assertTrue(tokenizer.columnEquals(1, "blastn"));
+    	assertFalse(tokenizer.columnEquals(1, "blast"));
+    	assertTrue(tokenizer.columnStartsWith(0, "NC_"));
+    	assertFalse(tokenizer.columnStartsWith(2, "x"));
+    	assertTrue(tokenizer.isColumnOneOf(1, Arrays.asList("diamond", "blastn")));
+    	assertEquals("NC_001", tokenizer.getStringUntil(0, '.'));
+    	assertEquals("blastn", tokenizer.getStringUntil(1, '.'));
+    	assertEquals("blastn", tokenizer.getColumn(1).toString());
+    	assertEquals('l', tokenizer.getColumn(1).charAt(1));
+    	assertEquals("NC_001.1\tblastn\t", tokenizer.getLine());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void rejectsMissingColumn() {
+    	new LineTokenizer('\t', false).tokenize("a\tb").getString(2);
+    }
+
+    @Test
+    public void parsesIntsLikeIntegerParseInt() {
+    	LineTokenizer tokenizer = new LineTokenizer('\t', false);
+    	for (String number : NUMBERS) {
+    		tokenizer.tokenize(number);
+    		Integer expected;
+    		try {
+    			expected = Integer.parseInt(number);
+    		}
+    		catch (NumberFormatException nfe) {
+    			expected = null;
+    		}
+    		try {
+    			int value = tokenizer.parseInt(0);
+    			assertEquals("parseInt(\"" + number + "\")", expected, (Integer) value);
+    		}
+    		catch (NumberFormatException nfe) {
+    			if (expected != null)
+    				fail("parseInt(\"" + number + "\") threw " + nfe + " instead of returning " + expected);
+    		}
+    	}
+    }
+
+    @Test
+    public void parsesDoublesLikeDoubleParseDouble() {
+    	LineTokenizer tokenizer = new LineTokenizer('\t', false);
+    	for (String number : NUMBERS) {
+    		tokenizer.tokenize(number);
+    		Double expected;
+    		try {
+    			expected = Double.parseDouble(number);
+    		}
+    		catch (NumberFormatException nfe) {
+    			expected = null;
+    		}
+    		try {
+    			double value = tokenizer.parseDouble(0);
+    			if (expected == null)
+    				fail("parseDouble(\"" + number + "\") returned " + value + " instead of throwing");
+    			assertEquals("parseDouble(\"" + number + "\")", Double.doubleToRawLongBits(expected), Double.doubleToRawLongBits(value));
+    		}
+    		catch (NumberFormatException nfe) {
+    			if (expected != null)
+    				fail("parseDouble(\"" + number + "\") threw " + nfe + " instead of returning " + expected);
+    		}
+    	}
+    }
+
+    @Test
+    public void parsesDecimalsLeniently() {
+    	LineTokenizer tokenizer = new LineTokenizer('\t', false).tokenize("1,5\t 2.5 \tNA\t");
+    	assertEquals(1.5, tokenizer.parseDecimal(0), 0);
+    	assertEquals(2.5, tokenizer.parseDecimal(1), 0);
+    	assertTrue(Double.isNaN(tokenizer.parseDecimal(2)));
+    	assertTrue(Double.isNaN(tokenizer.parseDecimal(3)));
+    }
+}
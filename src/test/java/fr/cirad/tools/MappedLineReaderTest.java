@@ -0,0 +1,143 @@
+/*******************************************************************************
+ * metaXplorDB - Copyright (C) 2020 <CIRAD>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.tools;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author sempere
+ */
+public class MappedLineReaderTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private File createFile(String contents) throws IOException {
+    	File file = tempFolder.newFile();
+    	Files.write(file.toPath(), contents.getBytes(StandardCharsets.UTF_8));
+    	return file;
+    }
+
+    private static List<String> readLines(File file, long rangeStart, long rangeEnd) throws IOException {
+    	List<String> lines = new ArrayList<>();
+    	try (MappedLineReader reader = new MappedLineReader(file, '\t', rangeStart, rangeEnd)) {
+    		while (reader.readLine()) {
+    			StringBuilder sb = new StringBuilder();
+    			for (int i=0; i<reader.getColumnCount(); i++)
+    				sb.append(i == 0 ? "" : "|").append(reader.getString(i));
+    			lines.add(sb.toString());
+    		}
+    	}
+    	return lines;
+    }
+
+    @Test
+    public void splitsLinesAndColumns() throws IOException {
+    	File file = createFile("a\tb\r\n\r\nc\t\t\nd\u00e9j\u00e0\te");
+    	assertEquals(Arrays.asList("a|b", "", "c||", "d\u00e9j\u00e0|e"), readLines(file, 0, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void reportsOffsets() throws IOException {
+    	File file = createFile("ab\r\ncd\nef");
+    	try (MappedLineReader reader = new MappedLineReader(file, '\t')) {
+    		assertTrue(reader.readLine());
+    		assertEquals(0, reader.getLineStartOffset());
+    		assertEquals(4, reader.getPosition());
+    		assertEquals(2, reader.getByteLength(0));
+    		assertTrue(reader.readLine());
+    		assertEquals(4, reader.getLineStartOffset());
+    		assertEquals(7, reader.getPosition());
+    		assertTrue(reader.readLine());
+    		assertEquals(7, reader.getLineStartOffset());
+    		assertEquals(9, reader.getPosition());
+    		assertFalse(reader.readLine());
+    	}
+    }
+
+    @Test
+    public void yieldsEachLineOnceWhateverTheRangeBounds() throws IOException {
+    	String contents = "first\tline\nsecond\r\n\nfourth\t\u00e9\t\nfifth";
+    	File file = createFile(contents);
+    	List<String> allLines = readLines(file, 0, Long.MAX_VALUE);
+    	assertEquals(5, allLines.size());
+
+    	for (int nBound=0; nBound<=file.length(); nBound++) {
+    		List<String> lines = readLines(file, 0, nBound);
+    		lines.addAll(readLines(file, nBound, file.length()));
+    		assertEquals("split at " + nBound, allLines, lines);
+    	}
+
+    	for (int nRangeCount=1; nRangeCount<=10; nRangeCount++) {
+    		long[] bounds = MappedLineReader.getRangeBounds(0, file.length(), nRangeCount);
+    		assertEquals(nRangeCount + 1, bounds.length);
+    		assertEquals(file.length(), bounds[nRangeCount]);
+    		List<String> lines = new ArrayList<>();
+    		for (int i=0; i<nRangeCount; i++)
+    			lines.addAll(readLines(file, bounds[i], bounds[i + 1]));
+    		assertEquals(nRangeCount + " ranges", allLines, lines);
+    	}
+    }
+
+    @Test
+    public void readsEmptyFile() throws IOException {
+    	assertEquals(new ArrayList<String>(), readLines(createFile(""), 0, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void comparesAndSplitsColumns() throws IOException {
+    	File file = createFile("q1\tNC_001.1;XM_2.3;;AB_4\t\u00e9t\u00e9\n");
+    	try (MappedLineReader reader = new MappedLineReader(file, '\t')) {
+    		assertTrue(reader.readLine());
+    		assertTrue(reader.columnEquals(0, "q1"));
+    		assertFalse(reader.columnEquals(0, "q"));
+    		assertTrue(reader.columnEquals(2, "\u00e9t\u00e9"));
+    		assertFalse(reader.columnEquals(2, "\u00e9t\u00e8"));
+    		assertTrue(reader.isColumnOneOf(0, Arrays.asList("q0", "q1")));
+    		assertEquals("NC_001", reader.getStringUntil(1, '.'));
+
+    		List<String> values = new ArrayList<>();
+    		reader.collectSubValues(1, ';', '.', 0, values);
+    		assertArrayEquals(new String[] {"NC_001", "XM_2", "", "AB_4"}, values.toArray());
+    		values.clear();
+    		reader.collectSubValues(1, ';', (char) 0, 2, values);
+    		assertArrayEquals(new String[] {"NC_001.1", "XM_2.3"}, values.toArray());
+    	}
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void rejectsMissingColumn() throws IOException {
+    	try (MappedLineReader reader = new MappedLineReader(createFile("a\tb"), '\t')) {
+    		reader.readLine();
+    		reader.getString(2);
+    	}
+    }
+}
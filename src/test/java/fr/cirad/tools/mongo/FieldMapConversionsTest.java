@@ -0,0 +1,122 @@
+/*******************************************************************************
+ * metaXplorDB - Copyright (C) 2020 <CIRAD>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.tools.mongo;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.bson.Document;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.convert.MongoCustomConversions;
+import org.springframework.data.mongodb.core.convert.NoOpDbRefResolver;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+
+import fr.cirad.metaxplor.model.AssignedSequence;
+import fr.cirad.metaxplor.model.Assignment;
+import fr.cirad.metaxplor.model.SampleReadCount;
+import fr.cirad.metaxplor.model.Sequence;
+
+/**
+ * @author sempere
+ */
+public class FieldMapConversionsTest {
+
+    private MappingMongoConverter converter;
+
+    @Before
+    public void setUp() {	// set up the way MongoTemplateManager does it
+    	MongoCustomConversions conversions = FieldMapConversions.getCustomConversions();
+    	MongoMappingContext mappingContext = new MongoMappingContext();
+    	mappingContext.setSimpleTypeHolder(conversions.getSimpleTypeHolder());
+    	mappingContext.afterPropertiesSet();
+    	converter = new MappingMongoConverter(NoOpDbRefResolver.INSTANCE, mappingContext);
+    	converter.setCustomConversions(conversions);
+    	converter.afterPropertiesSet();
+    }
+
+    @Test
+    public void roundTripsAssignedSequence() {
+    	AssignedSequence sequence = new AssignedSequence(12, "contig_1");
+    	Map<Integer, Double> sequenceDoubleFields = new HashMap<>();
+    	sequenceDoubleFields.put(3, 1542.);
+    	sequence.setDoubleFields(sequenceDoubleFields);
+    	sequence.setSampleComposition(Arrays.asList(new SampleReadCount("s1", 4), new SampleReadCount("s2", 9)));
+
+    	Assignment assignment = new Assignment();
+    	assignment.addStringField(5, "blastn");
+    	assignment.addStringField(2000, "Caf\u00e9 virus segment");
+    	assignment.putDoubleField(7, 98.6);
+    	assignment.putDoubleField(8, -1e-30);
+    	assignment.addStringArrayField(1, new String[] {"n:NC_001", "n:NC_002"});
+    	sequence.getAssignments().add(assignment);
+    	sequence.getAssignments().add(new Assignment());	// no fields at all
+
+    	Document doc = new Document();
+    	converter.write(sequence, doc);
+    	Document assignmentDoc = doc.getList(AssignedSequence.FIELDNAME_ASSIGNMENT, Document.class).get(0);
+    	assertEquals("blastn", assignmentDoc.get(DBConstant.STRING_TYPE, Document.class).get("5"));	// sub-documents keyed by field id
+    	assertEquals(98.6, assignmentDoc.get(DBConstant.DOUBLE_TYPE, Document.class).get("7"));
+    	assertEquals(Arrays.asList("n:NC_001", "n:NC_002"), assignmentDoc.get(DBConstant.STRING_ARRAY_TYPE, Document.class).get("1"));
+    	assertEquals(1542., doc.get(DBConstant.DOUBLE_TYPE, Document.class).get("3"));
+
+    	AssignedSequence readSequence = converter.read(AssignedSequence.class, doc);
+    	assertEquals(sequence.getId(), readSequence.getId());
+    	assertEquals(1542., readSequence.getDoubleFieldMap().getDouble(3), 0);
+    	assertEquals(2, readSequence.getSampleComposition().size());
+    	assertEquals("s2", readSequence.getSampleComposition().get(1).getSp());
+    	assertEquals(9, readSequence.getSampleComposition().get(1).getCount());
+
+    	assertEquals(2, readSequence.getAssignments().size());
+    	Assignment readAssignment = readSequence.getAssignments().get(0);
+    	assertEquals(assignment.getStringFields(), readAssignment.getStringFields());
+    	assertEquals("Caf\u00e9 virus segment", readAssignment.getStringFields().get(2000));
+    	assertEquals(assignment.getDoubleFields(), readAssignment.getDoubleFields());
+    	assertEquals(-1e-30, readAssignment.getDoubleFieldMap().getDouble(8), 0);
+    	assertEquals(1, readAssignment.getStringArrayFields().size());
+    	assertArrayEquals(new String[] {"n:NC_001", "n:NC_002"}, readAssignment.getStringArrayFields().get(1));
+
+    	Assignment emptyAssignment = readSequence.getAssignments().get(1);
+    	assertNull(emptyAssignment.getStringFields());
+    	assertNull(emptyAssignment.getDoubleFields());
+    	assertNull(emptyAssignment.getStringArrayFields());
+    }
+
+    @Test
+    public void roundTripsDictionaryEncodedSequence() {
+    	Sequence sequence = new Sequence(4, "read_7");
+    	sequence.setPackedSampleComposition(new int[] {0, 3}, new int[] {2, 11});
+    	Map<Integer, Double> doubleFields = new HashMap<>();
+    	doubleFields.put(0, 0.);
+    	doubleFields.put(1500, 12.25);
+    	sequence.setDoubleFields(doubleFields);
+
+    	Document doc = new Document();
+    	converter.write(sequence, doc);
+    	Sequence readSequence = converter.read(Sequence.class, doc);
+    	assertEquals(sequence.getId(), readSequence.getId());
+    	assertEquals(sequence.getDoubleFields(), readSequence.getDoubleFields());
+    	assertArrayEquals(new int[] {0, 3}, readSequence.getSampleIndexes());
+    	assertArrayEquals(new int[] {2, 11}, readSequence.getSampleCounts());
+    	assertEquals("d", readSequence.getSampleComposition(Arrays.asList("a", "b", "c", "d")).get(1).getSp());
+    }
+}